@@ -1,11 +1,16 @@
 package nuclearbot;
 
 import nuclearbot.gui.NuclearBotGUI;
+import nuclearbot.util.Config;
 import nuclearbot.util.Logger;
+import nuclearbot.util.MetricsServer;
+import nuclearbot.web.BotController;
+import nuclearbot.web.WebPanel;
 import org.jb2011.lnf.beautyeye.BeautyEyeLNFHelper;
 
 import javax.swing.*;
 import java.io.IOException;
+import java.util.Arrays;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -26,6 +31,8 @@ import java.io.IOException;
 
 /**
  * Program entry point.<br>
+ * With <code>--headless</code>, the bot is controlled from the
+ * web control panel instead of the GUI.<br>
  * <br>
  * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
  *
@@ -36,6 +43,31 @@ public class Main implements Runnable {
     public static void main(final String[] args) throws IOException {
         Logger.class.getName(); // run Logger class static init block
 
+        final String eventLogPath = Config.get("event_log", "");
+        if (!eventLogPath.isEmpty()) { // off unless a path is set, e.g. "nuclearbot.events.jsonl"
+            try {
+                Logger.openEventLog(eventLogPath);
+            } catch (IOException e) {
+                Logger.warning("(Log) Couldn't open the event log, structured events are disabled:");
+                Logger.printStackTrace(e);
+            }
+        }
+
+        final String metricsPort = Config.get("metrics_port", "");
+        if (!metricsPort.isEmpty() && !metricsPort.equals("0")) { // no port disables the metrics endpoint
+            try {
+                MetricsServer.start(Config.get("metrics_host", "127.0.0.1"), Integer.parseInt(metricsPort));
+            } catch (IOException | IllegalArgumentException e) {
+                Logger.warning("(Metrics) Couldn't start the metrics endpoint:");
+                Logger.printStackTrace(e);
+            }
+        }
+
+        if (Arrays.asList(args).contains("--headless")) {
+            runHeadless();
+            return;
+        }
+
         Logger.info("(GUI) Attempting to use BeautyEye look-and-feel...");
         try {
             BeautyEyeLNFHelper.frameBorderStyle = BeautyEyeLNFHelper.FrameBorderStyle.generalNoTranslucencyShadow;
@@ -49,6 +81,22 @@ public class Main implements Runnable {
         SwingUtilities.invokeLater(new Main());
     }
 
+    // the web server thread keeps the program alive
+    private static void runHeadless() {
+        Logger.info("(Web) Starting without the GUI...");
+        final BotController controller = new BotController();
+        try {
+            new WebPanel(controller).start(Config.get("web_host", "127.0.0.1"), Config.getInt("web_port", 8080));
+        } catch (IOException | IllegalArgumentException e) {
+            Logger.error("(Web) Couldn't start the web control panel:");
+            Logger.printStackTrace(e);
+            System.exit(1);
+        }
+        if (Boolean.parseBoolean(Config.get("web_autostart", "false"))) {
+            controller.startClient();
+        }
+    }
+
     @Override
     public void run() {
         new NuclearBotGUI().open();
@@ -0,0 +1,562 @@
+package nuclearbot.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * One memory-mapped, append-only segment of the chat archive.<br>
+ * Records are <code>[length][id][timestamp][user length][user][message]</code>,
+ * the length being written last so that a torn record is never read.
+ * Every INDEX_INTERVAL-th record is kept in a sparse index of
+ * (id, timestamp, offset), and the user names are hashed in a bloom filter.
+ * The filter of the active segment is sized for the busiest channels. When the
+ * segment is sealed, the number of users is estimated from the bits set, and
+ * the filter is folded in halves down to about ten bits per user, keeping
+ * few false positives. The sparse index and the bloom filter are then
+ * written to a side file, and are only loaded again when needed.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+class ArchiveSegment {
+
+    static final int SEGMENT_SIZE = 32 << 20;
+
+    private static final int MAGIC = 0x4E424341; // "NBCA"
+    private static final int INDEX_MAGIC = 0x4E424349; // "NBCI"
+    private static final int VERSION = 1;
+    private static final int INDEX_VERSION = 2;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_END = 16;
+    // length + id + timestamp + user length
+    private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 1;
+
+    private static final int INDEX_INTERVAL = 64;
+    // about 10 bits per user with 7 hashes, for up to 100000 users in the active segment
+    private static final int BLOOM_MAX_LONGS = 1 << 14; // 2^20 bits
+    private static final int BLOOM_MIN_LONGS = 1 << 6;
+    private static final int BLOOM_HASHES = 7;
+    private static final int BLOOM_BITS_PER_USER = 10;
+
+    private final File m_dataFile;
+    private final File m_indexFile;
+    private final long m_baseId;
+    private volatile long[] m_bloom; // power of two length, folded when sealing
+
+    private volatile boolean m_sealed;
+    private volatile int m_end;
+    private volatile long m_firstTimestamp;
+    private volatile long m_lastTimestamp;
+    private volatile long m_lastId;
+
+    // sparse index, published by m_indexCount
+    private long[] m_indexIds;
+    private long[] m_indexTimestamps;
+    private int[] m_indexOffsets;
+    private volatile int m_indexCount;
+
+    private volatile MappedByteBuffer m_data;
+
+    private ArchiveSegment(final File directory, final long baseId) {
+        m_dataFile = new File(directory, fileName(baseId, ".seg"));
+        m_indexFile = new File(directory, fileName(baseId, ".idx"));
+        m_baseId = baseId;
+        m_bloom = new long[BLOOM_MAX_LONGS];
+        m_sealed = false;
+        m_end = HEADER_SIZE;
+        m_firstTimestamp = Long.MAX_VALUE;
+        m_lastTimestamp = Long.MIN_VALUE;
+        m_lastId = baseId - 1;
+        clearIndex();
+    }
+
+    static String fileName(final long baseId, final String extension) {
+        return String.format("chat-%020d%s", baseId, extension);
+    }
+
+    static long parseBaseId(final String fileName) {
+        return Long.parseLong(fileName.substring(5, 25));
+    }
+
+    /**
+     * Creates a new empty active segment.
+     */
+    static ArchiveSegment create(final File directory, final long baseId) throws IOException {
+        final ArchiveSegment segment = new ArchiveSegment(directory, baseId);
+        final MappedByteBuffer data = segment.map();
+        data.putInt(0, MAGIC);
+        data.putInt(4, VERSION);
+        data.putLong(8, baseId);
+        data.putInt(HEADER_END, HEADER_SIZE);
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment. Sealed segments only load their summary,
+     * the last segment is recovered by scanning its records.
+     */
+    static ArchiveSegment open(final File directory, final long baseId, final boolean active) throws IOException {
+        final ArchiveSegment segment = new ArchiveSegment(directory, baseId);
+        if (!active && segment.loadIndexFile(false)) {
+            segment.m_sealed = true;
+            return segment;
+        }
+        segment.recover();
+        if (!active) {
+            segment.seal();
+        }
+        return segment;
+    }
+
+    private void clearIndex() {
+        m_indexIds = new long[64];
+        m_indexTimestamps = new long[64];
+        m_indexOffsets = new int[64];
+        m_indexCount = 0;
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        MappedByteBuffer data = m_data;
+        if (data == null) {
+            try (final RandomAccessFile file = new RandomAccessFile(m_dataFile, m_sealed ? "r" : "rw");
+                 final FileChannel channel = file.getChannel()) {
+                if (m_sealed) {
+                    data = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), SEGMENT_SIZE));
+                } else {
+                    data = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+                }
+            }
+            m_data = data;
+        }
+        return data;
+    }
+
+    private void recover() throws IOException {
+        final MappedByteBuffer data = map();
+        if (data.getInt(0) != MAGIC || data.getLong(8) != m_baseId) {
+            throw new IOException("Corrupted archive segment \"" + m_dataFile.getName() + "\".");
+        }
+        int offset = HEADER_SIZE;
+        long expectedId = m_baseId;
+        while (offset + RECORD_OVERHEAD <= SEGMENT_SIZE) {
+            final int length = data.getInt(offset);
+            if (length < RECORD_OVERHEAD - 4 || offset + 4 + length > SEGMENT_SIZE || data.getLong(offset + 4) != expectedId) {
+                break;
+            }
+            final long timestamp = data.getLong(offset + 12);
+            final int userLength = data.get(offset + 20) & 0xFF;
+            addToBloom(data, offset + 21, userLength);
+            track(expectedId, timestamp, offset);
+            offset += 4 + length;
+            expectedId++;
+        }
+        m_end = offset;
+        data.putInt(HEADER_END, offset);
+    }
+
+    /**
+     * Returns the number of bytes a record will take.
+     */
+    static int recordSize(final byte[] user, final byte[] message) {
+        return RECORD_OVERHEAD + user.length + message.length;
+    }
+
+    /**
+     * Returns true if the record fits in the remaining space.
+     */
+    boolean fits(final int recordSize) {
+        return m_end + recordSize <= SEGMENT_SIZE;
+    }
+
+    /**
+     * Appends a record. Must only be called by the writer thread.
+     * Readers see the record as soon as this method returns.
+     */
+    void append(final long id, final long timestamp, final byte[] user, final byte[] message) {
+        final MappedByteBuffer data = m_data;
+        final int offset = m_end;
+        final int length = RECORD_OVERHEAD - 4 + user.length + message.length;
+
+        data.putLong(offset + 4, id);
+        data.putLong(offset + 12, timestamp);
+        data.put(offset + 20, (byte) user.length);
+        final ByteBuffer body = data.duplicate();
+        body.position(offset + 21);
+        body.put(user);
+        body.put(message);
+        data.putInt(offset, length); // written last
+
+        addToBloom(data, offset + 21, user.length);
+        track(id, timestamp, offset);
+        m_end = offset + 4 + length;
+    }
+
+    /**
+     * Records the end of the appended records in the segment header.
+     */
+    void publish() {
+        m_data.putInt(HEADER_END, m_end);
+    }
+
+    private void track(final long id, final long timestamp, final int offset) {
+        if (m_firstTimestamp == Long.MAX_VALUE) {
+            m_firstTimestamp = timestamp;
+        }
+        if ((id - m_baseId) % INDEX_INTERVAL == 0) {
+            final int count = m_indexCount;
+            if (count == m_indexIds.length) {
+                final int capacity = count * 2;
+                m_indexIds = Arrays.copyOf(m_indexIds, capacity);
+                m_indexTimestamps = Arrays.copyOf(m_indexTimestamps, capacity);
+                m_indexOffsets = Arrays.copyOf(m_indexOffsets, capacity);
+            }
+            m_indexIds[count] = id;
+            m_indexTimestamps[count] = timestamp;
+            m_indexOffsets[count] = offset;
+            m_indexCount = count + 1;
+        }
+        m_lastTimestamp = timestamp;
+        m_lastId = id;
+    }
+
+    /**
+     * Writes the sparse index and bloom filter, and flushes the data.
+     */
+    void seal() throws IOException {
+        final MappedByteBuffer data = m_data;
+        if (data != null) {
+            publish();
+            data.force();
+        }
+        m_bloom = foldBloom(m_bloom);
+        final File tmpFile = new File(m_indexFile.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            final int count = m_indexCount;
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(m_baseId);
+            out.writeLong(m_lastId);
+            out.writeLong(m_firstTimestamp);
+            out.writeLong(m_lastTimestamp);
+            out.writeInt(m_end);
+            out.writeInt(m_bloom.length);
+            for (final long bits : m_bloom) {
+                out.writeLong(bits);
+            }
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(m_indexIds[i]);
+                out.writeLong(m_indexTimestamps[i]);
+                out.writeInt(m_indexOffsets[i]);
+            }
+        }
+        Files.move(tmpFile.toPath(), m_indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        m_sealed = true;
+        release();
+    }
+
+    // loads the summary, and the sparse index too if requested
+    private boolean loadIndexFile(final boolean withIndex) {
+        if (!m_indexFile.isFile()) {
+            return false;
+        }
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION || in.readLong() != m_baseId) {
+                return false;
+            }
+            m_lastId = in.readLong();
+            m_firstTimestamp = in.readLong();
+            m_lastTimestamp = in.readLong();
+            m_end = in.readInt();
+            final int bloomLongs = in.readInt();
+            if (Integer.bitCount(bloomLongs) != 1 || bloomLongs > BLOOM_MAX_LONGS) {
+                return false;
+            }
+            final long[] bloom = new long[bloomLongs];
+            for (int i = 0; i < bloomLongs; i++) {
+                bloom[i] = in.readLong();
+            }
+            m_bloom = bloom;
+            if (withIndex) {
+                final int count = in.readInt();
+                final long[] ids = new long[Math.max(1, count)];
+                final long[] timestamps = new long[Math.max(1, count)];
+                final int[] offsets = new int[Math.max(1, count)];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = in.readLong();
+                    timestamps[i] = in.readLong();
+                    offsets[i] = in.readInt();
+                }
+                m_indexIds = ids;
+                m_indexTimestamps = timestamps;
+                m_indexOffsets = offsets;
+                m_indexCount = count;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Makes sure the data and the sparse index of a sealed segment are loaded.
+     */
+    synchronized void load() throws IOException {
+        if (m_sealed && m_data == null) {
+            if (!loadIndexFile(true)) {
+                throw new IOException("Couldn't read archive index \"" + m_indexFile.getName() + "\".");
+            }
+            map();
+        }
+    }
+
+    /**
+     * Drops the mapping and the sparse index of a sealed segment.
+     * The summary and the bloom filter are kept.
+     */
+    synchronized void release() {
+        if (m_sealed) {
+            m_data = null;
+            m_indexIds = null;
+            m_indexTimestamps = null;
+            m_indexOffsets = null;
+            m_indexCount = 0;
+        }
+    }
+
+    void delete() throws IOException {
+        release();
+        Files.deleteIfExists(m_indexFile.toPath());
+        Files.deleteIfExists(m_dataFile.toPath());
+    }
+
+    // the bits are hash + i * step modulo the size, so a filter folded in halves still matches
+    private void addToBloom(final ByteBuffer data, final int offset, final int length) {
+        final long[] bloom = m_bloom;
+        final int mask = bloom.length * 64 - 1;
+        final int hash = hash(data, offset, length);
+        final int step = Integer.rotateLeft(hash * 0x9E3779B9, 16) | 1;
+        for (int i = 0, bit = hash; i < BLOOM_HASHES; i++, bit += step) {
+            bloom[(bit & mask) >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if the user has definitely no message in this segment.
+     */
+    boolean mightContainUser(final byte[] user) {
+        final long[] bloom = m_bloom;
+        final int mask = bloom.length * 64 - 1;
+        final int hash = hash(ByteBuffer.wrap(user), 0, user.length);
+        final int step = Integer.rotateLeft(hash * 0x9E3779B9, 16) | 1;
+        for (int i = 0, bit = hash; i < BLOOM_HASHES; i++, bit += step) {
+            if ((bloom[(bit & mask) >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // halves the filter while it keeps BLOOM_BITS_PER_USER bits for the estimated number of users
+    private static long[] foldBloom(long[] bloom) {
+        int set = 0;
+        for (final long bits : bloom) {
+            set += Long.bitCount(bits);
+        }
+        final double size = bloom.length * 64.0;
+        if (set >= size) {
+            return bloom;
+        }
+        final double users = -size / BLOOM_HASHES * Math.log(1.0 - set / size);
+        while (bloom.length > BLOOM_MIN_LONGS && bloom.length * 32.0 >= users * BLOOM_BITS_PER_USER) {
+            final int half = bloom.length / 2;
+            final long[] folded = Arrays.copyOf(bloom, half);
+            for (int i = 0; i < half; i++) {
+                folded[i] |= bloom[half + i];
+            }
+            bloom = folded;
+        }
+        return bloom;
+    }
+
+    private static int hash(final ByteBuffer data, final int offset, final int length) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (data.get(offset + i) & 0xFF)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    long getBaseId() {
+        return m_baseId;
+    }
+
+    long getLastId() {
+        return m_lastId;
+    }
+
+    long getFirstTimestamp() {
+        return m_firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return m_lastTimestamp;
+    }
+
+    boolean isSealed() {
+        return m_sealed;
+    }
+
+    boolean isEmpty() {
+        return m_lastId < m_baseId;
+    }
+
+    /**
+     * Returns the offset to start scanning from to find the first record
+     * whose id is at least the given id.
+     */
+    synchronized int offsetForId(final long id) throws IOException {
+        load();
+        final int count = m_indexCount;
+        final long[] ids = m_indexIds;
+        int low = 0, high = count - 1, found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (ids[mid] <= id) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found < 0 ? HEADER_SIZE : m_indexOffsets[found];
+    }
+
+    /**
+     * Returns the offset to start scanning from to find the first record
+     * whose timestamp is at least the given timestamp.
+     */
+    synchronized int offsetForTimestamp(final long timestamp) throws IOException {
+        load();
+        final int count = m_indexCount;
+        final long[] timestamps = m_indexTimestamps;
+        int low = 0, high = count - 1, found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found < 0 ? HEADER_SIZE : m_indexOffsets[found];
+    }
+
+    /**
+     * Returns a cursor over the records, starting at the given offset.
+     */
+    synchronized Cursor cursor(final int offset) throws IOException {
+        load();
+        return new Cursor(map(), offset, m_end);
+    }
+
+    /**
+     * Forward-only reader over the records of a segment.
+     */
+    static class Cursor {
+
+        private final ByteBuffer m_data;
+        private final int m_end;
+        private int m_offset;
+
+        private int m_recordOffset;
+        private int m_recordLength;
+
+        private Cursor(final ByteBuffer data, final int offset, final int end) {
+            m_data = data.duplicate();
+            m_offset = offset;
+            m_end = end;
+        }
+
+        /**
+         * Moves to the next record, returns false at the end.
+         */
+        boolean next() {
+            if (m_offset >= m_end) {
+                return false;
+            }
+            m_recordOffset = m_offset;
+            m_recordLength = m_data.getInt(m_offset);
+            m_offset += 4 + m_recordLength;
+            return true;
+        }
+
+        long id() {
+            return m_data.getLong(m_recordOffset + 4);
+        }
+
+        long timestamp() {
+            return m_data.getLong(m_recordOffset + 12);
+        }
+
+        boolean userEquals(final byte[] user) {
+            final int userLength = m_data.get(m_recordOffset + 20) & 0xFF;
+            if (userLength != user.length) {
+                return false;
+            }
+            for (int i = 0; i < userLength; i++) {
+                if (m_data.get(m_recordOffset + 21 + i) != user[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        ArchivedMessage read() {
+            final int userLength = m_data.get(m_recordOffset + 20) & 0xFF;
+            final int messageLength = m_recordLength - (RECORD_OVERHEAD - 4) - userLength;
+            final byte[] bytes = new byte[userLength + messageLength];
+            final ByteBuffer body = m_data.duplicate();
+            body.position(m_recordOffset + 21);
+            body.get(bytes);
+            return new ArchivedMessage(id(), timestamp(), new String(bytes, 0, userLength, StandardCharsets.UTF_8),
+                    new String(bytes, userLength, messageLength, StandardCharsets.UTF_8));
+        }
+
+    }
+
+}
@@ -0,0 +1,41 @@
+package nuclearbot.archive;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A chat message read from the archive.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class ArchivedMessage {
+
+    public final long id;
+    public final long timestamp;
+    public final String username;
+    public final String message;
+
+    ArchivedMessage(final long id, final long timestamp, final String username, final String message) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.username = username;
+        this.message = message;
+    }
+
+}
@@ -0,0 +1,555 @@
+package nuclearbot.archive;
+
+import nuclearbot.client.ChatClient;
+import nuclearbot.client.ClientListener;
+import nuclearbot.client.Command;
+import nuclearbot.util.Config;
+import nuclearbot.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Persistent chat archive made of append-only memory-mapped segments.<br>
+ * Messages are queued by the client thread and written in batches
+ * by a dedicated writer thread. Every message gets a sequential id.
+ * Reads use the sparse index of each segment to seek by time or id,
+ * and skip the segments whose bloom filter rules out the user.
+ * Only a few sealed segments are kept loaded at once.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class ChatArchive implements ClientListener {
+
+    private static final int QUEUE_SIZE = 1 << 16;
+    private static final int BATCH_SIZE = 1024;
+    private static final int LOADED_SEGMENTS = 4;
+    private static final int MAX_MESSAGE_BYTES = 1 << 16;
+
+    private static final long POLL_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+    private final File m_directory;
+    private final BlockingQueue<PendingMessage> m_queue;
+    private final AtomicLong m_dropped;
+    private final List<ArchiveListener> m_listeners;
+
+    // immutable snapshot of the segments, oldest first
+    private volatile List<ArchiveSegment> m_segments;
+    // sealed segments that are currently loaded, least recently used first
+    private final Map<ArchiveSegment, Boolean> m_loaded;
+
+    // only accessed by the writer thread
+    private ArchiveSegment m_active;
+    private long m_nextId;
+    private long m_lastTimestamp;
+
+    private final Thread m_thread;
+    private volatile boolean m_running;
+
+    /**
+     * Opens the archive in the specified directory, creating it if needed,
+     * and starts the writer thread.
+     *
+     * @param directory the archive directory
+     * @throws IOException if the directory or the segments could not be opened
+     */
+    public ChatArchive(final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create archive directory \"" + directory.getAbsolutePath() + "\".");
+        }
+        m_directory = directory;
+        m_queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        m_dropped = new AtomicLong();
+        m_listeners = new CopyOnWriteArrayList<>();
+        m_loaded = new LinkedHashMap<>(LOADED_SEGMENTS * 2, 0.75f, true);
+
+        final String[] names = directory.list((dir, name) -> name.startsWith("chat-") && name.endsWith(".seg"));
+        final long[] baseIds = new long[names == null ? 0 : names.length];
+        for (int i = 0; i < baseIds.length; i++) {
+            baseIds[i] = ArchiveSegment.parseBaseId(names[i]);
+        }
+        Arrays.sort(baseIds);
+
+        final List<ArchiveSegment> segments = new ArrayList<>(baseIds.length + 1);
+        for (int i = 0; i < baseIds.length; i++) {
+            segments.add(ArchiveSegment.open(directory, baseIds[i], i == baseIds.length - 1));
+        }
+        if (segments.isEmpty()) {
+            segments.add(ArchiveSegment.create(directory, 0L));
+        }
+        m_active = segments.get(segments.size() - 1);
+        m_segments = Collections.unmodifiableList(segments);
+        m_nextId = m_active.getLastId() + 1;
+        m_lastTimestamp = m_active.isEmpty() ? Long.MIN_VALUE : m_active.getLastTimestamp();
+
+        Logger.info("(Archive) Opened chat archive with " + m_nextId + " messages in " + segments.size() + " segment(s).");
+
+        m_running = true;
+        m_thread = new Thread(new WriterRunnable(), "archive writer");
+        m_thread.setDaemon(true);
+        m_thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Opens the archive in the directory set by "chat_archive".
+     * An empty path disables the archive. Errors are logged.
+     *
+     * @return the archive, or null if it is disabled or couldn't be opened
+     */
+    public static ChatArchive openConfigured() {
+        final String path = Config.get("chat_archive", "archive");
+        if (path.isEmpty()) { // an empty path disables the chat archive
+            return null;
+        }
+        try {
+            return new ChatArchive(new File(path));
+        } catch (IOException e) {
+            Logger.error("(Archive) Couldn't open the chat archive, chat will not be archived:");
+            Logger.printStackTrace(e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the archive directory.
+     *
+     * @return the archive directory
+     */
+    public File getDirectory() {
+        return m_directory;
+    }
+
+    /**
+     * Registers a listener that is notified on the writer thread
+     * once new messages are readable from the archive.
+     *
+     * @param listener the listener
+     */
+    public void addArchiveListener(final ArchiveListener listener) {
+        m_listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @param listener the listener
+     */
+    public void removeArchiveListener(final ArchiveListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    /**
+     * Queues a message to be archived. This method never blocks:
+     * if the writer falls too far behind, the message is dropped.
+     *
+     * @param timestamp the message time, in milliseconds since the epoch
+     * @param username  the sender's username
+     * @param message   the message
+     */
+    public void append(final long timestamp, final String username, final String message) {
+        if (!m_queue.offer(new PendingMessage(timestamp, username, message))) {
+            final long dropped = m_dropped.incrementAndGet();
+            if (dropped % 1000 == 1) {
+                Logger.warning("(Archive) Archive queue is full, " + dropped + " message(s) dropped so far.");
+            }
+        }
+    }
+
+    /**
+     * Returns the id the next archived message will have.
+     * This is also the number of messages archived so far.
+     *
+     * @return the next message id
+     */
+    public long getNextId() {
+        final List<ArchiveSegment> segments = m_segments;
+        return segments.get(segments.size() - 1).getLastId() + 1;
+    }
+
+    /**
+     * Returns the message with the specified id, or null if there is none.
+     *
+     * @param id the message id
+     * @return the message or null
+     * @throws IOException if a segment could not be read
+     */
+    public ArchivedMessage get(final long id) throws IOException {
+        final ArchiveSegment segment = segmentForId(id);
+        if (segment == null || id > segment.getLastId()) {
+            return null;
+        }
+        final ArchiveSegment.Cursor cursor = segment.cursor(segment.offsetForId(id));
+        touch(segment);
+        while (cursor.next()) {
+            final long current = cursor.id();
+            if (current == id) {
+                return cursor.read();
+            } else if (current > id) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Visits the archived messages starting at the specified id, in id order.
+     *
+     * @param fromId  the first id to visit
+     * @param visitor the visitor, returns false to stop
+     * @throws IOException if a segment could not be read
+     */
+    public void scanFrom(final long fromId, final Visitor visitor) throws IOException {
+        final List<ArchiveSegment> segments = m_segments;
+        for (final ArchiveSegment segment : segments) {
+            if (segment.isEmpty() || segment.getLastId() < fromId) {
+                continue;
+            }
+            final ArchiveSegment.Cursor cursor = segment.cursor(segment.offsetForId(fromId));
+            touch(segment);
+            while (cursor.next()) {
+                if (cursor.id() >= fromId && !visitor.visit(cursor.read())) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private ArchiveSegment segmentForId(final long id) {
+        final List<ArchiveSegment> segments = m_segments;
+        int low = 0, high = segments.size() - 1, found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (segments.get(mid).getBaseId() <= id) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found < 0 ? null : segments.get(found);
+    }
+
+    /**
+     * Visits the archived messages sent between the specified times, oldest first.
+     *
+     * @param from     the lower time bound (inclusive)
+     * @param to       the upper time bound (inclusive)
+     * @param username the sender to filter, or null for everyone
+     * @param visitor  the visitor, returns false to stop
+     * @throws IOException if a segment could not be read
+     */
+    public void scan(final long from, final long to, final String username, final Visitor visitor) throws IOException {
+        final byte[] user = username != null ? username.getBytes(StandardCharsets.UTF_8) : null;
+        for (final ArchiveSegment segment : m_segments) {
+            if (segment.isEmpty() || segment.getLastTimestamp() < from) {
+                continue;
+            }
+            if (segment.getFirstTimestamp() > to) {
+                break;
+            }
+            if (!scanSegment(segment, from, to, user, visitor)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent messages sent since the specified time, oldest first.
+     *
+     * @param since    the lower time bound (inclusive)
+     * @param username the sender to filter, or null for everyone
+     * @param limit    the maximum number of messages to return
+     * @return the messages
+     * @throws IOException if a segment could not be read
+     */
+    public List<ArchivedMessage> readLatest(final long since, final String username, final int limit) throws IOException {
+        final byte[] user = username != null ? username.getBytes(StandardCharsets.UTF_8) : null;
+        final Deque<ArchivedMessage> result = new ArrayDeque<>();
+        final List<ArchiveSegment> segments = m_segments;
+
+        // walk the segments backwards, but each one forwards
+        for (int i = segments.size() - 1; i >= 0 && result.size() < limit; i--) {
+            final ArchiveSegment segment = segments.get(i);
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (segment.getLastTimestamp() < since) {
+                break;
+            }
+            final Deque<ArchivedMessage> partial = new ArrayDeque<>();
+            scanSegment(segment, since, Long.MAX_VALUE, user, message ->
+            {
+                if (partial.size() == limit) {
+                    partial.pollFirst();
+                }
+                partial.addLast(message);
+                return true;
+            });
+            final Iterator<ArchivedMessage> it = partial.descendingIterator();
+            while (it.hasNext() && result.size() < limit) {
+                result.addFirst(it.next());
+            }
+        }
+
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Returns the most recent messages sent since the specified time, oldest first.
+     *
+     * @param since the lower time bound (inclusive)
+     * @param limit the maximum number of messages to return
+     * @return the messages
+     * @throws IOException if a segment could not be read
+     */
+    public List<ArchivedMessage> readSince(final long since, final int limit) throws IOException {
+        return readLatest(since, null, limit);
+    }
+
+    /**
+     * Returns the most recent messages of a user, oldest first.
+     *
+     * @param username the sender
+     * @param limit    the maximum number of messages to return
+     * @return the messages
+     * @throws IOException if a segment could not be read
+     */
+    public List<ArchivedMessage> readFromUser(final String username, final int limit) throws IOException {
+        return readLatest(Long.MIN_VALUE, username, limit);
+    }
+
+    private boolean scanSegment(final ArchiveSegment segment, final long from, final long to, final byte[] user, final Visitor visitor)
+            throws IOException {
+        if (user != null && !segment.mightContainUser(user)) {
+            return true;
+        }
+        final ArchiveSegment.Cursor cursor = segment.cursor(segment.offsetForTimestamp(from));
+        touch(segment);
+        while (cursor.next()) {
+            final long timestamp = cursor.timestamp();
+            if (timestamp < from) {
+                continue;
+            }
+            if (timestamp > to) {
+                return false;
+            }
+            if (user != null && !cursor.userEquals(user)) {
+                continue;
+            }
+            if (!visitor.visit(cursor.read())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // keeps the last few used sealed segments loaded, releases the others
+    private void touch(final ArchiveSegment segment) {
+        if (!segment.isSealed()) {
+            return;
+        }
+        ArchiveSegment evicted = null;
+        synchronized (m_loaded) {
+            m_loaded.put(segment, Boolean.TRUE);
+            if (m_loaded.size() > LOADED_SEGMENTS) {
+                final Iterator<ArchiveSegment> it = m_loaded.keySet().iterator();
+                evicted = it.next();
+                it.remove();
+            }
+        }
+        if (evicted != null) {
+            evicted.release();
+        }
+    }
+
+    /**
+     * Stops the writer thread after it has written the queued messages.
+     */
+    public void close() {
+        if (!m_running) {
+            return;
+        }
+        m_running = false;
+        try {
+            m_thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private ArchivedMessage write(final PendingMessage pending) throws IOException {
+        final byte[] user = truncate(pending.username.getBytes(StandardCharsets.UTF_8), 0xFF);
+        final byte[] message = truncate(pending.message.getBytes(StandardCharsets.UTF_8), MAX_MESSAGE_BYTES);
+        final int size = ArchiveSegment.recordSize(user, message);
+
+        if (!m_active.fits(size)) {
+            m_active.seal();
+            final ArchiveSegment segment = ArchiveSegment.create(m_directory, m_nextId);
+            final List<ArchiveSegment> segments = new ArrayList<>(m_segments);
+            segments.add(segment);
+            m_active = segment;
+            m_segments = Collections.unmodifiableList(segments);
+        }
+
+        // keep the timestamps monotonic for the sparse index
+        m_lastTimestamp = Math.max(m_lastTimestamp, pending.timestamp);
+        m_active.append(m_nextId, m_lastTimestamp, user, message);
+        return new ArchivedMessage(m_nextId++, m_lastTimestamp, pending.username, pending.message);
+    }
+
+    private void notifyListeners(final List<ArchivedMessage> messages) {
+        for (final ArchiveListener listener : m_listeners) {
+            try {
+                listener.onArchived(messages);
+            } catch (RuntimeException e) {
+                Logger.error("(Archive) Exception caught in archive listener:");
+                Logger.printStackTrace(e);
+            }
+        }
+    }
+
+    private static byte[] truncate(final byte[] bytes, final int max) {
+        return bytes.length <= max ? bytes : Arrays.copyOf(bytes, max);
+    }
+
+    /* **** client listener methods **** */
+
+    @Override
+    public void onConnected(final ChatClient client) {
+    }
+
+    @Override
+    public void onDisconnected(final ChatClient client) {
+    }
+
+    @Override
+    public void onMessage(final ChatClient client, final String username, final String message) {
+        if (username.equals(client.getUsername())) {
+            return; // the bot's own replies, !quote would end up quoting its earlier quotes
+        }
+        append(System.currentTimeMillis(), username, message);
+    }
+
+    @Override
+    public void onCommandRegistered(final ChatClient client, final String label, final Command command) {
+    }
+
+    @Override
+    public void onCommandUnregistered(final ChatClient client, final String label) {
+    }
+
+    /**
+     * Visitor for archived messages.
+     */
+    public interface Visitor {
+
+        /**
+         * Visits an archived message.
+         *
+         * @param message the message
+         * @return true to continue, false to stop
+         */
+        boolean visit(ArchivedMessage message);
+
+    }
+
+    /**
+     * Listener for newly archived messages.
+     */
+    public interface ArchiveListener {
+
+        /**
+         * Called on the writer thread after a batch of messages was written.
+         * Implementations should return quickly.
+         *
+         * @param messages the messages, in id order
+         */
+        void onArchived(List<ArchivedMessage> messages);
+
+    }
+
+    private static class PendingMessage {
+
+        private final long timestamp;
+        private final String username;
+        private final String message;
+
+        private PendingMessage(final long timestamp, final String username, final String message) {
+            this.timestamp = timestamp;
+            this.username = username;
+            this.message = message;
+        }
+
+    }
+
+    private class WriterRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            final List<PendingMessage> batch = new ArrayList<>(BATCH_SIZE);
+            final List<ArchivedMessage> written = new ArrayList<>(BATCH_SIZE);
+            while (m_running || !m_queue.isEmpty()) {
+                try {
+                    final PendingMessage first = m_queue.poll(POLL_DELAY, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    m_queue.drainTo(batch, BATCH_SIZE - 1);
+                    for (final PendingMessage pending : batch) {
+                        written.add(write(pending));
+                    }
+                    m_active.publish();
+                    if (!m_listeners.isEmpty()) {
+                        notifyListeners(Collections.unmodifiableList(written));
+                    }
+                } catch (InterruptedException ignored) {
+                } catch (IOException e) {
+                    Logger.error("(Archive) Exception caught in archive writer thread:");
+                    Logger.printStackTrace(e);
+                } finally {
+                    batch.clear();
+                    written.clear();
+                }
+            }
+            Logger.info("(Archive) Archive writer stopped.");
+        }
+
+    }
+
+}
@@ -0,0 +1,725 @@
+package nuclearbot.archive;
+
+import nuclearbot.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Full-text inverted index over the chat archive.<br>
+ * New messages are indexed in memory as the archive writes them.
+ * Once the in-memory table is full it is frozen and written to an
+ * immutable segment by a background thread, and small adjacent segments
+ * are merged by another one, so that a long merge doesn't hold back the
+ * flushes. Queries see an immutable snapshot of the segments
+ * and never wait for flushes or merges. Messages missed by the index
+ * (not flushed before exit, for instance) are re-read from the archive.<br>
+ * Queries are words that must all appear, <code>"quoted phrases"</code>
+ * whose words must appear in that order, and <code>from:user</code>.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class ChatIndex implements ChatArchive.ArchiveListener {
+
+    private static final int FLUSH_MESSAGES = 1 << 15;
+    private static final int CATCH_UP_BATCH = 4096;
+    private static final int MAX_SEGMENTS = 10;
+    private static final int MERGE_WINDOW = 4;
+    private static final long MAX_MERGED_SIZE = 1L << 30;
+    private static final int MAX_TERM_LENGTH = 32;
+
+    private static final String USER_PREFIX = "@";
+
+    private final File m_directory;
+    private final ChatArchive m_archive;
+    private final ExecutorService m_executor;
+    private final ExecutorService m_mergeExecutor;
+
+    private final Object m_lock;
+    // guarded by m_lock
+    private MemTable m_active;
+    private long m_lastId;
+    private boolean m_catchingUp;
+    private boolean m_mergePending;
+    private boolean m_closed;
+
+    // written under m_lock, read freely
+    private volatile State m_state;
+
+    /**
+     * Opens the index in the specified directory, creating it if needed,
+     * and starts indexing the messages of the archive.
+     *
+     * @param directory the index directory
+     * @param archive   the indexed archive
+     * @throws IOException if the directory or the segments could not be opened
+     */
+    public ChatIndex(final File directory, final ChatArchive archive) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create index directory \"" + directory.getAbsolutePath() + "\".");
+        }
+        m_directory = directory;
+        m_archive = archive;
+        m_lock = new Object();
+        m_executor = newExecutor("chat index");
+        m_mergeExecutor = newExecutor("chat index merge");
+
+        final List<IndexSegment> segments = openSegments(directory);
+        m_state = new State(segments, Collections.emptyList());
+        m_lastId = segments.isEmpty() ? -1L : segments.get(segments.size() - 1).getMaxId();
+        m_active = new MemTable();
+        m_catchingUp = false;
+        m_mergePending = false;
+        m_closed = false;
+
+        Logger.info("(Index) Opened chat index with " + (m_lastId + 1) + " messages in " + segments.size() + " segment(s).");
+
+        archive.addArchiveListener(this);
+        synchronized (m_lock) {
+            scheduleCatchUp();
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    private static ExecutorService newExecutor(final String name) {
+        return Executors.newSingleThreadExecutor(runnable ->
+        {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the index in the "index" directory of the specified archive.
+     * Errors are logged.
+     *
+     * @param archive the indexed archive, or null
+     * @return the index, or null if there is no archive or it couldn't be opened
+     */
+    public static ChatIndex openFor(final ChatArchive archive) {
+        if (archive == null) {
+            return null;
+        }
+        try {
+            return new ChatIndex(new File(archive.getDirectory(), "index"), archive);
+        } catch (IOException e) {
+            Logger.error("(Index) Couldn't open the chat index, chat search will not be available:");
+            Logger.printStackTrace(e);
+            return null;
+        }
+    }
+
+    private static List<IndexSegment> openSegments(final File directory) throws IOException {
+        final File[] temps = directory.listFiles((dir, name) -> name.endsWith(".ix.tmp"));
+        if (temps != null) {
+            for (final File temp : temps) {
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+
+        final File[] files = directory.listFiles((dir, name) -> IndexSegment.isSegmentFile(name));
+        final List<IndexSegment> all = new ArrayList<>();
+        if (files != null) {
+            for (final File file : files) {
+                try {
+                    all.add(IndexSegment.open(file));
+                } catch (IOException e) {
+                    Logger.warning("(Index) Ignoring unreadable index segment \"" + file.getName() + "\".");
+                    Logger.printStackTrace(e);
+                }
+            }
+        }
+        // widest first for equal starts, so that leftovers of an interrupted merge are dropped
+        all.sort(Comparator.comparingLong(IndexSegment::getMinId)
+                           .thenComparing(Comparator.comparingLong(IndexSegment::getMaxId).reversed()));
+
+        final List<IndexSegment> segments = new ArrayList<>(all.size());
+        long lastId = -1L;
+        for (final IndexSegment segment : all) {
+            if (segment.getMinId() > lastId) {
+                segments.add(segment);
+                lastId = segment.getMaxId();
+            } else {
+                segment.delete();
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Returns the most recent messages matching a query, newest first.
+     *
+     * @param query the query
+     * @param limit the maximum number of messages to return
+     * @return the messages
+     * @throws IOException if the archive could not be read
+     */
+    public List<ArchivedMessage> search(final String query, final int limit) throws IOException {
+        final Query parsed = Query.parse(query);
+        final List<ArchivedMessage> result = new ArrayList<>();
+        if (parsed.terms.length == 0 || limit <= 0) {
+            return result;
+        }
+
+        final Map<String, Postings.LongList> active = new HashMap<>();
+        final State state;
+        synchronized (m_lock) {
+            for (final String term : parsed.terms) {
+                final Postings.LongList list = m_active.m_postings.get(term);
+                if (list != null) {
+                    active.put(term, list.copy());
+                }
+            }
+            state = m_state;
+        }
+
+        // newest source first
+        if (!collect(parsed, memoryCursors(parsed, active), limit, result)) {
+            return result;
+        }
+        for (int i = state.frozen.size() - 1; i >= 0; i--) {
+            if (!collect(parsed, memoryCursors(parsed, state.frozen.get(i).m_postings), limit, result)) {
+                return result;
+            }
+        }
+        for (int i = state.segments.size() - 1; i >= 0; i--) {
+            if (!collect(parsed, segmentCursors(parsed, state.segments.get(i)), limit, result)) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    private static Postings.Cursor[] memoryCursors(final Query query, final Map<String, Postings.LongList> postings) {
+        final Postings.LongList[] lists = new Postings.LongList[query.terms.length];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings.get(query.terms[i]);
+            if (lists[i] == null) {
+                return null;
+            }
+        }
+        // rarest term first
+        Arrays.sort(lists, Comparator.comparingInt(Postings.LongList::size));
+        final Postings.Cursor[] cursors = new Postings.Cursor[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            cursors[i] = new Postings.ListCursor(lists[i]);
+        }
+        return cursors;
+    }
+
+    private static Postings.Cursor[] segmentCursors(final Query query, final IndexSegment segment) {
+        final byte[][] terms = new byte[query.terms.length][];
+        final int[] counts = new int[terms.length];
+        final Integer[] order = new Integer[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = query.terms[i].getBytes(StandardCharsets.UTF_8);
+            counts[i] = segment.count(terms[i]);
+            if (counts[i] == 0) {
+                return null;
+            }
+            order[i] = i;
+        }
+        // rarest term first
+        Arrays.sort(order, Comparator.comparingInt(i -> counts[i]));
+        final Postings.Cursor[] cursors = new Postings.Cursor[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            cursors[i] = segment.postings(terms[order[i]]);
+        }
+        return cursors;
+    }
+
+    // intersects the cursors, then checks the candidates newest first; returns false once the limit is reached
+    private boolean collect(final Query query, final Postings.Cursor[] cursors, final int limit, final List<ArchivedMessage> result)
+            throws IOException {
+        if (cursors == null) {
+            return true;
+        }
+        final Postings.LongList candidates = intersect(cursors);
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            final ArchivedMessage message = m_archive.get(candidates.get(i));
+            if (message != null && query.matches(message)) {
+                result.add(message);
+                if (result.size() >= limit) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Postings.LongList intersect(final Postings.Cursor[] cursors) {
+        final Postings.LongList result = new Postings.LongList();
+        final Postings.Cursor lead = cursors[0];
+        long candidate = lead.next();
+        outer:
+        while (candidate != -1L) {
+            for (int i = 1; i < cursors.length; i++) {
+                final long id = cursors[i].advance(candidate);
+                if (id == -1L) {
+                    break outer;
+                }
+                if (id > candidate) {
+                    candidate = lead.advance(id);
+                    continue outer;
+                }
+            }
+            result.add(candidate);
+            candidate = lead.next();
+        }
+        return result;
+    }
+
+    /* **** indexing **** */
+
+    @Override
+    public void onArchived(final List<ArchivedMessage> messages) {
+        synchronized (m_lock) {
+            if (m_closed) {
+                return;
+            }
+            for (final ArchivedMessage message : messages) {
+                if (message.id <= m_lastId) {
+                    continue;
+                }
+                if (message.id != m_lastId + 1) {
+                    // missed some messages, read them back from the archive
+                    scheduleCatchUp();
+                    return;
+                }
+                index(message);
+            }
+        }
+    }
+
+    // guarded by m_lock
+    private void index(final ArchivedMessage message) {
+        m_active.add(message);
+        m_lastId = message.id;
+        if (m_active.m_count >= FLUSH_MESSAGES) {
+            final MemTable frozen = m_active;
+            m_active = new MemTable();
+            m_state = m_state.withFrozen(frozen);
+            m_executor.execute(() -> flush(frozen));
+        }
+    }
+
+    // guarded by m_lock
+    private void scheduleCatchUp() {
+        if (!m_catchingUp && !m_closed) {
+            m_catchingUp = true;
+            m_executor.execute(this::catchUp);
+        }
+    }
+
+    // reads a batch of missing messages from the archive, then reschedules itself
+    private void catchUp() {
+        final long from;
+        synchronized (m_lock) {
+            from = m_lastId + 1;
+        }
+        final List<ArchivedMessage> batch = new ArrayList<>(CATCH_UP_BATCH);
+        try {
+            m_archive.scanFrom(from, message ->
+            {
+                batch.add(message);
+                return batch.size() < CATCH_UP_BATCH;
+            });
+        } catch (IOException e) {
+            Logger.error("(Index) Couldn't read messages from the archive:");
+            Logger.printStackTrace(e);
+        }
+        synchronized (m_lock) {
+            m_catchingUp = false;
+            if (m_closed) {
+                return;
+            }
+            for (final ArchivedMessage message : batch) {
+                if (message.id == m_lastId + 1) {
+                    index(message);
+                }
+            }
+            if (batch.size() == CATCH_UP_BATCH) {
+                scheduleCatchUp();
+            } else if (!batch.isEmpty()) {
+                Logger.info("(Index) Chat index is up to date with " + (m_lastId + 1) + " messages.");
+            }
+        }
+    }
+
+    // runs on the index thread
+    private void flush(final MemTable frozen) {
+        try {
+            final IndexSegment segment = write(frozen);
+            synchronized (m_lock) {
+                m_state = m_state.withFlushed(frozen, segment);
+                scheduleMerge();
+            }
+        } catch (IOException e) {
+            Logger.error("(Index) Couldn't write index segment:");
+            Logger.printStackTrace(e);
+        }
+    }
+
+    // guarded by m_lock
+    private void scheduleMerge() {
+        if (!m_mergePending && !m_closed && m_state.segments.size() > MAX_SEGMENTS) {
+            m_mergePending = true;
+            m_mergeExecutor.execute(this::mergeSegments);
+        }
+    }
+
+    // runs on the merge thread, the flushes only add segments after the runs it picks
+    private void mergeSegments() {
+        synchronized (m_lock) {
+            m_mergePending = false;
+        }
+        try {
+            merge();
+        } catch (IOException e) {
+            Logger.error("(Index) Couldn't merge index segments:");
+            Logger.printStackTrace(e);
+        }
+    }
+
+    private IndexSegment write(final MemTable table) throws IOException {
+        final byte[][] terms = new byte[table.m_postings.size()][];
+        final Postings.LongList[] lists = new Postings.LongList[terms.length];
+        final Integer[] order = new Integer[terms.length];
+        int i = 0;
+        for (final Map.Entry<String, Postings.LongList> entry : table.m_postings.entrySet()) {
+            terms[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            lists[i] = entry.getValue();
+            order[i] = i;
+            i++;
+        }
+        Arrays.sort(order, (a, b) -> IndexSegment.compareTerms(terms[a], terms[b]));
+
+        final IndexSegment.Writer writer = new IndexSegment.Writer(m_directory, table.m_minId, table.m_maxId);
+        try {
+            final Postings.Writer postings = new Postings.Writer();
+            for (final int index : order) {
+                postings.reset();
+                final Postings.LongList list = lists[index];
+                for (int j = 0; j < list.size(); j++) {
+                    postings.add(list.get(j));
+                }
+                writer.add(terms[index], postings);
+            }
+            return writer.finish();
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    // merges the smallest run of adjacent segments while there are too many
+    private void merge() throws IOException {
+        while (true) {
+            synchronized (m_lock) {
+                if (m_closed) {
+                    return;
+                }
+            }
+            final List<IndexSegment> segments = m_state.segments;
+            if (segments.size() <= MAX_SEGMENTS) {
+                return;
+            }
+            int best = -1;
+            long bestSize = MAX_MERGED_SIZE;
+            for (int i = 0; i + MERGE_WINDOW <= segments.size(); i++) {
+                long size = 0;
+                for (int j = i; j < i + MERGE_WINDOW; j++) {
+                    size += segments.get(j).getSize();
+                }
+                if (size < bestSize) {
+                    best = i;
+                    bestSize = size;
+                }
+            }
+            if (best < 0) {
+                return;
+            }
+            final List<IndexSegment> run = new ArrayList<>(segments.subList(best, best + MERGE_WINDOW));
+            final IndexSegment merged = merge(run);
+            synchronized (m_lock) {
+                m_state = m_state.withMerged(run, merged);
+            }
+            for (final IndexSegment segment : run) {
+                segment.delete();
+            }
+            Logger.info("(Index) Merged " + run.size() + " index segments (" + merged.getTermCount() + " terms).");
+        }
+    }
+
+    private IndexSegment merge(final List<IndexSegment> run) throws IOException {
+        final IndexSegment.TermCursor[] cursors = new IndexSegment.TermCursor[run.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = run.get(i).terms();
+            cursors[i].next();
+        }
+        final IndexSegment.Writer writer = new IndexSegment.Writer(m_directory, run.get(0).getMinId(),
+                run.get(run.size() - 1).getMaxId());
+        try {
+            final Postings.Writer postings = new Postings.Writer();
+            while (true) {
+                byte[] term = null;
+                for (final IndexSegment.TermCursor cursor : cursors) {
+                    if (cursor.term() != null && (term == null || IndexSegment.compareTerms(cursor.term(), term) < 0)) {
+                        term = cursor.term();
+                    }
+                }
+                if (term == null) {
+                    break;
+                }
+                // segments are in id order, so their postings simply follow each other
+                postings.reset();
+                for (final IndexSegment.TermCursor cursor : cursors) {
+                    if (cursor.term() != null && Arrays.equals(cursor.term(), term)) {
+                        final Postings.Iterator it = cursor.postings();
+                        long id;
+                        while ((id = it.next()) != -1L) {
+                            postings.add(id);
+                        }
+                        cursor.next();
+                    }
+                }
+                writer.add(term, postings);
+            }
+            return writer.finish();
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the messages indexed in memory to disk and stops the index thread.
+     */
+    public void close() {
+        synchronized (m_lock) {
+            if (m_closed) {
+                return;
+            }
+            m_closed = true;
+            if (m_active.m_count > 0) {
+                m_state = m_state.withFrozen(m_active);
+                m_active = new MemTable();
+            }
+        }
+        m_executor.shutdown();
+        m_mergeExecutor.shutdown(); // a merge in progress stops after its current run
+        try {
+            m_executor.awaitTermination(10, TimeUnit.SECONDS);
+            m_mergeExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+        }
+        for (final MemTable table : m_state.frozen) {
+            if (!m_executor.isTerminated()) {
+                break;
+            }
+            try {
+                final IndexSegment segment = write(table);
+                synchronized (m_lock) {
+                    m_state = m_state.withFlushed(table, segment);
+                }
+            } catch (IOException e) {
+                Logger.error("(Index) Couldn't write index segment:");
+                Logger.printStackTrace(e);
+            }
+        }
+    }
+
+    /* **** tokenizer **** */
+
+    /**
+     * Splits a text in lowercase words.
+     *
+     * @param text the text
+     * @return the words, in order
+     */
+    public static List<String> tokenize(final String text) {
+        final List<String> tokens = new ArrayList<>();
+        final StringBuilder sb = new StringBuilder();
+        final int length = text.length();
+        for (int i = 0; i < length; ) {
+            final int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            if (Character.isLetterOrDigit(cp)) {
+                sb.appendCodePoint(Character.toLowerCase(cp));
+            } else if (sb.length() > 0) {
+                addToken(tokens, sb);
+            }
+        }
+        if (sb.length() > 0) {
+            addToken(tokens, sb);
+        }
+        return tokens;
+    }
+
+    private static void addToken(final List<String> tokens, final StringBuilder sb) {
+        if (sb.length() <= MAX_TERM_LENGTH) {
+            tokens.add(sb.toString());
+        }
+        sb.setLength(0);
+    }
+
+    private static String userTerm(final String username) {
+        return USER_PREFIX + username.toLowerCase(Locale.ROOT);
+    }
+
+    /* **** internal classes **** */
+
+    private static class MemTable {
+
+        private final Map<String, Postings.LongList> m_postings;
+        private long m_minId;
+        private long m_maxId;
+        private int m_count;
+
+        private MemTable() {
+            m_postings = new HashMap<>();
+            m_minId = -1L;
+            m_maxId = -1L;
+            m_count = 0;
+        }
+
+        private void add(final ArchivedMessage message) {
+            if (m_count++ == 0) {
+                m_minId = message.id;
+            }
+            m_maxId = message.id;
+            addTerm(userTerm(message.username), message.id);
+            for (final String token : tokenize(message.message)) {
+                addTerm(token, message.id);
+            }
+        }
+
+        private void addTerm(final String term, final long id) {
+            final Postings.LongList list = m_postings.computeIfAbsent(term, key -> new Postings.LongList(4));
+            // a word can appear several times in one message
+            if (list.size() == 0 || list.last() != id) {
+                list.add(id);
+            }
+        }
+
+    }
+
+    private static class State {
+
+        private final List<IndexSegment> segments;
+        private final List<MemTable> frozen;
+
+        private State(final List<IndexSegment> segments, final List<MemTable> frozen) {
+            this.segments = Collections.unmodifiableList(segments);
+            this.frozen = Collections.unmodifiableList(frozen);
+        }
+
+        private State withFrozen(final MemTable table) {
+            final List<MemTable> frozen = new ArrayList<>(this.frozen);
+            frozen.add(table);
+            return new State(segments, frozen);
+        }
+
+        private State withFlushed(final MemTable table, final IndexSegment segment) {
+            final List<MemTable> frozen = new ArrayList<>(this.frozen);
+            frozen.remove(table);
+            final List<IndexSegment> segments = new ArrayList<>(this.segments);
+            segments.add(segment);
+            return new State(segments, frozen);
+        }
+
+        private State withMerged(final List<IndexSegment> run, final IndexSegment merged) {
+            final List<IndexSegment> segments = new ArrayList<>(this.segments);
+            final int index = segments.indexOf(run.get(0));
+            segments.removeAll(run);
+            segments.add(index, merged);
+            return new State(segments, frozen);
+        }
+
+    }
+
+    private static class Query {
+
+        private final String[] terms;
+        private final List<List<String>> phrases;
+
+        private Query(final String[] terms, final List<List<String>> phrases) {
+            this.terms = terms;
+            this.phrases = phrases;
+        }
+
+        private static Query parse(final String query) {
+            final List<String> terms = new ArrayList<>();
+            final List<List<String>> phrases = new ArrayList<>();
+
+            final String[] parts = query.split("\"", -1);
+            for (int i = 0; i < parts.length; i++) {
+                if (i % 2 == 1) {
+                    final List<String> phrase = tokenize(parts[i]);
+                    if (phrase.size() > 1) {
+                        phrases.add(phrase);
+                    }
+                    terms.addAll(phrase);
+                    continue;
+                }
+                for (final String word : parts[i].trim().split("\\s+")) {
+                    if (word.startsWith("from:") && word.length() > 5) {
+                        terms.add(userTerm(word.substring(5)));
+                    } else {
+                        terms.addAll(tokenize(word));
+                    }
+                }
+            }
+            return new Query(terms.stream().distinct().toArray(String[]::new), phrases);
+        }
+
+        private boolean matches(final ArchivedMessage message) {
+            if (phrases.isEmpty()) {
+                return true;
+            }
+            final List<String> tokens = tokenize(message.message);
+            for (final List<String> phrase : phrases) {
+                if (Collections.indexOfSubList(tokens, phrase) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,74 @@
+package nuclearbot.archive;
+
+import nuclearbot.client.ChatClient;
+import nuclearbot.client.Command;
+import nuclearbot.plugin.CommandExecutor;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Command "quote" to find the last message matching some words.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class CommandQuote implements CommandExecutor {
+
+    private static final String NOT_FOUND = "Nobody said that, @%s";
+    private static final int SEARCH_LIMIT = 8; // a few, to skip the bot's own
+    private static final String QUOTE = "\"%s\" - %s, %s";
+
+    private final ChatIndex m_index;
+
+    public CommandQuote(final ChatIndex index) {
+        m_index = index;
+    }
+
+    @Override
+    public boolean onCommand(final ChatClient client, final String username, final Command command, final String label, final String[] args)
+            throws IOException {
+        // usage: !quote <words>
+        if (args.length < 2) {
+            return false;
+        }
+
+        final String query = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+        // archives made before the bot's messages were skipped may still hold some
+        ArchivedMessage message = null;
+        for (final ArchivedMessage candidate : m_index.search(query, SEARCH_LIMIT)) {
+            if (!candidate.username.equals(client.getUsername())) {
+                message = candidate;
+                break;
+            }
+        }
+        if (message == null) {
+            client.sendMessage(String.format(NOT_FOUND, username));
+        } else {
+            final String date = new SimpleDateFormat("yyyy-MM-dd").format(new Date(message.timestamp));
+            client.sendMessage(String.format(QUOTE, message.message, message.username, date));
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,315 @@
+package nuclearbot.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Immutable, memory-mapped segment of the chat index covering
+ * a contiguous range of message ids.<br>
+ * The file holds the posting lists, followed by the term bytes and a
+ * dictionary of fixed-size entries sorted by term, which is binary
+ * searched in place so that the terms are never loaded on the heap.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+class IndexSegment {
+
+    private static final int MAGIC = 0x4E424958; // "NBIX"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 48;
+    // term offset, term length, postings offset, postings length, count
+    private static final int ENTRY_SIZE = 20;
+
+    private final File m_file;
+    private final long m_minId;
+    private final long m_maxId;
+    private final int m_termCount;
+    private final int m_termsOffset;
+    private final int m_dictOffset;
+    private final MappedByteBuffer m_data;
+
+    private IndexSegment(final File file, final MappedByteBuffer data) throws IOException {
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("Invalid index segment \"" + file.getName() + "\".");
+        }
+        m_file = file;
+        m_minId = data.getLong(8);
+        m_maxId = data.getLong(16);
+        m_termCount = data.getInt(24);
+        m_termsOffset = (int) data.getLong(32);
+        m_dictOffset = (int) data.getLong(40);
+        m_data = data;
+    }
+
+    static String fileName(final long minId, final long maxId) {
+        return String.format("index-%020d-%020d.ix", minId, maxId);
+    }
+
+    static boolean isSegmentFile(final String fileName) {
+        return fileName.startsWith("index-") && fileName.endsWith(".ix");
+    }
+
+    /**
+     * Maps an existing segment file.
+     */
+    static IndexSegment open(final File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            return new IndexSegment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    long getMinId() {
+        return m_minId;
+    }
+
+    long getMaxId() {
+        return m_maxId;
+    }
+
+    int getTermCount() {
+        return m_termCount;
+    }
+
+    long getSize() {
+        return m_data.capacity();
+    }
+
+    File getFile() {
+        return m_file;
+    }
+
+    /**
+     * Returns the postings of a term, or null if the term does not appear.
+     */
+    Postings.Iterator postings(final byte[] term) {
+        final int entry = find(term);
+        if (entry < 0) {
+            return null;
+        }
+        return entryPostings(entry);
+    }
+
+    /**
+     * Returns the number of messages containing a term.
+     */
+    int count(final byte[] term) {
+        final int entry = find(term);
+        return entry < 0 ? 0 : m_data.getInt(entryOffset(entry) + 16);
+    }
+
+    private int entryOffset(final int entry) {
+        return m_dictOffset + entry * ENTRY_SIZE;
+    }
+
+    private Postings.Iterator entryPostings(final int entry) {
+        final int offset = entryOffset(entry);
+        return new Postings.Iterator(m_data, m_data.getInt(offset + 8), m_data.getInt(offset + 12));
+    }
+
+    private byte[] entryTerm(final int entry) {
+        final int offset = entryOffset(entry);
+        final byte[] term = new byte[m_data.getInt(offset + 4)];
+        final int termOffset = m_termsOffset + m_data.getInt(offset);
+        for (int i = 0; i < term.length; i++) {
+            term[i] = m_data.get(termOffset + i);
+        }
+        return term;
+    }
+
+    private int find(final byte[] term) {
+        int low = 0, high = m_termCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compareEntry(mid, term);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareEntry(final int entry, final byte[] term) {
+        final int offset = entryOffset(entry);
+        final int termOffset = m_termsOffset + m_data.getInt(offset);
+        final int termLength = m_data.getInt(offset + 4);
+        final int length = Math.min(termLength, term.length);
+        for (int i = 0; i < length; i++) {
+            final int cmp = (m_data.get(termOffset + i) & 0xFF) - (term[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return termLength - term.length;
+    }
+
+    /**
+     * Returns a cursor over the terms in dictionary order, for merging.
+     */
+    TermCursor terms() {
+        return new TermCursor();
+    }
+
+    void delete() {
+        if (!m_file.delete()) {
+            // still mapped on some platforms
+            m_file.deleteOnExit();
+        }
+    }
+
+    static int compareTerms(final byte[] a, final byte[] b) {
+        final int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            final int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    class TermCursor {
+
+        private int m_entry = -1;
+        private byte[] m_term;
+
+        boolean next() {
+            if (++m_entry >= m_termCount) {
+                m_term = null;
+                return false;
+            }
+            m_term = entryTerm(m_entry);
+            return true;
+        }
+
+        byte[] term() {
+            return m_term;
+        }
+
+        Postings.Iterator postings() {
+            return entryPostings(m_entry);
+        }
+
+    }
+
+    /**
+     * Writes a new segment. Terms must be added in increasing byte order.
+     */
+    static class Writer {
+
+        private final File m_file;
+        private final File m_temp;
+        private final long m_minId;
+        private final long m_maxId;
+
+        private final DataOutputStream m_out;
+        private final ByteArrayOutputStream m_terms;
+        private final ByteArrayOutputStream m_dictBytes;
+        private final DataOutputStream m_dict;
+
+        private long m_offset;
+        private int m_termCount;
+
+        Writer(final File directory, final long minId, final long maxId) throws IOException {
+            m_file = new File(directory, fileName(minId, maxId));
+            m_temp = new File(directory, m_file.getName() + ".tmp");
+            m_minId = minId;
+            m_maxId = maxId;
+            m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_temp), 1 << 16));
+            m_terms = new ByteArrayOutputStream(1 << 16);
+            m_dictBytes = new ByteArrayOutputStream(1 << 16);
+            m_dict = new DataOutputStream(m_dictBytes);
+            m_out.write(new byte[HEADER_SIZE]);
+            m_offset = HEADER_SIZE;
+            m_termCount = 0;
+        }
+
+        void add(final byte[] term, final Postings.Writer postings) throws IOException {
+            final int count = postings.finish();
+            if (m_offset + postings.length() > Integer.MAX_VALUE) {
+                throw new IOException("Index segment is too large.");
+            }
+            m_dict.writeInt(m_terms.size());
+            m_dict.writeInt(term.length);
+            m_dict.writeInt((int) m_offset);
+            m_dict.writeInt(postings.length());
+            m_dict.writeInt(count);
+            m_terms.write(term);
+            m_out.write(postings.bytes(), 0, postings.length());
+            m_offset += postings.length();
+            m_termCount++;
+        }
+
+        /**
+         * Finishes the file, moves it in place and maps it.
+         */
+        IndexSegment finish() throws IOException {
+            final long termsOffset = m_offset;
+            final long dictOffset = termsOffset + m_terms.size();
+            if (dictOffset + m_dictBytes.size() > Integer.MAX_VALUE) {
+                m_out.close();
+                Files.deleteIfExists(m_temp.toPath());
+                throw new IOException("Index segment is too large.");
+            }
+            m_terms.writeTo(m_out);
+            m_dictBytes.writeTo(m_out);
+            m_out.close();
+
+            try (RandomAccessFile raf = new RandomAccessFile(m_temp, "rw")) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(m_minId).putLong(m_maxId)
+                      .putInt(m_termCount).putInt(0).putLong(termsOffset).putLong(dictOffset);
+                header.flip();
+                raf.getChannel().write(header, 0);
+                raf.getFD().sync();
+            }
+            Files.move(m_temp.toPath(), m_file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return open(m_file);
+        }
+
+        void abort() {
+            try {
+                m_out.close();
+            } catch (IOException ignored) {
+            }
+            if (!m_temp.delete()) {
+                m_temp.deleteOnExit();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,323 @@
+package nuclearbot.archive;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Encoding of posting lists (ascending message ids).<br>
+ * Ids are delta-encoded as varints in blocks of BLOCK_SIZE.
+ * Each block starts with <code>[count][last id delta][body length]</code>
+ * so that iterators can skip whole blocks when intersecting.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+final class Postings {
+
+    static final int BLOCK_SIZE = 128;
+
+    private Postings() {
+    }
+
+    static int writeVarLong(final byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    static long readVarLong(final ByteBuffer in, final int[] pos) {
+        int p = pos[0];
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get(p++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while (b < 0);
+        pos[0] = p;
+        return value;
+    }
+
+    /**
+     * Growable list of primitive longs.
+     */
+    static class LongList {
+
+        private long[] m_values;
+        private int m_size;
+
+        LongList() {
+            this(8);
+        }
+
+        LongList(final int capacity) {
+            m_values = new long[Math.max(1, capacity)];
+            m_size = 0;
+        }
+
+        void add(final long value) {
+            if (m_size == m_values.length) {
+                m_values = Arrays.copyOf(m_values, m_size * 2);
+            }
+            m_values[m_size++] = value;
+        }
+
+        long get(final int index) {
+            return m_values[index];
+        }
+
+        int size() {
+            return m_size;
+        }
+
+        long last() {
+            return m_values[m_size - 1];
+        }
+
+        LongList copy() {
+            final LongList copy = new LongList(m_size);
+            System.arraycopy(m_values, 0, copy.m_values, 0, m_size);
+            copy.m_size = m_size;
+            return copy;
+        }
+
+    }
+
+    /**
+     * Encodes an ascending sequence of ids.
+     */
+    static class Writer {
+
+        private final long[] m_block;
+        private int m_blockSize;
+        private long m_previousLast;
+        private int m_count;
+
+        private byte[] m_out;
+        private int m_length;
+
+        private final byte[] m_body;
+
+        Writer() {
+            m_block = new long[BLOCK_SIZE];
+            m_body = new byte[BLOCK_SIZE * 10];
+            m_out = new byte[64];
+            reset();
+        }
+
+        void reset() {
+            m_blockSize = 0;
+            m_previousLast = -1L;
+            m_count = 0;
+            m_length = 0;
+        }
+
+        void add(final long id) {
+            m_block[m_blockSize++] = id;
+            m_count++;
+            if (m_blockSize == BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() {
+            if (m_blockSize == 0) {
+                return;
+            }
+            int bodyLength = 0;
+            long previous = m_previousLast;
+            for (int i = 0; i < m_blockSize; i++) {
+                bodyLength = writeVarLong(m_body, bodyLength, m_block[i] - previous);
+                previous = m_block[i];
+            }
+            ensureCapacity(30 + bodyLength);
+            m_length = writeVarLong(m_out, m_length, m_blockSize);
+            m_length = writeVarLong(m_out, m_length, previous - m_previousLast);
+            m_length = writeVarLong(m_out, m_length, bodyLength);
+            System.arraycopy(m_body, 0, m_out, m_length, bodyLength);
+            m_length += bodyLength;
+            m_previousLast = previous;
+            m_blockSize = 0;
+        }
+
+        private void ensureCapacity(final int extra) {
+            if (m_length + extra > m_out.length) {
+                m_out = Arrays.copyOf(m_out, Math.max(m_out.length * 2, m_length + extra));
+            }
+        }
+
+        /**
+         * Finishes the list and returns the number of ids.
+         * The encoded bytes are then available with bytes() and length().
+         */
+        int finish() {
+            flushBlock();
+            return m_count;
+        }
+
+        byte[] bytes() {
+            return m_out;
+        }
+
+        int length() {
+            return m_length;
+        }
+
+    }
+
+    /**
+     * Forward cursor over ascending ids.
+     */
+    interface Cursor {
+
+        /**
+         * Returns the next id, or -1 at the end.
+         */
+        long next();
+
+        /**
+         * Returns the current id if it is at least the target,
+         * else the first following id that is, or -1 at the end.
+         */
+        long advance(long target);
+
+    }
+
+    /**
+     * Cursor over an in-memory list.
+     */
+    static class ListCursor implements Cursor {
+
+        private final LongList m_list;
+        private int m_index;
+
+        ListCursor(final LongList list) {
+            m_list = list;
+            m_index = -1;
+        }
+
+        @Override
+        public long next() {
+            return ++m_index < m_list.size() ? m_list.get(m_index) : -1L;
+        }
+
+        @Override
+        public long advance(final long target) {
+            if (m_index >= 0 && m_index < m_list.size() && m_list.get(m_index) >= target) {
+                return m_list.get(m_index);
+            }
+            // binary search the remaining ids
+            int low = m_index + 1, high = m_list.size() - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (m_list.get(mid) < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            m_index = low;
+            return m_index < m_list.size() ? m_list.get(m_index) : -1L;
+        }
+
+    }
+
+    /**
+     * Iterates over an encoded posting list.
+     */
+    static class Iterator implements Cursor {
+
+        private final ByteBuffer m_in;
+        private final int m_end;
+        private final int[] m_pos;
+
+        private int m_blockRemaining;
+        private int m_blockBodyEnd;
+        private long m_blockLast;
+        private long m_previousLast;
+        private long m_current;
+
+        Iterator(final ByteBuffer in, final int offset, final int length) {
+            m_in = in;
+            m_end = offset + length;
+            m_pos = new int[]{offset};
+            m_blockRemaining = 0;
+            m_blockBodyEnd = offset;
+            m_blockLast = -1L;
+            m_previousLast = -1L;
+            m_current = -1L;
+        }
+
+        private boolean nextBlock() {
+            m_pos[0] = m_blockBodyEnd;
+            if (m_pos[0] >= m_end) {
+                return false;
+            }
+            m_previousLast = m_blockLast;
+            m_blockRemaining = (int) readVarLong(m_in, m_pos);
+            m_blockLast = m_previousLast + readVarLong(m_in, m_pos);
+            final int bodyLength = (int) readVarLong(m_in, m_pos);
+            m_blockBodyEnd = m_pos[0] + bodyLength;
+            m_current = m_previousLast;
+            return true;
+        }
+
+        @Override
+        public long next() {
+            if (m_blockRemaining == 0 && !nextBlock()) {
+                return -1L;
+            }
+            m_blockRemaining--;
+            m_current += readVarLong(m_in, m_pos);
+            return m_current;
+        }
+
+        @Override
+        public long advance(final long target) {
+            if (m_current >= target) {
+                return m_current;
+            }
+            // skip whole blocks whose ids are all below the target
+            while (m_blockRemaining == 0 || m_blockLast < target) {
+                if (!nextBlock()) {
+                    return -1L;
+                }
+                if (m_blockLast >= target) {
+                    break;
+                }
+                m_blockRemaining = 0;
+            }
+            long id;
+            do {
+                id = next();
+            }
+            while (id != -1L && id < target);
+            return id;
+        }
+
+    }
+
+}
@@ -4,6 +4,7 @@ import nuclearbot.builtin.osu.data.DataBeatmap;
 import nuclearbot.builtin.osu.data.DataUser;
 import nuclearbot.util.HTTP;
 import nuclearbot.util.Logger;
+import nuclearbot.util.Metrics;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
@@ -50,7 +51,12 @@ public class OsuFetcher {
 
     // osu data fetchers
     private <T> T get(final String page, final String urlParameters, final Class<T> clazz) {
-        return HTTP.fetchData("http://osu.ppy.sh/api/" + page, "k=" + m_apiKey + '&' + urlParameters, clazz);
+        final long start = System.nanoTime();
+        try {
+            return HTTP.fetchData("http://osu.ppy.sh/api/" + page, "k=" + m_apiKey + '&' + urlParameters, clazz);
+        } finally {
+            Metrics.OSU_LATENCY.observe(page, (System.nanoTime() - start) / 1000L);
+        }
     }
 
     /**
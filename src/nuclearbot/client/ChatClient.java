@@ -1,8 +1,11 @@
 package nuclearbot.client;
 
 import nuclearbot.plugin.CommandExecutor;
+import nuclearbot.util.KeyValueStore;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -31,10 +34,37 @@ import java.io.IOException;
 public interface ChatClient {
 
     /**
-     * Returns the command which has the specified name.
+     * Returns the login of the bot's account, in lower case.
+     * The bot's own messages are sent to the listeners under this name.
+     *
+     * @return the bot's username
+     */
+    String getUsername();
+
+    /**
+     * Returns the role of the specified user in the channel, from the
+     * moderator list and the badges of the user's last message.
+     * Cheap enough to be called for every message.
+     *
+     * @param username the user's login
+     * @return the role
+     */
+    Role getRole(String username);
+
+    /**
+     * Returns the persistent storage of the plugin, a namespace
+     * of the bot's key-value store named after the plugin class.
+     *
+     * @return the plugin's namespace
+     * @throws IOException if the store could not be opened
+     */
+    KeyValueStore.Namespace getStore() throws IOException;
+
+    /**
+     * Returns the command which has the specified name or alias.
      * The method returns null if there is no match.
      *
-     * @param label the command name
+     * @param label the command name or alias
      * @return the command or null
      */
     Command getCommand(String label);
@@ -46,12 +76,21 @@ public interface ChatClient {
      * @param usage    the command usage
      * @param executor the command executor
      * @return the newly-created command
-     * @throws IllegalArgumentException if the command was already registered
+     * @throws IllegalArgumentException if the command or an alias with that name was already registered
      */
     Command registerCommand(String label, String usage, CommandExecutor executor);
 
     /**
-     * Unregisters a command.
+     * Registers several commands in a single update of the registry.
+     * The commands whose label is already registered, as a command or an alias, are skipped.
+     *
+     * @param commands the commands
+     * @return the labels of the skipped commands
+     */
+    List<String> registerCommands(Collection<? extends Command> commands);
+
+    /**
+     * Unregisters a command and its aliases.
      *
      * @param label the command name
      * @throws IllegalArgumentException if the command was not registered
@@ -59,13 +98,31 @@ public interface ChatClient {
     void unregisterCommand(String label);
 
     /**
-     * Returns true if the command is registered, false otherwise.
+     * Returns true if the command or an alias is registered, false otherwise.
      *
-     * @param name the command name
+     * @param name the command name or alias
      * @return true if the command is registered, false otherwise
      */
     boolean isCommandRegistered(String name);
 
+    /**
+     * Registers another name for a command.
+     * The executor still gets the command name as the label.
+     *
+     * @param alias the other name
+     * @param label the command name
+     * @throws IllegalArgumentException if the name is taken or the command is not registered
+     */
+    void registerAlias(String alias, String label);
+
+    /**
+     * Unregisters an alias.
+     *
+     * @param alias the alias
+     * @throws IllegalArgumentException if the alias was not registered
+     */
+    void unregisterAlias(String alias);
+
     /**
      * Registers a new client listener.
      *
@@ -34,6 +34,12 @@ public interface ChatOut extends Runnable {
      */
     void write(String str);
 
+    /**
+     * Starts sending the chat messages kept in the outbox,
+     * once the channel is joined. Does nothing without an outbox.
+     */
+    void openOutbox();
+
     /**
      * Starts the output thread.
      * The thread name will be (name + " out")
@@ -69,4 +69,45 @@ public interface ClientListener {
      */
     void onCommandUnregistered(ChatClient client, String label);
 
+    /**
+     * Listener for a user in the channel, either joining or
+     * listed as already there when the client joins.
+     * Twitch sends these in batches, late, and only for small enough channels.
+     *
+     * @param client   the Twitch client
+     * @param username the user's login
+     */
+    default void onJoin(final ChatClient client, final String username) {
+    }
+
+    /**
+     * Listener for a user leaving the channel.
+     *
+     * @param client   the Twitch client
+     * @param username the user's login
+     */
+    default void onPart(final ChatClient client, final String username) {
+    }
+
+    /**
+     * Listener for client alias registration.
+     *
+     * @param client the Twitch client
+     * @param alias  the alias
+     * @param label  the label of the command
+     */
+    default void onAliasRegistered(final ChatClient client, final String alias, final String label) {
+    }
+
+    /**
+     * Listener for client alias un-registration.
+     * This method is also called for the aliases of a command being unregistered,
+     * before its onCommandUnregistered.
+     *
+     * @param client the Twitch client
+     * @param alias  the alias
+     */
+    default void onAliasUnregistered(final ChatClient client, final String alias) {
+    }
+
 }
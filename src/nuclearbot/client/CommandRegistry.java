@@ -0,0 +1,176 @@
+package nuclearbot.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Immutable version of the commands registered to a client, with their aliases.<br>
+ * A change makes a new version, which the client swaps in atomically,
+ * so lookups never lock and never see a half-made change.
+ * The <code>!help</code> listing is built once per version, the first time it is asked for.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+final class CommandRegistry {
+
+    static final CommandRegistry EMPTY = new CommandRegistry(Collections.emptyMap(), Collections.emptyMap());
+
+    private final Map<String, Command> m_commands; // by label, never changed
+    private final Map<String, String> m_aliases; // alias to label, never changed
+
+    private volatile String m_helpListing; // built on demand, the same in every thread
+
+    private CommandRegistry(final Map<String, Command> commands, final Map<String, String> aliases) {
+        m_commands = commands;
+        m_aliases = aliases;
+        m_helpListing = null;
+    }
+
+    /**
+     * Returns the command with the specified label or alias.
+     *
+     * @param name the label or alias
+     * @return the command or null
+     */
+    Command get(final String name) {
+        final Command command = m_commands.get(name);
+        if (command != null || m_aliases.isEmpty()) {
+            return command;
+        }
+        final String label = m_aliases.get(name);
+        return label != null ? m_commands.get(label) : null;
+    }
+
+    /**
+     * Returns true if the name is taken by a label or an alias.
+     *
+     * @param name the label or alias
+     * @return true if a command has that name
+     */
+    boolean contains(final String name) {
+        return m_commands.containsKey(name) || m_aliases.containsKey(name);
+    }
+
+    boolean isLabel(final String name) {
+        return m_commands.containsKey(name);
+    }
+
+    /**
+     * Returns the aliases of a command.
+     *
+     * @param label the command label
+     * @return the aliases, possibly empty
+     */
+    List<String> aliasesOf(final String label) {
+        final List<String> aliases = new ArrayList<>();
+        for (final Map.Entry<String, String> entry : m_aliases.entrySet()) {
+            if (entry.getValue().equals(label)) {
+                aliases.add(entry.getKey());
+            }
+        }
+        return aliases;
+    }
+
+    /**
+     * Returns the labels sorted and separated by commas, the aliases in parentheses.
+     *
+     * @return the command listing
+     */
+    String helpListing() {
+        String listing = m_helpListing;
+        if (listing == null) {
+            listing = buildHelpListing();
+            m_helpListing = listing;
+        }
+        return listing;
+    }
+
+    private String buildHelpListing() {
+        if (m_commands.isEmpty()) {
+            return "(empty)";
+        }
+        final String[] names = m_aliases.keySet().toArray(new String[m_aliases.size()]);
+        Arrays.sort(names);
+        final Map<String, StringBuilder> aliases = new HashMap<>();
+        for (final String alias : names) {
+            final StringBuilder sb = aliases.computeIfAbsent(m_aliases.get(alias), label -> new StringBuilder());
+            sb.append(sb.length() == 0 ? " (" : ", ").append(alias);
+        }
+        final String[] labels = m_commands.keySet().toArray(new String[m_commands.size()]);
+        Arrays.sort(labels);
+        final StringBuilder sb = new StringBuilder();
+        for (final String label : labels) {
+            if (sb.length() != 0) {
+                sb.append(", ");
+            }
+            sb.append(label);
+            final StringBuilder labelAliases = aliases.get(label);
+            if (labelAliases != null) {
+                sb.append(labelAliases).append(')');
+            }
+        }
+        return sb.toString();
+    }
+
+    /* **** new versions, the caller checks that the names are free **** */
+
+    CommandRegistry with(final Command command) {
+        return withAll(Collections.singletonList(command));
+    }
+
+    CommandRegistry withAll(final List<? extends Command> commands) {
+        final Map<String, Command> changed = new HashMap<>(m_commands);
+        for (final Command command : commands) {
+            changed.put(command.getLabel().intern(), command);
+        }
+        return new CommandRegistry(changed, m_aliases);
+    }
+
+    // drops the aliases of the command too
+    CommandRegistry without(final String label) {
+        final Map<String, Command> changed = new HashMap<>(m_commands);
+        changed.remove(label);
+        Map<String, String> aliases = m_aliases;
+        if (aliases.containsValue(label)) {
+            aliases = new HashMap<>(aliases);
+            aliases.values().removeIf(label::equals);
+        }
+        return new CommandRegistry(changed, aliases);
+    }
+
+    CommandRegistry withAlias(final String alias, final String label) {
+        final Map<String, String> changed = new HashMap<>(m_aliases);
+        changed.put(alias.intern(), label);
+        return new CommandRegistry(m_commands, changed);
+    }
+
+    CommandRegistry withoutAlias(final String alias) {
+        final Map<String, String> changed = new HashMap<>(m_aliases);
+        changed.remove(alias);
+        return new CommandRegistry(m_commands, changed);
+    }
+
+}
@@ -4,14 +4,21 @@ import nuclearbot.plugin.CommandExecutor;
 import nuclearbot.plugin.JavaPlugin;
 import nuclearbot.plugin.Plugin;
 import nuclearbot.util.Config;
+import nuclearbot.util.KeyValueStore;
+import nuclearbot.util.LogEvent;
 import nuclearbot.util.Logger;
+import nuclearbot.util.Metrics;
+import nuclearbot.util.Watchdog;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,11 +51,14 @@ public class ImplChatClient implements ChatClient {
     // only compile the regex once
     private static final Pattern REGEX_MESSAGE = Pattern
             .compile("^:([a-zA-Z0-9_]+)![a-zA-Z0-9_]+@[a-zA-Z0-9_]+\\.tmi\\.twitch\\.tv PRIVMSG #[a-zA-Z0-9_]+ :(.+)$");
+    private static final Pattern REGEX_MEMBERSHIP = Pattern
+            .compile("^:([a-zA-Z0-9_]+)![a-zA-Z0-9_]+@[a-zA-Z0-9_]+\\.tmi\\.twitch\\.tv (JOIN|PART) #[a-zA-Z0-9_]+$");
 
     private static final String SERVER = "irc.chat.twitch.tv";
     private static final int PORT = 6667;
 
     private static final long SLEEP_DELAY = TimeUnit.MILLISECONDS.toMillis(500);
+    private static final int LINE_QUEUE_SIZE = 4096;
 
     private final String m_username;
     private final int m_usernameLength;
@@ -56,10 +66,13 @@ public class ImplChatClient implements ChatClient {
     private final String m_channel;
 
     private final Plugin m_plugin;
+    private final String m_pluginName;
+    private final String m_messageContext;
+    private final boolean m_keepalive;
 
     private final List<ClientListener> m_clientListeners;
 
-    private final Map<String, Command> m_commands;
+    private final AtomicReference<CommandRegistry> m_commands; // swapped on every change, read without locking
     private final CommandExecutor m_systemCallExecutor;
     private final CommandExecutor m_helpExecutor;
 
@@ -67,6 +80,8 @@ public class ImplChatClient implements ChatClient {
     private Socket m_socket;
     private BufferedReader m_reader;
     private ChatOut m_chatOut;
+    private BlockingQueue<String> m_lines; // filled by the keepalive reader, null if disabled
+    private Thread m_keepaliveThread;
 
     private boolean m_doReconnect; // true to attempt to reconnect when the socket is closed
     private volatile boolean m_doStop; // if true, the client will exit at next loop.
@@ -80,15 +95,20 @@ public class ImplChatClient implements ChatClient {
      */
     public ImplChatClient(final JavaPlugin plugin) {
         // user name and channel must be lower-case
-        m_username = Config.get("twitch_user").toLowerCase();
+        m_username = Users.intern(Config.get("twitch_user").toLowerCase());
         m_authToken = Config.get("twitch_oauth_key");
         m_usernameLength = m_username.length();
         m_channel = '#' + m_username;
+        Roles.setBroadcaster(m_username);
 
         m_plugin = plugin.getHandle();
+        m_pluginName = plugin.getName();
+        m_messageContext = "onMessage of plugin \"" + m_pluginName + "\"";
+        // answer PINGs from another thread, so that a blocked plugin doesn't get us disconnected
+        m_keepalive = Boolean.parseBoolean(Config.get("keepalive", "true"));
         m_clientListeners = Collections.synchronizedList(new ArrayList<>());
 
-        m_commands = Collections.synchronizedMap(new HashMap<>());
+        m_commands = new AtomicReference<>(CommandRegistry.EMPTY);
 
         m_systemCallExecutor = new CommandSystemCalls();
         m_helpExecutor = new CommandHelp();
@@ -96,6 +116,8 @@ public class ImplChatClient implements ChatClient {
         m_socket = null;
         m_reader = null;
         m_chatOut = null;
+        m_lines = null;
+        m_keepaliveThread = null;
         m_doReconnect = false;
         m_doStop = false;
     }
@@ -120,6 +142,18 @@ public class ImplChatClient implements ChatClient {
         }
     }
 
+    private void notifyJoin(final String username) {
+        for (ClientListener listener : m_clientListeners) {
+            listener.onJoin(this, username);
+        }
+    }
+
+    private void notifyPart(final String username) {
+        for (ClientListener listener : m_clientListeners) {
+            listener.onPart(this, username);
+        }
+    }
+
     private void notifyCommandRegistered(final String label, final Command command) {
         for (ClientListener listener : m_clientListeners) {
             listener.onCommandRegistered(this, label, command);
@@ -132,38 +166,134 @@ public class ImplChatClient implements ChatClient {
         }
     }
 
+    private void notifyAliasRegistered(final String alias, final String label) {
+        for (ClientListener listener : m_clientListeners) {
+            listener.onAliasRegistered(this, alias, label);
+        }
+    }
+
+    private void notifyAliasUnregistered(final String alias) {
+        for (ClientListener listener : m_clientListeners) {
+            listener.onAliasUnregistered(this, alias);
+        }
+    }
+
+    private void event(final LogEvent.Type type, final String username, final String label, final long latency) {
+        Metrics.onEvent(type, label, latency);
+        Logger.event(LogEvent.now(type, m_channel, username, label, latency, m_pluginName));
+    }
+
 	/*- registries -*/
 
+    @Override
+    public String getUsername() {
+        return m_username;
+    }
+
+    @Override
+    public Role getRole(final String username) {
+        return Roles.role(username);
+    }
+
+    @Override
+    public KeyValueStore.Namespace getStore() throws IOException {
+        return KeyValueStore.getDefault().namespace(m_plugin.getClass().getName());
+    }
+
     @Override
     public Command getCommand(final String label) {
-        return m_commands.get(label);
+        return m_commands.get().get(label);
     }
 
     @Override
     public Command registerCommand(final String label, final String usage, final CommandExecutor executor) {
-        if (m_commands.containsKey(label)) {
-            throw new IllegalArgumentException("Registered an already registered command \"" + label + "\".");
-        }
         final Command command = new ImplCommand(label, usage, executor);
-        m_commands.put(label.intern(), command);
+        CommandRegistry current;
+        do {
+            current = m_commands.get();
+            if (current.contains(label)) {
+                throw new IllegalArgumentException("Registered an already registered command \"" + label + "\".");
+            }
+        } while (!m_commands.compareAndSet(current, current.with(command)));
         Logger.info("(Twitch) Registered command \"" + label + "\".");
         notifyCommandRegistered(label, command);
         return command;
     }
 
     @Override
-    public void unregisterCommand(final String label) {
-        if (!m_commands.containsKey(label)) {
-            throw new IllegalArgumentException("Unregistered not-registered command \"" + label + "\".");
+    public List<String> registerCommands(final Collection<? extends Command> commands) {
+        final List<Command> registered = new ArrayList<>(commands.size());
+        final List<String> skipped = new ArrayList<>();
+        final Set<String> labels = new HashSet<>();
+        CommandRegistry current;
+        do { // a single new version for all of them
+            current = m_commands.get();
+            registered.clear();
+            skipped.clear();
+            labels.clear();
+            for (final Command command : commands) {
+                if (!current.contains(command.getLabel()) && labels.add(command.getLabel())) {
+                    registered.add(command);
+                } else {
+                    skipped.add(command.getLabel());
+                }
+            }
+        } while (!registered.isEmpty() && !m_commands.compareAndSet(current, current.withAll(registered)));
+        Logger.info("(Twitch) Registered " + registered.size() + " commands.");
+        for (final Command command : registered) {
+            notifyCommandRegistered(command.getLabel(), command);
         }
-        m_commands.remove(label);
+        return skipped;
+    }
+
+    @Override
+    public void unregisterCommand(final String label) {
+        CommandRegistry current;
+        do {
+            current = m_commands.get();
+            if (!current.isLabel(label)) {
+                throw new IllegalArgumentException("Unregistered not-registered command \"" + label + "\".");
+            }
+        } while (!m_commands.compareAndSet(current, current.without(label)));
         Logger.info("(Twitch) Unregistered command \"" + label + "\".");
+        for (final String alias : current.aliasesOf(label)) {
+            notifyAliasUnregistered(alias);
+        }
         notifyCommandUnregistered(label);
     }
 
     @Override
     public boolean isCommandRegistered(final String label) {
-        return m_commands.containsKey(label);
+        return m_commands.get().contains(label);
+    }
+
+    @Override
+    public void registerAlias(final String alias, final String label) {
+        CommandRegistry current;
+        do {
+            current = m_commands.get();
+            if (current.contains(alias)) {
+                throw new IllegalArgumentException("Registered an already registered command \"" + alias + "\" as an alias.");
+            }
+            if (!current.isLabel(label)) {
+                throw new IllegalArgumentException("Registered an alias of not-registered command \"" + label + "\".");
+            }
+        } while (!m_commands.compareAndSet(current, current.withAlias(alias, label)));
+        Logger.info("(Twitch) Registered alias \"" + alias + "\" of command \"" + label + "\".");
+        notifyAliasRegistered(alias, label);
+    }
+
+    @Override
+    public void unregisterAlias(final String alias) {
+        CommandRegistry current;
+        do {
+            current = m_commands.get();
+            if (!current.contains(alias) || current.isLabel(alias)) {
+                throw new IllegalArgumentException("Unregistered not-registered alias \"" + alias + "\".");
+            }
+        } while (!m_commands.compareAndSet(current, current.withoutAlias(alias)));
+        Logger.info("(Twitch) Unregistered alias \"" + alias + "\".");
+        notifyAliasUnregistered(alias);
     }
 
     @Override
@@ -197,6 +327,7 @@ public class ImplChatClient implements ChatClient {
     @Override
     public void sendMessage(final String msg) {
         m_chatOut.write("PRIVMSG " + m_channel + " :" + msg + "\r\n");
+        event(LogEvent.Type.MESSAGE_OUT, m_username, null, LogEvent.NO_LATENCY);
 
         notifyMessage(m_username, msg);
     }
@@ -210,7 +341,7 @@ public class ImplChatClient implements ChatClient {
     public void connect() throws IOException {
         String line;
 
-        m_commands.clear();
+        m_commands.set(CommandRegistry.EMPTY);
 
         registerCommand("restart", "!restart", m_systemCallExecutor).setDescription("Soft-restarts the bot.");
         registerCommand("stop", "!stop", m_systemCallExecutor).setDescription("Stops the bot.");
@@ -225,164 +356,260 @@ public class ImplChatClient implements ChatClient {
             Logger.printStackTrace(e);
         }
 
-        do {
-            Logger.info("(Twitch) Connecting...");
-
-            Runtime.getRuntime().addShutdownHook(m_shutdownHook = new Thread(new ShutdownHookRunnable()));
-            // open connection and I/O objects
-            m_socket = new Socket(SERVER, PORT);
-            m_reader = new BufferedReader(new InputStreamReader(m_socket.getInputStream()));
-            m_chatOut = new ImplChatOut(m_socket.getOutputStream(), "twitch");
-            m_doReconnect = false;
-            m_doStop = true;
-
-            // send connection data
-            send("PASS " + m_authToken);
-            send("NICK " + m_username);
-
-            // wait for response
-            while ((line = m_reader.readLine()) != null) {
-                // skip the prefix which is ':tmi.twitch.tv ' (15 characters long)
-                if (line.startsWith("376", 15)) // this is the code of MOTD's last line
-                {
-                    Logger.info("(Twitch) Connected!");
-                    m_doStop = false;
-                    break; // we're in
-                } else if (line.startsWith("NOTICE * :", 15)) {
-                    Logger.info("(Twitch) Couldn't connect: " + line.substring(25));
-                    break;
+        final Watchdog.Heartbeat heartbeat = Watchdog.register("twitch reader");
+
+        try {
+            do {
+                Logger.info("(Twitch) Connecting...");
+                heartbeat.enter("connection to " + SERVER);
+
+                Runtime.getRuntime().addShutdownHook(m_shutdownHook = new Thread(new ShutdownHookRunnable()));
+                // open connection and I/O objects
+                m_socket = new Socket(SERVER, PORT);
+                m_reader = new BufferedReader(new InputStreamReader(m_socket.getInputStream()));
+                final ImplChatOut chatOut = new ImplChatOut(m_socket.getOutputStream(), "twitch", Outbox.getDefault());
+                Metrics.CHAT_OUT_QUEUE.set(chatOut::queueSize); // only the Twitch queue, plugins may have their own
+                m_chatOut = chatOut;
+                m_doReconnect = false;
+                m_doStop = true;
+
+                // send connection data
+                send("PASS " + m_authToken);
+                send("NICK " + m_username);
+
+                // wait for response
+                while ((line = m_reader.readLine()) != null) {
+                    // skip the prefix which is ':tmi.twitch.tv ' (15 characters long)
+                    if (line.startsWith("376", 15)) // this is the code of MOTD's last line
+                    {
+                        Logger.info("(Twitch) Connected!");
+                        event(LogEvent.Type.CONNECT, m_username, null, LogEvent.NO_LATENCY);
+                        m_doStop = false;
+                        heartbeat.exit();
+                        break; // we're in
+                    } else if (line.startsWith("NOTICE * :", 15)) {
+                        Logger.info("(Twitch) Couldn't connect: " + line.substring(25));
+                        break;
+                    }
                 }
-            }
 
-            if (!m_doStop) {
-                Logger.info("(Twitch) Requesting reconnect message capability...");
-                // ask for commands, allows for RECONNECT message
-                send("CAP REQ :twitch.tv/commands");
+                if (!m_doStop) {
+                    Logger.info("(Twitch) Requesting reconnect message, tags and membership capabilities...");
+                    // ask for commands, allows for RECONNECT message, for tags, which carry the badges, and for JOIN/PART and NAMES
+                    send("CAP REQ :twitch.tv/commands twitch.tv/tags twitch.tv/membership");
+
+                    Logger.info("(Twitch) Joining channel...");
+                    // join the user's channel
+                    send("JOIN " + m_channel);
+                    m_chatOut.openOutbox(); // queued after the JOIN, so the messages left from the last run go to the channel
+
+                    if (m_keepalive) {
+                        m_lines = new ArrayBlockingQueue<>(LINE_QUEUE_SIZE);
+                        m_keepaliveThread = new Thread(new KeepaliveRunnable(m_reader, m_chatOut, m_lines), "twitch in");
+                        m_keepaliveThread.setDaemon(true);
+                        m_keepaliveThread.start();
+                    }
 
-                Logger.info("(Twitch) Joining channel...");
-                // join the user's channel
-                send("JOIN " + m_channel);
+                    sendMessage("Bot running...");
 
-                sendMessage("Bot running...");
+                    try {
+                        // call the start listener
+                        heartbeat.enter("onStart of plugin \"" + m_pluginName + "\"");
+                        m_plugin.onStart(this);
+                    } catch (Exception e) // catch exceptions here to not leave the loop
+                    {
+                        Logger.error("(Twitch) Exception in listener onStart:");
+                        Logger.printStackTrace(e);
+                    } finally {
+                        heartbeat.exit();
+                    }
 
-                try {
-                    // call the start listener
-                    m_plugin.onStart(this);
-                } catch (Exception e) // catch exceptions here to not leave the loop
-                {
-                    Logger.error("(Twitch) Exception in listener onStart:");
-                    Logger.printStackTrace(e);
-                }
+                    notifyConnected();
 
-                notifyConnected();
+                    while (!m_doStop) {
+                        heartbeat.beat();
 
-                while (!m_doStop) {
-                    if (!m_reader.ready()) {
-                        // we don't need it to run all the time
-                        try {
-                            Thread.sleep(SLEEP_DELAY);
-                        } catch (InterruptedException ignored) {
-                            Thread.yield(); // yield instead (still better than just ignoring)
+                        line = nextLine();
+                        if (line == null) {
+                            if (m_keepaliveThread != null && !m_keepaliveThread.isAlive() && m_lines.isEmpty()) {
+                                Logger.warning("(Twitch) Connection lost, reconnecting...");
+                                m_doReconnect = true;
+                                break;
+                            }
+                            continue;
                         }
-                        continue;
-                    }
 
-                    line = m_reader.readLine();
+                        // strip the tags, so that the rest of the line reads as without the capability
+                        String tags = null;
+                        if (line.startsWith("@")) {
+                            final int space = line.indexOf(' ');
+                            if (space == -1) {
+                                continue;
+                            }
+                            tags = line.substring(1, space);
+                            line = line.substring(space + 1);
+                        }
 
-                    if (line.startsWith("PING")) // ping request
-                    {
-                        send("PONG " + line.substring(5));
-                    } else if (line.startsWith("RECONNECT")) // twitch reconnect message
-                    {
-                        m_doReconnect = true;
-                        Logger.info("(Twitch) Received a reconnect notice!");
-                    } else if (line.startsWith("CAP * ACK", 15)) {
-                        Logger.info("(Twitch) Request for commands capability validated.");
-                    } else {
-                        final Matcher matcher = REGEX_MESSAGE.matcher(line);
-                        if (matcher.matches()) // if the message is a chat message
+                        if (line.startsWith("PING")) // ping request
                         {
-                            final String username = matcher.group(1);
-                            final String message = matcher.group(2);
-
-                            if (message.charAt(0) == '!') // if it's a command
+                            send("PONG " + line.substring(5));
+                        } else if (line.startsWith("RECONNECT")) // twitch reconnect message
+                        {
+                            m_doReconnect = true;
+                            Logger.info("(Twitch) Received a reconnect notice!");
+                            event(LogEvent.Type.RECONNECT, null, null, LogEvent.NO_LATENCY);
+                        } else if (line.startsWith("CAP * ACK", 15)) {
+                            Logger.info("(Twitch) Request for capabilities validated.");
+                        } else {
+                            final Matcher matcher = REGEX_MESSAGE.matcher(line);
+                            if (matcher.matches()) // if the message is a chat message
                             {
-                                final String[] args = message.split("\\s+");
-                                // strip the ! from the first argument
-                                final String label = args[0].substring(1).toLowerCase();
-
-                                Logger.info(String.format("(Twitch) Command from %s: %s", username, Arrays.toString(args)));
+                                // the shared instance, no new String for a known user
+                                final String username = Users.name(Users.id(line, matcher.start(1), matcher.end(1)));
+                                final String message = matcher.group(2);
+                                if (tags != null) {
+                                    Roles.observe(tags, username);
+                                }
 
-                                try {
-                                    final Command command = m_commands.get(label);
+                                if (message.charAt(0) == '!') // if it's a command
+                                {
+                                    final String[] args = message.split("\\s+");
+                                    // strip the ! from the first argument
+                                    final String label = args[0].substring(1).toLowerCase();
+
+                                    Logger.info(String.format("(Twitch) Command from %s: %s", username, Arrays.toString(args)));
+
+                                    final Command command = m_commands.get().get(label);
+                                    // the events count the command under its name, not the alias used
+                                    final String commandLabel = command != null ? command.getLabel() : label;
+                                    final long start = System.nanoTime();
+                                    heartbeat.enter("command \"!" + label + "\"");
+                                    try {
+                                        // call the command listener
+                                        if (command != null) {
+                                            // the executor gets the command name even when called by an alias
+                                            if (!command.getExecutor().onCommand(this, username, command, command.getLabel(), args)) {
+                                                sendMessage("Usage: " + command.getUsage());
+                                            }
+                                            event(LogEvent.Type.COMMAND, username, commandLabel, (System.nanoTime() - start) / 1000L);
+                                        } else {
+                                            Logger.info("(Twitch) Unknown command.");
+                                            event(LogEvent.Type.UNKNOWN_COMMAND, username, label, LogEvent.NO_LATENCY);
+                                            //sendMessage("Unknown command.");
+                                        }
+                                    } catch (Exception e) // catch exceptions here to not leave the loop
+                                    {
+                                        Logger.error("(Twitch) Exception in listener onCommand:");
+                                        Logger.printStackTrace(e);
+                                        event(LogEvent.Type.ERROR, username, commandLabel, (System.nanoTime() - start) / 1000L);
+                                    } finally {
+                                        heartbeat.exit();
+                                    }
+                                } else {
+                                    Logger.info(String.format("(Twitch) Message from %s: %s", username, message));
+                                    final long start = System.nanoTime();
+                                    heartbeat.enter(m_messageContext);
+                                    try {
+                                        // call the message listener
+                                        m_plugin.onMessage(this, username, message);
+                                        event(LogEvent.Type.MESSAGE, username, null, (System.nanoTime() - start) / 1000L);
+                                    } catch (Exception e) // catch exceptions here to not leave the loop
+                                    {
+                                        Logger.error("(Twitch) Exception in listener onMessage:");
+                                        Logger.printStackTrace(e);
+                                        event(LogEvent.Type.ERROR, username, null, (System.nanoTime() - start) / 1000L);
+                                    } finally {
+                                        heartbeat.exit();
+                                    }
 
-                                    // call the command listener
-                                    if (command != null) {
-                                        if (!command.getExecutor().onCommand(this, username, command, label, args)) {
-                                            sendMessage("Usage: " + command.getUsage());
+                                    notifyMessage(username, message);
+                                }
+                            } else if (line.startsWith("USERSTATE", 15)) {
+                                // our own badges in the channel
+                                if (tags != null) {
+                                    Roles.observe(tags, m_username);
+                                }
+                            } else if (line.startsWith("353", 16 + m_usernameLength)) {
+                                // the users already in the channel, in several lines, each ending with " :name name name"
+                                final int names = line.indexOf(" :", 16 + m_usernameLength);
+                                if (names != -1) {
+                                    for (int start = names + 2, end; start < line.length(); start = end + 1) {
+                                        end = line.indexOf(' ', start);
+                                        if (end == -1) {
+                                            end = line.length();
+                                        }
+                                        if (end > start) {
+                                            notifyJoin(Users.name(Users.id(line, start, end)));
                                         }
-                                    } else {
-                                        Logger.info("(Twitch) Unknown command.");
-                                        //sendMessage("Unknown command.");
                                     }
-                                } catch (Exception e) // catch exceptions here to not leave the loop
-                                {
-                                    Logger.error("(Twitch) Exception in listener onCommand:");
-                                    Logger.printStackTrace(e);
                                 }
+                            } else if (line.startsWith("366", 16 + m_usernameLength) || line.startsWith("ROOMSTATE", 15)) {
+                                // ignore these messages
                             } else {
-                                Logger.info(String.format("(Twitch) Message from %s: %s", username, message));
-                                try {
-                                    // call the message listener
-                                    m_plugin.onMessage(this, username, message);
-                                } catch (Exception e) // catch exceptions here to not leave the loop
-                                {
-                                    Logger.error("(Twitch) Exception in listener onMessage:");
-                                    Logger.printStackTrace(e);
+                                final Matcher membership = REGEX_MEMBERSHIP.matcher(line);
+                                if (membership.matches()) {
+                                    final String username = Users.name(Users.id(line, membership.start(1), membership.end(1)));
+                                    if (membership.group(2).equals("JOIN")) {
+                                        notifyJoin(username);
+                                    } else {
+                                        notifyPart(username);
+                                    }
+                                } else {
+                                    Logger.info("(Twitch) " + line);
                                 }
-
-                                notifyMessage(username, message);
                             }
-                        } else if (line.startsWith("353", 16 + m_usernameLength) || line.startsWith("366", 16 + m_usernameLength) || line
-                                .startsWith("ROOMSTATE", 15) || line.startsWith("USERSTATE", 15)) {
-                            // ignore these messages
-                        } else {
-                            Logger.info("(Twitch) " + line);
                         }
                     }
+
+                    try {
+                        // call the stop listener
+                        heartbeat.enter("onStop of plugin \"" + m_pluginName + "\"");
+                        m_plugin.onStop(this);
+                    } catch (Exception e) // catch exceptions here to not leave the method
+                    {
+                        Logger.error("(Twith) Exception in listener onStop:");
+                        Logger.printStackTrace(e);
+                    } finally {
+                        heartbeat.exit();
+                    }
                 }
 
+                sendMessage(m_doReconnect ? "Restarting bot..." : "Stopping bot...");
+
                 try {
-                    // call the stop listener
-                    m_plugin.onStop(this);
-                } catch (Exception e) // catch exceptions here to not leave the method
-                {
-                    Logger.error("(Twith) Exception in listener onStop:");
-                    Logger.printStackTrace(e);
+                    Thread.sleep(800L); // give it some time to finish tasks
+                } catch (InterruptedException ignored) {
                 }
-            }
+                heartbeat.beat();
+
+                Logger.info("(Twitch) Releasing resources...");
+
+                // close resources and socket, the socket first to unblock the keepalive reader
+                m_chatOut.close();
+                Metrics.CHAT_OUT_QUEUE.set(null);
+                m_socket.close();
+                m_reader.close();
+                if (m_keepaliveThread != null) {
+                    m_keepaliveThread.interrupt(); // if it waits for room in the queue
+                    try {
+                        m_keepaliveThread.join(TimeUnit.SECONDS.toMillis(1));
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                m_socket = null;
+                m_reader = null;
+                m_chatOut = null;
+                m_lines = null;
+                m_keepaliveThread = null;
 
-            sendMessage(m_doReconnect ? "Restarting bot..." : "Stopping bot...");
+                event(LogEvent.Type.DISCONNECT, m_username, null, LogEvent.NO_LATENCY);
+                notifyDisconnected();
 
-            try {
-                Thread.sleep(800L); // give it some time to finish tasks
-            } catch (InterruptedException ignored) {
             }
-
-            Logger.info("(Twitch) Releasing resources...");
-
-            // close resources and socket
-            m_chatOut.close();
-            m_reader.close();
-            m_socket.close();
-            m_socket = null;
-            m_reader = null;
-            m_chatOut = null;
-
-            notifyDisconnected();
-
+            while (m_doReconnect);
+        } finally {
+            heartbeat.unregister();
         }
-        while (m_doReconnect);
 
         // we exited properly, unregister shutdown hook.
         Runtime.getRuntime().removeShutdownHook(m_shutdownHook);
@@ -390,31 +617,42 @@ public class ImplChatClient implements ChatClient {
         Logger.info("(Twitch) Exiting client loop...");
     }
 
+    // returns the next line from the server, or null if there is none yet
+    private String nextLine() throws IOException {
+        if (m_lines != null) {
+            try {
+                return m_lines.poll(SLEEP_DELAY, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignored) {
+                return null;
+            }
+        }
+        if (!m_reader.ready()) {
+            // we don't need it to run all the time
+            try {
+                Thread.sleep(SLEEP_DELAY);
+            } catch (InterruptedException ignored) {
+                Thread.yield(); // yield instead (still better than just ignoring)
+            }
+            return null;
+        }
+        return m_reader.readLine();
+    }
+
     private class CommandHelp implements CommandExecutor {
 
         @Override
         public boolean onCommand(final ChatClient client, final String username, final Command command, final String label,
                                  final String[] args) throws IOException {
+            final CommandRegistry registry = m_commands.get();
             final StringBuilder sb = new StringBuilder();
             // if there is no argument, list the commands
             if (args.length == 1) {
                 sb.append("Commands: ");
-                synchronized (m_commands) {
-                    if (m_commands.isEmpty()) {
-                        sb.append("(empty)");
-                    } else {
-                        final Iterator<String> it = m_commands.keySet().iterator();
-                        sb.append(it.next()); // there's at least one!
-                        while (it.hasNext()) {
-                            sb.append(", ");
-                            sb.append(it.next());
-                        }
-                    }
-                }
-            } else if (!m_commands.containsKey(args[1])) {
+                sb.append(registry.helpListing());
+            } else if (registry.get(args[1]) == null) {
                 sb.append("Command does not exist.");
             } else {
-                final Command helpCommand = m_commands.get(args[1]);
+                final Command helpCommand = registry.get(args[1]);
                 sb.append("Usage: ");
                 sb.append(helpCommand.getUsage());
                 sb.append(" - ");
@@ -434,7 +672,7 @@ public class ImplChatClient implements ChatClient {
         public boolean onCommand(final ChatClient client, final String username, final Command command, final String label,
                                  final String[] args) throws IOException {
             // system calls (like in the Alicization arc SAO, lol)
-            if (Moderators.isModerator(username)) {
+            if (Roles.isModerator(username)) {
                 if (label.equalsIgnoreCase("restart")) {
                     Logger.info("(Twitch) Restart command issued.");
                     m_doReconnect = true;
@@ -453,6 +691,48 @@ public class ImplChatClient implements ChatClient {
 
     }
 
+    private class KeepaliveRunnable implements Runnable {
+
+        private final BufferedReader m_in;
+        private final ChatOut m_out;
+        private final BlockingQueue<String> m_queue;
+
+        private KeepaliveRunnable(final BufferedReader in, final ChatOut out, final BlockingQueue<String> queue) {
+            m_in = in;
+            m_out = out;
+            m_queue = queue;
+        }
+
+        @Override
+        public void run() {
+            boolean warned = false;
+            try {
+                String line;
+                while ((line = m_in.readLine()) != null) {
+                    if (line.startsWith("PING")) // answer right away, even if the client loop is busy
+                    {
+                        m_out.write("PONG " + line.substring(5) + "\r\n");
+                    } else if (!m_queue.offer(line)) {
+                        // wait for the client loop rather than losing a command, the PINGs stop meanwhile
+                        if (!warned) {
+                            Logger.warning("(Twitch) Client loop is not keeping up, waiting for it.");
+                            warned = true;
+                        }
+                        m_queue.put(line);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+                // the client is releasing the connection
+            } catch (IOException e) {
+                if (!m_doStop) {
+                    Logger.warning("(Twitch) Exception caught in keepalive reader:");
+                    Logger.printStackTrace(e);
+                }
+            }
+        }
+
+    }
+
     private class ShutdownHookRunnable implements Runnable {
 
         @Override
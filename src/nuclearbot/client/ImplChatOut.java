@@ -1,6 +1,7 @@
 package nuclearbot.client;
 
 import nuclearbot.util.Logger;
+import nuclearbot.util.Watchdog;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -8,6 +9,8 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -28,6 +31,11 @@ import java.util.concurrent.BlockingQueue;
 
 /**
  * Implementation of the chat output thread.<br>
+ * With an {@link Outbox}, the chat messages are written to it instead of
+ * being kept in memory, and are acknowledged once written to the socket.
+ * The other lines, like PONG or the login, which carries the token,
+ * stay in memory and are sent first. The messages left by the last run
+ * or connection are only sent after {@link #openOutbox()}.<br>
  * <br>
  * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
  *
@@ -36,46 +44,92 @@ import java.util.concurrent.BlockingQueue;
 public class ImplChatOut implements ChatOut {
 
     private static final int QUEUE_SIZE = 50;
+    private static final long POLL_DELAY = TimeUnit.SECONDS.toMillis(1);
 
     private final BufferedWriter m_out;
     private final BlockingQueue<String> m_queue;
+    private final Outbox m_outbox; // null when everything is kept in memory
 
     private final String m_name;
 
     private Thread m_thread;
+    private Watchdog.Heartbeat m_heartbeat;
 
     private volatile boolean m_running;
+    private volatile boolean m_outboxOpen;
 
     public ImplChatOut(final OutputStream stream, final String name) {
+        this(stream, name, null);
+    }
+
+    /**
+     * Creates and starts an output thread.
+     *
+     * @param stream the socket's output stream
+     * @param name   the thread name prefix
+     * @param outbox the durable queue for the chat messages, or null
+     */
+    public ImplChatOut(final OutputStream stream, final String name, final Outbox outbox) {
         m_out = new BufferedWriter(new OutputStreamWriter(stream));
         m_queue = new ArrayBlockingQueue<>(QUEUE_SIZE, true);
+        m_outbox = outbox;
         m_name = name;
         m_thread = null;
         m_running = false;
+        m_outboxOpen = false;
+        if (outbox != null) {
+            outbox.rewind(); // the last connection may have lost some
+        }
         start(name);
     }
 
     @Override
     public void write(final String str) {
+        if (m_outbox != null && str.startsWith("PRIVMSG ")) {
+            try {
+                m_outbox.append(str);
+                LockSupport.unpark(m_thread);
+                return;
+            } catch (IOException e) {
+                Logger.error("Couldn't write to the outbox for " + m_name + ", the message is kept in memory:");
+                Logger.printStackTrace(e);
+            }
+        }
         try {
             m_queue.add(str);
         } catch (IllegalStateException e) {
             Logger.error("Output queue for " + m_name + " is full:");
             Logger.printStackTrace(e);
         }
+        if (m_outbox != null) {
+            LockSupport.unpark(m_thread);
+        }
+    }
+
+    @Override
+    public void openOutbox() {
+        m_outboxOpen = true;
+        LockSupport.unpark(m_thread);
     }
 
     @Override
     public void start(final String name) {
         m_running = true;
+        m_heartbeat = Watchdog.register(name + " out");
         m_thread = new Thread(this, name + " out");
         m_thread.start();
     }
 
+    // messages waiting to be sent, in memory and in the outbox
+    long queueSize() {
+        return m_queue.size() + (m_outbox != null ? m_outbox.size() : 0);
+    }
+
     @Override
     public void close() {
         m_running = false;
         m_thread.interrupt();
+        m_heartbeat.unregister();
     }
 
     @Override
@@ -83,7 +137,17 @@ public class ImplChatOut implements ChatOut {
         try {
             while (m_running) {
                 try {
-                    final String message = m_queue.take();
+                    // poll instead of blocking so that the watchdog only sees stalled writes
+                    m_heartbeat.exit();
+                    if (m_outbox != null) {
+                        writeNext();
+                        continue;
+                    }
+                    final String message = m_queue.poll(POLL_DELAY, TimeUnit.MILLISECONDS);
+                    if (message == null) {
+                        continue;
+                    }
+                    m_heartbeat.enter("socket write");
                     m_out.write(message);
                     m_out.flush();
                 } catch (IOException e) {
@@ -95,4 +159,23 @@ public class ImplChatOut implements ChatOut {
         }
     }
 
+    // the lines in memory first, then the outbox, waits for either when both are empty
+    private void writeNext() throws IOException, InterruptedException {
+        String message = m_queue.poll();
+        final boolean durable = message == null && m_outboxOpen && (message = m_outbox.poll()) != null;
+        if (message == null) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(POLL_DELAY));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            return;
+        }
+        m_heartbeat.enter("socket write");
+        m_out.write(message);
+        m_out.flush();
+        if (durable) {
+            m_outbox.acknowledge();
+        }
+    }
+
 }
@@ -1,18 +1,32 @@
 package nuclearbot.client;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
 import nuclearbot.util.Logger;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -33,6 +47,13 @@ import java.util.TreeSet;
 
 /**
  * Static class for moderator list.<br>
+ * The list is kept in a snapshot, <code>moderators.json</code>, and each
+ * change is appended to a journal, <code>moderators.journal</code>, as a line
+ * <code>+name</code> or <code>-name</code>. Once the journal is long enough,
+ * a background thread writes a new snapshot, renames it over the old one
+ * and drops the journal lines it contains. Replaying a line twice changes
+ * nothing, so a crash at any point only leaves lines to replay.<br>
+ * Lookups read an immutable set without locking, changes replace it.<br>
  * <br>
  * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
  *
@@ -41,69 +62,234 @@ import java.util.TreeSet;
 public class Moderators {
 
     private static final String FILE_NAME = "moderators.json";
+    private static final String JOURNAL_NAME = "moderators.journal";
+    private static final int COMPACT_THRESHOLD = 64; // journal lines
 
     private static final File file;
-    private static final SortedSet<String> moderators;
+    private static final File journalFile;
+    private static final Object lock = new Object();
+    private static final ExecutorService compactor;
+
+    private static volatile Set<String> moderators;
+
+    // guarded by lock
+    private static OutputStream journal;
+    private static long journalLength; // bytes
+    private static int journalLines;
+    private static boolean compactionPending;
 
     static {
         file = new File(FILE_NAME);
-        moderators = Collections.synchronizedSortedSet(new TreeSet<>());
+        journalFile = new File(JOURNAL_NAME);
+        moderators = Collections.emptySet();
+        compactor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "moderators compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-        if (!file.exists() && file.mkdirs() && file.delete()) {
-            try {
-                if (file.createNewFile()) {
-                    try (final FileWriter writer = new FileWriter(file, false)) {
-                        writer.write("[]");
+        loadModerators();
+    }
+
+    /**
+     * Reads the snapshot and replays the journal, without writing anything.
+     */
+    public static final void loadModerators() {
+        synchronized (lock) {
+            final Set<String> loaded = new HashSet<>();
+            if (file.exists()) {
+                try (final FileReader reader = new FileReader(file)) {
+                    final Type listType = new TypeToken<List<String>>() {
+                    }.getType();
+                    final List<String> list = new Gson().fromJson(reader, listType);
+                    if (list != null) {
+                        loaded.addAll(list);
                     }
+                } catch (IOException | JsonSyntaxException e) {
+                    Logger.warning("(mod) Could not load the moderator list.");
+                    Logger.printStackTrace(e);
                 }
-            } catch (IOException e) {
-                Logger.warning("(mod) Could not create \"" + FILE_NAME + "\" for persistence.");
-                Logger.warning("(mod) Moderators will only last one lifetime.");
-                Logger.printStackTrace(e);
             }
-        }
 
-        loadModerators();
-    }
+            journalLines = 0;
+            journalLength = 0L;
+            if (journalFile.exists()) {
+                try {
+                    final byte[] bytes = Files.readAllBytes(journalFile.toPath());
+                    journalLength = replay(new String(bytes, StandardCharsets.UTF_8), loaded);
+                    if (journalLength < bytes.length) { // drop the cut line, or the next one would be appended to it
+                        try (final RandomAccessFile truncated = new RandomAccessFile(journalFile, "rw")) {
+                            truncated.setLength(journalLength);
+                        }
+                    }
+                } catch (IOException e) {
+                    Logger.warning("(mod) Could not replay the moderator journal.");
+                    Logger.printStackTrace(e);
+                }
+            }
+            moderators = Collections.unmodifiableSet(loaded);
+            Logger.info("(mod) Loaded " + loaded.size() + " moderators, replayed " + journalLines + " changes.");
 
-    public static final void loadModerators() {
-        try (final FileReader reader = new FileReader(file)) {
-            final Type listType = new TypeToken<List<String>>() {
-            }.getType();
-            final List<String> list = new Gson().fromJson(reader, listType);
+            if (journalLines > 0) {
+                scheduleCompaction();
+            }
+        }
+    }
 
-            list.forEach(Moderators::addModerator);
-        } catch (IOException e) {
-            Logger.warning("(mod) Could not load the moderator list.");
-            Logger.printStackTrace(e);
+    // applies the complete lines of the journal, returns the length in bytes of what was applied
+    private static long replay(final String text, final Set<String> set) {
+        int start = 0;
+        int end;
+        while ((end = text.indexOf('\n', start)) != -1) { // a line cut by a crash has no line break
+            if (end > start + 1) {
+                final String name = text.substring(start + 1, end);
+                if (text.charAt(start) == '+') {
+                    set.add(name);
+                } else if (text.charAt(start) == '-') {
+                    set.remove(name);
+                }
+                journalLines++;
+            }
+            start = end + 1;
         }
+        return text.substring(0, start).getBytes(StandardCharsets.UTF_8).length;
     }
 
+    /**
+     * Writes a snapshot of the moderator list now and empties the journal.
+     */
     public static final void saveModerators() {
-        try (final FileWriter writer = new FileWriter(file)) {
-            new Gson().toJson(moderators, List.class, writer);
-        } catch (IOException e) {
-            Logger.warning("(mod) Could not save the moderator list.");
-            Logger.printStackTrace(e);
-        }
+        compact();
     }
 
     public static final void addModerator(final String name) {
-        moderators.add(name);
-        saveModerators();
+        if (name.indexOf('\n') != -1 || name.isEmpty()) {
+            throw new IllegalArgumentException("Invalid moderator name.");
+        }
+        synchronized (lock) {
+            if (moderators.contains(name)) {
+                return;
+            }
+            final Set<String> changed = new HashSet<>(moderators);
+            changed.add(name);
+            moderators = Collections.unmodifiableSet(changed);
+            append('+', name);
+        }
     }
 
     public static final void removeModerator(final String name) {
-        moderators.remove(name);
-        saveModerators();
+        synchronized (lock) {
+            if (!moderators.contains(name)) {
+                return;
+            }
+            final Set<String> changed = new HashSet<>(moderators);
+            changed.remove(name);
+            moderators = Collections.unmodifiableSet(changed);
+            append('-', name);
+        }
     }
 
     public static final boolean isModerator(final String name) {
         return moderators.contains(name);
     }
 
+    /**
+     * Returns the moderators, sorted.
+     *
+     * @return a copy of the moderator list
+     */
     public static final SortedSet<String> getModerators() {
-        return Collections.unmodifiableSortedSet(moderators);
+        return Collections.unmodifiableSortedSet(new TreeSet<>(moderators));
+    }
+
+    // must hold the lock
+    private static void append(final char operation, final String name) {
+        final byte[] line = (operation + name + '\n').getBytes(StandardCharsets.UTF_8);
+        try {
+            if (journal == null) {
+                journal = new FileOutputStream(journalFile, true);
+            }
+            journal.write(line); // a single write, the line is complete or cut
+            journalLength += line.length;
+            journalLines++;
+        } catch (IOException e) {
+            Logger.warning("(mod) Could not write to the moderator journal.");
+            Logger.printStackTrace(e);
+        }
+        if (journalLines >= COMPACT_THRESHOLD) {
+            scheduleCompaction();
+        }
+    }
+
+    // must hold the lock
+    private static void scheduleCompaction() {
+        if (!compactionPending) {
+            compactionPending = true;
+            compactor.execute(Moderators::compact);
+        }
+    }
+
+    private static void compact() {
+        final Set<String> snapshot;
+        final long snapshotLength;
+        synchronized (lock) {
+            compactionPending = false;
+            snapshot = moderators;
+            snapshotLength = journalLength; // what the snapshot contains
+        }
+
+        // the snapshot is written without holding the lock
+        final File temp = new File(FILE_NAME + ".tmp");
+        try (final FileOutputStream out = new FileOutputStream(temp);
+             final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            final String[] names = snapshot.toArray(new String[snapshot.size()]);
+            Arrays.sort(names);
+            new Gson().toJson(names, writer);
+            writer.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            Logger.warning("(mod) Could not save the moderator list.");
+            Logger.printStackTrace(e);
+            return;
+        }
+
+        synchronized (lock) {
+            try {
+                moveAtomically(temp, file);
+
+                // keep the lines appended while the snapshot was written
+                final byte[] bytes = journalFile.exists() ? Files.readAllBytes(journalFile.toPath()) : new byte[0];
+                final int keptFrom = (int) Math.min(snapshotLength, bytes.length);
+                final File journalTemp = new File(JOURNAL_NAME + ".tmp");
+                try (final FileOutputStream out = new FileOutputStream(journalTemp)) {
+                    out.write(bytes, keptFrom, bytes.length - keptFrom);
+                    out.getFD().sync();
+                }
+                if (journal != null) {
+                    journal.close();
+                    journal = null;
+                }
+                moveAtomically(journalTemp, journalFile);
+                journalLength = bytes.length - keptFrom;
+                journalLines = 0;
+                for (int i = keptFrom; i < bytes.length; i++) {
+                    if (bytes[i] == '\n') {
+                        journalLines++;
+                    }
+                }
+            } catch (IOException e) {
+                Logger.warning("(mod) Could not compact the moderator journal.");
+                Logger.printStackTrace(e);
+            }
+        }
+    }
+
+    private static void moveAtomically(final File source, final File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 
 }
@@ -0,0 +1,324 @@
+package nuclearbot.client;
+
+import nuclearbot.util.Config;
+import nuclearbot.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Durable queue of outbound chat lines, so that the messages not sent yet
+ * when the bot stops or crashes are sent after it starts again.<br>
+ * Lines are appended to memory-mapped segment files, the consumer's offset
+ * is kept in a memory-mapped file too and advanced once a line was written
+ * to the socket, so a line is sent at least once. Mapped writes survive
+ * the process crashing, they're forced to the disk when exiting.
+ * Lines older than the staleness cutoff are dropped instead of being sent.<br>
+ * A record is [int length][int checksum][long timestamp][line in UTF-8],
+ * a length of -1 means the rest of the segment is unused,
+ * and a length of zero is the end of the log.<br>
+ * There is only one consumer, the chat output thread.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class Outbox {
+
+    private static final int SEGMENT_SIZE = 1 << 20;
+    private static final int HEADER_SIZE = 16;
+    private static final int SKIP = -1;
+    private static final String OFFSET_FILE = "outbox.offset";
+
+    private static Outbox defaultOutbox = null;
+    private static boolean opened = false;
+
+    private final File m_directory;
+    private final long m_staleness; // ms
+    private final MappedByteBuffer m_offset; // acknowledged position
+    private final CRC32 m_crc; // guarded by this
+
+    // guarded by this
+    private int m_writeSegment;
+    private MappedByteBuffer m_writeBuffer;
+    private int m_readSegment;
+    private ByteBuffer m_readBuffer; // a view with its own position
+    private int m_readPosition;
+    private int m_pending; // lines appended and not polled
+    private int m_unacknowledged; // lines polled and not acknowledged
+
+    /**
+     * Opens the outbox in the specified directory, and finds
+     * the lines not acknowledged by the last run.
+     *
+     * @param directory the outbox directory
+     * @param staleness the age in milliseconds after which a line is dropped
+     * @throws IOException if the files could not be opened
+     */
+    public Outbox(final File directory, final long staleness) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create outbox directory \"" + directory.getAbsolutePath() + "\".");
+        }
+        m_directory = directory;
+        m_staleness = staleness;
+        m_crc = new CRC32();
+        m_offset = map(new File(directory, OFFSET_FILE), 8);
+
+        final long acknowledged = m_offset.getLong(0);
+        m_readSegment = (int) (acknowledged / SEGMENT_SIZE);
+        m_readPosition = (int) (acknowledged % SEGMENT_SIZE);
+        m_pending = 0;
+        m_unacknowledged = 0;
+        for (final int segment : segments()) {
+            if (segment < m_readSegment) {
+                delete(segment); // acknowledged before the last run ended
+            }
+        }
+        recover(map(segmentFile(m_readSegment), SEGMENT_SIZE));
+        Logger.info("(Outbox) Opened with " + m_pending + " line(s) left from the last run.");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::force));
+    }
+
+    /**
+     * Returns the outbox shared by the chat clients, opening it the first
+     * time in the directory set by "outbox_dir", if "outbox_enabled" is true.
+     * Lines older than "outbox_stale" seconds are dropped. Errors are logged.
+     *
+     * @return the outbox, or null if it is disabled or couldn't be opened
+     */
+    public static synchronized Outbox getDefault() {
+        if (!opened) {
+            opened = true;
+            if (Config.getBoolean("outbox_enabled", false)) {
+                try {
+                    defaultOutbox = new Outbox(new File(Config.get("outbox_dir", "outbox")), TimeUnit.SECONDS.toMillis(Math.max(1L, Config
+                            .getLong("outbox_stale", 120L))));
+                } catch (IOException e) {
+                    Logger.error("(Outbox) Couldn't open the outbox, lines will be kept in memory:");
+                    Logger.printStackTrace(e);
+                }
+            }
+        }
+        return defaultOutbox;
+    }
+
+    /**
+     * Appends a line to the outbox.
+     *
+     * @param line the line, with its line ending
+     * @throws IOException if a new segment could not be created
+     */
+    public synchronized void append(final String line) throws IOException {
+        final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        final int size = HEADER_SIZE + bytes.length;
+        if (bytes.length == 0) {
+            return;
+        }
+        if (size + 4 > SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Line is too long for the outbox.");
+        }
+        if (m_writeBuffer.position() + size + 4 > SEGMENT_SIZE) { // keeps room for the skip marker
+            m_writeBuffer.putInt(m_writeBuffer.position(), SKIP);
+            m_writeSegment++;
+            m_writeBuffer = map(segmentFile(m_writeSegment), SEGMENT_SIZE);
+        }
+        final int position = m_writeBuffer.position();
+        m_writeBuffer.putLong(position + 8, System.currentTimeMillis());
+        m_writeBuffer.position(position + HEADER_SIZE);
+        m_writeBuffer.put(bytes);
+        m_writeBuffer.putInt(position + 4, checksum(m_writeBuffer, position, bytes.length));
+        // the length is written last, so a cut record reads as the end
+        m_writeBuffer.putInt(position, bytes.length);
+        m_pending++;
+    }
+
+    /**
+     * Returns the next line to send, skipping the stale ones.
+     * Once it's sent, {@link #acknowledge()} must be called.
+     *
+     * @return the line, or null if there is none
+     */
+    public synchronized String poll() {
+        final long now = System.currentTimeMillis();
+        while (m_pending > 0) {
+            final int length = m_readBuffer.getInt(m_readPosition);
+            if (length == SKIP) {
+                m_readSegment++;
+                m_readPosition = 0;
+                m_readBuffer = (m_readSegment == m_writeSegment ? m_writeBuffer : mapQuietly(m_readSegment)).duplicate();
+                continue;
+            }
+            final byte[] bytes = new byte[length];
+            final long timestamp = m_readBuffer.getLong(m_readPosition + 8);
+            m_readBuffer.position(m_readPosition + HEADER_SIZE);
+            m_readBuffer.get(bytes);
+            m_readPosition += HEADER_SIZE + length;
+            m_pending--;
+            m_unacknowledged++;
+            if (now - timestamp <= m_staleness) {
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            Logger.warning("(Outbox) Dropped a line queued " + TimeUnit.MILLISECONDS.toSeconds(now - timestamp) + " seconds ago.");
+        }
+        return null;
+    }
+
+    /**
+     * Marks the lines returned by {@link #poll()} as sent,
+     * and deletes the segments that were entirely sent.
+     */
+    public synchronized void acknowledge() {
+        m_unacknowledged = 0;
+        final long acknowledged = m_offset.getLong(0);
+        m_offset.putLong(0, (long) m_readSegment * SEGMENT_SIZE + m_readPosition);
+        for (int segment = (int) (acknowledged / SEGMENT_SIZE); segment < m_readSegment; segment++) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * Goes back to the first line not acknowledged, for a new consumer
+     * after the last one lost its connection.
+     */
+    public synchronized void rewind() {
+        if (m_unacknowledged == 0) {
+            return;
+        }
+        final long acknowledged = m_offset.getLong(0);
+        m_readSegment = (int) (acknowledged / SEGMENT_SIZE);
+        m_readPosition = (int) (acknowledged % SEGMENT_SIZE);
+        m_readBuffer = (m_readSegment == m_writeSegment ? m_writeBuffer : mapQuietly(m_readSegment)).duplicate();
+        m_pending += m_unacknowledged;
+        m_unacknowledged = 0;
+    }
+
+    /**
+     * Returns the number of lines waiting to be sent.
+     *
+     * @return the line count
+     */
+    public synchronized int size() {
+        return m_pending;
+    }
+
+    /**
+     * Writes the mapped files to the disk.
+     */
+    public synchronized void force() {
+        m_writeBuffer.force();
+        m_offset.force();
+    }
+
+    // finds the end of the valid records after the acknowledged position
+    private void recover(final MappedByteBuffer first) throws IOException {
+        m_readBuffer = first.duplicate();
+        int segment = m_readSegment;
+        MappedByteBuffer buffer = first;
+        int position = m_readPosition;
+        while (true) {
+            final int length = position + 4 <= SEGMENT_SIZE ? buffer.getInt(position) : 0;
+            if (length == SKIP && Arrays.binarySearch(segments(), segment + 1) >= 0) {
+                segment++;
+                position = 0;
+                buffer = map(segmentFile(segment), SEGMENT_SIZE);
+                continue;
+            }
+            if (length <= 0 || position + HEADER_SIZE + length > SEGMENT_SIZE || checksum(buffer, position, length) != buffer.getInt(position
+                    + 4)) {
+                break;
+            }
+            position += HEADER_SIZE + length;
+            m_pending++;
+        }
+        // clears what a crash left after the last record
+        for (int i = position; i < SEGMENT_SIZE; i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+        for (final int later : segments()) {
+            if (later > segment) {
+                Logger.warning("(Outbox) Dropped segment " + later + " after a damaged record.");
+                delete(later);
+            }
+        }
+        m_writeSegment = segment;
+        m_writeBuffer = buffer;
+        m_writeBuffer.position(position);
+    }
+
+    // covers the timestamp and the line
+    private int checksum(final ByteBuffer buffer, final int position, final int length) {
+        final ByteBuffer record = buffer.duplicate();
+        record.limit(position + HEADER_SIZE + length).position(position + 8);
+        m_crc.reset();
+        m_crc.update(record);
+        return (int) m_crc.getValue();
+    }
+
+    private File segmentFile(final int segment) {
+        return new File(m_directory, String.format("outbox-%010d.log", segment));
+    }
+
+    private int[] segments() {
+        final String[] names = m_directory.list((dir, name) -> name.startsWith("outbox-") && name.endsWith(".log"));
+        final int[] segments = new int[names == null ? 0 : names.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = Integer.parseInt(names[i].substring(7, names[i].length() - 4));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private void delete(final int segment) {
+        try {
+            Files.deleteIfExists(segmentFile(segment).toPath());
+        } catch (IOException e) { // still mapped on some systems, deleted when opening next time
+            Logger.warning("(Outbox) Couldn't delete segment " + segment + ".");
+        }
+    }
+
+    // the segments before the written one are complete, they can't fail to exist
+    private MappedByteBuffer mapQuietly(final int segment) {
+        try {
+            return map(segmentFile(segment), SEGMENT_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't map outbox segment " + segment + ".", e);
+        }
+    }
+
+    private static MappedByteBuffer map(final File file, final int size) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package nuclearbot.client;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Role of a user in the channel, from the lowest to the highest.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public enum Role {
+
+    VIEWER, VIP, MODERATOR, BROADCASTER;
+
+    /**
+     * Returns whether this role is the specified one or a higher one.
+     *
+     * @param role the required role
+     * @return true if this role is enough
+     */
+    public boolean atLeast(final Role role) {
+        return compareTo(role) >= 0;
+    }
+
+}
@@ -0,0 +1,231 @@
+package nuclearbot.client;
+
+import nuclearbot.util.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Static class resolving the role of users in the channel.<br>
+ * The role is the highest of the explicit moderator list, the channel
+ * owner, and the badges Twitch sends in the tags of each message.
+ * Badge roles are cached per user id for a while, so that plugins can
+ * ask about users who didn't just talk. Lookups never lock or touch
+ * the disk, the cache is trimmed by whoever fills it past its capacity.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class Roles {
+
+    private static final int CAPACITY = 4096;
+
+    private static volatile long ttl;
+    private static final Map<String, Entry> byId;
+    private static final Map<String, Entry> byLogin;
+    private static final AtomicBoolean trimming;
+
+    private static volatile String broadcaster;
+
+    static {
+        ttl = readTtl();
+        Config.addListener((previous, current, changed) -> {
+            if (changed.contains("role_ttl")) {
+                ttl = readTtl(); // applies to the roles seen from now on
+            }
+        });
+        byId = new ConcurrentHashMap<>(CAPACITY * 2);
+        byLogin = new ConcurrentHashMap<>(CAPACITY * 2);
+        trimming = new AtomicBoolean();
+        broadcaster = "";
+    }
+
+    private Roles() {
+    }
+
+    private static long readTtl() {
+        return TimeUnit.SECONDS.toNanos(Math.max(1L, Config.getLong("role_ttl", 600L)));
+    }
+
+    /**
+     * Sets the login of the channel owner.
+     *
+     * @param login the broadcaster's login, lower-case
+     */
+    public static void setBroadcaster(final String login) {
+        broadcaster = login;
+    }
+
+    /**
+     * Returns the role of the specified user.
+     *
+     * @param login the user's login
+     * @return the role
+     */
+    public static Role role(final String login) {
+        if (login.equals(broadcaster)) {
+            return Role.BROADCASTER;
+        }
+        Role role = Role.VIEWER;
+        final Entry entry = byLogin.get(login);
+        if (entry != null && entry.expires - System.nanoTime() > 0L) {
+            role = entry.role;
+        }
+        if (!role.atLeast(Role.MODERATOR) && Moderators.isModerator(login)) {
+            role = Role.MODERATOR;
+        }
+        return role;
+    }
+
+    /**
+     * Returns whether the specified user is the broadcaster or a moderator.
+     *
+     * @param login the user's login
+     * @return true if the user can moderate the bot
+     */
+    public static boolean isModerator(final String login) {
+        return role(login).atLeast(Role.MODERATOR);
+    }
+
+    /**
+     * Records the role given by the tags of a message from the specified user.
+     *
+     * @param tags  the tags, without the leading '@'
+     * @param login the user's login
+     */
+    public static void observe(final String tags, final String login) {
+        String userId = null;
+        Role role = Role.VIEWER;
+
+        // key=value pairs separated by ';', only a few are needed
+        int start = 0;
+        final int length = tags.length();
+        while (start < length) {
+            int end = tags.indexOf(';', start);
+            if (end == -1) {
+                end = length;
+            }
+            if (tags.startsWith("badges=", start)) {
+                role = max(role, badgeRole(tags, start + "badges=".length(), end));
+            } else if (tags.startsWith("mod=1", start) && end == start + "mod=1".length()) {
+                role = max(role, Role.MODERATOR);
+            } else if (tags.startsWith("user-id=", start) && end > start + "user-id=".length()) {
+                userId = tags.substring(start + "user-id=".length(), end);
+            }
+            start = end + 1;
+        }
+
+        update(userId != null ? userId : login, login, role);
+    }
+
+    // reads the badges, a comma-separated list of name/version
+    private static Role badgeRole(final String tags, final int from, final int to) {
+        Role role = Role.VIEWER;
+        int start = from;
+        while (start < to) {
+            int end = tags.indexOf(',', start);
+            if (end == -1 || end > to) {
+                end = to;
+            }
+            if (tags.startsWith("broadcaster/", start)) {
+                role = max(role, Role.BROADCASTER);
+            } else if (tags.startsWith("moderator/", start)) {
+                role = max(role, Role.MODERATOR);
+            } else if (tags.startsWith("vip/", start)) {
+                role = max(role, Role.VIP);
+            }
+            start = end + 1;
+        }
+        return role;
+    }
+
+    private static Role max(final Role a, final Role b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static void update(final String userId, final String login, final Role role) {
+        final Entry entry = new Entry(userId, login, role, System.nanoTime() + ttl);
+        final Entry previous = byId.put(userId, entry);
+        if (previous != null && !previous.login.equals(login)) {
+            byLogin.remove(previous.login, previous); // the user was renamed
+        }
+        final Entry displaced = byLogin.put(login, entry);
+        if (displaced != null && !displaced.userId.equals(userId)) {
+            byId.remove(displaced.userId, displaced); // someone else had this login
+        }
+        if (byId.size() > CAPACITY) {
+            trim();
+        }
+    }
+
+    // drops the expired entries, then the oldest ones, down to 7/8 of the capacity
+    private static void trim() {
+        if (!trimming.compareAndSet(false, true)) {
+            return; // another thread is at it
+        }
+        try {
+            final long now = System.nanoTime();
+            final List<Entry> alive = new ArrayList<>(byId.size());
+            for (final Entry entry : byId.values()) {
+                if (entry.expires - now <= 0L) {
+                    remove(entry);
+                } else {
+                    alive.add(entry);
+                }
+            }
+            final int excess = alive.size() - CAPACITY * 7 / 8;
+            if (excess > 0) {
+                alive.sort((a, b) -> Long.compare(a.expires - now, b.expires - now));
+                for (int i = 0; i < excess; i++) {
+                    remove(alive.get(i));
+                }
+            }
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    private static void remove(final Entry entry) {
+        byId.remove(entry.userId, entry);
+        byLogin.remove(entry.login, entry);
+    }
+
+    private static final class Entry {
+
+        private final String userId;
+        private final String login;
+        private final Role role;
+        private final long expires; // System.nanoTime()
+
+        private Entry(final String userId, final String login, final Role role, final long expires) {
+            this.userId = userId;
+            this.login = login;
+            this.role = role;
+            this.expires = expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,231 @@
+package nuclearbot.client;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Static symbol table of the user logins seen by the bot.<br>
+ * Each login is given a dense int id, starting from zero, and one shared
+ * String instance, so the subsystems keeping per-user state can index
+ * arrays or primitive-keyed maps by id instead of holding their own copies
+ * of the names. Ids are never reused, the table only grows.<br>
+ * The table uses open addressing with the hashes stored next to the ids,
+ * and is at most half full, so a known login is usually found in one probe.
+ * A login can be looked up directly from the received line without
+ * allocating a String. Lookups don't lock: the table is replaced
+ * when it grows, and a lookup that misses is done again under the lock
+ * before adding, so an entry being added is never duplicated.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class Users {
+
+    /**
+     * Returned by {@link #find(String)} for an unknown login.
+     */
+    public static final int UNKNOWN = -1;
+
+    private static final int INITIAL_SLOTS = 1024;
+
+    private static final Object lock = new Object();
+
+    private static volatile Table table = new Table(INITIAL_SLOTS, new String[INITIAL_SLOTS / 2]);
+    private static int count = 0; // guarded by lock
+
+    private Users() {
+    }
+
+    /**
+     * Returns the id of the login in the specified part of the text,
+     * adding it if it is new. No String is made for a known login.
+     *
+     * @param text  the text, like a received line
+     * @param start the index of the first character of the login
+     * @param end   the index after the last character of the login
+     * @return the user id
+     */
+    public static int id(final CharSequence text, final int start, final int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        final int id = table.find(text, start, end, hash);
+        return id != UNKNOWN ? id : add(text.subSequence(start, end).toString(), hash);
+    }
+
+    /**
+     * Returns the id of the login, adding it if it is new.
+     *
+     * @param login the login, in lower case
+     * @return the user id
+     */
+    public static int id(final String login) {
+        final int hash = login.hashCode(); // same as computed above, and cached
+        final int id = table.find(login, 0, login.length(), hash);
+        return id != UNKNOWN ? id : add(login, hash);
+    }
+
+    /**
+     * Returns the id of the login without adding it.
+     *
+     * @param login the login, in lower case
+     * @return the user id, or {@link #UNKNOWN}
+     */
+    public static int find(final String login) {
+        final int hash = login.hashCode();
+        final int id = table.find(login, 0, login.length(), hash);
+        if (id != UNKNOWN) {
+            return id;
+        }
+        synchronized (lock) { // the entry may be being published
+            return table.find(login, 0, login.length(), hash);
+        }
+    }
+
+    /**
+     * Returns the shared instance of the login with the specified id.
+     *
+     * @param id the user id
+     * @return the login
+     * @throws IndexOutOfBoundsException if no user has this id
+     */
+    public static String name(final int id) {
+        final String[] names = table.names;
+        final String name = id >= 0 && id < names.length ? names[id] : null;
+        if (name != null) {
+            return name;
+        }
+        synchronized (lock) {
+            if (id < 0 || id >= count) {
+                throw new IndexOutOfBoundsException("No user with id " + id + ".");
+            }
+            return table.names[id];
+        }
+    }
+
+    /**
+     * Returns the shared instance of the login, adding it if it is new.
+     *
+     * @param login the login, in lower case
+     * @return the shared instance
+     */
+    public static String intern(final String login) {
+        return name(id(login));
+    }
+
+    /**
+     * Returns the number of users, the ids are below it.
+     *
+     * @return the user count
+     */
+    public static int count() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    private static int add(final String login, final int hash) {
+        synchronized (lock) {
+            Table current = table;
+            final int existing = current.find(login, 0, login.length(), hash);
+            if (existing != UNKNOWN) {
+                return existing; // added by another thread
+            }
+            final int id = count;
+            if (id == current.names.length) {
+                current = current.grow();
+                table = current;
+            }
+            current.names[id] = login;
+            current.insert(id, hash);
+            count = id + 1;
+            return id;
+        }
+    }
+
+    private static final class Table {
+
+        private final int[] slotHashes;
+        private final int[] slotIds; // id + 1, zero when free
+        private final String[] names; // by id
+        private final int mask;
+
+        private Table(final int slots, final String[] names) {
+            this.slotHashes = new int[slots];
+            this.slotIds = new int[slots];
+            this.names = names;
+            this.mask = slots - 1;
+        }
+
+        private static int spread(final int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private int find(final CharSequence text, final int start, final int end, final int hash) {
+            for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+                final int entry = slotIds[slot];
+                if (entry == 0) {
+                    return UNKNOWN;
+                }
+                if (slotHashes[slot] == hash) {
+                    final String name = names[entry - 1];
+                    if (name != null && matches(name, text, start, end)) {
+                        return entry - 1;
+                    }
+                }
+            }
+        }
+
+        private static boolean matches(final String name, final CharSequence text, final int start, final int end) {
+            if (name.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != text.charAt(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insert(final int id, final int hash) {
+            int slot = spread(hash) & mask;
+            while (slotIds[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slotHashes[slot] = hash;
+            slotIds[slot] = id + 1;
+        }
+
+        // twice the slots, still at most half full once the names are full again
+        private Table grow() {
+            final Table table = new Table(slotIds.length * 2, Arrays.copyOf(names, names.length * 2));
+            for (int slot = 0; slot < slotIds.length; slot++) {
+                if (slotIds[slot] != 0) {
+                    table.insert(slotIds[slot] - 1, slotHashes[slot]);
+                }
+            }
+            return table;
+        }
+
+    }
+
+}
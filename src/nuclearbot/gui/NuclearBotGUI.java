@@ -1,22 +1,31 @@
 package nuclearbot.gui;
 
+import nuclearbot.archive.ChatArchive;
+import nuclearbot.archive.ChatIndex;
+import nuclearbot.archive.CommandQuote;
 import nuclearbot.client.ChatClient;
 import nuclearbot.client.ClientListener;
 import nuclearbot.client.Command;
 import nuclearbot.client.ImplChatClient;
+import nuclearbot.client.Moderators;
 import nuclearbot.gui.components.ConfigPanel;
 import nuclearbot.gui.components.FooterPanel;
 import nuclearbot.gui.components.ModeratorPanel;
 import nuclearbot.gui.components.StatusPanel;
+import nuclearbot.gui.components.chat.ChatMessage;
 import nuclearbot.gui.components.chat.ChatPanel;
 import nuclearbot.gui.components.commands.CommandPanel;
 import nuclearbot.gui.components.console.ConsolePanel;
 import nuclearbot.gui.components.console.DocumentOutputStream;
 import nuclearbot.gui.components.plugins.PluginPanel;
 import nuclearbot.gui.utils.DialogUtil;
+import nuclearbot.gui.utils.FrameBatcher;
+import nuclearbot.gui.utils.LazyPanel;
 import nuclearbot.plugin.ImplPluginLoader;
 import nuclearbot.plugin.JavaPlugin;
 import nuclearbot.plugin.PluginLoader;
+import nuclearbot.points.PointsEngine;
+import nuclearbot.util.Config;
 import nuclearbot.util.HTML;
 import nuclearbot.util.Logger;
 
@@ -27,6 +36,9 @@ import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -58,9 +70,10 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
     public static final int TAB_STATUS = 0;
     public static final int TAB_PLUGIN = 1;
     public static final int TAB_COMMANDS = 2;
-    public static final int TAB_CHAT = 3;
-    public static final int TAB_CONFIG = 4;
-    public static final int TAB_CONSOLE = 5;
+    public static final int TAB_MODERATORS = 3;
+    public static final int TAB_CHAT = 4;
+    public static final int TAB_CONFIG = 5;
+    public static final int TAB_CONSOLE = 6;
     private static final long serialVersionUID = 606418561134403181L;
 
     // GUI components
@@ -70,16 +83,28 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
     private final JFrame m_container;
     private final JTabbedPane m_body;
 
+    // the other tabs are constructed the first time they are selected or needed
     private final StatusPanel m_status;
-    private final PluginPanel m_plugins;
-    private final CommandPanel m_commands;
-    private final ModeratorPanel m_moderators;
-    private final ChatPanel m_chat;
-    private final ConfigPanel m_config;
-    private final ConsolePanel m_console;
-
-    // client stuff
-    private final PluginLoader m_pluginLoader;
+    private final LazyPanel<PluginPanel> m_plugins;
+    private final LazyPanel<CommandPanel> m_commands;
+    private final LazyPanel<ModeratorPanel> m_moderators;
+    private final LazyPanel<ChatPanel> m_chat;
+    private final LazyPanel<ConfigPanel> m_config;
+    private final LazyPanel<ConsolePanel> m_console;
+    private final FooterPanel m_footer;
+    private String m_pluginText;
+    private String m_pluginTooltip;
+
+    private final FrameBatcher m_batcher;
+    private final FrameBatcher.Channel<ChatMessage> m_chatUpdates;
+    private final FrameBatcher.Channel<CommandPanel.CommandChange> m_commandUpdates;
+
+    // client stuff, the first three are set when the background initialization is done
+    private PluginLoader m_pluginLoader;
+    private ChatArchive m_archive;
+    private ChatIndex m_index;
+    private PointsEngine m_points;
+    private boolean m_isReady; // background initialization done?
     private boolean m_isFrameClosing; // window is closing?
     private boolean m_doRestartClient; // restart after the client is stopped?
     private boolean m_isClientRunning; // client is running?
@@ -89,15 +114,19 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
     // constructor
     public NuclearBotGUI() {
         final Document consoleDocument = new PlainDocument();
+        m_batcher = new FrameBatcher(readFrameRate());
         { // do that first in order to log the most we can
             Logger.info("(GUI) Linking GUI console to system console...");
-            DocumentOutputStream.redirectSystemOut(consoleDocument);
+            DocumentOutputStream.redirectSystemOut(consoleDocument, m_batcher, readConsoleLines());
         }
 
-        // client variables init
-
-        m_pluginLoader = new ImplPluginLoader();
+        // client variables init, the plugins and persistence are loaded in the background
 
+        m_pluginLoader = null;
+        m_archive = null;
+        m_index = null;
+        m_points = null;
+        m_isReady = false;
         m_isFrameClosing = false;
         m_doRestartClient = false;
         m_isClientRunning = false;
@@ -115,8 +144,11 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
             @Override
             public void windowClosing(final WindowEvent event) {
                 m_isFrameClosing = true;
-                m_plugins.dispose();
+                if (m_plugins.isCreated()) {
+                    m_plugins.get().dispose();
+                }
                 m_container.dispose();
+                m_batcher.stop(); // a running timer would keep the event dispatch thread alive
                 if (m_client != null) {
                     stopClient();
                 }
@@ -131,12 +163,19 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
         m_body = new JTabbedPane();
 
         m_status = new StatusPanel(this);
-        m_plugins = new PluginPanel(this);
-        m_commands = new CommandPanel(this);
-        m_moderators = new ModeratorPanel(this);
-        m_chat = new ChatPanel(this);
-        m_config = new ConfigPanel(this);
-        m_console = new ConsolePanel(this, consoleDocument);
+        m_plugins = new LazyPanel<>(this::createPluginPanel);
+        m_commands = new LazyPanel<>(() -> new CommandPanel(this));
+        m_moderators = new LazyPanel<>(() -> new ModeratorPanel(this));
+        m_chat = new LazyPanel<>(this::createChatPanel);
+        m_config = new LazyPanel<>(this::createConfigPanel);
+        m_console = new LazyPanel<>(() -> new ConsolePanel(this, consoleDocument));
+        m_footer = new FooterPanel();
+        m_pluginText = null;
+        m_pluginTooltip = null;
+
+        m_chatUpdates = m_batcher.channel(messages -> m_chat.get().addMessages(messages));
+        m_commandUpdates = m_batcher.channel(changes -> m_commands.get().applyCommandChanges(changes));
+        m_batcher.start();
 
         m_body.addTab("Status", m_status);
         m_body.addTab("Plugins", m_plugins);
@@ -145,10 +184,11 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
         m_body.addTab("Chat", m_chat);
         m_body.addTab("Config", m_config);
         m_body.addTab("Console", m_console);
+        m_body.addChangeListener(e -> createSelectedTab());
 
         setLayout(new BorderLayout());
         add(m_body, BorderLayout.CENTER);
-        add(new FooterPanel(), BorderLayout.SOUTH);
+        add(m_footer, BorderLayout.SOUTH);
 
         m_container.setContentPane(this);
 
@@ -156,12 +196,57 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
         m_container.setSize(size);
         m_container.setPreferredSize(size);
 
-        pluginChanged(m_pluginLoader.getPlugin());
+        m_status.toggleStartButton(false); // until the plugin is loaded
+        new StartupWorker().execute();
+    }
+
+    private PluginPanel createPluginPanel() {
+        final PluginPanel panel = new PluginPanel(this);
+        if (m_pluginText != null) {
+            panel.setPluginText(m_pluginText, m_pluginTooltip);
+        }
+        return panel;
+    }
+
+    private ChatPanel createChatPanel() {
+        final ChatPanel panel = new ChatPanel(this);
+        panel.toggleSendButton(m_isClientRunning);
+        return panel;
+    }
+
+    private ConfigPanel createConfigPanel() {
+        final ConfigPanel panel = new ConfigPanel(this);
+        final JavaPlugin plugin = m_pluginLoader.getPlugin();
+        if (plugin != null) {
+            panel.setPluginPanel(plugin.getHandle());
+        }
+        return panel;
+    }
+
+    // the console doesn't depend on the background initialization, the other tabs do
+    private void createSelectedTab() {
+        final Component tab = m_body.getSelectedComponent();
+        if (tab instanceof LazyPanel && (m_isReady || tab == m_console)) {
+            ((LazyPanel<?>) tab).get();
+        }
+    }
+
+    private static long uptime() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    private static int readFrameRate() {
+        return Math.max(1, Math.min(Config.getInt("gui_fps", 30), 120));
+    }
+
+    private static int readConsoleLines() {
+        return Math.max(100, Config.getInt("console_lines", 5000));
     }
 
     public void open() {
         m_container.setVisible(true);
         m_dialogs.setQueueDialogs(false);
+        SwingUtilities.invokeLater(() -> Logger.info("(GUI) Window shown " + uptime() + " ms after launch."));
     }
 
     public boolean isClientRunning() {
@@ -180,10 +265,33 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
         return m_textComponentPopupMenu;
     }
 
+    /**
+     * Returns the plugin loader, or null while the plugins are being scanned.
+     *
+     * @return the plugin loader or null
+     */
     public PluginLoader getPluginLoader() {
         return m_pluginLoader;
     }
 
+    /**
+     * Returns the chat archive, or null if it is disabled or not opened yet.
+     *
+     * @return the chat archive or null
+     */
+    public ChatArchive getArchive() {
+        return m_archive;
+    }
+
+    /**
+     * Returns the chat index, or null if the chat archive is disabled or not opened yet.
+     *
+     * @return the chat index or null
+     */
+    public ChatIndex getIndex() {
+        return m_index;
+    }
+
     public void setRestartClient(final boolean restart) {
         m_doRestartClient = restart;
     }
@@ -205,6 +313,12 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
 
         m_client = new ImplChatClient(plugin);
         m_client.registerClientListener(this);
+        if (m_archive != null) {
+            m_client.registerClientListener(m_archive);
+        }
+        if (m_points != null) {
+            m_client.registerClientListener(m_points);
+        }
         m_clientThread = new ClientThread(m_client);
         m_clientThread.start();
     }
@@ -215,7 +329,9 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
         m_status.toggleStopButton(false);
         m_status.toggleRestartButton(false);
 
-        m_commands.unregisterCommands();
+        if (m_commands.isCreated()) {
+            m_commands.get().unregisterCommands();
+        }
 
         m_client.stop();
     }
@@ -228,14 +344,23 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
         m_status.toggleStopButton(true);
         m_status.toggleRestartButton(true);
 
-        m_chat.toggleSendButton(true);
+        if (m_chat.isCreated()) {
+            m_chat.get().toggleSendButton(true);
+        }
 
         m_doRestartClient = false;
 
         if (m_isFrameClosing) {
             stopClient();
         } else {
-            m_commands.registerCommands();
+            m_commands.get().registerCommands();
+            if (m_index != null) {
+                m_client.registerCommand("quote", "!quote <words>", new CommandQuote(m_index))
+                        .setDescription("Quotes the last message containing the given words.");
+            }
+            if (m_points != null) {
+                m_points.registerCommands(m_client);
+            }
         }
     }
 
@@ -247,9 +372,20 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
         m_status.toggleStopButton(false);
         m_status.toggleRestartButton(false);
 
-        m_chat.toggleSendButton(false);
+        if (m_chat.isCreated()) {
+            m_chat.get().toggleSendButton(false);
+        }
 
-        m_commands.unregisterCommands();
+        // the client may be reconnecting, and registers nothing twice
+        if (m_commands.isCreated()) {
+            m_commands.get().unregisterCommands();
+        }
+        if (m_index != null && m_client != null && m_client.isCommandRegistered("quote")) {
+            m_client.unregisterCommand("quote");
+        }
+        if (m_points != null && m_client != null) {
+            m_points.unregisterCommands(m_client);
+        }
 
         if (m_doRestartClient) {
             startClient();
@@ -263,10 +399,16 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
             final String pluginClassName = plugin.getClassName();
             final String pluginLabelText = "<html>" + (plugin.isBuiltin() ? "<em>" + pluginName + "</em>" : pluginName) + "</html>";
 
-            m_plugins.setPluginText(pluginLabelText, pluginClassName);
+            m_pluginText = pluginLabelText;
+            m_pluginTooltip = pluginClassName;
+            if (m_plugins.isCreated()) {
+                m_plugins.get().setPluginText(pluginLabelText, pluginClassName);
+            }
             m_status.setPluginText(pluginLabelText, pluginClassName);
 
-            m_config.setPluginPanel(plugin.getHandle());
+            if (m_config.isCreated()) {
+                m_config.get().setPluginPanel(plugin.getHandle());
+            }
 
             if (m_isClientRunning) { // ask to restart if the client is already running
                 final int restart = JOptionPane
@@ -297,17 +439,17 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
 
     @Override
     public void onMessage(final ChatClient client, final String username, final String message) {
-        SwingUtilities.invokeLater(() -> m_chat.addMessage(username, message));
+        m_chatUpdates.post(new ChatMessage(username, message));
     }
 
     @Override
     public void onCommandRegistered(final ChatClient client, final String label, final Command command) {
-        SwingUtilities.invokeLater(() -> m_commands.addCommandList(label));
+        m_commandUpdates.post(new CommandPanel.CommandChange(label, command, true));
     }
 
     @Override
     public void onCommandUnregistered(final ChatClient client, final String label) {
-        SwingUtilities.invokeLater(() -> m_commands.removeCommandList(label));
+        m_commandUpdates.post(new CommandPanel.CommandChange(label, null, false));
     }
 
 	/* **** client thread class **** */
@@ -336,11 +478,69 @@ public class NuclearBotGUI extends JPanel implements ClientListener {
                 Logger.printStackTrace(e);
                 m_doRestartClient = false;
                 onDisconnected(m_client);
-                selectTab(TAB_CONSOLE);
+                SwingUtilities.invokeLater(() -> selectTab(TAB_CONSOLE));
                 m_dialogs.error("Exception in client thread. Check console for details.", "Client error");
             }
         }
 
+    }
+
+	/* **** startup worker class **** */
+
+    // loads what the window doesn't need to be shown, with progress in the footer
+    private class StartupWorker extends SwingWorker<Void, String> {
+
+        private PluginLoader m_loadedPluginLoader;
+        private ChatArchive m_openedArchive;
+        private ChatIndex m_openedIndex;
+        private PointsEngine m_openedPoints;
+
+        @Override
+        protected Void doInBackground() {
+            publish("Loading moderators...");
+            Moderators.getModerators(); // reads the moderator list in the static initializer
+
+            publish("Scanning plugins...");
+            m_loadedPluginLoader = new ImplPluginLoader();
+
+            publish("Opening chat archive...");
+            m_openedArchive = ChatArchive.openConfigured();
+            m_openedIndex = ChatIndex.openFor(m_openedArchive);
+
+            publish("Loading points...");
+            m_openedPoints = PointsEngine.openConfigured();
+            return null;
+        }
+
+        @Override
+        protected void process(final List<String> chunks) {
+            m_footer.setStatusText(chunks.get(chunks.size() - 1));
+        }
+
+        @Override
+        protected void done() {
+            try {
+                get();
+            } catch (InterruptedException | ExecutionException e) {
+                Logger.error("(GUI) Exception caught while loading plugins and persistence:");
+                Logger.printStackTrace(e);
+                m_footer.setStatusText("Initialization failed. Check console for details.");
+                return;
+            }
+            m_pluginLoader = m_loadedPluginLoader;
+            m_archive = m_openedArchive;
+            m_index = m_openedIndex;
+            m_points = m_openedPoints;
+            m_isReady = true;
+
+            m_footer.setStatusText("");
+            Logger.info("(GUI) Plugins and persistence loaded " + uptime() + " ms after launch.");
+
+            pluginChanged(m_pluginLoader.getPlugin());
+            m_status.toggleStartButton(!m_isClientRunning);
+            createSelectedTab();
+        }
+
     }
 
 	/* **** misc. classes **** */
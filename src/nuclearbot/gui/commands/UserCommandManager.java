@@ -1,19 +1,23 @@
 package nuclearbot.gui.commands;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import nuclearbot.client.ChatClient;
-import nuclearbot.gui.NuclearBotGUI;
-import nuclearbot.gui.utils.DialogUtil;
+import nuclearbot.client.Command;
+import nuclearbot.client.ImplCommand;
+import nuclearbot.util.KeyValueStore;
 import nuclearbot.util.Logger;
 
-import javax.swing.*;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 /*
@@ -35,6 +39,15 @@ import java.util.*;
 
 /**
  * Manager for user-defined commands.<br>
+ * The manager doesn't depend on the window, it reports to a {@link Host},
+ * which is the GUI command panel or the headless controller.
+ * Each command is a record of the key-value store, so a change writes one record
+ * and starting reads the store, which replays its log from a snapshot, instead of
+ * parsing a file. An existing "commands.json" is imported once and renamed.
+ * Without the store, the commands are kept in that file, read as a stream and
+ * only written when a command actually changed.
+ * All the commands are registered to the client in one update.
+ * Must only be used from the host's thread.<br>
  * <br>
  * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
  *
@@ -43,116 +56,268 @@ import java.util.*;
 public class UserCommandManager {
 
     private static final String FILE_NAME = "commands.json";
-    private final NuclearBotGUI m_gui;
-    private final DialogUtil m_dialogs;
-    private final JComboBox<String> m_combo;
+    private static final String IMPORTED_SUFFIX = ".imported";
+    private final Host m_host;
     private final File m_file;
+    private final KeyValueStore.Namespace m_store; // null if the commands are kept in the file
 
     private final Map<String, CommandInfo> m_commands;
 
     // contains the commands that failed to register to the client
     private final Set<String> m_failedRegister;
 
-    public UserCommandManager(final NuclearBotGUI gui, final JComboBox<String> combo) {
-        m_gui = gui;
+    public UserCommandManager(final Host host) {
+        m_host = host;
         m_commands = new HashMap<>();
         m_failedRegister = new HashSet<>();
 
-        m_dialogs = gui.getDialogs();
-        m_combo = combo;
-
-        m_file = new File(FILE_NAME);
-
-        createFileIfNeeded();
+        m_file = new File(FILE_NAME); // created by the first save
+        m_store = openStore();
     }
 
-    private void createFileIfNeeded() {
-        if (!m_file.exists() && m_file.mkdirs() && m_file.delete()) {
-            try {
-                if (m_file.createNewFile()) {
-                    try (final FileWriter writer = new FileWriter(m_file, false)) {
-                        writer.write("[]");
-                    }
-                }
-            } catch (IOException e) {
-                Logger.warning("(uCmd) Could not create \"" + FILE_NAME + "\" for persistence.");
-                Logger.warning("(uCmd) User-defined commands will only last one lifetime.");
-                Logger.printStackTrace(e);
-            }
+    private static KeyValueStore.Namespace openStore() {
+        try {
+            return KeyValueStore.getDefault().namespace("commands");
+        } catch (IOException e) {
+            Logger.error("(uCmd) Couldn't open the store, user commands are kept in \"" + FILE_NAME + "\":");
+            Logger.printStackTrace(e);
+            return null;
         }
     }
 
     public void createUserCommand(final String name, final String usage, final String description, final String response, final boolean silent) {
-        final ChatClient client = m_gui.getClient();
+        final ChatClient client = m_host.getClient();
+        final CommandInfo previous = m_commands.get(name);
+        final CommandInfo command = new CommandInfo(name, usage, description, response);
 
-        if (m_commands.containsKey(name)) {
+        if (command.sameContents(previous) && !m_failedRegister.contains(name)) {
+            Logger.info("(uCmd) Command \"" + name + "\" is unchanged.");
+            if (!silent) {
+                m_host.info("Command \"" + name + "\" is unchanged.", "Command unchanged");
+            }
+            return;
+        }
+
+        if (previous != null) {
             Logger.info("(uCmd) Updating command \"" + name + "\"...");
-            if (m_gui.isClientRunning()) {
+            if (m_host.isClientRunning() && !m_failedRegister.contains(name)) {
                 client.unregisterCommand(name);
             }
             m_commands.remove(name);
-            m_combo.removeItem(name);
         } else {
             Logger.info("(uCmd) Creating command \"" + name + "\"...");
         }
 
-        if (m_gui.isClientRunning()) {
+        if (m_host.isClientRunning()) {
             if (!client.isCommandRegistered(name)) {
                 client.registerCommand(name, usage, new UserCommand(response)).setDescription(description);
                 m_failedRegister.remove(name);
             } else {
                 Logger.warning("(uCmd) Command \"" + name + "\" is already registered.");
                 if (!silent) {
-                    m_dialogs.warning("Command \"" + name + "\" has already been registered.", "Command already registered");
+                    m_host.warning("Command \"" + name + "\" has already been registered.", "Command already registered");
                 }
                 m_failedRegister.add(name);
             }
         } else {
             Logger.warning("(uCmd) Command \"" + name + "\" will be registered when the client starts.");
             if (!silent) {
-                m_dialogs.warning("Command \"" + name + "\" will be registered when the client starts.", "Client is not running");
+                m_host.warning("Command \"" + name + "\" will be registered when the client starts.", "Client is not running");
             }
         }
 
-        m_commands.put(name, new CommandInfo(name, usage, description, response));
-        m_combo.addItem(name);
+        m_commands.put(name, command);
+        m_host.commandsChanged(getNames());
 
-        saveCommands(silent);
+        if (!command.sameContents(previous)) {
+            saveCommand(name, silent);
+        }
 
         Logger.info("(uCmd) Command \"" + name + "\" created successfully.");
         if (!silent) {
-            m_dialogs.info("Command \"" + name + "\" created.", "Command created");
+            m_host.info("Command \"" + name + "\" created.", "Command created");
         }
     }
 
+    // writes the record of one command, or deletes it if the command was removed
+    private void saveCommand(final String name, final boolean silent) {
+        if (m_store == null) {
+            saveCommands(silent);
+            return;
+        }
+        try {
+            final CommandInfo command = m_commands.get(name);
+            if (command != null) {
+                m_store.putString(name, toJson(command));
+            } else {
+                m_store.delete(name);
+            }
+        } catch (IOException e) {
+            Logger.error("(uCmd) Couldn't save persistent user command:");
+            Logger.printStackTrace(e);
+            if (!silent) {
+                m_host.error("Couldn't save persistent user command. Check console for details.", "Couldn't save config");
+            }
+        }
+    }
+
+    // writes a temporary file first, so that a crash never leaves the commands half-written
     private void saveCommands(final boolean silent) {
-        try (final FileWriter writer = new FileWriter(m_file, false)) {
-            new Gson().toJson(m_commands.values(), Collection.class, writer);
+        final File temp = new File(FILE_NAME + ".tmp");
+        try {
+            try (final JsonWriter writer = new JsonWriter(Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))) {
+                writer.setIndent("  ");
+                writer.beginArray();
+                for (final String name : getNames()) {
+                    writeCommand(writer, m_commands.get(name));
+                }
+                writer.endArray();
+            }
+            try {
+                Files.move(temp.toPath(), m_file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch (IOException e) {
             Logger.error("(uCmd) Couldn't save persistent user command:");
             Logger.printStackTrace(e);
             if (!silent) {
-                m_dialogs.error("Couldn't save persistent user command. Check console for details.", "Couldn't save config");
+                m_host.error("Couldn't save persistent user command. Check console for details.", "Couldn't save config");
             }
         }
     }
 
+    private static void writeCommand(final JsonWriter writer, final CommandInfo command) throws IOException {
+        writer.beginObject();
+        writer.name("name").value(command.name);
+        writer.name("usage").value(command.usage);
+        writer.name("description").value(command.description);
+        writer.name("response").value(command.response);
+        writer.endObject();
+    }
+
+    private static String toJson(final CommandInfo command) throws IOException {
+        final StringWriter json = new StringWriter();
+        try (final JsonWriter writer = new JsonWriter(json)) {
+            writeCommand(writer, command);
+        }
+        return json.toString();
+    }
+
+    /**
+     * Loads the persistent commands, replacing the current ones.
+     * They are read from the store, or from the file if there is one,
+     * which is then imported into the store.
+     * They are registered to the client by {@link #registerCommands()},
+     * and the host is notified once.
+     */
     public void loadCommands() {
         m_commands.clear();
+        if (m_store != null && !m_file.exists()) {
+            loadFromStore();
+        } else if (loadFromFile() && m_store != null) {
+            importFile();
+        }
+        m_host.commandsChanged(getNames());
+    }
+
+    private void loadFromStore() {
+        for (final String name : m_store.keys()) {
+            try (final JsonReader reader = new JsonReader(new StringReader(m_store.getString(name)))) {
+                final CommandInfo command = readCommand(reader);
+                if (command.name == null || command.name.isEmpty() || command.response == null) {
+                    Logger.warning("(uCmd) Skipped a user command without a name or a response.");
+                } else {
+                    m_commands.put(command.name, command);
+                }
+            } catch (IOException | IllegalStateException e) {
+                Logger.error("(uCmd) Error while loading user command \"" + name + "\":");
+                Logger.printStackTrace(e);
+            }
+        }
+        Logger.info("(uCmd) Loaded " + m_commands.size() + " user commands.");
+    }
 
-        try (final FileReader reader = new FileReader(m_file)) {
-            final Type type = new TypeToken<List<CommandInfo>>() {
-            }.getType();
+    // replaces the commands of the store with the ones of the file, then renames the file
+    private void importFile() {
+        try {
+            for (final String name : m_store.keys()) {
+                if (!m_commands.containsKey(name)) {
+                    m_store.delete(name);
+                }
+            }
+            for (final CommandInfo command : m_commands.values()) {
+                m_store.putString(command.name, toJson(command));
+            }
+            Files.move(m_file.toPath(), new File(FILE_NAME + IMPORTED_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Logger.info("(uCmd) Imported the user commands into the store, \"" + FILE_NAME + "\" was renamed to \"" + FILE_NAME
+                    + IMPORTED_SUFFIX + "\".");
+        } catch (IOException e) {
+            // the file is imported again on the next start
+            Logger.error("(uCmd) Couldn't import the user commands into the store:");
+            Logger.printStackTrace(e);
+        }
+    }
 
-            final List<CommandInfo> entries = new Gson().fromJson(reader, type);
-            for (final CommandInfo command : entries) {
-                createUserCommand(command.name, command.usage, command.description, command.response, true);
+    // returns false if the file could not be read completely
+    private boolean loadFromFile() {
+        try (final JsonReader reader = new JsonReader(Files.newBufferedReader(m_file.toPath(), StandardCharsets.UTF_8))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                final CommandInfo command = readCommand(reader);
+                if (command.name == null || command.name.isEmpty() || command.response == null) {
+                    Logger.warning("(uCmd) Skipped a user command without a name or a response.");
+                } else {
+                    m_commands.put(command.name, command);
+                }
             }
-        } catch (JsonSyntaxException | IOException e) {
+            reader.endArray();
+            Logger.info("(uCmd) Loaded " + m_commands.size() + " user commands.");
+            return true;
+        } catch (NoSuchFileException e) {
+            Logger.info("(uCmd) No user commands yet.");
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            // the commands read before the error are kept
             Logger.error("(uCmd) Error while loading user commands:");
             Logger.printStackTrace(e);
-            m_dialogs.error("Error in the user commands configuration. Check console for details.", "JSON syntax error");
+            m_host.error("Error in the user commands configuration. Check console for details.", "JSON syntax error");
+            return false;
+        }
+    }
+
+    private static CommandInfo readCommand(final JsonReader reader) throws IOException {
+        String name = null;
+        String usage = null;
+        String description = null;
+        String response = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (field) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "usage":
+                    usage = reader.nextString();
+                    break;
+                case "description":
+                    description = reader.nextString();
+                    break;
+                case "response":
+                    response = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
         }
+        reader.endObject();
+        return new CommandInfo(name, usage, description, response);
     }
 
     public CommandInfo getCommand(final String name) {
@@ -161,41 +326,101 @@ public class UserCommandManager {
 
     public void removeCommand(final String name, final boolean silent) {
         if (m_commands.containsKey(name)) {
-            if (m_gui.isClientRunning() && !m_failedRegister.contains(name))
-                m_gui.getClient().unregisterCommand(name);
+            if (m_host.isClientRunning() && !m_failedRegister.contains(name))
+                m_host.getClient().unregisterCommand(name);
 
             m_commands.remove(name);
-            m_combo.removeItem(name);
+            m_failedRegister.remove(name);
+            m_host.commandsChanged(getNames());
+            saveCommand(name, silent);
             if (!silent) {
                 Logger.info("(uCmd) Command \"" + name + "\" removed successfully.");
-                m_dialogs.info("Command \"" + name + "\" removed successfully.", "Command removed");
+                m_host.info("Command \"" + name + "\" removed successfully.", "Command removed");
             }
         } else {
             if (!silent) {
                 Logger.info("(uCmd) Command \"" + name + "\" is not a user command.");
-                m_dialogs.warning("Command \"" + name + "\" is not a user command.", "Not a user command");
+                m_host.warning("Command \"" + name + "\" is not a user command.", "Not a user command");
             }
         }
     }
 
+    /**
+     * Returns the names of the user commands, sorted.
+     *
+     * @return the command names
+     */
+    public String[] getNames() {
+        final String[] names = m_commands.keySet().toArray(new String[m_commands.size()]);
+        Arrays.sort(names);
+        return names;
+    }
+
     public boolean contains(String command) {
         return m_commands.containsKey(command);
     }
 
+    /**
+     * Registers all the user commands to the client in one update,
+     * and reports the ones already registered by something else in one warning.
+     */
     public void registerCommands() {
+        final List<Command> commands = new ArrayList<>(m_commands.size());
+        for (final CommandInfo command : m_commands.values()) {
+            final Command registered = new ImplCommand(command.name, command.usage, new UserCommand(command.response));
+            registered.setDescription(command.description);
+            commands.add(registered);
+        }
+
+        final List<String> skipped = m_host.getClient().registerCommands(commands);
         m_failedRegister.clear();
-        for (final String name : m_commands.keySet()) {
-            final CommandInfo command = m_commands.get(name);
-            final UserCommand executor = new UserCommand(command.response);
+        m_failedRegister.addAll(skipped);
+        if (!skipped.isEmpty()) {
+            Collections.sort(skipped);
+            Logger.warning("(uCmd) User commands " + skipped + " were already registered by something else.");
+            m_host.warning("User commands " + skipped + " were already registered by something else.", "Command already registered");
+        }
+    }
 
-            try {
-                m_gui.getClient().registerCommand(command.name, command.usage, executor).setDescription(command.description);
-            } catch (IllegalArgumentException e) {
-                Logger.warning("(uCmd) User command \"" + command.name + "\" was already registered by something else.");
-                m_dialogs.warning("User command \"" + command.name + "\" was already registered by something else.", "Command already registered");
-                m_failedRegister.add(name);
+    /**
+     * Unregisters the user commands from the client when it disconnects,
+     * so that they are registered again when it reconnects.
+     */
+    public void unregisterCommands() {
+        final ChatClient client = m_host.getClient();
+        if (client != null) {
+            for (final String name : m_commands.keySet()) {
+                if (!m_failedRegister.contains(name) && client.isCommandRegistered(name)) {
+                    client.unregisterCommand(name);
+                }
             }
         }
+        m_failedRegister.clear();
+    }
+
+    /**
+     * What the manager needs from its owner: the client,
+     * a way to show the list of commands and a way to report results.
+     */
+    public interface Host {
+
+        ChatClient getClient();
+
+        boolean isClientRunning();
+
+        /**
+         * Called when commands were created, updated or removed.
+         *
+         * @param names the names of the user commands, sorted
+         */
+        void commandsChanged(String[] names);
+
+        void info(String message, String title);
+
+        void warning(String message, String title);
+
+        void error(String message, String title);
+
     }
 
     public static class CommandInfo {
@@ -212,6 +437,12 @@ public class UserCommandManager {
             this.response = response;
         }
 
+        // whether saving this instead of the other would change the file
+        private boolean sameContents(final CommandInfo other) {
+            return other != null && Objects.equals(name, other.name) && Objects.equals(usage, other.usage) && Objects.equals(description,
+                    other.description) && Objects.equals(response, other.response);
+        }
+
     }
 
 }
@@ -17,12 +17,12 @@ package nuclearbot.gui.commands;/*
 
 import nuclearbot.client.ChatClient;
 import nuclearbot.client.Command;
-import nuclearbot.client.Moderators;
+import nuclearbot.client.Roles;
 import nuclearbot.plugin.CommandExecutor;
 
-import java.awt.*;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 /**
  * Command registered by the GUI for moderation of user-defined commands.<br>
@@ -34,15 +34,53 @@ import java.util.Arrays;
 public class UserCommandModeration implements CommandExecutor {
 
     private final UserCommandManager m_commands;
+    private final Executor m_hostExecutor;
 
-    public UserCommandModeration(final UserCommandManager commands) {
+    /**
+     * Constructs the moderation commands for the specified manager.
+     *
+     * @param commands     the user command manager
+     * @param hostExecutor runs tasks on the thread the manager is used from
+     */
+    public UserCommandModeration(final UserCommandManager commands, final Executor hostExecutor) {
         m_commands = commands;
+        m_hostExecutor = hostExecutor;
+    }
+
+    /**
+     * Registers the moderation commands to the specified client.
+     *
+     * @param client the chat client
+     */
+    public void registerCommands(final ChatClient client) {
+        client.registerCommand("cmdadd", "!cmdadd <name> <response>", this)
+                .setDescription("Adds a command with the given name and response.");
+
+        client.registerCommand("cmdrem", "!cmdrem <name>", this).setDescription("Removes a command with the given name.");
+
+        client.registerCommand("cmdusage", "!cmdusage <name> <usage>", this).setDescription("Sets the command usage.");
+
+        client.registerCommand("cmddesc", "!cmddesc <name> <usage>", this).setDescription("Sets the command description.");
+    }
+
+    /**
+     * Unregisters the moderation commands from the specified client,
+     * so that they can be registered again when it reconnects.
+     *
+     * @param client the chat client
+     */
+    public void unregisterCommands(final ChatClient client) {
+        for (final String label : new String[]{"cmdadd", "cmdrem", "cmdusage", "cmddesc"}) {
+            if (client.isCommandRegistered(label)) {
+                client.unregisterCommand(label);
+            }
+        }
     }
 
     @Override
     public boolean onCommand(final ChatClient client, final String username, final Command command, final String label, final String[] args)
             throws IOException {
-        if (!Moderators.isModerator(username)) {
+        if (!Roles.isModerator(username)) {
             // fail silently
             return true;
         }
@@ -96,7 +134,7 @@ public class UserCommandModeration implements CommandExecutor {
         if (!m_commands.contains(command)) {
             client.sendMessage("Command doesn't exist, @" + username);
         } else {
-            EventQueue.invokeLater(() -> m_commands.removeCommand(command, true));
+            m_hostExecutor.execute(() -> m_commands.removeCommand(command, true));
             client.sendMessage("Command removed, @" + username);
         }
     }
@@ -122,8 +160,8 @@ public class UserCommandModeration implements CommandExecutor {
     }
 
     private void eventQueueCreate(final String label, final String usage, final String description, final String response) {
-        // UserCommandManager alters GUI components, so we need to call it from the EDT
-        EventQueue.invokeLater(() -> m_commands.createUserCommand(label, usage, description, response, true));
+        // UserCommandManager is only used from its host's thread
+        m_hostExecutor.execute(() -> m_commands.createUserCommand(label, usage, description, response, true));
     }
 
 }
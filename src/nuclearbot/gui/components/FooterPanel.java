@@ -33,11 +33,14 @@ public class FooterPanel extends JPanel {
 
     private static final String GITHUB_URL = "https://github.com/NuclearCoder/nuclear-bot/";
 
+    private final JLabel m_statusLabel;
+
     public FooterPanel() {
         super(new BorderLayout());
 
         final JLabel copyrightAndLicenseLabel = new JLabel("Copyright \u00a9 2017 NuclearCoder. Licensed under A-GPLv3.");
         final JLabel sourceLinkLabel = new JLabel("<html><a href=\"\">Source code here</a></html>");
+        m_statusLabel = new JLabel("", SwingConstants.CENTER);
 
         copyrightAndLicenseLabel.setFont(copyrightAndLicenseLabel.getFont().deriveFont(10F));
 
@@ -46,8 +49,20 @@ public class FooterPanel extends JPanel {
         sourceLinkLabel.setCursor(new Cursor(Cursor.HAND_CURSOR));
         sourceLinkLabel.setFont(sourceLinkLabel.getFont().deriveFont(10F));
 
+        m_statusLabel.setFont(m_statusLabel.getFont().deriveFont(Font.ITALIC, 10F));
+
         add(copyrightAndLicenseLabel, BorderLayout.WEST);
+        add(m_statusLabel, BorderLayout.CENTER);
         add(sourceLinkLabel, BorderLayout.EAST);
     }
 
+    /**
+     * Shows a short status, like the progress of a background task.
+     *
+     * @param text the status, or an empty string
+     */
+    public void setStatusText(final String text) {
+        m_statusLabel.setText(text);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+package nuclearbot.gui.components;
+
+import nuclearbot.util.Sampler;
+
+import javax.swing.*;
+import java.awt.*;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Small line chart of the recent samples of a series,
+ * with its name and current value.<br>
+ * All buffers are allocated once, refreshing only copies
+ * the samples and repaints.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class Sparkline extends JComponent {
+
+    private static final long serialVersionUID = 2350437582541695185L;
+
+    private static final int WIDTH = 240;
+    private static final int CHART_HEIGHT = 32;
+    private static final int PADDING = 4;
+
+    private static final Color LINE_COLOR = new Color(0x6441A5);
+    private static final Color FILL_COLOR = new Color(0x6441A5 | 0x30000000, true);
+
+    private final Sampler.Series m_series;
+    private final double[] m_samples;
+    private final int[] m_xs;
+    private final int[] m_ys;
+    private int m_size;
+
+    public Sparkline(final Sampler.Series series) {
+        m_series = series;
+        m_samples = new double[Sampler.SAMPLES];
+        m_xs = new int[Sampler.SAMPLES + 2];
+        m_ys = new int[Sampler.SAMPLES + 2];
+        m_size = 0;
+        setFont(getFont() != null ? getFont().deriveFont(Font.PLAIN) : null);
+    }
+
+    /**
+     * Copies the latest samples and repaints. Must be called on the Event Dispatch Thread.
+     */
+    public void refresh() {
+        m_size = m_series.copyTo(m_samples);
+        repaint();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        final FontMetrics metrics = getFontMetrics(getFont() != null ? getFont() : UIManager.getFont("Label.font"));
+        return new Dimension(WIDTH, metrics.getHeight() + CHART_HEIGHT + 3 * PADDING);
+    }
+
+    @Override
+    protected void paintComponent(final Graphics g) {
+        final Graphics2D g2 = (Graphics2D) g;
+        final Font font = getFont() != null ? getFont() : UIManager.getFont("Label.font");
+        final FontMetrics metrics = g2.getFontMetrics(font);
+        final int width = getWidth() - 2 * PADDING;
+        final int top = PADDING + metrics.getHeight() + PADDING;
+        final int bottom = getHeight() - PADDING;
+
+        double max = 0.0;
+        for (int i = 0; i < m_size; i++) {
+            max = Math.max(max, m_samples[i]);
+        }
+        final double current = m_size > 0 ? m_samples[m_size - 1] : 0.0;
+
+        g2.setFont(font);
+        g2.setColor(getForeground() != null ? getForeground() : Color.BLACK);
+        g2.drawString(m_series.getName() + ": " + format(current) + m_series.getUnit(), PADDING, PADDING + metrics.getAscent());
+        final String maxText = "max " + format(max);
+        g2.setColor(Color.GRAY);
+        g2.drawString(maxText, PADDING + width - metrics.stringWidth(maxText), PADDING + metrics.getAscent());
+        g2.drawLine(PADDING, bottom, PADDING + width, bottom);
+
+        if (m_size < 2) {
+            return;
+        }
+        // newest sample on the right edge, one minute across the width
+        final double scale = max > 0.0 ? (bottom - top) / max : 0.0;
+        final double step = (double) width / (Sampler.SAMPLES - 1);
+        final int offset = Sampler.SAMPLES - m_size;
+        for (int i = 0; i < m_size; i++) {
+            m_xs[i] = PADDING + (int) Math.round((offset + i) * step);
+            m_ys[i] = bottom - (int) Math.round(m_samples[i] * scale);
+        }
+        m_xs[m_size] = m_xs[m_size - 1];
+        m_ys[m_size] = bottom;
+        m_xs[m_size + 1] = m_xs[0];
+        m_ys[m_size + 1] = bottom;
+
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setColor(FILL_COLOR);
+        g2.fillPolygon(m_xs, m_ys, m_size + 2);
+        g2.setColor(LINE_COLOR);
+        g2.drawPolyline(m_xs, m_ys, m_size);
+    }
+
+    private static String format(final double value) {
+        if (value >= 100.0 || value == Math.rint(value)) {
+            return Long.toString(Math.round(value));
+        }
+        return String.format("%.1f", value);
+    }
+
+}
@@ -2,6 +2,7 @@ package nuclearbot.gui.components;
 
 import nuclearbot.gui.NuclearBotGUI;
 import nuclearbot.gui.utils.VerticalLayout;
+import nuclearbot.util.Sampler;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -38,6 +39,8 @@ public class StatusPanel extends JPanel {
     private final JButton m_stopButton;
     private final JButton m_restartButton;
     private final JLabel m_pluginLabel;
+    private final Sparkline[] m_sparklines;
+    private final Timer m_refreshTimer;
 
     public StatusPanel(final NuclearBotGUI gui) {
         super(new VerticalLayout());
@@ -88,8 +91,44 @@ public class StatusPanel extends JPanel {
             currentPlugin.add(m_pluginLabel);
         }
 
+        final JPanel dashboard = new JPanel(new GridLayout(0, 2));
+        {
+            m_sparklines = new Sparkline[] {new Sparkline(Sampler.MESSAGES_IN), new Sparkline(Sampler.MESSAGES_OUT),
+                    new Sparkline(Sampler.OUT_QUEUE), new Sparkline(Sampler.HEAP),
+                    new Sparkline(Sampler.COMMAND_P50), new Sparkline(Sampler.COMMAND_P99)};
+            for (final Sparkline sparkline : m_sparklines) {
+                dashboard.add(sparkline);
+            }
+        }
+
         add(controls);
         add(currentPlugin);
+        add(dashboard);
+
+        // the samples come at 2 Hz, repaint as often
+        m_refreshTimer = new Timer(500, e -> refreshDashboard());
+        Sampler.start();
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        m_refreshTimer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        m_refreshTimer.stop(); // a running timer would keep the event dispatch thread alive
+        super.removeNotify();
+    }
+
+    private void refreshDashboard() {
+        if (!isShowing()) {
+            return; // another tab is selected
+        }
+        for (final Sparkline sparkline : m_sparklines) {
+            sparkline.refresh();
+        }
     }
 
     public void setStatusText(final String text) {
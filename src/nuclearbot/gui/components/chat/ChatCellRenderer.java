@@ -0,0 +1,435 @@
+package nuclearbot.gui.components.chat;
+
+import nuclearbot.util.Config;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.RoundRectangle2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Renderer for the chat lines, painting the username and the message
+ * directly instead of going through the Swing HTML engine.<br>
+ * Usernames get a colour derived from their hash, and the emote words
+ * listed in the "chat_emotes" configuration key are painted as placeholders.
+ * Lines wrap at the width of the list, between words, or inside a word
+ * that doesn't fit on a line by itself. The glyph layout of a line is
+ * computed once per width and cached with the line.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class ChatCellRenderer extends JComponent implements ListCellRenderer<ChatMessage> {
+
+    private static final long serialVersionUID = -5405853436093566315L;
+
+    private static final String DEFAULT_EMOTES = "Kappa,PogChamp,LUL,Kreygasm,4Head,BibleThump,ResidentSleeper,DansGame,FailFish,SMOrc";
+
+    // about as many layouts as there are formatted rows in the list cache
+    private static final int LAYOUT_CACHE_SIZE = 256;
+
+    private static final int PADDING = 2;
+    private static final int EMOTE_PADDING = 3;
+
+    // readable on light backgrounds, picked by the hash of the username
+    private static final Color[] NAME_COLORS = {new Color(0xB22222), new Color(0x0000CD), new Color(0x008000), new Color(0xD2691E),
+            new Color(0x8A2BE2), new Color(0x2E8B57), new Color(0xC71585), new Color(0x1E90FF), new Color(0xB8860B), new Color(0x5F9EA0),
+            new Color(0xDA70D6), new Color(0x556B2F)};
+
+    private static final Color EMOTE_BACKGROUND = new Color(0xE6E0F0);
+    private static final Color EMOTE_FOREGROUND = new Color(0x6441A5);
+
+    private final Set<String> m_emotes;
+    private final Map<ChatMessage, Layout> m_layouts;
+
+    private Font m_font;
+    private Font m_boldFont;
+    private Font m_emoteFont;
+    private FontRenderContext m_renderContext;
+    private int m_ascent;
+    private int m_lineHeight;
+
+    // state of the cell being painted
+    private Layout m_layout;
+    private boolean m_selected;
+    private Color m_textColor;
+
+    public ChatCellRenderer() {
+        m_emotes = readEmotes();
+        // the list cache hands out the same message instance while the row is visible
+        m_layouts = new LinkedHashMap<ChatMessage, Layout>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<ChatMessage, Layout> eldest) {
+                return size() > LAYOUT_CACHE_SIZE;
+            }
+        };
+        m_font = null;
+        setOpaque(true);
+    }
+
+    private static Set<String> readEmotes() {
+        final Set<String> emotes = new HashSet<>();
+        for (final String emote : Config.get("chat_emotes", DEFAULT_EMOTES).split(",")) {
+            if (!emote.trim().isEmpty()) {
+                emotes.add(emote.trim());
+            }
+        }
+        return emotes;
+    }
+
+    /**
+     * Returns the height of a row of one line for the specified list's font.
+     *
+     * @param list the list
+     * @return the height of a single line row
+     */
+    public int getRowHeight(final JList<?> list) {
+        updateFont(list);
+        return m_lineHeight + 2 * PADDING;
+    }
+
+    /**
+     * Returns the height of the row of a message wrapped at the specified width.
+     *
+     * @param list    the list
+     * @param message the message
+     * @param width   the width of the row, or zero not to wrap
+     * @return the row height
+     */
+    public int getRowHeight(final JList<?> list, final ChatMessage message, final int width) {
+        updateFont(list);
+        return layout(message, width).getHeight();
+    }
+
+    /**
+     * Returns the width the rows of the specified list are wrapped at.
+     *
+     * @param list the list
+     * @return the width inside the list's insets, or zero if the list isn't laid out yet
+     */
+    public static int getWrapWidth(final JList<?> list) {
+        final Insets insets = list.getInsets();
+        return Math.max(0, list.getWidth() - insets.left - insets.right);
+    }
+
+    @Override
+    public Component getListCellRendererComponent(final JList<? extends ChatMessage> list, final ChatMessage value, final int index,
+                                                  final boolean isSelected, final boolean cellHasFocus) {
+        updateFont(list);
+        m_layout = value != null ? layout(value, getWrapWidth(list)) : null;
+        m_selected = isSelected;
+        m_textColor = isSelected ? list.getSelectionForeground() : list.getForeground();
+        setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+        return this;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return m_layout != null ? new Dimension(m_layout.m_width, m_layout.getHeight()) : new Dimension(0, m_lineHeight + 2 * PADDING);
+    }
+
+    @Override
+    protected void paintComponent(final Graphics g) {
+        final Graphics2D g2 = (Graphics2D) g;
+        g2.setColor(getBackground());
+        g2.fillRect(0, 0, getWidth(), getHeight());
+        if (m_layout == null) {
+            return;
+        }
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        for (final Run run : m_layout.m_runs) {
+            final int top = PADDING + run.m_line * m_lineHeight;
+            if (run.m_emote) {
+                g2.setColor(EMOTE_BACKGROUND);
+                g2.fill(new RoundRectangle2D.Float(run.m_x, top, run.m_width, m_lineHeight, 6, 6));
+                g2.setColor(EMOTE_FOREGROUND);
+                g2.drawGlyphVector(run.m_glyphs, run.m_x + EMOTE_PADDING, top + m_ascent);
+            } else {
+                g2.setColor(run.m_color != null && !m_selected ? run.m_color : m_textColor);
+                g2.drawGlyphVector(run.m_glyphs, run.m_x, top + m_ascent);
+            }
+        }
+    }
+
+    // recomputes the metrics and drops the layouts when the list font changes
+    private void updateFont(final JList<?> list) {
+        final Font font = list.getFont();
+        if (font.equals(m_font)) {
+            return;
+        }
+        m_font = font;
+        m_boldFont = font.deriveFont(Font.BOLD);
+        m_emoteFont = font.deriveFont(Font.ITALIC, font.getSize2D() * 0.85f);
+
+        final FontMetrics metrics = list.getFontMetrics(font);
+        final FontMetrics boldMetrics = list.getFontMetrics(m_boldFont);
+        m_renderContext = metrics.getFontRenderContext();
+        m_ascent = Math.max(metrics.getAscent(), boldMetrics.getAscent());
+        m_lineHeight = Math.max(metrics.getHeight(), boldMetrics.getHeight());
+        m_layouts.clear();
+    }
+
+    private Layout layout(final ChatMessage message, final int width) {
+        Layout layout = m_layouts.get(message);
+        if (layout == null || layout.m_wrapWidth != width) {
+            layout = new Layout(message, width);
+            m_layouts.put(message, layout);
+        }
+        return layout;
+    }
+
+    private static Color nameColor(final String username) {
+        return NAME_COLORS[Math.floorMod(username.hashCode(), NAME_COLORS.length)];
+    }
+
+    private static boolean isWordChar(final char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static boolean isSpace(final char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static class Run {
+
+        private final GlyphVector m_glyphs;
+        private final int m_x;
+        private final int m_line;
+        private final int m_width;
+        private final Color m_color;
+        private final boolean m_emote;
+
+        private Run(final GlyphVector glyphs, final int x, final int line, final int width, final Color color, final boolean emote) {
+            m_glyphs = glyphs;
+            m_x = x;
+            m_line = line;
+            m_width = width;
+            m_color = color;
+            m_emote = emote;
+        }
+
+    }
+
+    private class Layout {
+
+        private final List<Run> m_runs;
+        private final int m_wrapWidth;
+        private final int m_maxX; // right edge of the text
+        private final String m_text;
+
+        private int m_width; // of the widest line
+        private int m_line;
+        private int m_x;
+
+        // the text not yet made into a run, from m_runStart at m_runX on the current line
+        private int m_runStart;
+        private int m_runX;
+
+        private Layout(final ChatMessage message, final int wrapWidth) {
+            m_runs = new ArrayList<>(3);
+            m_wrapWidth = wrapWidth;
+            m_maxX = wrapWidth > 0 ? wrapWidth - PADDING : Integer.MAX_VALUE;
+            m_text = message.message;
+            m_width = 0;
+            m_line = 0;
+
+            // the username is never broken
+            final String name = message.username + " :";
+            final GlyphVector glyphs = m_boldFont.createGlyphVector(m_renderContext, name);
+            final int nameWidth = (int) Math.ceil(glyphs.getLogicalBounds().getWidth());
+            m_runs.add(new Run(glyphs, PADDING, 0, nameWidth, nameColor(message.username), false));
+            m_x = PADDING + nameWidth + textWidth(" ");
+
+            // one word at a time, with the spaces after it
+            final int length = m_text.length();
+            m_runX = m_x;
+            int i = 0;
+            while (i < length && isSpace(m_text.charAt(i))) {
+                i++;
+            }
+            m_runStart = i;
+            while (i < length) {
+                final int wordStart = i;
+                while (i < length && !isSpace(m_text.charAt(i))) {
+                    i++;
+                }
+                addWord(wordStart, i);
+                final int spaceStart = i;
+                while (i < length && isSpace(m_text.charAt(i))) {
+                    i++;
+                }
+                m_x += textWidth(m_text.substring(spaceStart, i));
+            }
+            endRun(length);
+            m_width = Math.max(m_width, m_x) + PADDING;
+        }
+
+        private int getHeight() {
+            return (m_line + 1) * m_lineHeight + 2 * PADDING;
+        }
+
+        // places a word, made of plain text and emotes, on this line or the next
+        private void addWord(final int start, final int end) {
+            int width = 0;
+            int i = start;
+            while (i < end) {
+                final int partEnd = partEnd(i, end);
+                width += isEmote(i, partEnd) ? emoteWidth(m_text.substring(i, partEnd)) : textWidth(m_text.substring(i, partEnd));
+                i = partEnd;
+            }
+            if (m_x + width > m_maxX && m_x > PADDING) {
+                newLine(start);
+            }
+            final boolean breakInside = m_x + width > m_maxX;
+            i = start;
+            while (i < end) {
+                final int partEnd = partEnd(i, end);
+                if (isEmote(i, partEnd)) {
+                    final String name = m_text.substring(i, partEnd);
+                    if (breakInside && m_x + emoteWidth(name) > m_maxX && m_x > PADDING) {
+                        newLine(i);
+                    }
+                    endRun(i);
+                    addEmote(name);
+                    m_runStart = partEnd;
+                    m_runX = m_x;
+                } else if (breakInside) {
+                    addBrokenText(i, partEnd);
+                } else {
+                    m_x += textWidth(m_text.substring(i, partEnd));
+                }
+                i = partEnd;
+            }
+        }
+
+        // plain text that doesn't fit on a line, broken between characters
+        private void addBrokenText(final int start, final int end) {
+            int i = start;
+            while (i < end) {
+                int fit = i;
+                int width = 0;
+                while (fit < end) {
+                    final int next = m_text.offsetByCodePoints(fit, 1);
+                    final int nextWidth = textWidth(m_text.substring(i, next));
+                    if (m_x + nextWidth > m_maxX && (fit > i || m_x > PADDING)) {
+                        break;
+                    }
+                    fit = next;
+                    width = nextWidth;
+                }
+                m_x += width;
+                i = fit;
+                if (i < end) {
+                    newLine(i);
+                }
+            }
+        }
+
+        // the end of the plain text or emote starting at index, within a word
+        private int partEnd(final int index, final int end) {
+            if (!isWordChar(m_text.charAt(index))) {
+                int i = index + 1;
+                while (i < end && !isWordChar(m_text.charAt(i))) {
+                    i++;
+                }
+                return i;
+            }
+            int i = index;
+            while (i < end && isWordChar(m_text.charAt(i))) {
+                i++;
+            }
+            if (m_emotes.contains(m_text.substring(index, i))) {
+                return i;
+            }
+            // plain words join the text around them
+            while (i < end && !isEmoteAt(i, end)) {
+                i++;
+            }
+            return i;
+        }
+
+        private boolean isEmote(final int start, final int end) {
+            return isWordChar(m_text.charAt(start)) && m_emotes.contains(m_text.substring(start, end));
+        }
+
+        private boolean isEmoteAt(final int index, final int end) {
+            if (!isWordChar(m_text.charAt(index)) || (index > 0 && isWordChar(m_text.charAt(index - 1)))) {
+                return false;
+            }
+            int i = index;
+            while (i < end && isWordChar(m_text.charAt(i))) {
+                i++;
+            }
+            return m_emotes.contains(m_text.substring(index, i));
+        }
+
+        private void newLine(final int index) {
+            endRun(index);
+            m_width = Math.max(m_width, m_x);
+            m_line++;
+            m_x = PADDING;
+            m_runStart = index;
+            m_runX = PADDING;
+        }
+
+        // makes a run of the pending text up to index
+        private void endRun(final int index) {
+            int end = index;
+            while (end > m_runStart && isSpace(m_text.charAt(end - 1))) {
+                end--;
+            }
+            if (end > m_runStart) {
+                final GlyphVector glyphs = m_font.createGlyphVector(m_renderContext, m_text.substring(m_runStart, end));
+                final int width = (int) Math.ceil(glyphs.getLogicalBounds().getWidth());
+                m_runs.add(new Run(glyphs, m_runX, m_line, width, null, false));
+            }
+            m_runStart = index;
+        }
+
+        private void addEmote(final String name) {
+            final GlyphVector glyphs = m_emoteFont.createGlyphVector(m_renderContext, name);
+            final int width = (int) Math.ceil(glyphs.getLogicalBounds().getWidth()) + 2 * EMOTE_PADDING;
+            m_runs.add(new Run(glyphs, m_x, m_line, width, null, true));
+            m_x += width;
+        }
+
+        private int textWidth(final String text) {
+            return (int) Math.ceil(m_font.getStringBounds(text, m_renderContext).getWidth());
+        }
+
+        private int emoteWidth(final String name) {
+            return (int) Math.ceil(m_emoteFont.getStringBounds(name, m_renderContext).getWidth()) + 2 * EMOTE_PADDING;
+        }
+
+    }
+
+}
@@ -1,10 +1,11 @@
 package nuclearbot.gui.components.chat;
 
 import nuclearbot.gui.NuclearBotGUI;
-import nuclearbot.util.HTML;
+import nuclearbot.util.Config;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.List;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -32,14 +33,14 @@ import java.awt.*;
  */
 public class ChatPanel extends JPanel {
 
-    private final LimitedStringList m_chatHistory;
+    private final ScrollbackList m_chatHistory;
     private final ChatSendPanel m_sendPanel;
 
     public ChatPanel(final NuclearBotGUI gui) {
         super(new BorderLayout());
 
         final JScrollPane chatScrollPane = new JScrollPane();
-        m_chatHistory = new LimitedStringList();
+        m_chatHistory = new ScrollbackList(historySize());
         m_sendPanel = new ChatSendPanel(gui);
 
         chatScrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
@@ -51,10 +52,26 @@ public class ChatPanel extends JPanel {
 
         add(chatScrollPane, BorderLayout.CENTER);
         add(m_sendPanel, BorderLayout.SOUTH);
+        if (gui.getIndex() != null) {
+            add(new ChatSearchPanel(gui, gui.getIndex()), BorderLayout.NORTH);
+        }
+    }
+
+    private static int historySize() {
+        return Math.max(1, Config.getInt("chat_history", 500000));
     }
 
     public void addMessage(final String username, final String message) {
-        m_chatHistory.add("<html><strong>" + username + " :</strong> " + HTML.escapeText(message) + "</html>");
+        m_chatHistory.add(new ChatMessage(username, message));
+    }
+
+    /**
+     * Adds several messages with a single change of the list.
+     *
+     * @param messages the messages
+     */
+    public void addMessages(final List<ChatMessage> messages) {
+        m_chatHistory.addAll(messages);
     }
 
     public void toggleSendButton(final boolean enable) {
@@ -0,0 +1,122 @@
+package nuclearbot.gui.components.chat;
+
+import nuclearbot.archive.ArchivedMessage;
+import nuclearbot.archive.ChatIndex;
+import nuclearbot.gui.NuclearBotGUI;
+import nuclearbot.util.Logger;
+
+import javax.swing.*;
+import java.awt.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The GUI panel for the chat history search box.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class ChatSearchPanel extends JPanel {
+
+    private static final long serialVersionUID = 3418742035526195770L;
+
+    private static final int MAX_RESULTS = 200;
+
+    private final NuclearBotGUI m_gui;
+    private final ChatIndex m_index;
+
+    private final JTextField m_queryField;
+    private final JButton m_searchButton;
+
+    public ChatSearchPanel(final NuclearBotGUI gui, final ChatIndex index) {
+        super(new BorderLayout());
+
+        m_gui = gui;
+        m_index = index;
+
+        m_queryField = new JTextField();
+        m_searchButton = new JButton("Search");
+
+        m_queryField.setFont(m_queryField.getFont().deriveFont(Font.PLAIN));
+        m_queryField.setToolTipText("Words, \"a phrase\" or from:user");
+
+        m_queryField.addActionListener(e -> search());
+        m_searchButton.addActionListener(e -> search());
+
+        add(m_queryField, BorderLayout.CENTER);
+        add(m_searchButton, BorderLayout.EAST);
+    }
+
+    private void search() {
+        final String query = m_queryField.getText().trim();
+        if (query.isEmpty()) {
+            return;
+        }
+        m_searchButton.setEnabled(false);
+
+        // search off the event dispatch thread
+        new SwingWorker<List<ArchivedMessage>, Void>() {
+            @Override
+            protected List<ArchivedMessage> doInBackground() throws Exception {
+                return m_index.search(query, MAX_RESULTS);
+            }
+
+            @Override
+            protected void done() {
+                m_searchButton.setEnabled(true);
+                try {
+                    showResults(query, get());
+                } catch (InterruptedException | ExecutionException e) {
+                    Logger.error("(GUI) Couldn't search the chat history:");
+                    Logger.printStackTrace(e);
+                    m_gui.getDialogs().error("Couldn't search the chat history. Check console for details.", "Search error");
+                }
+            }
+        }.execute();
+    }
+
+    private void showResults(final String query, final List<ArchivedMessage> results) {
+        if (results.isEmpty()) {
+            m_gui.getDialogs().info("No message matches \"" + query + "\".", "Search");
+            return;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        final DefaultListModel<String> model = new DefaultListModel<>();
+        for (final ArchivedMessage message : results) {
+            model.addElement("[" + format.format(new Date(message.timestamp)) + "] " + message.username + " : " + message.message);
+        }
+        final JList<String> list = new JList<>(model);
+        final DefaultListCellRenderer renderer = new DefaultListCellRenderer();
+        renderer.putClientProperty("html.disable", Boolean.TRUE); // chat text starting with <html> is shown as typed
+        list.setCellRenderer(renderer);
+        list.setFont(list.getFont().deriveFont(Font.PLAIN));
+        list.setComponentPopupMenu(m_gui.getTextPopupMenu());
+
+        final JScrollPane scrollPane = new JScrollPane(list);
+        scrollPane.setPreferredSize(new Dimension(560, 320));
+
+        JOptionPane.showMessageDialog(m_gui.getFrame(), scrollPane, results.size() + " result(s) for \"" + query + "\"",
+                JOptionPane.PLAIN_MESSAGE);
+    }
+
+}
@@ -0,0 +1,487 @@
+package nuclearbot.gui.components.chat;
+
+import javax.swing.*;
+import javax.swing.plaf.basic.BasicListUI;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Custom JList for the chat scrollback, whose lines are kept off-heap.<br>
+ * A line is only decoded when the list paints it, and the last decoded
+ * lines are cached, so the heap use doesn't depend on the length of the
+ * scrollback. Lines are painted by a {@link ChatCellRenderer}.<br>
+ * Lines wrap at the width of the list. A row is only measured when it is
+ * painted, until then it counts as one line high, and the measured heights
+ * are kept for the current width.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class ScrollbackList extends JList<ChatMessage> {
+
+    private static final long serialVersionUID = -3870624172593870651L;
+
+    // a few screens worth of decoded lines
+    private static final int CACHE_SIZE = 256;
+
+    // limits the off-heap memory to 128 MB even with long lines
+    private static final int MAX_CHUNKS = 32;
+
+    private final ScrollbackList.Model m_listModel;
+    private final ChatCellRenderer m_renderer;
+
+    /**
+     * Constructs a ScrollbackList instance.
+     *
+     * @param capacity the maximum number of lines to keep at once
+     */
+    public ScrollbackList(final int capacity) {
+        super();
+        m_listModel = new ScrollbackList.Model(capacity);
+        m_renderer = new ChatCellRenderer();
+        setModel(m_listModel);
+        setCellRenderer(m_renderer);
+        measureRows();
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(final ComponentEvent event) {
+                // the preferred height follows the width
+                revalidate();
+            }
+        });
+    }
+
+    // a fixed cell size keeps the default layout pass from decoding every line,
+    // the UI replaces it with the heights of the rows
+    private void measureRows() {
+        setFixedCellHeight(m_renderer.getRowHeight(this));
+        setFixedCellWidth(1);
+    }
+
+    @Override
+    public void updateUI() {
+        setUI(new ScrollbackList.WrappingListUI());
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public void setFont(final Font font) {
+        super.setFont(font);
+        if (m_listModel != null) { // not while the super constructor runs
+            m_listModel.clearHeights();
+            measureRows();
+        }
+    }
+
+    /**
+     * Adds a message to the end of the list,
+     * removing the oldest lines as needed.
+     *
+     * @param message the message
+     */
+    public void add(final ChatMessage message) {
+        m_listModel.add(message);
+    }
+
+    /**
+     * Adds several messages at once,
+     * removing the oldest lines as needed.
+     *
+     * @param messages the messages
+     */
+    public void addAll(final List<ChatMessage> messages) {
+        m_listModel.addAll(messages);
+    }
+
+    /**
+     * Removes all the lines.
+     */
+    public void clear() {
+        m_listModel.clear();
+    }
+
+    /**
+     * The ListUI used by the ScrollbackList class.
+     * Rows are positioned from the running sum of their heights, kept by
+     * row number like the heights, so new rows are laid out on their own,
+     * evicted rows just move the origin, and finding a row doesn't walk
+     * the whole list.
+     */
+    private class WrappingListUI extends BasicListUI {
+
+        private long[] m_rowTop; // by row number modulo the capacity, null until the first layout
+        private long m_firstRow; // the first row laid out
+        private long m_endRow; // the row after the last one laid out
+        private long m_bottom; // bottom of the last row laid out
+        private long m_changedRow; // first row measured since the layout, Long.MAX_VALUE if none
+        private int m_wrapWidth;
+        private int m_lineHeight;
+        private boolean m_relayoutQueued;
+
+        private WrappingListUI() {
+            m_rowTop = null;
+            m_firstRow = 0;
+            m_endRow = 0;
+            m_bottom = 0;
+            m_changedRow = Long.MAX_VALUE;
+            m_wrapWidth = -1;
+            m_lineHeight = -1;
+            m_relayoutQueued = false;
+        }
+
+        // false while the super constructor runs
+        private boolean isWrapping() {
+            return m_listModel != null && getModel() == m_listModel;
+        }
+
+        @Override
+        protected void maybeUpdateLayoutState() {
+            if (isWrapping() && ChatCellRenderer.getWrapWidth(list) != m_wrapWidth) {
+                updateLayoutStateNeeded |= modelChanged;
+            }
+            super.maybeUpdateLayoutState();
+        }
+
+        @Override
+        protected void updateLayoutState() {
+            super.updateLayoutState(); // nothing to measure with a fixed cell size
+            if (!isWrapping()) {
+                return;
+            }
+            if (m_rowTop == null) {
+                m_rowTop = new long[m_listModel.capacity()];
+            }
+            final int width = ChatCellRenderer.getWrapWidth(list);
+            final int lineHeight = m_renderer.getRowHeight(list);
+            if (width != m_wrapWidth || lineHeight != m_lineHeight) {
+                if (width != m_wrapWidth) {
+                    m_listModel.clearHeights();
+                }
+                m_wrapWidth = width;
+                m_lineHeight = lineHeight;
+                m_endRow = m_firstRow; // lay out every row again
+                m_bottom = 0;
+                m_changedRow = Long.MAX_VALUE;
+            }
+            final int size = m_listModel.getSize();
+            final long first = m_listModel.rowId(0);
+            // from the first measured row, the first new row, or the first row if the others are gone
+            long row = Math.max(Math.min(m_changedRow, m_endRow), first);
+            long bottom = row < m_endRow ? m_rowTop[slot(row)] : row == m_endRow ? m_bottom : 0;
+            for (final long end = first + size; row < end; row++) {
+                m_rowTop[slot(row)] = bottom;
+                final int height = m_listModel.getHeight((int) (row - first));
+                bottom += height != 0 ? height : lineHeight;
+            }
+            m_firstRow = first;
+            m_endRow = row;
+            m_bottom = bottom;
+            m_changedRow = Long.MAX_VALUE;
+            cellWidth = width;
+            m_relayoutQueued = false;
+        }
+
+        private int slot(final long row) {
+            return (int) (row % m_rowTop.length);
+        }
+
+        private int rowCount() {
+            return (int) (m_endRow - m_firstRow);
+        }
+
+        // top of the row relative to the top of the first row, or the bottom of the last row for rowCount()
+        private int rowY(final int index) {
+            final long top = index < rowCount() ? m_rowTop[slot(m_firstRow + index)] : m_bottom;
+            return (int) (top - (rowCount() > 0 ? m_rowTop[slot(m_firstRow)] : m_bottom));
+        }
+
+        // the row whose span contains y, relative to the top of the first row, -1 above it
+        private int rowAt(final int y) {
+            int low = 0;
+            int high = rowCount() - 1;
+            if (high < 0 || y < 0) {
+                return -1;
+            }
+            while (low < high) {
+                final int middle = (low + high + 1) >>> 1;
+                if (rowY(middle) <= y) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public void paint(final Graphics g, final JComponent c) {
+            if (!isWrapping()) {
+                super.paint(g, c);
+                return;
+            }
+            // the default paint walks the heights from the first row
+            maybeUpdateLayoutState();
+            final int size = Math.min(rowCount(), m_listModel.getSize());
+            if (size == 0 || list.getCellRenderer() == null) {
+                return;
+            }
+            final Shape clip = g.getClip();
+            final Rectangle paintBounds = g.getClipBounds();
+            final Insets insets = list.getInsets();
+            final int maxY = paintBounds.y + paintBounds.height;
+            final int lead = list.getLeadSelectionIndex();
+            final int leadIndex = lead < size ? lead : -1;
+            for (int row = Math.max(0, rowAt(paintBounds.y - insets.top)); row < size; row++) {
+                final Rectangle rowBounds = new Rectangle(insets.left, insets.top + rowY(row), m_wrapWidth, rowY(row + 1) - rowY(row));
+                if (rowBounds.y >= maxY) {
+                    break;
+                }
+                g.setClip(rowBounds.x, rowBounds.y, rowBounds.width, rowBounds.height);
+                g.clipRect(paintBounds.x, paintBounds.y, paintBounds.width, paintBounds.height);
+                paintCell(g, row, rowBounds, list.getCellRenderer(), list.getModel(), list.getSelectionModel(), leadIndex);
+            }
+            rendererPane.removeAll();
+            g.setClip(clip);
+        }
+
+        @Override
+        protected void paintCell(final Graphics g, final int row, final Rectangle rowBounds, final ListCellRenderer<Object> cellRenderer,
+                                 final ListModel<Object> dataModel, final ListSelectionModel selModel, final int leadIndex) {
+            if (isWrapping()) {
+                final int height = m_renderer.getRowHeight(list, m_listModel.getElementAt(row), m_wrapWidth);
+                m_listModel.setHeight(row, height);
+                if (height != rowBounds.height) {
+                    m_changedRow = Math.min(m_changedRow, m_listModel.rowId(row));
+                    if (!m_relayoutQueued) {
+                        // the rows below move, lay out again once this frame is done
+                        m_relayoutQueued = true;
+                        updateLayoutStateNeeded |= modelChanged;
+                        list.revalidate();
+                        list.repaint();
+                    }
+                }
+            }
+            super.paintCell(g, row, rowBounds, cellRenderer, dataModel, selModel, leadIndex);
+        }
+
+        @Override
+        public Dimension getPreferredSize(final JComponent c) {
+            if (!isWrapping()) {
+                return super.getPreferredSize(c);
+            }
+            maybeUpdateLayoutState();
+            final Insets insets = list.getInsets();
+            return new Dimension(insets.left + insets.right, insets.top + insets.bottom + rowY(rowCount()));
+        }
+
+        @Override
+        public Rectangle getCellBounds(final JList<?> list, final int index1, final int index2) {
+            if (!isWrapping()) {
+                return super.getCellBounds(list, index1, index2);
+            }
+            maybeUpdateLayoutState();
+            final int first = Math.min(index1, index2);
+            final int last = Math.min(Math.max(index1, index2), rowCount() - 1);
+            if (first < 0 || first > last) {
+                return null;
+            }
+            final Insets insets = list.getInsets();
+            return new Rectangle(insets.left, insets.top + rowY(first), m_wrapWidth, rowY(last + 1) - rowY(first));
+        }
+
+        @Override
+        public int locationToIndex(final JList<?> list, final Point location) {
+            if (!isWrapping()) {
+                return super.locationToIndex(list, location);
+            }
+            maybeUpdateLayoutState();
+            final int size = rowCount();
+            if (size == 0) {
+                return -1;
+            }
+            return Math.max(0, Math.min(size - 1, rowAt(location.y - list.getInsets().top)));
+        }
+
+        @Override
+        protected int getRowHeight(final int row) {
+            if (!isWrapping()) {
+                return super.getRowHeight(row);
+            }
+            if (row < 0 || row >= rowCount()) {
+                return -1;
+            }
+            return rowY(row + 1) - rowY(row);
+        }
+
+        @Override
+        protected int convertYToRow(final int y) {
+            if (!isWrapping()) {
+                return super.convertYToRow(y);
+            }
+            final int relative = y - list.getInsets().top;
+            if (relative >= rowY(rowCount())) {
+                return -1;
+            }
+            return rowAt(relative);
+        }
+
+        @Override
+        protected int convertRowToY(final int row) {
+            if (!isWrapping()) {
+                return super.convertRowToY(row);
+            }
+            if (row < 0 || row >= rowCount()) {
+                return -1;
+            }
+            return list.getInsets().top + rowY(row);
+        }
+
+    }
+
+    /**
+     * The ListModel used by the ScrollbackList class.
+     * Lines are stored in a {@link ScrollbackStore}, and decoded lines
+     * are cached by their absolute row number, which doesn't
+     * change when older lines are evicted. The measured heights of the
+     * rows are kept by the same number.
+     */
+    public static class Model extends AbstractListModel<ChatMessage> {
+
+        private static final long serialVersionUID = 4711408617937614712L;
+
+        private final ScrollbackStore m_store;
+        private final Map<Long, ChatMessage> m_cache;
+        private final int[] m_heights; // by row number modulo the capacity, 0 until measured
+
+        /**
+         * Constructs a ScrollbackList.Model instance.
+         *
+         * @param capacity the maximum number of lines to keep at once
+         */
+        public Model(final int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Capacity must be positive.");
+            }
+            m_store = new ScrollbackStore(capacity, MAX_CHUNKS);
+            m_heights = new int[capacity];
+            m_cache = new LinkedHashMap<Long, ChatMessage>(CACHE_SIZE * 4 / 3 + 1, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Long, ChatMessage> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+        }
+
+        @Override
+        public int getSize() {
+            return m_store.size();
+        }
+
+        @Override
+        public ChatMessage getElementAt(final int index) {
+            final Long row = m_store.rowId(index);
+            ChatMessage line = m_cache.get(row);
+            if (line == null) {
+                line = m_store.get(index);
+                m_cache.put(row, line);
+            }
+            return line;
+        }
+
+        int capacity() {
+            return m_heights.length;
+        }
+
+        long rowId(final int index) {
+            return m_store.rowId(index);
+        }
+
+        int getHeight(final int index) {
+            return m_heights[slot(index)];
+        }
+
+        void setHeight(final int index, final int height) {
+            m_heights[slot(index)] = height;
+        }
+
+        void clearHeights() {
+            Arrays.fill(m_heights, 0);
+        }
+
+        private int slot(final int index) {
+            return (int) (m_store.rowId(index) % m_heights.length);
+        }
+
+        public void add(final ChatMessage message) {
+            final int evicted = m_store.append(message.username, message.message);
+            if (evicted > 0) {
+                fireIntervalRemoved(this, 0, evicted - 1);
+            }
+            final int index = m_store.size() - 1;
+            setHeight(index, 0); // the slot of an evicted row
+            fireIntervalAdded(this, index, index);
+        }
+
+        public void addAll(final List<ChatMessage> messages) {
+            if (messages.isEmpty()) {
+                return;
+            }
+            final int sizeBefore = m_store.size();
+            int evicted = 0;
+            for (final ChatMessage message : messages) {
+                evicted += m_store.append(message.username, message.message);
+            }
+            // only the lines that were already in the list can be reported removed
+            final int removed = Math.min(evicted, sizeBefore);
+            if (removed > 0) {
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+            final int added = m_store.size() - (sizeBefore - removed);
+            for (int i = m_store.size() - added; i < m_store.size(); i++) {
+                setHeight(i, 0);
+            }
+            if (added > 0) {
+                fireIntervalAdded(this, m_store.size() - added, m_store.size() - 1);
+            }
+        }
+
+        public void clear() {
+            final int count = m_store.clear();
+            m_cache.clear();
+            if (count > 0) {
+                fireIntervalRemoved(this, 0, count - 1);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,224 @@
+package nuclearbot.gui.components.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Off-heap store for the chat scrollback.<br>
+ * Rows are <code>[user length][message length][user][message]</code> in UTF-8,
+ * appended to direct buffers of CHUNK_SIZE bytes. An index of row positions
+ * is kept in direct buffers as well, so the heap doesn't grow with the rows.
+ * When there are too many chunks, the oldest chunk is dropped with all of
+ * its rows. When there are too many rows, the oldest rows are dropped, and
+ * their chunk once none of its rows are left. Not thread-safe.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+class ScrollbackStore {
+
+    private static final int CHUNK_SIZE = 4 << 20;
+    private static final int INDEX_ROWS = 1 << 14;
+
+    private static final int ROW_OVERHEAD = 1 + 4;
+    private static final int MAX_USER_BYTES = 0xFF;
+    private static final int MAX_MESSAGE_BYTES = 1 << 16;
+
+    private final int m_maxRows;
+    private final int m_maxChunks;
+
+    // data chunks, the first one has the id m_firstChunk
+    private final Deque<ByteBuffer> m_chunks;
+    private long m_firstChunk;
+    private ByteBuffer m_current;
+
+    // row positions as (chunk id << 32 | offset), the first index chunk starts at row m_firstIndexRow
+    private final List<ByteBuffer> m_index;
+    private long m_firstIndexRow;
+
+    // absolute numbers of the first kept row and of the next row
+    private long m_firstRow;
+    private long m_nextRow;
+
+    ScrollbackStore(final int maxRows, final int maxChunks) {
+        m_maxRows = Math.max(1, maxRows);
+        m_maxChunks = Math.max(2, maxChunks);
+        m_chunks = new ArrayDeque<>();
+        m_firstChunk = 0;
+        m_current = null;
+        m_index = new ArrayList<>();
+        m_firstIndexRow = 0;
+        m_firstRow = 0;
+        m_nextRow = 0;
+    }
+
+    int size() {
+        return (int) (m_nextRow - m_firstRow);
+    }
+
+    /**
+     * Appends a row and returns the number of rows evicted from the head.
+     */
+    int append(final String username, final String message) {
+        final byte[] user = truncate(username.getBytes(StandardCharsets.UTF_8), MAX_USER_BYTES);
+        final byte[] text = truncate(message.getBytes(StandardCharsets.UTF_8), MAX_MESSAGE_BYTES);
+        final int size = ROW_OVERHEAD + user.length + text.length;
+
+        int evicted = 0;
+        if (m_current == null || m_current.remaining() < size) {
+            if (m_chunks.size() == m_maxChunks) {
+                evicted += evictChunk();
+            }
+            m_current = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            m_chunks.addLast(m_current);
+        }
+        final long chunkId = m_firstChunk + m_chunks.size() - 1;
+        final int offset = m_current.position();
+        m_current.put((byte) user.length).putInt(text.length).put(user).put(text);
+        putPosition(m_nextRow++, chunkId << 32 | offset);
+
+        if (size() > m_maxRows) {
+            evicted += size() - m_maxRows;
+            m_firstRow = m_nextRow - m_maxRows;
+            releaseChunks();
+        }
+        return evicted;
+    }
+
+    /**
+     * Returns the row at the specified index, counted from the first kept row.
+     */
+    ChatMessage get(final int index) {
+        final long position = getPosition(m_firstRow + index);
+        final ByteBuffer chunk = chunk(position >>> 32);
+        int offset = (int) position;
+
+        final byte[] user = new byte[chunk.get(offset) & 0xFF];
+        final byte[] text = new byte[chunk.getInt(offset + 1)];
+        offset += ROW_OVERHEAD;
+        for (int i = 0; i < user.length; i++) {
+            user[i] = chunk.get(offset++);
+        }
+        for (int i = 0; i < text.length; i++) {
+            text[i] = chunk.get(offset++);
+        }
+        return new ChatMessage(new String(user, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the absolute number of the row at the specified index,
+     * which doesn't change when older rows are evicted.
+     */
+    long rowId(final int index) {
+        return m_firstRow + index;
+    }
+
+    /**
+     * Removes all the rows and returns how many there were.
+     */
+    int clear() {
+        final int count = size();
+        m_chunks.clear();
+        m_index.clear();
+        m_current = null;
+        m_firstChunk = 0;
+        m_firstIndexRow = m_nextRow;
+        m_firstRow = m_nextRow;
+        return count;
+    }
+
+    // drops the oldest chunk and its rows, returns the number of rows
+    private int evictChunk() {
+        final long chunkId = m_firstChunk;
+        m_chunks.removeFirst();
+        m_firstChunk++;
+        if (m_chunks.isEmpty()) {
+            m_current = null;
+        }
+
+        final long first = m_firstRow;
+        while (m_firstRow < m_nextRow && getPosition(m_firstRow) >>> 32 == chunkId) {
+            m_firstRow++;
+        }
+        releaseIndex();
+        return (int) (m_firstRow - first);
+    }
+
+    // drops the oldest chunks once none of their rows are kept, there is at least one row
+    private void releaseChunks() {
+        final long firstKept = getPosition(m_firstRow) >>> 32;
+        while (m_firstChunk < firstKept) {
+            m_chunks.removeFirst();
+            m_firstChunk++;
+        }
+        releaseIndex();
+    }
+
+    // releases the index chunks below the first row
+    private void releaseIndex() {
+        while (!m_index.isEmpty() && m_firstIndexRow + INDEX_ROWS <= m_firstRow) {
+            m_index.remove(0);
+            m_firstIndexRow += INDEX_ROWS;
+        }
+    }
+
+    private ByteBuffer chunk(final long chunkId) {
+        // the deque has few chunks, and recent ones are looked up most
+        long id = m_firstChunk + m_chunks.size() - 1;
+        final Iterator<ByteBuffer> it = m_chunks.descendingIterator();
+        while (it.hasNext()) {
+            final ByteBuffer chunk = it.next();
+            if (id-- == chunkId) {
+                return chunk;
+            }
+        }
+        throw new IndexOutOfBoundsException("Chunk " + chunkId + " was evicted.");
+    }
+
+    private void putPosition(final long row, final long position) {
+        final long relative = row - m_firstIndexRow;
+        final int indexChunk = (int) (relative / INDEX_ROWS);
+        if (indexChunk == m_index.size()) {
+            m_index.add(ByteBuffer.allocateDirect(INDEX_ROWS * 8));
+        }
+        m_index.get(indexChunk).putLong((int) (relative % INDEX_ROWS) * 8, position);
+    }
+
+    private long getPosition(final long row) {
+        final long relative = row - m_firstIndexRow;
+        return m_index.get((int) (relative / INDEX_ROWS)).getLong((int) (relative % INDEX_ROWS) * 8);
+    }
+
+    private static byte[] truncate(final byte[] bytes, final int max) {
+        if (bytes.length <= max) {
+            return bytes;
+        }
+        final byte[] truncated = new byte[max];
+        System.arraycopy(bytes, 0, truncated, 0, max);
+        return truncated;
+    }
+
+}
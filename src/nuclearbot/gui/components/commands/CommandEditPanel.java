@@ -5,7 +5,6 @@ import nuclearbot.gui.NuclearBotGUI;
 import nuclearbot.gui.commands.UserCommandManager;
 import nuclearbot.gui.commands.UserCommandModeration;
 import nuclearbot.gui.utils.VerticalLayout;
-import nuclearbot.plugin.CommandExecutor;
 
 import javax.swing.*;
 import java.awt.*;
@@ -57,7 +56,7 @@ public class CommandEditPanel extends JPanel {
 
     private final UserCommandManager m_commands;
 
-    private final CommandExecutor m_modCommands;
+    private final UserCommandModeration m_modCommands;
 
     public CommandEditPanel(final NuclearBotGUI gui) {
         super(new VerticalLayout());
@@ -133,8 +132,8 @@ public class CommandEditPanel extends JPanel {
             submitPanel.add(helpButton);
         }
 
-        m_commands = new UserCommandManager(gui, m_commandCombo);
-        m_modCommands = new UserCommandModeration(m_commands);
+        m_commands = new UserCommandManager(new ManagerHost());
+        m_modCommands = new UserCommandModeration(m_commands, EventQueue::invokeLater);
 
         add(namePanel);
         add(usagePanel);
@@ -146,20 +145,17 @@ public class CommandEditPanel extends JPanel {
     }
 
     public void registerCommands() {
-        final ChatClient client = m_gui.getClient();
-
-        client.registerCommand("cmdadd", "!cmdadd <name> <response>", m_modCommands)
-                .setDescription("Adds a command with the given name and response.");
-
-        client.registerCommand("cmdrem", "!cmdrem <name>", m_modCommands).setDescription("Removes a command with the given name.");
-
-        client.registerCommand("cmdusage", "!cmdusage <name> <usage>", m_modCommands).setDescription("Sets the command usage.");
-
-        client.registerCommand("cmddesc", "!cmddesc <name> <usage>", m_modCommands).setDescription("Sets the command description.");
-
+        m_modCommands.registerCommands(m_gui.getClient());
         m_commands.registerCommands();
     }
 
+    public void unregisterCommands() {
+        if (m_gui.getClient() != null) {
+            m_modCommands.unregisterCommands(m_gui.getClient());
+        }
+        m_commands.unregisterCommands();
+    }
+
     private void updateCommandInfo() {
         final String label = String.valueOf(m_commandCombo.getSelectedItem()).trim().toLowerCase();
         final UserCommandManager.CommandInfo command = m_commands.getCommand(label);
@@ -186,4 +182,43 @@ public class CommandEditPanel extends JPanel {
         }
     }
 
+    // shows the user commands in the combo box and the results in dialogs
+    private class ManagerHost implements UserCommandManager.Host {
+
+        @Override
+        public ChatClient getClient() {
+            return m_gui.getClient();
+        }
+
+        @Override
+        public boolean isClientRunning() {
+            return m_gui.isClientRunning();
+        }
+
+        @Override
+        public void commandsChanged(final String[] names) {
+            // keep what is typed in the combo box
+            final Object selected = m_commandCombo.getSelectedItem();
+            final DefaultComboBoxModel<String> model = new DefaultComboBoxModel<>(names);
+            model.setSelectedItem(selected);
+            m_commandCombo.setModel(model);
+        }
+
+        @Override
+        public void info(final String message, final String title) {
+            m_gui.getDialogs().info(message, title);
+        }
+
+        @Override
+        public void warning(final String message, final String title) {
+            m_gui.getDialogs().warning(message, title);
+        }
+
+        @Override
+        public void error(final String message, final String title) {
+            m_gui.getDialogs().error(message, title);
+        }
+
+    }
+
 }
@@ -1,12 +1,19 @@
 package nuclearbot.gui.components.commands;
 
-import nuclearbot.client.Command;
 import nuclearbot.gui.NuclearBotGUI;
-import nuclearbot.gui.utils.VerticalLayout;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.TableRowSorter;
 import java.awt.*;
-import java.awt.event.ItemEvent;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -27,6 +34,9 @@ import java.awt.event.ItemEvent;
 
 /**
  * The GUI panel for the command overview panel.<br>
+ * Registered commands are listed in a sortable table. The search field
+ * filters them on a background thread, the table only looks up the result.
+ * When the search text is extended, only the previous matches are searched.<br>
  * <br>
  * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
  *
@@ -34,83 +44,159 @@ import java.awt.event.ItemEvent;
  */
 public class CommandOverviewPanel extends JPanel {
 
-    private final NuclearBotGUI m_gui;
+    private final CommandTableModel m_model;
+    private final TableRowSorter<CommandTableModel> m_sorter;
+    private final JTextField m_searchField;
+    private final JLabel m_countLabel;
+    private final Timer m_searchDelay;
+    private final ExecutorService m_executor;
 
-    private final JComboBox<String> m_commandList;
-    private final JLabel m_usageLabel;
-    private final JLabel m_descriptionLabel;
+    // only used on the EDT
+    private int m_generation;
+    private String m_query;
+    private List<CommandTableModel.Row> m_queryRows; // the rows the matches were computed from
+    private Set<String> m_matches; // null when there is no filter
 
     public CommandOverviewPanel(final NuclearBotGUI gui) {
-        super(new VerticalLayout());
+        super(new BorderLayout());
         setBorder(BorderFactory.createTitledBorder("Overview"));
 
-        m_gui = gui;
-
-        final JPanel namePanel = new JPanel(new FlowLayout());
+        m_model = new CommandTableModel();
+        m_sorter = new TableRowSorter<>(m_model);
+        m_executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "command filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_generation = 0;
+        m_query = "";
+        m_queryRows = Collections.emptyList();
+        m_matches = null;
+
+        final JPanel searchPanel = new JPanel(new FlowLayout());
         {
-            final JLabel namePrefixLabel = new JLabel("<html><u>Name:</u></html>");
-            m_commandList = new JComboBox<>();
-
-            m_commandList.setEditable(false);
-            m_commandList.addItemListener(e ->
-            {
-                if (e.getStateChange() == ItemEvent.SELECTED)
-                    updateCommandInfo();
-            });
+            final JLabel searchPrefixLabel = new JLabel("<html><u>Search:</u></html>");
+            m_searchField = new JTextField(14);
+            m_countLabel = new JLabel();
+
+            m_countLabel.setFont(m_countLabel.getFont().deriveFont(Font.ITALIC));
+            m_searchField.setComponentPopupMenu(gui.getTextPopupMenu());
 
-            namePanel.add(namePrefixLabel);
-            namePanel.add(m_commandList);
+            // don't filter on every key stroke
+            m_searchDelay = new Timer(150, e -> filter(false));
+            m_searchDelay.setRepeats(false);
+            m_searchField.getDocument().addDocumentListener(new SearchListener());
+
+            searchPanel.add(searchPrefixLabel);
+            searchPanel.add(m_searchField);
+            searchPanel.add(m_countLabel);
         }
 
-        final JPanel usagePanel = new JPanel(new FlowLayout());
+        final JTable table = new JTable(m_model);
         {
-            final JLabel usagePrefixLabel = new JLabel("<html><u>Usage:</u></html>");
-            m_usageLabel = new JLabel("(no such command)");
+            table.setRowSorter(m_sorter);
+            table.setFillsViewportHeight(true);
+            table.setAutoCreateColumnsFromModel(false);
+            table.getTableHeader().setReorderingAllowed(false);
+            table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            table.setComponentPopupMenu(gui.getTextPopupMenu());
+            table.getColumnModel().getColumn(CommandTableModel.COLUMN_LABEL).setPreferredWidth(80);
+            table.getColumnModel().getColumn(CommandTableModel.COLUMN_USAGE).setPreferredWidth(140);
+            table.getColumnModel().getColumn(CommandTableModel.COLUMN_DESCRIPTION).setPreferredWidth(200);
+            m_sorter.setSortKeys(Collections.singletonList(new RowSorter.SortKey(CommandTableModel.COLUMN_LABEL, SortOrder.ASCENDING)));
+        }
 
-            usagePrefixLabel.setToolTipText("Angle brackets for required arguments\nSquare brackets for optional arguments");
-            m_usageLabel.setToolTipText("Angle brackets for required arguments\nSquare brackets for optional arguments");
+        add(searchPanel, BorderLayout.NORTH);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        updateCount();
+    }
 
-            usagePanel.add(usagePrefixLabel);
-            usagePanel.add(m_usageLabel);
+    /**
+     * Applies several registrations and unregistrations with a single change of the table.
+     *
+     * @param changes the changes, in order
+     */
+    public void applyChanges(final List<CommandPanel.CommandChange> changes) {
+        m_model.applyChanges(changes);
+        if (m_matches != null) {
+            filter(true); // the new commands aren't in the matches yet
         }
+        updateCount();
+    }
 
-        final JPanel descriptionPanel = new JPanel(new FlowLayout());
-        {
-            final JLabel descriptionPrefixLabel = new JLabel("<html><u>Description:</u></html>");
-            m_descriptionLabel = new JLabel("(no such command)");
+    public void clearCommandList() {
+        m_model.clear();
+        updateCount();
+    }
 
-            descriptionPanel.add(descriptionPrefixLabel);
-            descriptionPanel.add(m_descriptionLabel);
+    // matches the search text against the current rows on the filter thread
+    private void filter(final boolean rowsChanged) {
+        final String query = m_searchField.getText().trim().toLowerCase(Locale.ROOT);
+        final int generation = ++m_generation;
+        if (query.isEmpty()) {
+            m_query = "";
+            m_matches = null;
+            m_sorter.setRowFilter(null);
+            updateCount();
+            return;
         }
 
-        add(namePanel);
-        add(usagePanel);
-        add(descriptionPanel);
+        final List<CommandTableModel.Row> rows = m_model.getRows();
+        // a longer query can only match a subset of the previous matches
+        final Set<String> candidates = !rowsChanged && rows == m_queryRows && m_matches != null && query.startsWith(m_query) ? m_matches : null;
+        m_executor.execute(() -> {
+            final Set<String> matches = new HashSet<>();
+            for (final CommandTableModel.Row row : rows) {
+                if ((candidates == null || candidates.contains(row.label)) && matches(row, query)) {
+                    matches.add(row.label);
+                }
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (generation != m_generation) {
+                    return; // the search text changed meanwhile
+                }
+                m_query = query;
+                m_queryRows = rows;
+                m_matches = matches;
+                m_sorter.setRowFilter(new RowFilter<CommandTableModel, Integer>() {
+                    @Override
+                    public boolean include(final Entry<? extends CommandTableModel, ? extends Integer> entry) {
+                        return matches.contains((String) entry.getValue(CommandTableModel.COLUMN_LABEL));
+                    }
+                });
+                updateCount();
+            });
+        });
     }
 
-    public void addCommand(final String name) {
-        m_commandList.addItem(name);
-        updateCommandInfo();
+    private static boolean matches(final CommandTableModel.Row row, final String query) {
+        return row.label.toLowerCase(Locale.ROOT).contains(query) || row.usage.toLowerCase(Locale.ROOT).contains(query)
+                || row.description.toLowerCase(Locale.ROOT).contains(query);
     }
 
-    public void removeCommand(final String name) {
-        m_commandList.removeItem(name);
-        updateCommandInfo();
+    private void updateCount() {
+        final int total = m_model.getRowCount();
+        final int shown = m_sorter.getViewRowCount();
+        m_countLabel.setText(shown == total ? total + " commands" : shown + " of " + total + " commands");
     }
 
-    public void clearCommandList() {
-        m_commandList.removeAllItems();
-    }
+    private class SearchListener implements DocumentListener {
 
-    private void updateCommandInfo() {
-        final String label = (String) m_commandList.getSelectedItem();
-        final Command command = m_gui.getClient().getCommand(label);
+        @Override
+        public void insertUpdate(final DocumentEvent e) {
+            m_searchDelay.restart();
+        }
+
+        @Override
+        public void removeUpdate(final DocumentEvent e) {
+            m_searchDelay.restart();
+        }
 
-        final String usage = command != null ? command.getUsage() : "(no such command)";
-        final String description = command != null ? command.getDescription() : "(no such command)";
+        @Override
+        public void changedUpdate(final DocumentEvent e) {
+            m_searchDelay.restart();
+        }
 
-        m_usageLabel.setText(usage);
-        m_descriptionLabel.setText(description);
     }
 
 }
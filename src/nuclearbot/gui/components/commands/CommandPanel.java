@@ -1,9 +1,11 @@
 package nuclearbot.gui.components.commands;
 
+import nuclearbot.client.Command;
 import nuclearbot.gui.NuclearBotGUI;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.List;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -44,12 +46,13 @@ public class CommandPanel extends JPanel {
         add(m_editPanel);
     }
 
-    public void addCommandList(final String name) {
-        m_overviewPanel.addCommand(name);
-    }
-
-    public void removeCommandList(final String name) {
-        m_overviewPanel.removeCommand(name);
+    /**
+     * Applies several registrations and unregistrations with a single change of the list.
+     *
+     * @param changes the changes, in order
+     */
+    public void applyCommandChanges(final List<CommandChange> changes) {
+        m_overviewPanel.applyChanges(changes);
     }
 
     public void registerCommands() {
@@ -57,7 +60,25 @@ public class CommandPanel extends JPanel {
     }
 
     public void unregisterCommands() {
+        m_editPanel.unregisterCommands();
         m_overviewPanel.clearCommandList();
     }
 
+    /**
+     * A command registration or unregistration waiting to be shown.
+     */
+    public static class CommandChange {
+
+        public final String label;
+        public final Command command; // null when unregistered
+        public final boolean registered;
+
+        public CommandChange(final String label, final Command command, final boolean registered) {
+            this.label = label;
+            this.command = command;
+            this.registered = registered;
+        }
+
+    }
+
 }
@@ -0,0 +1,138 @@
+package nuclearbot.gui.components.commands;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Table model of the registered commands.<br>
+ * Rows are immutable and the row list is replaced as a whole on each
+ * batch of changes, so that it can be read from the filter thread.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+class CommandTableModel extends AbstractTableModel {
+
+    static final int COLUMN_LABEL = 0;
+    static final int COLUMN_USAGE = 1;
+    static final int COLUMN_DESCRIPTION = 2;
+
+    private static final long serialVersionUID = -6164470917622312016L;
+
+    private static final String[] COLUMN_NAMES = {"Command", "Usage", "Description"};
+
+    private volatile List<Row> m_rows;
+
+    CommandTableModel() {
+        m_rows = Collections.emptyList();
+    }
+
+    /**
+     * Returns the current rows. The list is never modified.
+     *
+     * @return the rows
+     */
+    List<Row> getRows() {
+        return m_rows;
+    }
+
+    /**
+     * Applies several registrations and unregistrations with a single table change.
+     *
+     * @param changes the changes, in order
+     */
+    void applyChanges(final List<CommandPanel.CommandChange> changes) {
+        final Map<String, Row> rows = new TreeMap<>();
+        for (final Row row : m_rows) {
+            rows.put(row.label, row);
+        }
+        for (final CommandPanel.CommandChange change : changes) {
+            if (change.registered) {
+                // the description is set right after registration, it is read here one frame later
+                rows.put(change.label, new Row(change.label, change.command.getUsage(), change.command.getDescription()));
+            } else {
+                rows.remove(change.label);
+            }
+        }
+        m_rows = Collections.unmodifiableList(new ArrayList<>(rows.values()));
+        fireTableDataChanged();
+    }
+
+    void clear() {
+        m_rows = Collections.emptyList();
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return m_rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(final int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(final int column) {
+        return String.class;
+    }
+
+    @Override
+    public Object getValueAt(final int rowIndex, final int column) {
+        final Row row = m_rows.get(rowIndex);
+        switch (column) {
+            case COLUMN_LABEL:
+                return row.label;
+            case COLUMN_USAGE:
+                return row.usage;
+            default:
+                return row.description;
+        }
+    }
+
+    /**
+     * A registered command.
+     */
+    static class Row {
+
+        final String label;
+        final String usage;
+        final String description;
+
+        private Row(final String label, final String usage, final String description) {
+            this.label = label;
+            this.usage = usage != null ? usage : "";
+            this.description = description != null ? description : "";
+        }
+
+    }
+
+}
@@ -1,11 +1,22 @@
 package nuclearbot.gui.components.console;
 
 import nuclearbot.gui.NuclearBotGUI;
+import nuclearbot.util.LogRecord;
+import nuclearbot.util.LogRing;
+import nuclearbot.util.Logger;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 import javax.swing.text.DefaultCaret;
 import javax.swing.text.Document;
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -26,29 +37,350 @@ import java.awt.*;
 
 /**
  * The GUI panel for the console output.<br>
+ * Without a filter it shows the console text. With one, the log records
+ * are filtered on a background thread and the matching records are shown
+ * in a list instead, which is kept up to date once per second.<br>
  * <br>
  * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
  *
  * @author NuclearCoder (contact on the GitHub repo)
  */
-public class ConsolePanel extends JScrollPane {
+public class ConsolePanel extends JPanel {
+
+    private static final String ALL_LEVELS = "All levels";
+    private static final String ALL_TAGS = "All subsystems";
+    private static final String NO_TAG = "(no subsystem)";
+
+    private static final String CARD_CONSOLE = "console";
+    private static final String CARD_FILTERED = "filtered";
+
+    // room for the timestamp and level before the message
+    private static final int PREFIX_LENGTH = 32;
+
+    private final LogRing m_records;
+    private final ExecutorService m_executor;
+
+    private final JComboBox<String> m_levelCombo;
+    private final JComboBox<String> m_tagCombo;
+    private final JTextField m_searchField;
+    private final JLabel m_countLabel;
+    private final CardLayout m_cards;
+    private final JPanel m_views;
+    private final JList<LogRecord> m_filteredList;
+    private final Timer m_searchDelay;
+    private final Timer m_refreshTimer;
+
+    // only used on the EDT
+    private LogFilter m_filter;
+    private int m_generation;
+    private boolean m_refreshing;
+    private RecordModel m_model;
 
     public ConsolePanel(final NuclearBotGUI gui, final Document consoleDocument) {
-        final JTextArea consoleTextArea = new JTextArea(consoleDocument);
-        final DefaultCaret caret = new DefaultCaret();
+        super(new BorderLayout());
+        m_records = Logger.records();
+        m_executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "console filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_filter = new LogFilter(null, null, null);
+        m_generation = 0;
+        m_refreshing = false;
+        m_model = new RecordModel(new ArrayList<>());
+
+        final Font font = new Font("Courier New", Font.PLAIN, 14);
+
+        final JScrollPane consoleScrollPane = new JScrollPane();
+        {
+            final JTextArea consoleTextArea = new JTextArea(consoleDocument);
+            final DefaultCaret caret = new DefaultCaret();
+
+            caret.setVisible(true);
+            caret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
+
+            consoleTextArea.setEditable(false);
+            consoleTextArea.setCaret(caret);
+            consoleTextArea.setCursor(new Cursor(Cursor.TEXT_CURSOR));
+            consoleTextArea.setComponentPopupMenu(gui.getTextPopupMenu());
+            consoleTextArea.setFont(font);
+
+            consoleScrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+            consoleScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+            consoleScrollPane.setViewportView(consoleTextArea);
+        }
+
+        final JScrollPane filteredScrollPane = new JScrollPane();
+        {
+            m_filteredList = new JList<>(m_model);
+            m_filteredList.setFont(font);
+            m_filteredList.setComponentPopupMenu(gui.getTextPopupMenu());
+            m_filteredList.setCellRenderer(new RecordRenderer());
+            // fixed cell sizes, so that the list never measures all the records
+            m_filteredList.setFixedCellHeight(m_filteredList.getFontMetrics(font).getHeight() + 2);
+            m_filteredList.setFixedCellWidth(1);
+
+            filteredScrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+            filteredScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+            filteredScrollPane.setViewportView(m_filteredList);
+        }
+
+        final JPanel filterBar = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        {
+            m_levelCombo = new JComboBox<>(new String[] {ALL_LEVELS, "INFO", "WARNING", "ERROR"});
+            m_tagCombo = new JComboBox<>(new String[] {ALL_TAGS});
+            m_searchField = new JTextField(24);
+            m_countLabel = new JLabel();
+
+            m_tagCombo.setPrototypeDisplayValue("XXXXXXXXXXXXXXXX");
+            m_countLabel.setFont(m_countLabel.getFont().deriveFont(Font.ITALIC));
+
+            m_levelCombo.addActionListener(e -> filterChanged());
+            m_tagCombo.addActionListener(e -> filterChanged());
+            m_tagCombo.addPopupMenuListener(new TagPopupListener());
+
+            // don't filter on every key stroke
+            m_searchDelay = new Timer(250, e -> filterChanged());
+            m_searchDelay.setRepeats(false);
+            m_searchField.getDocument().addDocumentListener(new SearchListener());
+
+            filterBar.add(new JLabel("Filter:"));
+            filterBar.add(m_levelCombo);
+            filterBar.add(m_tagCombo);
+            filterBar.add(m_searchField);
+            filterBar.add(m_countLabel);
+        }
+
+        m_cards = new CardLayout();
+        m_views = new JPanel(m_cards);
+        m_views.add(consoleScrollPane, CARD_CONSOLE);
+        m_views.add(filteredScrollPane, CARD_FILTERED);
+
+        add(filterBar, BorderLayout.NORTH);
+        add(m_views, BorderLayout.CENTER);
+
+        m_refreshTimer = new Timer(1000, e -> refresh());
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        m_refreshTimer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        m_refreshTimer.stop(); // a running timer would keep the event dispatch thread alive
+        super.removeNotify();
+    }
+
+    private LogFilter readFilter() {
+        final String level = (String) m_levelCombo.getSelectedItem();
+        final String tag = (String) m_tagCombo.getSelectedItem();
+        final String text = m_searchField.getText();
+        return new LogFilter(ALL_LEVELS.equals(level) ? null : level,
+                             ALL_TAGS.equals(tag) ? null : (NO_TAG.equals(tag) ? LogRecord.NO_TAG : tag), text);
+    }
+
+    // filters all the records again, the result replaces the list model
+    private void filterChanged() {
+        final LogFilter filter = readFilter();
+        final int generation = ++m_generation;
+        m_filter = filter;
+        m_refreshing = false;
+        if (filter.isEmpty()) {
+            m_cards.show(m_views, CARD_CONSOLE);
+            m_countLabel.setText("");
+            m_model = new RecordModel(new ArrayList<>());
+            m_filteredList.setModel(m_model);
+            return;
+        }
+        m_countLabel.setText("Searching...");
+        m_executor.execute(() -> {
+            final long next = m_records.nextSequence();
+            final LogRecord[] records = m_records.copyFrom(0L);
+            final List<LogRecord> matches = filter.apply(records);
+            final long nextSequence = records.length > 0 ? records[records.length - 1].getSequence() + 1 : next;
+            final int width = maxLineLength(matches, 0);
+            SwingUtilities.invokeLater(() -> {
+                if (generation != m_generation) {
+                    return; // the filter changed meanwhile
+                }
+                m_model = new RecordModel(matches);
+                m_model.m_nextSequence = nextSequence;
+                m_filteredList.setModel(m_model);
+                updateWidth(width);
+                m_cards.show(m_views, CARD_FILTERED);
+                updateCount();
+                m_filteredList.ensureIndexIsVisible(matches.size() - 1);
+            });
+        });
+    }
+
+    // filters the records added since the last time, and drops those that left the ring
+    private void refresh() {
+        if (m_filter.isEmpty() || m_refreshing || !isShowing() || m_records.nextSequence() == m_model.m_nextSequence) {
+            return;
+        }
+        m_refreshing = true;
+        final LogFilter filter = m_filter;
+        final int generation = m_generation;
+        final long from = m_model.m_nextSequence;
+        final int currentWidth = m_model.m_width;
+        m_executor.execute(() -> {
+            final LogRecord[] records = m_records.copyFrom(from);
+            final long first = m_records.firstSequence();
+            final List<LogRecord> matches = filter.apply(records);
+            final long nextSequence = records.length > 0 ? records[records.length - 1].getSequence() + 1 : from;
+            final int width = maxLineLength(matches, currentWidth);
+            SwingUtilities.invokeLater(() -> {
+                if (generation != m_generation) {
+                    return;
+                }
+                m_refreshing = false;
+                final boolean atBottom = isAtBottom();
+                m_model.removeBefore(first);
+                m_model.addAll(matches);
+                m_model.m_nextSequence = nextSequence;
+                updateWidth(width);
+                updateCount();
+                if (atBottom) {
+                    m_filteredList.ensureIndexIsVisible(m_model.getSize() - 1);
+                }
+            });
+        });
+    }
+
+    private boolean isAtBottom() {
+        final int last = m_filteredList.getLastVisibleIndex();
+        return last < 0 || last >= m_model.getSize() - 1;
+    }
+
+    private void updateCount() {
+        final int count = m_model.getSize();
+        m_countLabel.setText(count + (count == 1 ? " matching record" : " matching records"));
+    }
+
+    // the font is monospaced, so the widest line is the longest one
+    private void updateWidth(final int length) {
+        m_model.m_width = length;
+        final int charWidth = m_filteredList.getFontMetrics(m_filteredList.getFont()).charWidth('W');
+        m_filteredList.setFixedCellWidth((length + PREFIX_LENGTH) * charWidth);
+    }
+
+    private static int maxLineLength(final List<LogRecord> records, final int initial) {
+        int max = initial;
+        for (final LogRecord record : records) {
+            max = Math.max(max, record.getMessage().length());
+        }
+        return max;
+    }
+
+    private static class RecordModel extends AbstractListModel<LogRecord> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<LogRecord> m_list;
+        private long m_nextSequence;
+        private int m_width;
+
+        private RecordModel(final List<LogRecord> list) {
+            m_list = list;
+            m_nextSequence = 0L;
+            m_width = 0;
+        }
+
+        @Override
+        public int getSize() {
+            return m_list.size();
+        }
+
+        @Override
+        public LogRecord getElementAt(final int index) {
+            return m_list.get(index);
+        }
+
+        private void addAll(final List<LogRecord> records) {
+            if (!records.isEmpty()) {
+                final int start = m_list.size();
+                m_list.addAll(records);
+                fireIntervalAdded(this, start, m_list.size() - 1);
+            }
+        }
+
+        private void removeBefore(final long sequence) {
+            int count = 0;
+            while (count < m_list.size() && m_list.get(count).getSequence() < sequence) {
+                count++;
+            }
+            if (count > 0) {
+                m_list.subList(0, count).clear();
+                fireIntervalRemoved(this, 0, count - 1);
+            }
+        }
+
+    }
+
+    // labels show one line, so stack traces are cut after their first line
+    private static class RecordRenderer extends DefaultListCellRenderer {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Component getListCellRendererComponent(final JList<?> list, final Object value, final int index, final boolean isSelected,
+                                                      final boolean cellHasFocus) {
+            String text = String.valueOf(value);
+            final int lineBreak = text.indexOf('\n');
+            if (lineBreak >= 0) {
+                text = text.substring(0, lineBreak).trim() + " ...";
+            }
+            return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+        }
+
+    }
+
+    private class SearchListener implements DocumentListener {
+
+        @Override
+        public void insertUpdate(final DocumentEvent e) {
+            m_searchDelay.restart();
+        }
+
+        @Override
+        public void removeUpdate(final DocumentEvent e) {
+            m_searchDelay.restart();
+        }
+
+        @Override
+        public void changedUpdate(final DocumentEvent e) {
+            m_searchDelay.restart();
+        }
+
+    }
+
+    // lists the tags seen so far when the combo box opens
+    private class TagPopupListener implements PopupMenuListener {
+
+        @Override
+        public void popupMenuWillBecomeVisible(final PopupMenuEvent e) {
+            final Object selected = m_tagCombo.getSelectedItem();
+            final DefaultComboBoxModel<String> model = new DefaultComboBoxModel<>();
+            model.addElement(ALL_TAGS);
+            for (final String tag : m_records.tags()) {
+                model.addElement(tag.equals(LogRecord.NO_TAG) ? NO_TAG : tag);
+            }
+            model.setSelectedItem(selected);
+            m_tagCombo.setModel(model);
+        }
 
-        caret.setVisible(true);
-        caret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
+        @Override
+        public void popupMenuWillBecomeInvisible(final PopupMenuEvent e) {
+        }
 
-        consoleTextArea.setEditable(false);
-        consoleTextArea.setCaret(caret);
-        consoleTextArea.setCursor(new Cursor(Cursor.TEXT_CURSOR));
-        consoleTextArea.setComponentPopupMenu(gui.getTextPopupMenu());
-        consoleTextArea.setFont(new Font("Courier New", Font.PLAIN, 14));
+        @Override
+        public void popupMenuCanceled(final PopupMenuEvent e) {
+        }
 
-        setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
-        setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
-        setViewportView(consoleTextArea);
     }
 
 }
@@ -1,10 +1,20 @@
 package nuclearbot.gui.components.console;
 
+import nuclearbot.gui.utils.FrameBatcher;
+
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
+import javax.swing.text.Element;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -25,6 +35,11 @@ import java.io.PrintStream;
 
 /**
  * Custom OutputStream wrapper that writes output to both OutputStream and Document.<br>
+ * The bytes are decoded as UTF-8, keeping incomplete characters for the next write.
+ * The text is printed to the original stream, which encodes it in its own charset,
+ * and inserted in the document on the Event Dispatch Thread once per frame.
+ * The document only keeps the last lines: once it has too many, the oldest
+ * lines are removed in bulk.<br>
  * <br>
  * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
  *
@@ -32,66 +47,150 @@ import java.io.PrintStream;
  */
 public class DocumentOutputStream extends OutputStream {
 
+    private static final int BUFFER_SIZE = 8192;
+
     private final Document m_document;
-    private final OutputStream m_outputStream;
+    private final PrintStream m_outputStream;
+    private final FrameBatcher.Channel<String> m_channel;
+    private final int m_maxLines;
+    private final int m_trimThreshold;
+
+    // guarded by this
+    private final CharsetDecoder m_decoder;
+    private final ByteBuffer m_bytes;
+    private final CharBuffer m_chars;
+    private final StringBuilder m_pending;
+
+    private final StringBuilder m_text; // only used on the EDT
 
     /**
      * Instantiates a DocumentOutputStream
      * with the specified document and output stream.
      *
      * @param document     the document to copy output to
-     * @param outputStream the original output stream
+     * @param outputStream the original output stream, which gets the decoded text
+     * @param batcher      the batcher for document updates
+     * @param maxLines     the maximum number of lines to keep in the document
      */
-    public DocumentOutputStream(final Document document, final OutputStream outputStream) {
+    public DocumentOutputStream(final Document document, final PrintStream outputStream, final FrameBatcher batcher, final int maxLines) {
         m_outputStream = outputStream;
         m_document = document;
+        m_maxLines = Math.max(1, maxLines);
+        // trim by chunks of a tenth of the lines rather than line by line
+        m_trimThreshold = m_maxLines + Math.max(1, m_maxLines / 10);
+        m_decoder = StandardCharsets.UTF_8.newDecoder()
+                                          .onMalformedInput(CodingErrorAction.REPLACE)
+                                          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        m_bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        m_chars = CharBuffer.allocate(BUFFER_SIZE);
+        m_pending = new StringBuilder();
+        m_text = new StringBuilder();
+        m_channel = batcher.channel(this::insert);
     }
 
     /**
      * Changes <code>System.out</code> to also write all output to a Swing Document.
      *
      * @param document the document to redirect to
+     * @param batcher  the batcher for document updates
+     * @param maxLines the maximum number of lines to keep in the document
      */
-    public synchronized static void redirectSystemOut(final Document document) {
-        System.setOut(new PrintStream(new DocumentOutputStream(document, System.out), true));
+    public synchronized static void redirectSystemOut(final Document document, final FrameBatcher batcher, final int maxLines) {
+        final DocumentOutputStream stream = new DocumentOutputStream(document, System.out, batcher, maxLines);
+        try {
+            System.setOut(new PrintStream(stream, true, "UTF-8"));
+        } catch (UnsupportedEncodingException e) { // UTF-8 is always supported
+            System.setOut(new PrintStream(stream, true));
+        }
+    }
+
+    // inserts all the text written since the last frame at once, then trims the head
+    private void insert(final List<String> chunks) {
+        for (final String chunk : chunks) {
+            m_text.append(chunk);
+        }
+        try {
+            // no need to insert what would be trimmed right away
+            int start = 0;
+            int lines = 0;
+            for (int i = m_text.length() - 1; i >= 0; i--) {
+                if (m_text.charAt(i) == '\n' && ++lines > m_maxLines) {
+                    start = i + 1;
+                    break;
+                }
+            }
+            if (start > 0) {
+                m_document.remove(0, m_document.getLength());
+            }
+            m_document.insertString(m_document.getLength(), m_text.substring(start), null);
+
+            final Element root = m_document.getDefaultRootElement();
+            final int count = root.getElementCount();
+            if (count > m_trimThreshold) {
+                m_document.remove(0, root.getElement(count - m_maxLines).getStartOffset());
+            }
+        } catch (BadLocationException e) {
+            // not through the logger, it would write to this stream again
+            e.printStackTrace(System.err);
+        } finally {
+            m_text.setLength(0);
+        }
     }
 
     @Override
     public void close() throws IOException {
+        flush();
         m_outputStream.close();
     }
 
     @Override
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
+        decode();
         m_outputStream.flush();
+        if (m_pending.length() > 0) {
+            m_channel.post(m_pending.toString());
+            m_pending.setLength(0);
+        }
     }
 
     @Override
-    public synchronized void write(int b) throws IOException {
-        write(new byte[]{(byte) b}, 0, 1);
+    public synchronized void write(final int b) throws IOException {
+        if (!m_bytes.hasRemaining()) {
+            decode();
+        }
+        m_bytes.put((byte) b);
+        if (b == '\n') {
+            decode();
+        }
     }
 
     @Override
-    public synchronized void write(byte cbuf[], int off, int len) throws IOException {
-        m_outputStream.write(cbuf, off, len);
-        try {
-            int start = off;
-            int end = start + 1;
-            while (end < off + len) {
-                if (cbuf[end] == '\n') {
-                    m_document.insertString(m_document.getLength(), new String(cbuf, start, end - start), null);
-                    start = end++;
-                }
-                ++end;
-            }
-            if (cbuf[start] == '\n') {
-                m_document.insertString(m_document.getLength(), "\n", null);
-            } else if (start < off + len) {
-                m_document.insertString(m_document.getLength(), new String(cbuf, start, len - start - off), null);
+    public synchronized void write(final byte[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            final int count = Math.min(len, m_bytes.remaining());
+            m_bytes.put(cbuf, off, count);
+            off += count;
+            len -= count;
+            decode();
+        }
+    }
+
+    // decodes the buffered bytes and forwards the text, an incomplete character stays in the buffer
+    private void decode() {
+        m_bytes.flip();
+        while (true) {
+            m_decoder.decode(m_bytes, m_chars, false);
+            m_chars.flip();
+            final String text = m_chars.toString();
+            m_outputStream.print(text);
+            m_pending.append(text);
+            final boolean full = m_chars.limit() == m_chars.capacity();
+            m_chars.clear();
+            if (!full) {
+                break;
             }
-        } catch (BadLocationException e) {
-            throw new IOException(e.getMessage());
         }
+        m_bytes.compact();
     }
 
 }
@@ -0,0 +1,93 @@
+package nuclearbot.gui.components.console;
+
+import nuclearbot.util.LogRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Filter over the log records by level, subsystem tag and text.<br>
+ * Levels and tags are interned by the records, so they are
+ * compared by reference. Immutable, used from the filter thread.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+final class LogFilter {
+
+    private final String m_level;
+    private final String m_tag;
+    private final String m_text;
+
+    /**
+     * Constructs a filter. Null criteria match everything.
+     *
+     * @param level the level, or null
+     * @param tag   the subsystem tag, or null
+     * @param text  the text to search, case-insensitive, or null
+     */
+    LogFilter(final String level, final String tag, final String text) {
+        m_level = level != null ? level.intern() : null;
+        m_tag = tag != null ? tag.intern() : null;
+        m_text = text != null && !text.isEmpty() ? text : null;
+    }
+
+    boolean isEmpty() {
+        return m_level == null && m_tag == null && m_text == null;
+    }
+
+    boolean matches(final LogRecord record) {
+        return (m_level == null || record.getLevel() == m_level)
+                && (m_tag == null || record.getTag() == m_tag)
+                && (m_text == null || containsIgnoreCase(record.getMessage(), m_text));
+    }
+
+    /**
+     * Returns the matching records, in order.
+     *
+     * @param records the records to filter
+     * @return the matching records
+     */
+    List<LogRecord> apply(final LogRecord[] records) {
+        final List<LogRecord> result = new ArrayList<>();
+        for (final LogRecord record : records) {
+            if (matches(record)) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    private static boolean containsIgnoreCase(final String haystack, final String needle) {
+        final int last = haystack.length() - needle.length();
+        final char first = needle.charAt(0);
+        final char firstLower = Character.toLowerCase(first);
+        final char firstUpper = Character.toUpperCase(first);
+        for (int i = 0; i <= last; i++) {
+            final char c = haystack.charAt(i);
+            if ((c == first || c == firstLower || c == firstUpper) && haystack.regionMatches(true, i, needle, 0, needle.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
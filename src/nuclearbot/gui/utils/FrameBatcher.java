@@ -0,0 +1,133 @@
+package nuclearbot.gui.utils;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Collects GUI updates posted from any thread and applies them
+ * on the Event Dispatch Thread once per frame.<br>
+ * Each channel has its own lock-free queue and is handed everything
+ * posted since the last frame as one list, so that it can update its
+ * component with a single model change.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class FrameBatcher {
+
+    // so that a frame ends even if updates keep coming
+    private static final int MAX_BATCH = 1 << 16;
+
+    private final Timer m_timer;
+    private final List<Channel<?>> m_channels;
+
+    /**
+     * Constructs a batcher with the specified frame rate.
+     * It must be started to apply updates.
+     *
+     * @param fps the number of frames per second
+     */
+    public FrameBatcher(final int fps) {
+        m_channels = new CopyOnWriteArrayList<>();
+        m_timer = new Timer(1000 / Math.max(1, Math.min(fps, 1000)), e -> frame());
+        m_timer.setCoalesce(true);
+    }
+
+    /**
+     * Creates a channel whose updates are passed to the specified consumer
+     * on the Event Dispatch Thread. The list must not be kept by the consumer.
+     *
+     * @param applier the consumer of the batched updates
+     * @param <T>     the type of the updates
+     * @return the channel
+     */
+    public <T> Channel<T> channel(final Consumer<List<T>> applier) {
+        final Channel<T> channel = new Channel<>(applier);
+        m_channels.add(channel);
+        return channel;
+    }
+
+    public void start() {
+        m_timer.start();
+    }
+
+    public void stop() {
+        m_timer.stop();
+    }
+
+    /**
+     * Applies the pending updates right away. Must be called on the Event Dispatch Thread.
+     */
+    public void frame() {
+        for (final Channel<?> channel : m_channels) {
+            channel.drain();
+        }
+    }
+
+    /**
+     * A queue of updates of one kind.
+     *
+     * @param <T> the type of the updates
+     */
+    public static class Channel<T> {
+
+        private final Queue<T> m_queue;
+        private final Consumer<List<T>> m_applier;
+        private final List<T> m_batch; // only used on the EDT
+
+        private Channel(final Consumer<List<T>> applier) {
+            m_queue = new ConcurrentLinkedQueue<>();
+            m_applier = applier;
+            m_batch = new ArrayList<>();
+        }
+
+        /**
+         * Posts an update, to be applied at the next frame.
+         * This method can be called from any thread.
+         *
+         * @param update the update
+         */
+        public void post(final T update) {
+            m_queue.offer(update);
+        }
+
+        private void drain() {
+            T update;
+            while (m_batch.size() < MAX_BATCH && (update = m_queue.poll()) != null) {
+                m_batch.add(update);
+            }
+            if (!m_batch.isEmpty()) {
+                try {
+                    m_applier.accept(m_batch);
+                } finally {
+                    m_batch.clear();
+                }
+            }
+        }
+
+    }
+
+}
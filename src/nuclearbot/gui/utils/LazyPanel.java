@@ -0,0 +1,83 @@
+package nuclearbot.gui.utils;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.function.Supplier;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Placeholder for a component that is only constructed the first time
+ * it is needed, like a tab that is selected for the first time.
+ * Until then, it shows a "Loading..." label.
+ * Must only be used on the Event Dispatch Thread.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ *
+ * @param <T> the type of the component
+ */
+public class LazyPanel<T extends Component> extends JPanel {
+
+    private static final long serialVersionUID = -4306213720592813370L;
+
+    private final Supplier<T> m_factory;
+    private final JLabel m_loadingLabel;
+    private T m_content;
+
+    /**
+     * Constructs a placeholder for the component built by the specified factory.
+     *
+     * @param factory the function constructing the component
+     */
+    public LazyPanel(final Supplier<T> factory) {
+        super(new BorderLayout());
+        m_factory = factory;
+        m_loadingLabel = new JLabel("Loading...", SwingConstants.CENTER);
+        m_loadingLabel.setFont(m_loadingLabel.getFont().deriveFont(Font.ITALIC));
+        m_content = null;
+        add(m_loadingLabel, BorderLayout.CENTER);
+    }
+
+    /**
+     * Returns the component, constructing it if needed.
+     *
+     * @return the component
+     */
+    public T get() {
+        if (m_content == null) {
+            m_content = m_factory.get();
+            remove(m_loadingLabel);
+            add(m_content, BorderLayout.CENTER);
+            revalidate();
+            repaint();
+        }
+        return m_content;
+    }
+
+    /**
+     * Returns whether the component was constructed.
+     *
+     * @return true if the component exists
+     */
+    public boolean isCreated() {
+        return m_content != null;
+    }
+
+}
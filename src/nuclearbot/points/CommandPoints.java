@@ -0,0 +1,56 @@
+package nuclearbot.points;
+
+import nuclearbot.client.ChatClient;
+import nuclearbot.client.Command;
+import nuclearbot.plugin.CommandExecutor;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Command "points" to show the points of the sender or of another user.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class CommandPoints implements CommandExecutor {
+
+    private static final String BALANCE = "%s has %d %s, watched for %dh%02d";
+
+    private final PointsEngine m_engine;
+
+    public CommandPoints(final PointsEngine engine) {
+        m_engine = engine;
+    }
+
+    @Override
+    public boolean onCommand(final ChatClient client, final String username, final Command command, final String label, final String[] args) {
+        // usage: !points [user]
+        final String target = args.length > 1 ? args[1].replaceFirst("^@", "") : username;
+        if (target.isEmpty()) {
+            return false;
+        }
+        // answered from the points thread
+        m_engine.getBalance(target).thenAccept(balance -> {
+            final long minutes = balance.watchedSeconds / 60L;
+            client.sendMessage(String.format(BALANCE, balance.username, balance.points, m_engine.getName(), minutes / 60L, minutes % 60L));
+        });
+        return true;
+    }
+
+}
@@ -0,0 +1,60 @@
+package nuclearbot.points;
+
+import nuclearbot.client.ChatClient;
+import nuclearbot.client.Command;
+import nuclearbot.plugin.CommandExecutor;
+
+import java.util.List;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Command "top" to show the users with the most points.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class CommandTop implements CommandExecutor {
+
+    private final PointsEngine m_engine;
+
+    public CommandTop(final PointsEngine engine) {
+        m_engine = engine;
+    }
+
+    @Override
+    public boolean onCommand(final ChatClient client, final String username, final Command command, final String label, final String[] args) {
+        // answered from the points thread
+        m_engine.getTop().thenAccept(top -> client.sendMessage(format(top)));
+        return true;
+    }
+
+    private String format(final List<PointsEngine.Balance> top) {
+        if (top.isEmpty()) {
+            return "Nobody has " + m_engine.getName() + " yet.";
+        }
+        final StringBuilder sb = new StringBuilder("Top " + m_engine.getName() + ":");
+        for (int i = 0; i < top.size(); i++) {
+            final PointsEngine.Balance balance = top.get(i);
+            sb.append(' ').append(i + 1).append(". ").append(balance.username).append(" (").append(balance.points).append(')');
+        }
+        return sb.toString();
+    }
+
+}
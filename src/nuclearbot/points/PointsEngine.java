@@ -0,0 +1,415 @@
+package nuclearbot.points;
+
+import nuclearbot.client.ChatClient;
+import nuclearbot.client.ClientListener;
+import nuclearbot.client.Command;
+import nuclearbot.client.Users;
+import nuclearbot.util.Config;
+import nuclearbot.util.KeyValueStore;
+import nuclearbot.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Credits points and watch time to the users in the channel.<br>
+ * The users in the channel are known from JOIN, PART and the list of
+ * names sent when joining, and from chatting. The bot itself is left out.
+ * Each user is credited once per interval. The interval is cut into
+ * one-second slices, each crediting a range of user ids, so the work is
+ * spread over the interval instead of being done all at once.<br>
+ * The state of each user is in arrays indexed by user id, see {@link Users}.
+ * Only the users whose points changed are written to the store,
+ * once per interval and when closing.<br>
+ * Everything runs on one thread, the queries return futures.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class PointsEngine implements ClientListener {
+
+    private static final long SLICE_PERIOD = TimeUnit.SECONDS.toMillis(1);
+    private static final int TOP_SIZE = 10;
+    private static final int RECORD_SIZE = 16; // points, watched seconds
+
+    private final ScheduledExecutorService m_executor;
+    private final KeyValueStore.Namespace m_store; // null if the points only last one lifetime
+    private final int m_slices;
+    private final long m_amount;
+    private final long m_intervalSeconds;
+    private final String m_name;
+
+    // only used on the points thread
+    private long[] m_points;
+    private long[] m_watched; // seconds
+    private long[] m_present; // bit set
+    private long[] m_dirty; // bit set, changed since the last save
+    private final TopK m_top;
+    private int m_slice;
+    private int m_roundUsers; // user count when the round started
+
+    private PointsEngine(final KeyValueStore.Namespace store, final long intervalSeconds, final long amount, final String name) {
+        m_store = store;
+        m_intervalSeconds = intervalSeconds;
+        m_slices = (int) Math.max(1L, Math.min(intervalSeconds, 600L));
+        m_amount = amount;
+        m_name = name;
+        m_points = new long[0];
+        m_watched = new long[0];
+        m_present = new long[0];
+        m_dirty = new long[0];
+        m_top = new TopK(TOP_SIZE);
+        m_slice = 0;
+        m_roundUsers = 0;
+
+        m_executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "points");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_executor.execute(this::load);
+        final long period = TimeUnit.SECONDS.toMillis(intervalSeconds) / m_slices;
+        m_executor.scheduleAtFixedRate(this::tick, period, period, TimeUnit.MILLISECONDS);
+
+        if (store != null) {
+            store.addCloseHook(this::close); // the store is closed when exiting
+        }
+    }
+
+    /**
+     * Opens the points engine as configured by "points_enabled", "points_interval"
+     * (seconds), "points_amount" (per interval) and "points_name".
+     * The points are kept in the default store. Errors are logged.
+     *
+     * @return the engine, or null if points are disabled
+     */
+    public static PointsEngine openConfigured() {
+        if (!Config.getBoolean("points_enabled", true)) {
+            return null;
+        }
+        final long interval = Math.max(1L, Config.getLong("points_interval", 60L));
+        final long amount = Math.max(0L, Config.getLong("points_amount", 10L));
+        final String name = Config.get("points_name", "points");
+
+        KeyValueStore.Namespace store = null;
+        try {
+            store = KeyValueStore.getDefault().namespace("points");
+        } catch (IOException e) {
+            Logger.error("(Points) Couldn't open the store, points will only last one lifetime:");
+            Logger.printStackTrace(e);
+        }
+        return new PointsEngine(store, interval, amount, name);
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * Registers "!points" and "!top" to the client.
+     *
+     * @param client the client
+     */
+    public void registerCommands(final ChatClient client) {
+        client.registerCommand("points", "!points [user]", new CommandPoints(this))
+                .setDescription("Displays how many " + m_name + " you or another user have.");
+        client.registerCommand("top", "!top", new CommandTop(this)).setDescription("Displays the users with the most " + m_name + ".");
+    }
+
+    /**
+     * Unregisters "!points" and "!top" from the client,
+     * so that they can be registered again when it reconnects.
+     *
+     * @param client the client
+     */
+    public void unregisterCommands(final ChatClient client) {
+        for (final String label : new String[]{"points", "top"}) {
+            if (client.isCommandRegistered(label)) {
+                client.unregisterCommand(label);
+            }
+        }
+    }
+
+    /**
+     * Returns the points and watch time of a user.
+     *
+     * @param username the user's login
+     * @return a future of the balance
+     */
+    public CompletableFuture<Balance> getBalance(final String username) {
+        return CompletableFuture.supplyAsync(() -> {
+            final int id = Users.find(username.toLowerCase()); // don't add everyone asked about
+            return id != Users.UNKNOWN && id < m_points.length ? new Balance(username, m_points[id], m_watched[id])
+                    : new Balance(username, 0L, 0L);
+        }, m_executor);
+    }
+
+    /**
+     * Returns the users with the most points, highest first.
+     *
+     * @return a future of the balances
+     */
+    public CompletableFuture<List<Balance>> getTop() {
+        return CompletableFuture.supplyAsync(() -> {
+            final int[] ids = m_top.ids();
+            final List<Balance> top = new ArrayList<>(ids.length);
+            for (final int id : ids) {
+                top.add(new Balance(Users.name(id), m_points[id], m_watched[id]));
+            }
+            return Collections.unmodifiableList(top);
+        }, m_executor);
+    }
+
+    /**
+     * Adds points to a user, or removes them with a negative amount.
+     *
+     * @param username the user's login
+     * @param amount   the points to add
+     */
+    public void addPoints(final String username, final long amount) {
+        final int id = Users.id(username.toLowerCase());
+        m_executor.execute(() -> {
+            ensureCapacity(id);
+            m_points[id] += amount;
+            setBit(m_dirty, id);
+            if (amount >= 0L) {
+                m_top.offer(id, m_points[id]);
+            } else {
+                rebuildTop(); // someone else may be ahead now
+            }
+        });
+    }
+
+    /* **** points thread **** */
+
+    private void ensureCapacity(final int id) {
+        if (id >= m_points.length) {
+            final int capacity = Math.max(id + 1, Math.max(1024, m_points.length * 2));
+            m_points = Arrays.copyOf(m_points, capacity);
+            m_watched = Arrays.copyOf(m_watched, capacity);
+            m_present = Arrays.copyOf(m_present, (capacity + 63) >>> 6);
+            m_dirty = Arrays.copyOf(m_dirty, (capacity + 63) >>> 6);
+        }
+    }
+
+    private static void setBit(final long[] bits, final int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static void clearBit(final long[] bits, final int index) {
+        bits[index >>> 6] &= ~(1L << index);
+    }
+
+    // credits the present users in this slice's range of ids
+    private void tick() {
+        try {
+            if (m_slice == 0) {
+                m_roundUsers = Math.min(Users.count(), m_points.length);
+            }
+            final int from = (int) ((long) m_roundUsers * m_slice / m_slices);
+            final int to = (int) ((long) m_roundUsers * (m_slice + 1) / m_slices);
+            for (int id = nextBit(m_present, from, to); id != -1; id = nextBit(m_present, id + 1, to)) {
+                m_points[id] += m_amount;
+                m_watched[id] += m_intervalSeconds;
+                setBit(m_dirty, id);
+                m_top.offer(id, m_points[id]);
+            }
+            if (++m_slice == m_slices) {
+                m_slice = 0;
+                save();
+            }
+        } catch (RuntimeException e) { // an exception would cancel the task
+            Logger.error("(Points) Exception while crediting points:");
+            Logger.printStackTrace(e);
+        }
+    }
+
+    // index of the first set bit in [from, to), or -1
+    private static int nextBit(final long[] bits, final int from, final int to) {
+        if (from >= to) {
+            return -1;
+        }
+        int word = from >>> 6;
+        long remaining = bits[word] & (-1L << from);
+        while (true) {
+            if (remaining != 0L) {
+                final int index = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                return index < to ? index : -1;
+            }
+            if (++word > (to - 1) >>> 6) {
+                return -1;
+            }
+            remaining = bits[word];
+        }
+    }
+
+    private void load() {
+        if (m_store == null) {
+            return;
+        }
+        final long start = System.nanoTime();
+        int loaded = 0;
+        for (final String username : m_store.keys()) {
+            try {
+                final byte[] record = m_store.get(username);
+                if (record == null || record.length != RECORD_SIZE) {
+                    continue;
+                }
+                final int id = Users.id(username);
+                final ByteBuffer buffer = ByteBuffer.wrap(record);
+                ensureCapacity(id);
+                m_points[id] = buffer.getLong();
+                m_watched[id] = buffer.getLong();
+                loaded++;
+            } catch (IOException e) {
+                Logger.warning("(Points) Couldn't read the points of \"" + username + "\":");
+                Logger.printStackTrace(e);
+            }
+        }
+        rebuildTop();
+        Logger.info("(Points) Loaded " + loaded + " users in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+    }
+
+    // writes the users that changed since the last save
+    private void save() {
+        if (m_store == null) {
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        int saved = 0;
+        for (int id = nextBit(m_dirty, 0, m_points.length); id != -1; id = nextBit(m_dirty, id + 1, m_points.length)) {
+            buffer.clear();
+            buffer.putLong(m_points[id]).putLong(m_watched[id]);
+            try {
+                m_store.put(Users.name(id), buffer.array().clone());
+                clearBit(m_dirty, id);
+                saved++;
+            } catch (IOException e) {
+                Logger.error("(Points) Couldn't save the points, will try again:");
+                Logger.printStackTrace(e);
+                return;
+            }
+        }
+        if (saved != 0) {
+            Logger.info("(Points) Saved " + saved + " users.");
+        }
+    }
+
+    private void rebuildTop() {
+        m_top.clear();
+        for (int id = 0; id < m_points.length; id++) {
+            if (m_points[id] > 0L) {
+                m_top.offer(id, m_points[id]);
+            }
+        }
+    }
+
+    private void setPresent(final ChatClient client, final String username, final boolean present) {
+        if (username.equalsIgnoreCase(client.getUsername())) {
+            return; // the bot doesn't earn points
+        }
+        final int id = Users.id(username);
+        m_executor.execute(() -> {
+            ensureCapacity(id);
+            if (present) {
+                setBit(m_present, id);
+            } else {
+                clearBit(m_present, id);
+            }
+        });
+    }
+
+    /**
+     * Saves the changed points and stops crediting.
+     */
+    public void close() {
+        if (m_executor.isShutdown()) {
+            return;
+        }
+        try {
+            m_executor.submit(this::save).get(10L, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            Logger.error("(Points) Couldn't save the points when closing:");
+            Logger.printStackTrace(e);
+        }
+        m_executor.shutdown();
+    }
+
+    /* **** client listener methods, called on the client thread **** */
+
+    @Override
+    public void onConnected(final ChatClient client) {
+    }
+
+    @Override
+    public void onDisconnected(final ChatClient client) {
+        m_executor.execute(() -> Arrays.fill(m_present, 0L)); // nobody is seen in the channel anymore
+    }
+
+    @Override
+    public void onMessage(final ChatClient client, final String username, final String message) {
+        setPresent(client, username, true); // Twitch doesn't send every JOIN
+    }
+
+    @Override
+    public void onJoin(final ChatClient client, final String username) {
+        setPresent(client, username, true);
+    }
+
+    @Override
+    public void onPart(final ChatClient client, final String username) {
+        setPresent(client, username, false);
+    }
+
+    @Override
+    public void onCommandRegistered(final ChatClient client, final String label, final Command command) {
+    }
+
+    @Override
+    public void onCommandUnregistered(final ChatClient client, final String label) {
+    }
+
+    /**
+     * The points and watch time of a user.
+     */
+    public static final class Balance {
+
+        public final String username;
+        public final long points;
+        public final long watchedSeconds;
+
+        private Balance(final String username, final long points, final long watchedSeconds) {
+            this.username = username;
+            this.points = points;
+            this.watchedSeconds = watchedSeconds;
+        }
+
+    }
+
+}
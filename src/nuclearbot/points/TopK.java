@@ -0,0 +1,97 @@
+package nuclearbot.points;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The users with the most points, kept sorted as points are credited.<br>
+ * Each credit costs at most a scan and a shift of the few entries,
+ * instead of sorting every user when the ranking is asked.
+ * Scores are expected to only grow, a score that dropped
+ * needs a {@link #clear()} and the scores to be offered again.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+final class TopK {
+
+    private final int[] m_ids;
+    private final long[] m_scores; // in decreasing order
+    private int m_size;
+
+    TopK(final int capacity) {
+        m_ids = new int[capacity];
+        m_scores = new long[capacity];
+        m_size = 0;
+    }
+
+    /**
+     * Offers the new score of a user.
+     *
+     * @param id    the user id
+     * @param score the user's score, not lower than the last one offered
+     */
+    void offer(final int id, final long score) {
+        int index = indexOf(id);
+        if (index == -1) {
+            if (m_size < m_ids.length) {
+                index = m_size++;
+            } else if (score > m_scores[m_size - 1]) {
+                index = m_size - 1; // takes the place of the last one
+            } else {
+                return;
+            }
+        }
+        // move up past the lower scores
+        while (index > 0 && m_scores[index - 1] < score) {
+            m_ids[index] = m_ids[index - 1];
+            m_scores[index] = m_scores[index - 1];
+            index--;
+        }
+        m_ids[index] = id;
+        m_scores[index] = score;
+    }
+
+    private int indexOf(final int id) {
+        for (int i = 0; i < m_size; i++) {
+            if (m_ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return m_size;
+    }
+
+    int[] ids() {
+        return Arrays.copyOf(m_ids, m_size);
+    }
+
+    long[] scores() {
+        return Arrays.copyOf(m_scores, m_size);
+    }
+
+    void clear() {
+        m_size = 0;
+    }
+
+}
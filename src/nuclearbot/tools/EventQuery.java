@@ -0,0 +1,536 @@
+package nuclearbot.tools;
+
+import nuclearbot.util.Histogram;
+import nuclearbot.util.LogEvent;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Command-line tool to filter and aggregate the structured event log.<br>
+ * The file is split in chunks at line boundaries, and every chunk
+ * is streamed and aggregated by its own worker before the partial
+ * results are merged, so memory use does not depend on the file size.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class EventQuery {
+
+    private static final String USAGE = "Usage: java -cp NuclearBot.jar " + EventQuery.class.getName() + " <file> <query> [options]\n"
+            + "Queries:\n"
+            + "  filter   print the matching events\n"
+            + "  count    count the matching events per type\n"
+            + "  top      most used commands\n"
+            + "  latency  latency quantiles per command (in milliseconds)\n"
+            + "Options:\n"
+            + "  --type <type>, --user <name>, --channel <name>, --command <label>, --plugin <name>\n"
+            + "  --from <time>, --to <time>     epoch milliseconds or yyyy-MM-ddTHH:mm[:ss] (local time)\n"
+            + "  --bucket <minute|hour|day|all> time bucket (default: hour for count and top, all otherwise)\n"
+            + "  --limit <n>                    lines for filter, commands per bucket for top (default: 10)\n"
+            + "  --threads <n>                  worker count (default: available processors)";
+
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    private static final DateTimeFormatter BUCKET_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    private final File m_file;
+    private final String m_query;
+    private final Filter m_filter;
+    private final ChronoUnit m_bucket;
+    private final int m_limit;
+    private final int m_threads;
+
+    private EventQuery(final File file, final String query, final Filter filter, final ChronoUnit bucket, final int limit, final int threads) {
+        m_file = file;
+        m_query = query;
+        m_filter = filter;
+        m_bucket = bucket;
+        m_limit = limit;
+        m_threads = threads;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        final Filter filter = new Filter();
+        final String query = args[1];
+        ChronoUnit bucket = (query.equals("count") || query.equals("top")) ? ChronoUnit.HOURS : null;
+        int limit = 10;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        try {
+            for (int i = 2; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for option " + args[i]);
+                }
+                final String value = args[i + 1];
+                switch (args[i]) {
+                    case "--type":
+                        filter.type = LogEvent.Type.fromJsonName(value.toLowerCase());
+                        if (filter.type == null) {
+                            throw new IllegalArgumentException("Unknown event type \"" + value + "\"");
+                        }
+                        break;
+                    case "--user":
+                        filter.user = value.toLowerCase();
+                        break;
+                    case "--channel":
+                        filter.channel = value.startsWith("#") ? value : '#' + value;
+                        break;
+                    case "--command":
+                        filter.command = value.toLowerCase();
+                        break;
+                    case "--plugin":
+                        filter.plugin = value;
+                        break;
+                    case "--from":
+                        filter.from = parseTime(value);
+                        break;
+                    case "--to":
+                        filter.to = parseTime(value);
+                        break;
+                    case "--bucket":
+                        bucket = parseBucket(value);
+                        break;
+                    case "--limit":
+                        limit = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Math.max(1, Integer.parseInt(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (!query.matches("filter|count|top|latency")) {
+                throw new IllegalArgumentException("Unknown query \"" + query + "\"");
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        final File file = new File(args[0]);
+        if (!file.isFile()) {
+            System.err.println("Not a file: " + file.getAbsolutePath());
+            System.exit(1);
+        }
+
+        new EventQuery(file, query, filter, bucket, limit, threads).run(System.out);
+    }
+
+    private static long parseTime(final String value) {
+        if (value.matches("[0-9]+")) {
+            return Long.parseLong(value);
+        }
+        return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static ChronoUnit parseBucket(final String value) {
+        switch (value) {
+            case "minute":
+                return ChronoUnit.MINUTES;
+            case "hour":
+                return ChronoUnit.HOURS;
+            case "day":
+                return ChronoUnit.DAYS;
+            case "all":
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown bucket \"" + value + "\"");
+        }
+    }
+
+    private static String formatBucket(final long bucket) {
+        return bucket == Long.MIN_VALUE ? "all" : BUCKET_FORMAT.format(Instant.ofEpochMilli(bucket).atZone(ZoneId.systemDefault()));
+    }
+
+    private void run(final PrintStream out) throws IOException, InterruptedException {
+        final long size = m_file.length();
+        final int chunkCount = (int) Math.max(1L, Math.min(m_threads, size / BUFFER_SIZE));
+        final ExecutorService executor = Executors.newFixedThreadPool(chunkCount);
+
+        try {
+            final List<Future<Aggregate>> futures = new ArrayList<>(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                final long start = size * i / chunkCount;
+                final long end = size * (i + 1) / chunkCount;
+                futures.add(executor.submit(() -> scanChunk(start, end)));
+            }
+
+            Aggregate total = null;
+            for (final Future<Aggregate> future : futures) {
+                final Aggregate partial = future.get();
+                if (total == null) {
+                    total = partial;
+                } else {
+                    total.merge(partial);
+                }
+            }
+            total.print(out);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Aggregate newAggregate() throws IOException {
+        switch (m_query) {
+            case "filter":
+                return new FilterAggregate(m_limit);
+            case "count":
+                return new CountAggregate(m_bucket);
+            case "top":
+                return new TopAggregate(m_bucket, m_limit);
+            default:
+                return new LatencyAggregate(m_bucket);
+        }
+    }
+
+    // processes every line that starts in [start, end)
+    private Aggregate scanChunk(final long start, final long end) throws IOException {
+        final Aggregate aggregate = newAggregate();
+
+        try (final FileChannel channel = FileChannel.open(m_file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] line = new byte[1024];
+            int lineLength = 0;
+
+            long position = start;
+            // a chunk that does not start right after a line break skips its first partial line
+            boolean skipping = false;
+            if (start > 0) {
+                final ByteBuffer previous = ByteBuffer.allocate(1);
+                channel.read(previous, start - 1);
+                skipping = previous.get(0) != '\n';
+            }
+            long lineStart = position;
+
+            while (true) {
+                buffer.clear();
+                final int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    if (!skipping && lineLength > 0 && lineStart < end) {
+                        processLine(aggregate, line, lineLength);
+                    }
+                    break;
+                }
+                final byte[] array = buffer.array();
+                boolean done = false;
+                for (int i = 0; i < read; i++) {
+                    final byte b = array[i];
+                    if (b == '\n') {
+                        if (!skipping) {
+                            processLine(aggregate, line, lineLength);
+                        }
+                        skipping = false;
+                        lineLength = 0;
+                        lineStart = position + i + 1;
+                        if (lineStart >= end) {
+                            done = true;
+                            break;
+                        }
+                    } else if (!skipping) {
+                        if (lineLength == line.length) {
+                            final byte[] grown = new byte[line.length * 2];
+                            System.arraycopy(line, 0, grown, 0, lineLength);
+                            line = grown;
+                        }
+                        line[lineLength++] = b;
+                    }
+                }
+                if (done) {
+                    break;
+                }
+                position += read;
+            }
+        }
+
+        return aggregate;
+    }
+
+    private void processLine(final Aggregate aggregate, final byte[] line, final int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        final String text = new String(line, 0, length, StandardCharsets.UTF_8);
+        final LogEvent event = LogEvent.parse(text);
+        if (event != null && m_filter.matches(event)) {
+            aggregate.accept(event, text);
+        }
+    }
+
+    private static long bucketOf(final ChronoUnit unit, final long timestamp) {
+        if (unit == null) {
+            return Long.MIN_VALUE;
+        } else if (unit == ChronoUnit.DAYS) {
+            return Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault()).truncatedTo(unit).toInstant().toEpochMilli();
+        } else {
+            final long length = unit.getDuration().toMillis();
+            return timestamp - Math.floorMod(timestamp, length);
+        }
+    }
+
+    private static class Filter {
+
+        private LogEvent.Type type;
+        private String user;
+        private String channel;
+        private String command;
+        private String plugin;
+        private long from = Long.MIN_VALUE;
+        private long to = Long.MAX_VALUE;
+
+        private boolean matches(final LogEvent event) {
+            return event.getTimestamp() >= from && event.getTimestamp() < to && (type == null || type == event.getType()) && (user == null || user
+                    .equals(event.getUser())) && (channel == null || channel.equals(event.getChannel())) && (command == null || command
+                    .equals(event.getCommand())) && (plugin == null || plugin.equals(event.getPlugin()));
+        }
+
+    }
+
+    private interface Aggregate {
+
+        void accept(LogEvent event, String line) throws IOException;
+
+        void merge(Aggregate other) throws IOException;
+
+        void print(PrintStream out) throws IOException;
+
+    }
+
+    // matching lines are spooled to a temporary file per chunk, then printed in chunk order
+    private static class FilterAggregate implements Aggregate {
+
+        private final int m_limit;
+        private final List<Path> m_spools;
+        private final OutputStream m_out;
+        private long m_count;
+
+        private FilterAggregate(final int limit) throws IOException {
+            final Path spool = Files.createTempFile("nuclearbot-events", ".jsonl");
+            spool.toFile().deleteOnExit();
+            m_limit = limit;
+            m_spools = new ArrayList<>();
+            m_spools.add(spool);
+            m_out = new BufferedOutputStream(Files.newOutputStream(spool));
+            m_count = 0L;
+        }
+
+        @Override
+        public void accept(final LogEvent event, final String line) throws IOException {
+            if (m_count < m_limit) {
+                m_out.write(line.getBytes(StandardCharsets.UTF_8));
+                m_out.write('\n');
+                m_count++;
+            }
+        }
+
+        @Override
+        public void merge(final Aggregate other) throws IOException {
+            final FilterAggregate filter = (FilterAggregate) other;
+            filter.m_out.close();
+            m_spools.addAll(filter.m_spools);
+        }
+
+        @Override
+        public void print(final PrintStream out) throws IOException {
+            m_out.close();
+            long remaining = m_limit;
+            final byte[] buffer = new byte[8192];
+            for (final Path spool : m_spools) {
+                try (final InputStream in = new FileInputStream(spool.toFile())) {
+                    int read;
+                    while (remaining > 0 && (read = in.read(buffer)) > 0) {
+                        for (int i = 0; i < read && remaining > 0; i++) {
+                            out.write(buffer[i]);
+                            if (buffer[i] == '\n') {
+                                remaining--;
+                            }
+                        }
+                    }
+                }
+                Files.deleteIfExists(spool);
+            }
+            out.flush();
+        }
+
+    }
+
+    private static class CountAggregate implements Aggregate {
+
+        private final ChronoUnit m_unit;
+        private final Map<Long, Map<LogEvent.Type, long[]>> m_counts;
+
+        private CountAggregate(final ChronoUnit unit) {
+            m_unit = unit;
+            m_counts = new TreeMap<>();
+        }
+
+        @Override
+        public void accept(final LogEvent event, final String line) {
+            m_counts.computeIfAbsent(bucketOf(m_unit, event.getTimestamp()), k -> new EnumMap<>(LogEvent.Type.class))
+                    .computeIfAbsent(event.getType(), k -> new long[1])[0]++;
+        }
+
+        @Override
+        public void merge(final Aggregate other) {
+            for (final Map.Entry<Long, Map<LogEvent.Type, long[]>> bucket : ((CountAggregate) other).m_counts.entrySet()) {
+                final Map<LogEvent.Type, long[]> counts = m_counts.computeIfAbsent(bucket.getKey(), k -> new EnumMap<>(LogEvent.Type.class));
+                for (final Map.Entry<LogEvent.Type, long[]> entry : bucket.getValue().entrySet()) {
+                    counts.computeIfAbsent(entry.getKey(), k -> new long[1])[0] += entry.getValue()[0];
+                }
+            }
+        }
+
+        @Override
+        public void print(final PrintStream out) {
+            for (final Map.Entry<Long, Map<LogEvent.Type, long[]>> bucket : m_counts.entrySet()) {
+                final StringBuilder sb = new StringBuilder(formatBucket(bucket.getKey()));
+                for (final Map.Entry<LogEvent.Type, long[]> entry : bucket.getValue().entrySet()) {
+                    sb.append(' ').append(entry.getKey().jsonName()).append('=').append(entry.getValue()[0]);
+                }
+                out.println(sb);
+            }
+        }
+
+    }
+
+    private static class TopAggregate implements Aggregate {
+
+        private final ChronoUnit m_unit;
+        private final int m_limit;
+        private final Map<Long, Map<String, long[]>> m_counts;
+
+        private TopAggregate(final ChronoUnit unit, final int limit) {
+            m_unit = unit;
+            m_limit = limit;
+            m_counts = new TreeMap<>();
+        }
+
+        @Override
+        public void accept(final LogEvent event, final String line) {
+            if (event.getType() == LogEvent.Type.COMMAND && event.getCommand() != null) {
+                m_counts.computeIfAbsent(bucketOf(m_unit, event.getTimestamp()), k -> new HashMap<>())
+                        .computeIfAbsent(event.getCommand(), k -> new long[1])[0]++;
+            }
+        }
+
+        @Override
+        public void merge(final Aggregate other) {
+            for (final Map.Entry<Long, Map<String, long[]>> bucket : ((TopAggregate) other).m_counts.entrySet()) {
+                final Map<String, long[]> counts = m_counts.computeIfAbsent(bucket.getKey(), k -> new HashMap<>());
+                for (final Map.Entry<String, long[]> entry : bucket.getValue().entrySet()) {
+                    counts.computeIfAbsent(entry.getKey(), k -> new long[1])[0] += entry.getValue()[0];
+                }
+            }
+        }
+
+        @Override
+        public void print(final PrintStream out) {
+            for (final Map.Entry<Long, Map<String, long[]>> bucket : m_counts.entrySet()) {
+                out.println(formatBucket(bucket.getKey()));
+                bucket.getValue().entrySet().stream().sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0])).limit(m_limit)
+                        .forEachOrdered(entry -> out.println(String.format("  %-24s %d", entry.getKey(), entry.getValue()[0])));
+            }
+        }
+
+    }
+
+    private static class LatencyAggregate implements Aggregate {
+
+        private final ChronoUnit m_unit;
+        private final Map<Long, Map<String, Histogram>> m_histograms;
+
+        private LatencyAggregate(final ChronoUnit unit) {
+            m_unit = unit;
+            m_histograms = new TreeMap<>();
+        }
+
+        @Override
+        public void accept(final LogEvent event, final String line) {
+            if (event.getLatency() != LogEvent.NO_LATENCY) {
+                final String key = event.getCommand() != null ? '!' + event.getCommand() : event.getType().jsonName();
+                m_histograms.computeIfAbsent(bucketOf(m_unit, event.getTimestamp()), k -> new TreeMap<>())
+                        .computeIfAbsent(key, k -> new Histogram()).record(event.getLatency());
+            }
+        }
+
+        @Override
+        public void merge(final Aggregate other) {
+            for (final Map.Entry<Long, Map<String, Histogram>> bucket : ((LatencyAggregate) other).m_histograms.entrySet()) {
+                final Map<String, Histogram> histograms = m_histograms.computeIfAbsent(bucket.getKey(), k -> new TreeMap<>());
+                for (final Map.Entry<String, Histogram> entry : bucket.getValue().entrySet()) {
+                    histograms.computeIfAbsent(entry.getKey(), k -> new Histogram()).merge(entry.getValue());
+                }
+            }
+        }
+
+        @Override
+        public void print(final PrintStream out) {
+            for (final Map.Entry<Long, Map<String, Histogram>> bucket : m_histograms.entrySet()) {
+                out.println(formatBucket(bucket.getKey()));
+                out.println(String.format("  %-24s %10s %10s %10s %10s %10s", "key", "count", "p50", "p90", "p99", "max"));
+                for (final Map.Entry<String, Histogram> entry : bucket.getValue().entrySet()) {
+                    final Histogram h = entry.getValue();
+                    out.println(String.format("  %-24s %10d %10.2f %10.2f %10.2f %10.2f", entry.getKey(), h.count(), h.quantile(0.5) / 1000.0,
+                            h.quantile(0.9) / 1000.0, h.quantile(0.99) / 1000.0, h.max() / 1000.0));
+                }
+            }
+        }
+
+    }
+
+}
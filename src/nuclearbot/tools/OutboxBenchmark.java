@@ -0,0 +1,137 @@
+package nuclearbot.tools;
+
+import nuclearbot.client.ImplChatOut;
+import nuclearbot.client.Outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Command-line tool to compare the throughput of the chat output
+ * with the lines kept in memory and with the durable outbox.<br>
+ * Both write to a stream that only counts the lines, so only the
+ * queueing and the flushing are measured, not the network. The lines
+ * are sent in bursts that fit the in-memory queue, each burst waits
+ * until the previous one was written.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class OutboxBenchmark {
+
+    private static final String USAGE = "Usage: java -cp NuclearBot.jar " + OutboxBenchmark.class.getName() + " [lines] [burst]\n"
+            + "  lines  lines written in each mode (default: 200000)\n"
+            + "  burst  lines written before waiting for them, at most 50 (default: 40)";
+
+    private static final String LINE = "PRIVMSG #channel :@viewer42 your song request was added to the queue!\r\n";
+    private static final int ROUNDS = 3; // the first one warms up
+
+    private OutboxBenchmark() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final int lines;
+        final int burst;
+        try {
+            lines = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+            burst = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+            if (lines < 1 || burst < 1 || burst > 50) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        final Path directory = Files.createTempDirectory("outbox-benchmark");
+        try {
+            final Outbox outbox = new Outbox(directory.toFile(), TimeUnit.HOURS.toMillis(1));
+            for (int round = 1; round <= ROUNDS; round++) {
+                final double memory = run(null, lines, burst);
+                final double durable = run(outbox, lines, burst);
+                System.out.printf("round %d: memory %,.0f lines/s, outbox %,.0f lines/s (%.2fx)%n", round, memory, durable, memory / durable);
+            }
+        } finally {
+            final File[] files = directory.toFile().listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+        System.exit(0); // the output threads aren't daemons
+    }
+
+    // returns the lines per second from the first write to the last flush
+    private static double run(final Outbox outbox, final int lines, final int burst) {
+        final CountingStream stream = new CountingStream();
+        final ImplChatOut out = new ImplChatOut(stream, "benchmark", outbox);
+        out.openOutbox();
+
+        final long start = System.nanoTime();
+        for (int written = 0; written < lines; ) {
+            final int count = Math.min(burst, lines - written);
+            for (int i = 0; i < count; i++) {
+                out.write(LINE);
+            }
+            written += count;
+            while (stream.lines < written) {
+                LockSupport.parkNanos(1000L);
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        out.close();
+        return lines * 1e9 / elapsed;
+    }
+
+    // counts the line endings written
+    private static class CountingStream extends OutputStream {
+
+        private volatile int lines = 0;
+
+        @Override
+        public void write(final int b) {
+            if (b == '\n') {
+                lines++; // only the output thread writes
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            int count = 0;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    count++;
+                }
+            }
+            lines += count;
+        }
+
+    }
+
+}
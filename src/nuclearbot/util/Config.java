@@ -1,10 +1,37 @@
 package nuclearbot.util;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /*
  * Copyright (C) 2017 NuclearCoder
@@ -25,6 +52,18 @@ import java.util.Properties;
 
 /**
  * Static class for configuration.<br>
+ * The values are held in an immutable {@link Snapshot} that is replaced
+ * on every change, so reading is a field access and a hash lookup without
+ * locking, and the numbers and booleans are parsed only once.<br>
+ * Changes are saved atomically in the background shortly after they're made.
+ * The file is watched, and edits made to it while the bot runs are loaded
+ * on top of the current values: only the values that differ from what the
+ * bot last read or wrote are taken, so its own saves change nothing.
+ * Missing keys read their default value without being added, except the
+ * Twitch credentials, which are added empty for the user to fill in.
+ * The file is saved as ASCII with escapes; an older file written in the
+ * platform encoding is read in that encoding and saved again. Registered {@link Listener}s are told which
+ * keys changed, on the config thread.<br>
  * <br>
  * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
  *
@@ -32,86 +71,128 @@ import java.util.Properties;
  */
 public class Config {
 
-    private static final Properties prop;
+    private static final String FILE_NAME = "config.properties";
+    private static final String COMMENT = "please do not attempt to edit anything manually unless explicitly directed otherwise";
+    private static final long SAVE_DELAY = 500L; // ms, coalesces bursts of changes
+    private static final long RELOAD_DELAY = 200L; // ms, editors write a file in several steps
+    private static final String[] REQUIRED_KEYS = {"twitch_user", "twitch_oauth_key"};
+
     private static final File configFile;
+    private static final Object writeLock;
+    private static final Object saveLock;
+    private static final List<Listener> listeners;
+    private static final ScheduledExecutorService executor;
 
-    static {
-        Runtime.getRuntime().addShutdownHook(new Thread(new ConfigShutdownHook()));
+    private static volatile Snapshot snapshot;
+    private static volatile Map<String, String> fileValues; // what the file holds as far as we know, set under saveLock
 
-        configFile = new File("config.properties");
+    // guarded by writeLock
+    private static ScheduledFuture<?> pendingSave;
+    private static ScheduledFuture<?> pendingReload;
+
+    static {
+        configFile = new File(FILE_NAME).getAbsoluteFile();
 
         if (configFile.isDirectory()) {
             Logger.error("Couldn't write to config.properties in the program's directory.");
             System.exit(1);
         }
-        if (!configFile.exists() && configFile.mkdirs() && configFile.delete()) { // create an empty config file if it doesn't exist
-            try {
-                configFile.createNewFile();
-            } catch (IOException e) {
-                Logger.error("An error occurred while creating config file.");
-                Logger.printStackTrace(e);
-                System.exit(1);
-            }
-        }
 
-        prop = new Properties();
+        writeLock = new Object();
+        saveLock = new Object();
+        listeners = new CopyOnWriteArrayList<>();
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "config");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pendingSave = null;
+        pendingReload = null;
 
-        try (final FileReader in = new FileReader(configFile)) {
-            prop.load(in);
+        Map<String, String> values;
+        try {
+            values = readFile();
         } catch (IOException e) {
             Logger.error("An error occurred while loading config.");
             Logger.printStackTrace(e);
+            values = Collections.emptyMap();
         }
+        fileValues = values;
+        snapshot = new Snapshot(values, null);
+        for (final String key : REQUIRED_KEYS) {
+            if (!values.containsKey(key)) {
+                set(key, "");
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new ConfigShutdownHook()));
+        startWatcher();
+    }
+
+    private Config() {
+    }
+
+    /**
+     * Returns the current values. The snapshot never changes,
+     * read several related values from the same one.
+     *
+     * @return the current snapshot
+     */
+    public static Snapshot snapshot() {
+        return snapshot;
     }
 
     /**
-     * Writes the configuration into the file.
+     * Writes the configuration into the file now.
+     * Changes are otherwise saved in the background shortly after they're made.
      *
-     * @throws IOException if the file exists but is a directory
-     *                     rather than a regular file, does not exist but cannot be
-     *                     created, or cannot be opened for any other reason
+     * @throws IOException if the file could not be written
      */
     public static void saveConfig() throws IOException {
-        try (final FileWriter writer = new FileWriter(configFile)) {
-            prop.store(writer, "please do not attempt to edit anything manually unless explicitly directed otherwise");
+        synchronized (writeLock) {
+            if (pendingSave != null) {
+                pendingSave.cancel(false);
+                pendingSave = null;
+            }
         }
+        writeFile();
     }
 
     /**
      * Reloads the configuration from the file.
+     * The values in the file replace the current ones,
+     * the keys that aren't in the file keep their value.
      *
-     * @throws IOException if the file does not exist, is
-     *                     a directory rather than a regular file, or for some other
-     *                     reason cannot be opened for reading.
+     * @throws IOException if the file could not be read
      */
     public static void reloadConfig() throws IOException {
-        try (final FileReader reader = new FileReader(configFile)) {
-            prop.load(reader);
+        synchronized (saveLock) {
+            final Map<String, String> values = readFile();
+            synchronized (writeLock) {
+                fileValues = values;
+                update(values, false);
+            }
         }
     }
 
     /**
      * Returns the property with the specified key in this
      * configuration. If the key is not found in the list,
-     * the method returns the default value and the property is set.
+     * the method returns the default value.
      *
      * @param key          the property key
      * @param defaultValue the default value
      * @return the value in this property list with the specified key
      */
     public static String get(final String key, final String defaultValue) {
-        if (prop.containsKey(key)) {
-            return prop.getProperty(key);
-        } else {
-            prop.setProperty(key, defaultValue);
-            return defaultValue;
-        }
+        final Value value = snapshot.m_values.get(key);
+        return value != null ? value.text : defaultValue;
     }
 
     /**
      * Returns the property with the specified key in this
      * configuration. If the key is not found in the list,
-     * the method returns an empty string and the property is set.
+     * the method returns an empty string.
      *
      * @param key the property key
      * @return the value in this property list with the specified key
@@ -120,17 +201,395 @@ public class Config {
         return get(key, "");
     }
 
+    /**
+     * Returns the property with the specified key as an integer.
+     * If the key is not found in the list, the method returns
+     * the default value. If the value is
+     * not an integer, the default value is returned, and a warning is
+     * logged the first time the value is read.
+     *
+     * @param key          the property key
+     * @param defaultValue the default value
+     * @return the value, or the default value
+     */
+    public static int getInt(final String key, final int defaultValue) {
+        final Value value = snapshot.m_values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.number == null || value.number < Integer.MIN_VALUE || value.number > Integer.MAX_VALUE) {
+            warnInvalid(key, value, "an integer", defaultValue);
+            return defaultValue;
+        }
+        return (int) (long) value.number;
+    }
+
+    /**
+     * Returns the property with the specified key as a long integer.
+     * If the key is not found in the list, the method returns
+     * the default value. If the value is
+     * not an integer, the default value is returned, and a warning is
+     * logged the first time the value is read.
+     *
+     * @param key          the property key
+     * @param defaultValue the default value
+     * @return the value, or the default value
+     */
+    public static long getLong(final String key, final long defaultValue) {
+        final Value value = snapshot.m_values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.number == null) {
+            warnInvalid(key, value, "a number", defaultValue);
+            return defaultValue;
+        }
+        return value.number;
+    }
+
+    // once per loaded value, the numbers are read on hot paths
+    private static void warnInvalid(final String key, final Value value, final String expected, final long defaultValue) {
+        if (!value.warned) {
+            value.warned = true;
+            Logger.warning("(Config) \"" + key + "\" is not " + expected + ", using " + defaultValue + ".");
+        }
+    }
+
+    /**
+     * Returns the property with the specified key as a boolean.
+     * If the key is not found in the list, the method returns
+     * the default value.
+     *
+     * @param key          the property key
+     * @param defaultValue the default value
+     * @return true if the value is "true" ignoring case
+     */
+    public static boolean getBoolean(final String key, final boolean defaultValue) {
+        final Value value = snapshot.m_values.get(key);
+        return value != null ? value.bool : defaultValue;
+    }
+
     /**
      * Sets the property with the specified key in this
      * configuration with the specified value. This method
      * returns the previous value, or null if there was none.
+     * The file is saved shortly after.
      *
      * @param key   the property key
      * @param value the new value
      * @return the previous value, or null
      */
     public static String set(final String key, final String value) {
-        return (String) prop.setProperty(key, value);
+        synchronized (writeLock) {
+            final Value previous = snapshot.m_values.get(key);
+            update(Collections.singletonMap(key, value), true);
+            return previous != null ? previous.text : null;
+        }
+    }
+
+    /**
+     * Returns the keys of this configuration, sorted.
+     *
+     * @return the property keys
+     */
+    public static List<String> keys() {
+        return snapshot.keys();
+    }
+
+    /**
+     * Registers a listener notified after the values changed,
+     * on the config thread.
+     *
+     * @param listener the listener
+     */
+    public static void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /* **** internals **** */
+
+    // replaces the snapshot with the values changed, saves if asked and notifies the listeners
+    private static void update(final Map<String, String> changes, final boolean save) {
+        synchronized (writeLock) {
+            final Snapshot previous = snapshot;
+            final Set<String> changed = new HashSet<>();
+            for (final Map.Entry<String, String> entry : changes.entrySet()) {
+                final Value value = previous.m_values.get(entry.getKey());
+                if (value == null || !value.text.equals(entry.getValue())) {
+                    changed.add(entry.getKey());
+                }
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+            final Map<String, String> values = new HashMap<>();
+            for (final String key : changed) {
+                values.put(key, changes.get(key));
+            }
+            final Snapshot current = new Snapshot(values, previous);
+            snapshot = current;
+
+            if (save && pendingSave == null) {
+                pendingSave = executor.schedule(Config::saveInBackground, SAVE_DELAY, TimeUnit.MILLISECONDS);
+            }
+            final Set<String> keys = Collections.unmodifiableSet(changed);
+            executor.execute(() -> notifyListeners(previous, current, keys));
+        }
+    }
+
+    private static void notifyListeners(final Snapshot previous, final Snapshot current, final Set<String> changed) {
+        for (final Listener listener : listeners) {
+            try {
+                listener.configChanged(previous, current, changed);
+            } catch (RuntimeException e) {
+                Logger.error("(Config) Exception in a config listener:");
+                Logger.printStackTrace(e);
+            }
+        }
+    }
+
+    private static void saveInBackground() {
+        synchronized (writeLock) {
+            pendingSave = null;
+        }
+        try {
+            writeFile();
+        } catch (IOException e) {
+            Logger.error("(Config) Couldn't save config:");
+            Logger.printStackTrace(e);
+        }
+    }
+
+    // writes a temporary file and moves it over the config, so that it is never half-written
+    private static void writeFile() throws IOException {
+        synchronized (saveLock) {
+            final Properties properties = new Properties();
+            final Map<String, String> values = new HashMap<>();
+            for (final Map.Entry<String, Value> entry : snapshot.m_values.entrySet()) {
+                properties.setProperty(entry.getKey(), entry.getValue().text);
+                values.put(entry.getKey(), entry.getValue().text);
+            }
+            final File temp = new File(configFile.getPath() + ".tmp");
+            try (final FileOutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, COMMENT); // escapes everything outside ASCII
+                out.getFD().sync();
+            }
+            try {
+                Files.move(temp.toPath(), configFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), configFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            fileValues = values;
+        }
+    }
+
+    private static Map<String, String> readFile() throws IOException {
+        final byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(configFile.toPath());
+        } catch (NoSuchFileException e) {
+            return Collections.emptyMap(); // created by the first save
+        }
+        String text;
+        try {
+            text = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(bytes)).toString();
+        } catch (CharacterCodingException e) {
+            // written by an older version in the platform encoding, the next save escapes it
+            text = new String(bytes, Charset.defaultCharset());
+            Logger.info("(Config) Read config in the " + Charset.defaultCharset().name() + " encoding, it will be saved again.");
+            synchronized (writeLock) {
+                if (pendingSave == null) {
+                    pendingSave = executor.schedule(Config::saveInBackground, SAVE_DELAY, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        final Properties properties = new Properties();
+        properties.load(new StringReader(text));
+        final Map<String, String> values = new HashMap<>();
+        for (final String key : properties.stringPropertyNames()) {
+            values.put(key, properties.getProperty(key));
+        }
+        return values;
+    }
+
+    // watches the directory, since the file itself is replaced on every save
+    private static void startWatcher() {
+        final Path directory = configFile.getParentFile().toPath();
+        final Path name = configFile.toPath().getFileName();
+        final WatchService watcher;
+        try {
+            watcher = directory.getFileSystem().newWatchService();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            Logger.warning("(Config) Couldn't watch the config file, changes to it will need a reload:");
+            Logger.printStackTrace(e);
+            return;
+        }
+
+        final Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    final WatchKey key = watcher.take();
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        if (name.equals(event.context()) || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scheduleReload();
+                        }
+                    }
+                    if (!key.reset()) {
+                        Logger.warning("(Config) The config directory can't be watched anymore.");
+                        return;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException ignored) {
+                // stops watching
+            }
+        }, "config watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void scheduleReload() {
+        synchronized (writeLock) {
+            if (pendingReload != null) {
+                pendingReload.cancel(false);
+            }
+            pendingReload = executor.schedule(() -> {
+                try {
+                    // only what changed in the file since it was last read or written,
+                    // so that our own saves don't bring back values set since
+                    synchronized (saveLock) { // not between a save and its record
+                        final Map<String, String> values = readFile();
+                        synchronized (writeLock) {
+                            final Map<String, String> known = fileValues;
+                            final Map<String, String> edited = new HashMap<>();
+                            for (final Map.Entry<String, String> entry : values.entrySet()) {
+                                if (!entry.getValue().equals(known.get(entry.getKey()))) {
+                                    edited.put(entry.getKey(), entry.getValue());
+                                }
+                            }
+                            fileValues = values;
+                            update(edited, false);
+                        }
+                    }
+                } catch (IOException e) {
+                    Logger.warning("(Config) Couldn't reload the changed config file:");
+                    Logger.printStackTrace(e);
+                }
+            }, RELOAD_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Notified after configuration values changed,
+     * because they were set or because the file was edited.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the config thread after values changed.
+         *
+         * @param previous the values before the change
+         * @param current  the values after the change
+         * @param changed  the keys that were added or changed
+         */
+        void configChanged(Snapshot previous, Snapshot current, Set<String> changed);
+
+    }
+
+    /**
+     * Immutable set of configuration values.
+     * The numbers and booleans are parsed when the snapshot is made,
+     * and values that didn't change are shared with the previous snapshot.
+     */
+    public static final class Snapshot {
+
+        private final Map<String, Value> m_values;
+
+        private Snapshot(final Map<String, String> changes, final Snapshot previous) {
+            m_values = previous != null ? new HashMap<>(previous.m_values) : new HashMap<>();
+            for (final Map.Entry<String, String> entry : changes.entrySet()) {
+                m_values.put(entry.getKey(), new Value(entry.getValue()));
+            }
+        }
+
+        public boolean contains(final String key) {
+            return m_values.containsKey(key);
+        }
+
+        /**
+         * Returns the value of the specified key.
+         *
+         * @param key          the property key
+         * @param defaultValue returned if there is no value
+         * @return the value or the default value
+         */
+        public String get(final String key, final String defaultValue) {
+            final Value value = m_values.get(key);
+            return value != null ? value.text : defaultValue;
+        }
+
+        /**
+         * Returns the value of the specified key as an integer.
+         *
+         * @param key          the property key
+         * @param defaultValue returned if there is no value or if it is not an integer
+         * @return the value or the default value
+         */
+        public long getLong(final String key, final long defaultValue) {
+            final Value value = m_values.get(key);
+            return value != null && value.number != null ? value.number : defaultValue;
+        }
+
+        public int getInt(final String key, final int defaultValue) {
+            final long value = getLong(key, defaultValue);
+            return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? (int) value : defaultValue;
+        }
+
+        public boolean getBoolean(final String key, final boolean defaultValue) {
+            final Value value = m_values.get(key);
+            return value != null ? value.bool : defaultValue;
+        }
+
+        /**
+         * Returns the keys of this snapshot, sorted.
+         *
+         * @return the property keys
+         */
+        public List<String> keys() {
+            final List<String> keys = new ArrayList<>(m_values.keySet());
+            Collections.sort(keys);
+            return keys;
+        }
+
+    }
+
+    // a property value, parsed once
+    private static final class Value {
+
+        private final String text;
+        private final Long number; // null if not an integer
+        private final boolean bool;
+        private volatile boolean warned; // if it was read as an invalid number
+
+        private Value(final String text) {
+            this.text = text;
+            this.number = parseNumber(text);
+            this.bool = Boolean.parseBoolean(text.trim());
+        }
+
+        private static Long parseNumber(final String text) {
+            try {
+                return Long.parseLong(text.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
     }
 
     private static class ConfigShutdownHook implements Runnable {
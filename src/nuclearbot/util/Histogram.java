@@ -0,0 +1,152 @@
+package nuclearbot.util;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Fixed-size log-linear histogram for non-negative values.<br>
+ * Each power of two is split in 32 buckets, so quantiles are
+ * accurate to about 3%. Histograms can be merged, which makes
+ * them suitable for parallel aggregation. Not thread-safe.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKET_COUNT = (63 - SUB_BITS) * SUB_COUNT + SUB_COUNT;
+
+    private final long[] m_counts;
+    private long m_total;
+    private long m_max;
+    private long m_sum;
+
+    public Histogram() {
+        m_counts = new long[BUCKET_COUNT];
+        m_total = 0L;
+        m_max = 0L;
+        m_sum = 0L;
+    }
+
+    /**
+     * Returns the bucket index for the specified value.
+     *
+     * @param value a non-negative value
+     * @return the bucket index
+     */
+    static int bucketOf(final long value) {
+        if (value < SUB_COUNT) {
+            return (int) Math.max(0L, value);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int mantissa = (int) (value >>> (exponent - SUB_BITS));
+        return (exponent - SUB_BITS) * SUB_COUNT + mantissa;
+    }
+
+    /**
+     * Returns the highest value that falls in the specified bucket.
+     *
+     * @param bucket the bucket index
+     * @return the upper bound of the bucket
+     */
+    static long upperBoundOf(final int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_COUNT - 1;
+        final long mantissa = SUB_COUNT + bucket % SUB_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value the value to record
+     */
+    public void record(final long value) {
+        final long v = Math.max(0L, value);
+        m_counts[bucketOf(v)]++;
+        m_total++;
+        m_sum += v;
+        if (v > m_max) {
+            m_max = v;
+        }
+    }
+
+    /**
+     * Adds the values of the specified histogram to this one.
+     *
+     * @param other the histogram to merge
+     */
+    public void merge(final Histogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            m_counts[i] += other.m_counts[i];
+        }
+        m_total += other.m_total;
+        m_sum += other.m_sum;
+        m_max = Math.max(m_max, other.m_max);
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    public void reset() {
+        Arrays.fill(m_counts, 0L);
+        m_total = 0L;
+        m_sum = 0L;
+        m_max = 0L;
+    }
+
+    /**
+     * Returns the value at the specified quantile, or 0 if empty.
+     *
+     * @param quantile the quantile, between 0 and 1
+     * @return the approximate value at that quantile
+     */
+    public long quantile(final double quantile) {
+        if (m_total == 0L) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(quantile * m_total));
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += m_counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), m_max);
+            }
+        }
+        return m_max;
+    }
+
+    public long count() {
+        return m_total;
+    }
+
+    public long sum() {
+        return m_sum;
+    }
+
+    public long max() {
+        return m_max;
+    }
+
+}
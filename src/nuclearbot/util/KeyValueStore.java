@@ -0,0 +1,1034 @@
+package nuclearbot.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Embedded log-structured key-value store, in the manner of Bitcask.<br>
+ * Every write is appended to the active data file, and an in-memory
+ * hash index maps each key to the position of its latest value, so
+ * a write is one positional write and a read is one positional read.
+ * Deletions append a tombstone. Once the active file is full, a new one
+ * is started. The files are synced to disk every second.<br>
+ * A background thread compacts the full files once at least half of
+ * their bytes are overwritten or deleted values: it copies the live
+ * records into one file, which replaces them. Each record is copied
+ * only once at least as many dead bytes are dropped, which bounds
+ * the write amplification to two.<br>
+ * The index is saved to a snapshot when closing, and once a megabyte was
+ * written since the last one. On opening, the snapshot is read from a
+ * mapping and only the records written after it are replayed, so the
+ * time to open depends on the keys and not on the history. Without a valid
+ * snapshot, all the files are replayed in order.
+ * A record cut by a crash fails its checksum and is dropped.
+ * A compaction is committed by renaming its output, so a crash leaves
+ * either the old files or the new one. The snapshot is deleted before,
+ * since it points into the old files.<br>
+ * Keys are strings, values are bytes. Plugins should use a
+ * {@link Namespace}, see {@link #namespace(String)}.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class KeyValueStore implements Closeable {
+
+    private static final int HEADER_SIZE = 12; // checksum, key length, value length
+    private static final int TOMBSTONE = -1;
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+    private static final int MAX_VALUE_LENGTH = 1 << 24;
+    private static final long MAX_FILE_SIZE = 16L * 1024L * 1024L;
+    private static final long MIN_GARBAGE = 4L * 1024L * 1024L; // don't compact for less
+    private static final long SYNC_PERIOD = TimeUnit.SECONDS.toMillis(1);
+    private static final long COMPACTION_PERIOD = TimeUnit.SECONDS.toMillis(30);
+    private static final long SNAPSHOT_THRESHOLD = 1024L * 1024L; // bytes a restart would replay
+    private static final int SNAPSHOT_MAGIC = 0x4E42534E;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final String DATA_PREFIX = "data-";
+    private static final String DATA_SUFFIX = ".log";
+    private static final String COMPACT_SUFFIX = ".compact"; // compaction output being written
+    private static final String MERGED_SUFFIX = ".merged"; // complete compaction output
+    private static final String SNAPSHOT_NAME = "index.snapshot";
+
+    private static KeyValueStore defaultStore = null;
+
+    private final File m_directory;
+    private final File m_snapshotFile;
+    private final Map<String, Location> m_index;
+    private final Map<Integer, DataFile> m_files;
+    private final Object m_writeLock;
+    private final CRC32 m_crc; // guarded by m_writeLock
+    private final ScheduledExecutorService m_executor;
+    private final AtomicBoolean m_compacting;
+    private final List<Runnable> m_closeHooks;
+
+    // guarded by m_writeLock
+    private DataFile m_active;
+    private ByteBuffer m_buffer;
+    private boolean m_dirty;
+    private long m_replayBytes; // written since the snapshot
+
+    private volatile boolean m_closed;
+
+    /**
+     * Opens the store in the specified directory, creating it if needed,
+     * loads the snapshot and replays the data written after it.
+     *
+     * @param directory the store directory
+     * @throws IOException if the directory or the files could not be opened
+     */
+    public KeyValueStore(final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create store directory \"" + directory.getAbsolutePath() + "\".");
+        }
+        m_directory = directory;
+        m_snapshotFile = new File(directory, SNAPSHOT_NAME);
+        m_index = new ConcurrentHashMap<>();
+        m_files = new ConcurrentHashMap<>();
+        m_writeLock = new Object();
+        m_crc = new CRC32();
+        m_compacting = new AtomicBoolean();
+        m_closeHooks = new CopyOnWriteArrayList<>();
+        m_buffer = ByteBuffer.allocate(4096);
+        m_dirty = false;
+        m_closed = false;
+
+        final long start = System.nanoTime();
+        finishCompaction();
+        final int[] ids = dataFileIds();
+        for (final int id : ids) {
+            m_files.put(id, new DataFile(id, dataFile(id, DATA_SUFFIX)));
+        }
+        final int snapshotId = loadSnapshot(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] >= snapshotId) {
+                final DataFile file = m_files.get(ids[i]);
+                m_replayBytes += replay(file, ids[i] == snapshotId ? file.size : 0L, i == ids.length - 1);
+            }
+        }
+        synchronized (m_writeLock) {
+            if (ids.length != 0 && m_files.get(ids[ids.length - 1]).size < MAX_FILE_SIZE) {
+                m_active = m_files.get(ids[ids.length - 1]);
+            } else {
+                rotate(ids.length != 0 ? ids[ids.length - 1] + 1 : 0);
+            }
+        }
+        Logger.info("(Store) Opened \"" + directory.getPath() + "\" with " + m_index.size() + " keys in " + ids.length + " file(s), "
+                + (snapshotId != -1 ? "from a snapshot and " : "") + m_replayBytes / 1024 + " KiB replayed, in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+
+        m_executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_executor.scheduleWithFixedDelay(this::sync, SYNC_PERIOD, SYNC_PERIOD, TimeUnit.MILLISECONDS);
+        m_executor.scheduleWithFixedDelay(this::compact, COMPACTION_PERIOD, COMPACTION_PERIOD, TimeUnit.MILLISECONDS);
+        m_executor.scheduleWithFixedDelay(() -> snapshot(SNAPSHOT_THRESHOLD), COMPACTION_PERIOD, COMPACTION_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the store shared by the bot and its plugins, opening it
+     * in the directory set by "store_dir" the first time.
+     *
+     * @return the default store
+     * @throws IOException if the store could not be opened
+     */
+    public static synchronized KeyValueStore getDefault() throws IOException {
+        if (defaultStore == null) {
+            defaultStore = new KeyValueStore(new File(Config.get("store_dir", "store")));
+            final KeyValueStore store = defaultStore;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    Logger.error("(Exit) Couldn't close the store:");
+                    Logger.printStackTrace(e);
+                }
+            }));
+        }
+        return defaultStore;
+    }
+
+    /* **** access **** */
+
+    /**
+     * Returns the value of the specified key.
+     *
+     * @param key the key
+     * @return the value, or null if there is none
+     * @throws IOException if the value could not be read
+     */
+    public byte[] get(final String key) throws IOException {
+        Location location = m_index.get(key);
+        while (location != null) {
+            try {
+                return location.file.readValue(location);
+            } catch (ClosedChannelException e) {
+                // the file was compacted meanwhile, the index points to the new one
+                final Location moved = m_index.get(key);
+                if (m_closed || moved == location) {
+                    throw e;
+                }
+                location = moved;
+            }
+        }
+        return null;
+    }
+
+    public boolean contains(final String key) {
+        return m_index.containsKey(key);
+    }
+
+    /**
+     * Sets the value of the specified key.
+     *
+     * @param key   the key
+     * @param value the value
+     * @throws IOException if the value could not be written
+     */
+    public void put(final String key, final byte[] value) throws IOException {
+        if (value.length > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Value is longer than " + MAX_VALUE_LENGTH + " bytes.");
+        }
+        final byte[] keyBytes = encodeKey(key);
+        synchronized (m_writeLock) {
+            final Location location = append(keyBytes, value, value.length);
+            final Location previous = m_index.put(key, location);
+            if (previous != null) {
+                previous.file.garbage += previous.size();
+            }
+        }
+    }
+
+    /**
+     * Removes the specified key.
+     *
+     * @param key the key
+     * @return true if the key had a value
+     * @throws IOException if the removal could not be written
+     */
+    public boolean delete(final String key) throws IOException {
+        final byte[] keyBytes = encodeKey(key);
+        synchronized (m_writeLock) {
+            final Location previous = m_index.get(key);
+            if (previous == null) {
+                return false;
+            }
+            final Location tombstone = append(keyBytes, null, TOMBSTONE);
+            m_index.remove(key);
+            previous.file.garbage += previous.size();
+            tombstone.file.garbage += tombstone.size(); // only needed until the older files are compacted
+            return true;
+        }
+    }
+
+    /**
+     * Adds to the number stored at the specified key, atomically.
+     * A missing key counts as zero.
+     *
+     * @param key   the key
+     * @param delta the value to add
+     * @return the new value
+     * @throws IOException if the value could not be read or written
+     */
+    public long add(final String key, final long delta) throws IOException {
+        synchronized (m_writeLock) {
+            final long value = getLong(key, 0L) + delta;
+            putLong(key, value);
+            return value;
+        }
+    }
+
+    public String getString(final String key) throws IOException {
+        final byte[] value = get(key);
+        return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+
+    public void putString(final String key, final String value) throws IOException {
+        put(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public long getLong(final String key, final long defaultValue) throws IOException {
+        final byte[] value = get(key);
+        return value != null && value.length == 8 ? ByteBuffer.wrap(value).getLong() : defaultValue;
+    }
+
+    public void putLong(final String key, final long value) throws IOException {
+        put(key, ByteBuffer.allocate(8).putLong(0, value).array());
+    }
+
+    /**
+     * Returns the keys starting with the specified prefix.
+     * This walks the whole index.
+     *
+     * @param prefix the prefix
+     * @return the matching keys, in no particular order
+     */
+    public List<String> keys(final String prefix) {
+        final List<String> keys = new ArrayList<>();
+        for (final String key : m_index.keySet()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    public int size() {
+        return m_index.size();
+    }
+
+    /**
+     * Returns a view of the keys starting with the specified name and a slash.
+     *
+     * @param name the namespace name, like a plugin class name
+     * @return the namespace
+     */
+    public Namespace namespace(final String name) {
+        if (name.isEmpty() || name.indexOf('/') != -1) {
+            throw new IllegalArgumentException("Invalid namespace \"" + name + "\".");
+        }
+        return new Namespace(this, name + '/');
+    }
+
+    /**
+     * Registers a task run when the store is closing, before it is closed,
+     * to write what is still buffered elsewhere.
+     * The default store is closed when the program exits.
+     *
+     * @param hook the task
+     */
+    public void addCloseHook(final Runnable hook) {
+        m_closeHooks.add(hook);
+    }
+
+    /**
+     * Runs the close hooks, writes the pending data to the disk,
+     * saves a snapshot of the index and closes the files.
+     *
+     * @throws IOException if the files could not be synced
+     */
+    @Override
+    public void close() throws IOException {
+        if (m_closed) {
+            return;
+        }
+        for (final Runnable hook : m_closeHooks) {
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                Logger.error("(Store) Exception in a close hook:");
+                Logger.printStackTrace(e);
+            }
+        }
+        synchronized (m_writeLock) {
+            if (m_closed) {
+                return;
+            }
+            m_closed = true;
+        }
+        // let a running compaction finish, interrupting it would close the channels it reads
+        m_executor.shutdown();
+        boolean stopped = false;
+        try {
+            stopped = m_executor.awaitTermination(1L, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (stopped) { // the snapshot must not be written during a compaction
+            snapshot(1L);
+        }
+        synchronized (m_writeLock) {
+            m_active.channel().force(false);
+            for (final DataFile file : m_files.values()) {
+                file.retire();
+            }
+        }
+    }
+
+    private static byte[] encodeKey(final String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key must be 1 to " + MAX_KEY_LENGTH + " bytes long.");
+        }
+        return bytes;
+    }
+
+    /* **** writing **** */
+
+    // must hold m_writeLock, value is null for a tombstone
+    private Location append(final byte[] key, final byte[] value, final int valueLength) throws IOException {
+        if (m_closed) {
+            throw new ClosedChannelException();
+        }
+        final int size = HEADER_SIZE + key.length + Math.max(valueLength, 0);
+        if (m_active.size + size > MAX_FILE_SIZE && m_active.size > 0L) {
+            rotate(m_active.id + 1);
+            m_executor.execute(this::compact);
+        }
+        if (m_buffer.capacity() < size) {
+            m_buffer = ByteBuffer.allocate(Math.max(size, m_buffer.capacity() * 2));
+        }
+        m_buffer.clear();
+        m_buffer.putInt(0).putInt(key.length).putInt(valueLength).put(key);
+        if (value != null) {
+            m_buffer.put(value);
+        }
+        m_crc.reset();
+        m_crc.update(m_buffer.array(), 4, size - 4);
+        m_buffer.putInt(0, (int) m_crc.getValue());
+        m_buffer.flip();
+
+        final DataFile file = m_active;
+        final long offset = file.size;
+        try {
+            file.write(m_buffer, offset);
+        } catch (IOException e) {
+            file.truncate(offset); // don't leave a partial record for the next one to follow
+            throw e;
+        }
+        file.size += size;
+        m_replayBytes += size;
+        m_dirty = true;
+        return new Location(file, offset, key.length, valueLength);
+    }
+
+    // must hold m_writeLock
+    private void rotate(final int id) throws IOException {
+        if (m_active != null) {
+            m_active.channel().force(false);
+        }
+        final DataFile file = new DataFile(id, dataFile(id, DATA_SUFFIX));
+        m_files.put(id, file);
+        m_active = file;
+    }
+
+    private void sync() {
+        final FileChannel channel;
+        synchronized (m_writeLock) {
+            if (!m_dirty || m_closed) {
+                return;
+            }
+            m_dirty = false;
+            channel = m_active.channel();
+        }
+        try {
+            channel.force(false); // without holding the lock, writes go on meanwhile
+        } catch (ClosedChannelException ignored) {
+            // rotated or closed meanwhile, which synced it
+        } catch (IOException e) {
+            Logger.warning("(Store) Couldn't sync the store:");
+            Logger.printStackTrace(e);
+        }
+    }
+
+    /* **** compaction **** */
+
+    private void compact() {
+        if (!m_compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final List<DataFile> inputs = new ArrayList<>();
+            long total = 0L;
+            long garbage = 0L;
+            synchronized (m_writeLock) {
+                if (m_closed) {
+                    return;
+                }
+                for (final DataFile file : m_files.values()) {
+                    if (file != m_active) {
+                        inputs.add(file);
+                        total += file.size;
+                        garbage += file.garbage;
+                    }
+                }
+            }
+            if (garbage < MIN_GARBAGE || garbage * 2 < total) {
+                return;
+            }
+            inputs.sort((a, b) -> Integer.compare(a.id, b.id));
+            compact(inputs, total, garbage);
+        } catch (IOException e) {
+            Logger.warning("(Store) Couldn't compact the store:");
+            Logger.printStackTrace(e);
+        } finally {
+            m_compacting.set(false);
+        }
+    }
+
+    // the output takes the id of the newest input, so it is still replayed before the newer files
+    private void compact(final List<DataFile> inputs, final long total, final long garbage) throws IOException {
+        final long start = System.nanoTime();
+        final int id = inputs.get(inputs.size() - 1).id;
+        final File compactFile = dataFile(id, COMPACT_SUFFIX);
+        final DataFile output = new DataFile(id, compactFile);
+        final Map<String, Location> copied = new HashMap<>(); // the locations in the inputs
+        final Map<String, Location> moved = new HashMap<>(); // the locations in the output
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        for (final DataFile input : inputs) {
+            input.scan(0L, input.size, (offset, checksum, key, value) -> {
+                final String name = new String(key, StandardCharsets.UTF_8);
+                final Location current = m_index.get(name);
+                if (value == null || current == null || current.file != input || current.offset != offset) {
+                    return; // overwritten, deleted or tombstone
+                }
+                final int size = HEADER_SIZE + key.length + value.length;
+                final ByteBuffer record = size <= buffer.capacity() ? buffer : ByteBuffer.allocate(size);
+                record.clear();
+                record.putInt(checksum).putInt(key.length).putInt(value.length).put(key).put(value).flip();
+                output.write(record, output.size);
+                copied.put(name, current);
+                moved.put(name, new Location(output, output.size, key.length, value.length));
+                output.size += size;
+            });
+        }
+        output.channel().force(true);
+        try {
+            Files.deleteIfExists(m_snapshotFile.toPath()); // it points into the inputs
+        } catch (IOException e) { // still mapped on some systems, try again later
+            output.retire();
+            Files.deleteIfExists(compactFile.toPath());
+            throw e;
+        }
+        moveAtomically(compactFile, dataFile(id, MERGED_SUFFIX)); // commit point
+        output.path = dataFile(id, MERGED_SUFFIX);
+
+        synchronized (m_writeLock) {
+            if (m_closed) {
+                output.retire();
+                return; // the merged file replaces the inputs on the next opening
+            }
+            for (final Map.Entry<String, Location> entry : moved.entrySet()) {
+                final Location location = entry.getValue();
+                if (!m_index.replace(entry.getKey(), copied.get(entry.getKey()), location)) {
+                    output.garbage += location.size(); // overwritten while compacting
+                }
+            }
+            for (final DataFile input : inputs) {
+                m_files.remove(input.id);
+            }
+            m_files.put(id, output);
+            m_replayBytes = 0L; // everything until there is a new snapshot
+            for (final DataFile file : m_files.values()) {
+                m_replayBytes += file.size;
+            }
+        }
+
+        // readers still holding an old location retry with the index
+        for (final DataFile input : inputs) {
+            input.retire();
+            if (input.id != id) {
+                Files.deleteIfExists(input.path.toPath());
+            }
+        }
+        output.moveTo(dataFile(id, DATA_SUFFIX));
+
+        Logger.info("(Store) Compacted " + inputs.size() + " file(s), " + total / 1024 + " KiB with " + garbage / 1024 + " KiB of garbage, into "
+                + output.size / 1024 + " KiB in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+    }
+
+    // completes a compaction interrupted after its commit point, drops one interrupted before
+    private void finishCompaction() throws IOException {
+        final File[] files = m_directory.listFiles((dir, name) -> name.startsWith(DATA_PREFIX) && (name.endsWith(COMPACT_SUFFIX) || name
+                .endsWith(MERGED_SUFFIX)));
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            if (file.getName().endsWith(COMPACT_SUFFIX)) {
+                Files.deleteIfExists(file.toPath());
+                continue;
+            }
+            final int id = parseId(file.getName(), MERGED_SUFFIX);
+            for (final int input : dataFileIds()) {
+                if (input < id) {
+                    Files.deleteIfExists(dataFile(input, DATA_SUFFIX).toPath());
+                }
+            }
+            Files.deleteIfExists(m_snapshotFile.toPath());
+            moveAtomically(file, dataFile(id, DATA_SUFFIX));
+            Logger.info("(Store) Finished an interrupted compaction.");
+        }
+    }
+
+    /* **** files **** */
+
+    private File dataFile(final int id, final String suffix) {
+        return new File(m_directory, String.format("%s%010d%s", DATA_PREFIX, id, suffix));
+    }
+
+    private static int parseId(final String name, final String suffix) {
+        return Integer.parseInt(name.substring(DATA_PREFIX.length(), name.length() - suffix.length()));
+    }
+
+    private int[] dataFileIds() {
+        final String[] names = m_directory.list((dir, name) -> name.startsWith(DATA_PREFIX) && name.endsWith(DATA_SUFFIX));
+        final int[] ids = new int[names == null ? 0 : names.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = parseId(names[i], DATA_SUFFIX);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private static void moveAtomically(final File source, final File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // rebuilds the index from a data file, later records win, returns the bytes replayed
+    private long replay(final DataFile file, final long from, final boolean last) throws IOException {
+        final long length = file.channel().size();
+        final long valid = file.scan(from, length, (offset, checksum, key, value) -> {
+            final String name = new String(key, StandardCharsets.UTF_8);
+            final Location location = new Location(file, offset, key.length, value != null ? value.length : TOMBSTONE);
+            final Location previous = value != null ? m_index.put(name, location) : m_index.remove(name);
+            if (previous != null) {
+                previous.file.garbage += previous.size();
+            }
+            if (value == null) {
+                file.garbage += location.size();
+            }
+        });
+        file.size = valid;
+        if (valid < length) {
+            if (last) {
+                Logger.warning("(Store) Dropped " + (length - valid) + " bytes cut at the end of \"" + file.path.getName() + "\".");
+                file.truncate(valid);
+            } else {
+                Logger.warning("(Store) \"" + file.path.getName() + "\" is corrupted after " + valid + " bytes, the rest is ignored.");
+                file.garbage += length - valid;
+                file.size = length;
+            }
+        }
+        return valid - from;
+    }
+
+    /* **** snapshot **** */
+
+    /*
+     * header:  magic, version, file count
+     * files:   id, size, garbage      (the index covers each file up to its size)
+     * entries: file id, offset, key length (2 bytes), value length, key
+     * trailer: entry count, checksum of everything before
+     */
+
+    // loads the snapshot if it matches the files, returns the id of the newest file it covers or -1
+    private int loadSnapshot(final int[] ids) throws IOException {
+        if (!m_snapshotFile.isFile()) {
+            return -1;
+        }
+        final MappedByteBuffer buffer;
+        try (final FileChannel channel = FileChannel.open(m_snapshotFile.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        }
+        try {
+            final int length = buffer.capacity();
+            final CRC32 crc = new CRC32();
+            buffer.limit(length - 4);
+            crc.update(buffer);
+            buffer.clear();
+            if ((int) crc.getValue() != buffer.getInt(length - 4) || buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                throw new IllegalStateException("bad checksum or version");
+            }
+
+            final Set<Integer> covered = new HashSet<>();
+            int lastId = -1;
+            for (int i = buffer.getInt(); i > 0; i--) {
+                final DataFile file = m_files.get(buffer.getInt());
+                final long size = buffer.getLong();
+                if (file == null || file.channel().size() < size) {
+                    throw new IllegalStateException("missing data");
+                }
+                file.size = size;
+                file.garbage = buffer.getLong();
+                covered.add(file.id);
+                lastId = Math.max(lastId, file.id);
+            }
+            for (final int id : ids) {
+                if (id < lastId && !covered.contains(id)) {
+                    throw new IllegalStateException("file " + id + " is not covered");
+                }
+            }
+
+            final int count = buffer.getInt(length - 8);
+            for (int i = 0; i < count; i++) {
+                final DataFile file = m_files.get(buffer.getInt());
+                final long offset = buffer.getLong();
+                final int keyLength = buffer.getShort() & 0xFFFF;
+                final int valueLength = buffer.getInt();
+                final byte[] key = new byte[keyLength];
+                buffer.get(key);
+                final Location location = new Location(file, offset, keyLength, valueLength);
+                if (file == null || file.id > lastId || offset + location.size() > file.size) {
+                    throw new IllegalStateException("entry past the covered data");
+                }
+                m_index.put(new String(key, StandardCharsets.UTF_8), location);
+            }
+            if (buffer.position() != length - 8) {
+                throw new IllegalStateException("trailing bytes");
+            }
+            return lastId;
+        } catch (IllegalStateException | IllegalArgumentException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            Logger.warning("(Store) Ignored the snapshot (" + e.getMessage() + "), replaying all the files.");
+            m_index.clear();
+            for (final DataFile file : m_files.values()) {
+                file.size = 0L;
+                file.garbage = 0L;
+            }
+            return -1;
+        }
+    }
+
+    // saves the index if a restart would replay at least the threshold, on the store thread or once it stopped
+    private void snapshot(final long threshold) {
+        final Map<Integer, long[]> files = new HashMap<>(); // size and garbage
+        final long replayBytes;
+        final FileChannel channel;
+        synchronized (m_writeLock) {
+            if (m_replayBytes < threshold) {
+                return;
+            }
+            for (final DataFile file : m_files.values()) {
+                files.put(file.id, new long[]{file.size, file.garbage});
+            }
+            replayBytes = m_replayBytes;
+            channel = m_active.channel();
+        }
+        final long start = System.nanoTime();
+        final File temp = new File(m_directory, SNAPSHOT_NAME + ".tmp");
+        int count = 0;
+        try {
+            try {
+                channel.force(false); // the snapshot must not point past what is on the disk
+            } catch (ClosedChannelException ignored) {
+                // rotated meanwhile, which synced it
+            }
+            final CRC32 crc = new CRC32();
+            try (final FileOutputStream stream = new FileOutputStream(temp);
+                 final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(stream, 64 * 1024), crc))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(files.size());
+                for (final Map.Entry<Integer, long[]> file : files.entrySet()) {
+                    out.writeInt(file.getKey());
+                    out.writeLong(file.getValue()[0]);
+                    out.writeLong(file.getValue()[1]);
+                }
+                // the records written meanwhile are replayed, so only the earlier ones are needed
+                // (the garbage they make of earlier values isn't counted then, which only delays a compaction)
+                for (final Map.Entry<String, Location> entry : m_index.entrySet()) {
+                    final Location location = entry.getValue();
+                    final long[] covered = files.get(location.file.id);
+                    if (covered == null || location.offset + location.size() > covered[0]) {
+                        continue;
+                    }
+                    final byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(location.file.id);
+                    out.writeLong(location.offset);
+                    out.writeShort(key.length);
+                    out.writeInt(location.valueLength);
+                    out.write(key);
+                    count++;
+                }
+                out.writeInt(count);
+                out.flush();
+                stream.write(ByteBuffer.allocate(4).putInt(0, (int) crc.getValue()).array());
+                stream.getFD().sync();
+            }
+            moveAtomically(temp, m_snapshotFile);
+        } catch (IOException e) {
+            Logger.warning("(Store) Couldn't save a snapshot:");
+            Logger.printStackTrace(e);
+            return;
+        }
+        synchronized (m_writeLock) {
+            m_replayBytes -= replayBytes;
+        }
+        Logger.info("(Store) Saved a snapshot of " + count + " keys in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+    }
+
+    /* **** internal classes **** */
+
+    /**
+     * View of the keys of a store starting with a prefix,
+     * so that plugins don't overwrite each other's data.
+     */
+    public static final class Namespace {
+
+        private final KeyValueStore m_store;
+        private final String m_prefix;
+
+        private Namespace(final KeyValueStore store, final String prefix) {
+            m_store = store;
+            m_prefix = prefix;
+        }
+
+        public byte[] get(final String key) throws IOException {
+            return m_store.get(m_prefix + key);
+        }
+
+        public boolean contains(final String key) {
+            return m_store.contains(m_prefix + key);
+        }
+
+        public void put(final String key, final byte[] value) throws IOException {
+            m_store.put(m_prefix + key, value);
+        }
+
+        public boolean delete(final String key) throws IOException {
+            return m_store.delete(m_prefix + key);
+        }
+
+        public long add(final String key, final long delta) throws IOException {
+            return m_store.add(m_prefix + key, delta);
+        }
+
+        public String getString(final String key) throws IOException {
+            return m_store.getString(m_prefix + key);
+        }
+
+        public void putString(final String key, final String value) throws IOException {
+            m_store.putString(m_prefix + key, value);
+        }
+
+        public long getLong(final String key, final long defaultValue) throws IOException {
+            return m_store.getLong(m_prefix + key, defaultValue);
+        }
+
+        public void putLong(final String key, final long value) throws IOException {
+            m_store.putLong(m_prefix + key, value);
+        }
+
+        /**
+         * Registers a task run before the store is closed.
+         *
+         * @param hook the task
+         * @see KeyValueStore#addCloseHook(Runnable)
+         */
+        public void addCloseHook(final Runnable hook) {
+            m_store.addCloseHook(hook);
+        }
+
+        /**
+         * Returns the keys of this namespace, without the prefix.
+         * This walks the whole index of the store.
+         *
+         * @return the keys, in no particular order
+         */
+        public List<String> keys() {
+            final List<String> keys = m_store.keys(m_prefix);
+            for (int i = 0; i < keys.size(); i++) {
+                keys.set(i, keys.get(i).substring(m_prefix.length()));
+            }
+            return keys;
+        }
+
+    }
+
+    // position of a record, the file is referenced so that a compacted file is never misread
+    private static final class Location {
+
+        private final DataFile file;
+        private final long offset;
+        private final int keyLength;
+        private final int valueLength; // TOMBSTONE for a deletion
+
+        private Location(final DataFile file, final long offset, final int keyLength, final int valueLength) {
+            this.file = file;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        private int size() {
+            return HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+        }
+
+    }
+
+    private interface RecordVisitor {
+
+        void visit(long offset, int checksum, byte[] key, byte[] value) throws IOException;
+
+    }
+
+    // an append-only data file, its channel is reopened if an interrupted thread closed it
+    private static final class DataFile {
+
+        private final int id;
+        private volatile File path;
+        private volatile FileChannel m_channel;
+        private volatile boolean m_retired;
+        long size; // guarded by the store's write lock, or owned by the compaction
+        long garbage; // bytes of overwritten values and tombstones, same
+
+        private DataFile(final int id, final File path) throws IOException {
+            this.id = id;
+            this.path = path;
+            m_channel = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            m_retired = false;
+            size = 0L;
+            garbage = 0L;
+        }
+
+        private FileChannel channel() {
+            return m_channel;
+        }
+
+        private byte[] readValue(final Location location) throws IOException {
+            final byte[] value = new byte[location.valueLength];
+            read(ByteBuffer.wrap(value), location.offset + HEADER_SIZE + location.keyLength);
+            return value;
+        }
+
+        private void read(final ByteBuffer buffer, final long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                final FileChannel channel = m_channel;
+                try {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Record past the end of \"" + path.getName() + "\".");
+                    }
+                } catch (ClosedByInterruptException e) {
+                    reopen(channel);
+                    throw new InterruptedIOException("Interrupted while reading the store.");
+                } catch (ClosedChannelException e) {
+                    if (m_retired) {
+                        throw e;
+                    }
+                    reopen(channel);
+                }
+            }
+        }
+
+        private void write(final ByteBuffer buffer, final long position) throws IOException {
+            final FileChannel channel = m_channel;
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+            } catch (ClosedByInterruptException e) {
+                reopen(channel);
+                throw new InterruptedIOException("Interrupted while writing to the store.");
+            }
+        }
+
+        private void truncate(final long length) throws IOException {
+            m_channel.truncate(length);
+        }
+
+        // reads every valid record between the specified positions, returns where the valid records end
+        private long scan(final long from, final long length, final RecordVisitor visitor) throws IOException {
+            final CRC32 crc = new CRC32();
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(m_channel.position(from)), 64 * 1024));
+            long offset = from;
+            while (offset + HEADER_SIZE <= length) {
+                final int checksum = in.readInt();
+                final int keyLength = in.readInt();
+                final int valueLength = in.readInt();
+                if (keyLength < 1 || keyLength > MAX_KEY_LENGTH || valueLength < TOMBSTONE || valueLength > MAX_VALUE_LENGTH
+                        || offset + HEADER_SIZE + keyLength + Math.max(valueLength, 0) > length) {
+                    break;
+                }
+                final byte[] key = new byte[keyLength];
+                final byte[] value = valueLength != TOMBSTONE ? new byte[valueLength] : null;
+                in.readFully(key);
+                if (value != null) {
+                    in.readFully(value);
+                }
+                crc.reset();
+                crc.update(ByteBuffer.allocate(8).putInt(keyLength).putInt(valueLength).array());
+                crc.update(key);
+                if (value != null) {
+                    crc.update(value);
+                }
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                visitor.visit(offset, checksum, key, value);
+                offset += HEADER_SIZE + keyLength + (value != null ? valueLength : 0);
+            }
+            return offset;
+        }
+
+        private synchronized void reopen(final FileChannel closed) throws IOException {
+            if (m_channel == closed && !m_retired) {
+                m_channel = FileChannel.open(path.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+        }
+
+        private synchronized void retire() throws IOException {
+            m_retired = true;
+            m_channel.close();
+        }
+
+        // renames the file, readers wait for the new channel
+        private synchronized void moveTo(final File target) throws IOException {
+            m_channel.close();
+            moveAtomically(path, target);
+            path = target;
+            m_channel = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+    }
+
+}
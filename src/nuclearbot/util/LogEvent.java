@@ -0,0 +1,269 @@
+package nuclearbot.util;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A structured event for the event log.<br>
+ * Events are written as one flat JSON object per line,
+ * absent fields are simply omitted.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public final class LogEvent {
+
+    /**
+     * Value of the latency field when there is no latency.
+     */
+    public static final long NO_LATENCY = -1L;
+
+    private final long m_timestamp;
+    private final Type m_type;
+    private final String m_channel;
+    private final String m_user;
+    private final String m_command;
+    private final long m_latency;
+    private final String m_plugin;
+
+    /**
+     * Constructs an event with the specified fields.
+     * Any of the string fields may be null.
+     *
+     * @param timestamp the event time, in milliseconds since the epoch
+     * @param type      the event type
+     * @param channel   the channel name
+     * @param user      the user name
+     * @param command   the command label
+     * @param latency   the latency in microseconds, or NO_LATENCY
+     * @param plugin    the plugin name
+     */
+    public LogEvent(final long timestamp, final Type type, final String channel, final String user, final String command,
+                    final long latency, final String plugin) {
+        m_timestamp = timestamp;
+        m_type = type;
+        m_channel = channel;
+        m_user = user;
+        m_command = command;
+        m_latency = latency;
+        m_plugin = plugin;
+    }
+
+    /**
+     * Constructs an event of the specified type, timestamped now.
+     *
+     * @param type    the event type
+     * @param channel the channel name
+     * @param user    the user name
+     * @param command the command label
+     * @param latency the latency in microseconds, or NO_LATENCY
+     * @param plugin  the plugin name
+     * @return the new event
+     */
+    public static LogEvent now(final Type type, final String channel, final String user, final String command, final long latency,
+                               final String plugin) {
+        return new LogEvent(System.currentTimeMillis(), type, channel, user, command, latency, plugin);
+    }
+
+    public long getTimestamp() {
+        return m_timestamp;
+    }
+
+    public Type getType() {
+        return m_type;
+    }
+
+    public String getChannel() {
+        return m_channel;
+    }
+
+    public String getUser() {
+        return m_user;
+    }
+
+    public String getCommand() {
+        return m_command;
+    }
+
+    /**
+     * Returns the latency in microseconds,
+     * or NO_LATENCY if the event has none.
+     *
+     * @return the latency
+     */
+    public long getLatency() {
+        return m_latency;
+    }
+
+    public String getPlugin() {
+        return m_plugin;
+    }
+
+    /**
+     * Returns this event as a JSON object, without line break.
+     *
+     * @return the JSON text
+     */
+    public String toJson() {
+        final StringWriter json = new StringWriter(128);
+        try (final JsonWriter writer = new JsonWriter(json)) {
+            writer.beginObject();
+            writer.name("ts").value(m_timestamp);
+            writer.name("type").value(m_type.jsonName());
+            writeField(writer, "channel", m_channel);
+            writeField(writer, "user", m_user);
+            writeField(writer, "command", m_command);
+            if (m_latency != NO_LATENCY) {
+                writer.name("latency_us").value(m_latency);
+            }
+            writeField(writer, "plugin", m_plugin);
+            writer.endObject();
+        } catch (IOException e) { // a StringWriter doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return json.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    private static void writeField(final JsonWriter writer, final String key, final String value) throws IOException {
+        if (value != null) {
+            writer.name(key).value(value);
+        }
+    }
+
+    /**
+     * Parses an event from a line written by <code>toJson</code>.
+     * Unknown keys are ignored. Returns null if the line is malformed
+     * or if the event type is unknown.
+     *
+     * @param line the JSON line
+     * @return the event or null
+     */
+    public static LogEvent parse(final String line) {
+        long timestamp = 0L;
+        Type type = null;
+        String channel = null, user = null, command = null, plugin = null;
+        long latency = NO_LATENCY;
+
+        try (final JsonReader reader = new JsonReader(new StringReader(line))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "ts":
+                        timestamp = reader.nextLong();
+                        break;
+                    case "type":
+                        type = Type.fromJsonName(reader.nextString());
+                        break;
+                    case "channel":
+                        channel = reader.nextString();
+                        break;
+                    case "user":
+                        user = reader.nextString();
+                        break;
+                    case "command":
+                        command = reader.nextString();
+                        break;
+                    case "latency_us":
+                        latency = reader.nextLong();
+                        break;
+                    case "plugin":
+                        plugin = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return null;
+        }
+
+        return type == null ? null : new LogEvent(timestamp, type, channel, user, command, latency, plugin);
+    }
+
+    /**
+     * Types of events.
+     */
+    public enum Type {
+        /**
+         * The client connected to the chat
+         */
+        CONNECT, /**
+         * The client disconnected from the chat
+         */
+        DISCONNECT, /**
+         * The client is reconnecting
+         */
+        RECONNECT, /**
+         * A chat message was received
+         */
+        MESSAGE, /**
+         * A chat message was sent by the bot
+         */
+        MESSAGE_OUT, /**
+         * A registered command was executed
+         */
+        COMMAND, /**
+         * A command that is not registered was issued
+         */
+        UNKNOWN_COMMAND, /**
+         * A listener or command threw an exception
+         */
+        ERROR;
+
+        private final String m_jsonName = name().toLowerCase();
+
+        /**
+         * Returns the name used in the JSON output.
+         *
+         * @return the lower-case type name
+         */
+        public String jsonName() {
+            return m_jsonName;
+        }
+
+        /**
+         * Returns the type with the specified JSON name, or null.
+         *
+         * @param name the lower-case type name
+         * @return the type or null
+         */
+        public static Type fromJsonName(final String name) {
+            for (final Type type : values()) {
+                if (type.m_jsonName.equals(name)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+}
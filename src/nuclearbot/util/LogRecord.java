@@ -0,0 +1,110 @@
+package nuclearbot.util;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A line logged through the {@link Logger}, with its level
+ * and the subsystem tag it starts with, like "(Twitch)".<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public final class LogRecord {
+
+    /**
+     * Tag of the records that don't start with one.
+     */
+    public static final String NO_TAG = "";
+
+    private static final int MAX_TAG_LENGTH = 32;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-d hh:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final long m_sequence;
+    private final long m_timestamp;
+    private final String m_level;
+    private final String m_tag;
+    private final String m_message;
+
+    /**
+     * Constructs a record. The level and tag are interned,
+     * so that they can be compared by reference.
+     *
+     * @param sequence  the position of the record in the log
+     * @param timestamp the time, in milliseconds since the epoch
+     * @param level     the level, like "INFO"
+     * @param tag       the subsystem tag, or {@link #NO_TAG}
+     * @param message   the logged text
+     */
+    public LogRecord(final long sequence, final long timestamp, final String level, final String tag, final String message) {
+        m_sequence = sequence;
+        m_timestamp = timestamp;
+        m_level = level.intern();
+        m_tag = tag.intern();
+        m_message = message;
+    }
+
+    /**
+     * Returns the subsystem tag a message starts with,
+     * without the parentheses, or {@link #NO_TAG}.
+     *
+     * @param message the logged text
+     * @return the tag
+     */
+    public static String parseTag(final String message) {
+        if (!message.startsWith("(")) {
+            return NO_TAG;
+        }
+        final int end = message.indexOf(')');
+        return end > 1 && end <= MAX_TAG_LENGTH ? message.substring(1, end) : NO_TAG;
+    }
+
+    public long getSequence() {
+        return m_sequence;
+    }
+
+    public long getTimestamp() {
+        return m_timestamp;
+    }
+
+    public String getLevel() {
+        return m_level;
+    }
+
+    public String getTag() {
+        return m_tag;
+    }
+
+    public String getMessage() {
+        return m_message;
+    }
+
+    /**
+     * Returns the record formatted like in the log file.
+     */
+    @Override
+    public String toString() {
+        return "[" + TIME_FORMAT.format(Instant.ofEpochMilli(m_timestamp)) + "] " + m_level + ": " + m_message;
+    }
+
+}
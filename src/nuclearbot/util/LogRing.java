@@ -0,0 +1,130 @@
+package nuclearbot.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Fixed-capacity ring of the last log records.<br>
+ * Records are numbered in the order they are added, so that readers
+ * can copy only what was added since their last read. Appending and
+ * copying hold the lock only for an array copy.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class LogRing {
+
+    private final LogRecord[] m_records;
+    private final Set<String> m_tags;
+    private long m_next; // sequence number of the next record
+
+    /**
+     * Constructs a ring with the specified capacity.
+     *
+     * @param capacity the number of records kept
+     */
+    public LogRing(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        m_records = new LogRecord[capacity];
+        m_tags = new TreeSet<>();
+        m_next = 0L;
+    }
+
+    /**
+     * Adds a record, overwriting the oldest one if the ring is full.
+     *
+     * @param timestamp the time, in milliseconds since the epoch
+     * @param level     the level
+     * @param message   the logged text, its tag is parsed from it
+     */
+    public void add(final long timestamp, final String level, final String message) {
+        add(timestamp, level, LogRecord.parseTag(message), message);
+    }
+
+    /**
+     * Adds a record with an explicit tag, overwriting the oldest one if the ring is full.
+     *
+     * @param timestamp the time, in milliseconds since the epoch
+     * @param level     the level
+     * @param tag       the subsystem tag
+     * @param message   the logged text
+     */
+    public synchronized void add(final long timestamp, final String level, final String tag, final String message) {
+        final LogRecord record = new LogRecord(m_next, timestamp, level, tag, message);
+        m_records[(int) (m_next % m_records.length)] = record;
+        m_next++;
+        m_tags.add(record.getTag());
+    }
+
+    /**
+     * Returns the sequence number the next record will have.
+     *
+     * @return the next sequence number
+     */
+    public synchronized long nextSequence() {
+        return m_next;
+    }
+
+    /**
+     * Returns the sequence number of the oldest record kept.
+     *
+     * @return the first sequence number
+     */
+    public synchronized long firstSequence() {
+        return Math.max(0L, m_next - m_records.length);
+    }
+
+    /**
+     * Returns the tags seen so far, sorted.
+     *
+     * @return a copy of the tags
+     */
+    public synchronized List<String> tags() {
+        return Collections.unmodifiableList(new ArrayList<>(m_tags));
+    }
+
+    /**
+     * Copies the records starting at the specified sequence number, oldest first.
+     * Records that were already overwritten are skipped.
+     *
+     * @param fromSequence the sequence number of the first record wanted
+     * @return the records
+     */
+    public synchronized LogRecord[] copyFrom(final long fromSequence) {
+        final long from = Math.max(fromSequence, firstSequence());
+        if (from >= m_next) {
+            return new LogRecord[0];
+        }
+        final int size = (int) (m_next - from);
+        final int start = (int) (from % m_records.length);
+        final int firstPart = Math.min(size, m_records.length - start);
+        final LogRecord[] copy = new LogRecord[size];
+        System.arraycopy(m_records, start, copy, 0, firstPart);
+        System.arraycopy(m_records, 0, copy, firstPart, size - firstPart);
+        return copy;
+    }
+
+}
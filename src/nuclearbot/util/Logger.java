@@ -1,8 +1,14 @@
 package nuclearbot.util;
 
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -35,9 +41,21 @@ public class Logger {
 
     private static final String LOG = "[%s] %s: %s";
 
+    // enough for a long session of chat, small enough for a few tens of megabytes
+    private static final int RECORD_CAPACITY = 100_000;
+
+    private static final LogRing records = new LogRing(RECORD_CAPACITY);
+
+    // stack traces are filed under the line logged before them
+    private static String lastLevel = "ERROR";
+    private static String lastTag = LogRecord.NO_TAG;
+
     private static final DateFormat timeFormat;
     private static final PrintWriter fileOut = initFileOut();
 
+    private static final Object eventLock = new Object();
+    private static volatile Writer eventOut = null;
+
     static {
         if (fileOut != null) // we don't need a shutdown hook if we didn't open the log file
         {
@@ -86,7 +104,21 @@ public class Logger {
      * @param level  the prefix to put
      */
     public synchronized static void log(String string, String level) {
-        writeln(String.format(LOG, timeFormat.format(new Date()), level, string));
+        final long now = System.currentTimeMillis();
+        writeln(String.format(LOG, timeFormat.format(new Date(now)), level, string));
+        lastLevel = level;
+        lastTag = LogRecord.parseTag(string);
+        records.add(now, level, lastTag, string);
+    }
+
+    /**
+     * Returns the ring of the last logged records,
+     * for the views that filter the log.
+     *
+     * @return the log records
+     */
+    public static LogRing records() {
+        return records;
     }
 
     /**
@@ -116,15 +148,76 @@ public class Logger {
         log(string, "ERROR");
     }
 
+    /**
+     * Opens the structured event log at the specified path.
+     * Events are appended as JSON lines, and flushed periodically.
+     * Does nothing if the event log is already open.
+     *
+     * @param path the event log file path
+     * @throws IOException if the file could not be opened
+     */
+    public static void openEventLog(final String path) throws IOException {
+        synchronized (eventLock) {
+            if (eventOut != null) {
+                return;
+            }
+            eventOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new EventLogShutdownHook()));
+        Watcher.schedule("event-log-flush", () -> true, Logger::flushEvents);
+        info("(Log) Writing structured events to \"" + path + "\".");
+    }
+
+    /**
+     * Writes a structured event to the event log.
+     * Does nothing if the event log is not open.
+     *
+     * @param event the event to write
+     */
+    public static void event(final LogEvent event) {
+        if (eventOut == null) {
+            return;
+        }
+        final String json = event.toJson();
+        synchronized (eventLock) {
+            if (eventOut != null) {
+                try {
+                    eventOut.append(json).append('\n');
+                } catch (IOException e) {
+                    System.err.println("Couldn't write to the event log.");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void flushEvents() {
+        synchronized (eventLock) {
+            if (eventOut != null) {
+                try {
+                    eventOut.flush();
+                } catch (IOException e) {
+                    System.err.println("Couldn't flush the event log.");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
     /**
      * Logs a Throwable and its backtrace.
      *
      * @param throwable the Throwable to log
      */
     public synchronized static void printStackTrace(Throwable throwable) {
-        throwable.printStackTrace(System.out);
-        if (fileOut != null)
-            throwable.printStackTrace(fileOut);
+        final StringWriter trace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(trace));
+        System.out.print(trace);
+        if (fileOut != null) {
+            fileOut.print(trace);
+            fileOut.flush();
+        }
+        records.add(System.currentTimeMillis(), lastLevel, lastTag, trace.toString().trim());
     }
 
     private static class LoggerShutdownHook implements Runnable {
@@ -137,6 +230,21 @@ public class Logger {
 
     }
 
+    private static class EventLogShutdownHook implements Runnable {
+
+        @Override
+        public void run() {
+            synchronized (eventLock) {
+                try {
+                    eventOut.close();
+                } catch (IOException ignored) {
+                }
+                eventOut = null;
+            }
+        }
+
+    }
+
     private static class UncaughtExceptionHandler implements Thread.UncaughtExceptionHandler {
 
         @Override
@@ -0,0 +1,345 @@
+package nuclearbot.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Utility class for the bot's counters, rendered in the
+ * Prometheus text exposition format.<br>
+ * Updates are lock-free, rendering appends to a caller-supplied buffer
+ * and doesn't allocate beyond iterating the labeled series.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class Metrics {
+
+    private static final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    // latency buckets in microseconds
+    private static final long[] LATENCY_BUCKETS = {5_000L, 10_000L, 25_000L, 50_000L, 100_000L, 250_000L, 500_000L, 1_000_000L,
+            2_500_000L, 5_000_000L, 10_000_000L};
+
+    // labeled series beyond this are counted under "other"
+    private static final int MAX_LABELS = 256;
+    private static final String OTHER_LABEL = "other";
+
+    public static final Counter CONNECTS = register(new Counter("nuclearbot_connects_total", "Connections to the chat server."));
+    public static final Counter DISCONNECTS = register(new Counter("nuclearbot_disconnects_total", "Disconnections from the chat server."));
+    public static final Counter RECONNECTS = register(new Counter("nuclearbot_reconnects_total", "Reconnect notices received from the chat server."));
+    public static final Counter MESSAGES_IN = register(new Counter("nuclearbot_messages_received_total", "Chat messages received, commands excluded."));
+    public static final Counter MESSAGES_OUT = register(new Counter("nuclearbot_messages_sent_total", "Chat messages sent."));
+    public static final Counter UNKNOWN_COMMANDS = register(new Counter("nuclearbot_unknown_commands_total", "Unknown commands received."));
+    public static final Counter ERRORS = register(new Counter("nuclearbot_errors_total", "Exceptions thrown by commands and message listeners."));
+    public static final Counter STALLS = register(new Counter("nuclearbot_thread_stalls_total", "Stalled threads detected by the watchdog."));
+
+    public static final LabeledCounter COMMANDS = register(new LabeledCounter("nuclearbot_commands_total", "Command invocations.", "command"));
+    public static final LabeledHistogram COMMAND_LATENCY = register(
+            new LabeledHistogram("nuclearbot_command_duration_seconds", "Command execution time.", "command"));
+
+    public static final Gauge CHAT_OUT_QUEUE = register(new Gauge("nuclearbot_chat_out_queue_depth", "Messages waiting in the Twitch chat output queue."));
+
+    public static final LabeledHistogram OSU_LATENCY = register(
+            new LabeledHistogram("nuclearbot_osu_api_duration_seconds", "osu! API request latency.", "endpoint"));
+
+    private Metrics() {
+    }
+
+    private static <T extends Metric> T register(final T metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * Updates the counters for a client event.
+     *
+     * @param type    the event type
+     * @param label   the command label, or null
+     * @param latency the handling time in microseconds, or {@link LogEvent#NO_LATENCY}
+     */
+    public static void onEvent(final LogEvent.Type type, final String label, final long latency) {
+        switch (type) {
+            case CONNECT:
+                CONNECTS.increment();
+                break;
+            case DISCONNECT:
+                DISCONNECTS.increment();
+                break;
+            case RECONNECT:
+                RECONNECTS.increment();
+                break;
+            case MESSAGE:
+                MESSAGES_IN.increment();
+                break;
+            case MESSAGE_OUT:
+                MESSAGES_OUT.increment();
+                break;
+            case COMMAND:
+                COMMANDS.increment(label);
+                if (latency != LogEvent.NO_LATENCY) {
+                    COMMAND_LATENCY.observe(label, latency);
+                    Sampler.recordCommandLatency(latency);
+                }
+                break;
+            case UNKNOWN_COMMAND:
+                UNKNOWN_COMMANDS.increment();
+                break;
+            case ERROR:
+                ERRORS.increment();
+                break;
+        }
+    }
+
+    /**
+     * Appends all metrics in the Prometheus text format.
+     *
+     * @param out the buffer to append to
+     */
+    public static void render(final StringBuilder out) {
+        for (final Metric metric : metrics) {
+            out.append("# HELP ").append(metric.m_name).append(' ').append(metric.m_help).append('\n');
+            out.append("# TYPE ").append(metric.m_name).append(' ').append(metric.m_type).append('\n');
+            metric.render(out);
+        }
+    }
+
+    private static void appendLabel(final StringBuilder out, final String name, final String value) {
+        out.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    // appends microseconds as decimal seconds without going through doubles
+    private static void appendSeconds(final StringBuilder out, final long micros) {
+        out.append(micros / 1_000_000L).append('.');
+        final long fraction = micros % 1_000_000L;
+        for (long digit = 100_000L; digit > fraction && digit > 1; digit /= 10) {
+            out.append('0');
+        }
+        out.append(fraction);
+    }
+
+    private abstract static class Metric {
+
+        private final String m_name;
+        private final String m_help;
+        private final String m_type;
+
+        private Metric(final String name, final String help, final String type) {
+            m_name = name;
+            m_help = help;
+            m_type = type;
+        }
+
+        abstract void render(StringBuilder out);
+
+    }
+
+    /**
+     * Monotonic counter.
+     */
+    public static class Counter extends Metric {
+
+        private final LongAdder m_value;
+
+        private Counter(final String name, final String help) {
+            super(name, help, "counter");
+            m_value = new LongAdder();
+        }
+
+        public void increment() {
+            m_value.increment();
+        }
+
+        public long get() {
+            return m_value.sum();
+        }
+
+        @Override
+        void render(final StringBuilder out) {
+            out.append(super.m_name).append(' ').append(m_value.sum()).append('\n');
+        }
+
+    }
+
+    /**
+     * Value read when the metrics are rendered.
+     */
+    public static class Gauge extends Metric {
+
+        private volatile LongSupplier m_supplier;
+
+        private Gauge(final String name, final String help) {
+            super(name, help, "gauge");
+            m_supplier = null;
+        }
+
+        /**
+         * Sets the source of the value, or null for zero.
+         *
+         * @param supplier the value supplier or null
+         */
+        public void set(final LongSupplier supplier) {
+            m_supplier = supplier;
+        }
+
+        public long get() {
+            final LongSupplier supplier = m_supplier;
+            return supplier != null ? supplier.getAsLong() : 0L;
+        }
+
+        @Override
+        void render(final StringBuilder out) {
+            out.append(super.m_name).append(' ').append(get()).append('\n');
+        }
+
+    }
+
+    /**
+     * Counter with one label.
+     */
+    public static class LabeledCounter extends Metric {
+
+        private final String m_label;
+        private final Map<String, LongAdder> m_values;
+
+        private LabeledCounter(final String name, final String help, final String label) {
+            super(name, help, "counter");
+            m_label = label;
+            m_values = new ConcurrentHashMap<>();
+        }
+
+        public void increment(final String value) {
+            LongAdder adder = m_values.get(value);
+            if (adder == null) {
+                adder = m_values.computeIfAbsent(m_values.size() < MAX_LABELS ? value : OTHER_LABEL, key -> new LongAdder());
+            }
+            adder.increment();
+        }
+
+        @Override
+        void render(final StringBuilder out) {
+            for (final Map.Entry<String, LongAdder> entry : m_values.entrySet()) {
+                out.append(super.m_name).append('{');
+                appendLabel(out, m_label, entry.getKey());
+                out.append("} ").append(entry.getValue().sum()).append('\n');
+            }
+        }
+
+    }
+
+    /**
+     * Latency histogram with one label.
+     */
+    public static class LabeledHistogram extends Metric {
+
+        private final String m_label;
+        private final Map<String, Series> m_series;
+
+        private LabeledHistogram(final String name, final String help, final String label) {
+            super(name, help, "histogram");
+            m_label = label;
+            m_series = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * Records a latency.
+         *
+         * @param value  the label value
+         * @param micros the latency in microseconds
+         */
+        public void observe(final String value, final long micros) {
+            Series series = m_series.get(value);
+            if (series == null) {
+                series = m_series.computeIfAbsent(m_series.size() < MAX_LABELS ? value : OTHER_LABEL, key -> new Series());
+            }
+            series.observe(micros);
+        }
+
+        @Override
+        void render(final StringBuilder out) {
+            final String name = super.m_name;
+            for (final Map.Entry<String, Series> entry : m_series.entrySet()) {
+                final Series series = entry.getValue();
+                long cumulative = 0;
+                for (int i = 0; i <= LATENCY_BUCKETS.length; i++) {
+                    cumulative += series.m_buckets[i].sum();
+                    out.append(name).append("_bucket{");
+                    appendLabel(out, m_label, entry.getKey());
+                    out.append(",le=\"");
+                    if (i < LATENCY_BUCKETS.length) {
+                        appendSeconds(out, LATENCY_BUCKETS[i]);
+                    } else {
+                        out.append("+Inf");
+                    }
+                    out.append("\"} ").append(cumulative).append('\n');
+                }
+                out.append(name).append("_sum{");
+                appendLabel(out, m_label, entry.getKey());
+                out.append("} ");
+                appendSeconds(out, series.m_sum.sum());
+                out.append('\n');
+                out.append(name).append("_count{");
+                appendLabel(out, m_label, entry.getKey());
+                out.append("} ").append(cumulative).append('\n');
+            }
+        }
+
+        private static class Series {
+
+            private final LongAdder[] m_buckets;
+            private final LongAdder m_sum;
+
+            private Series() {
+                m_buckets = new LongAdder[LATENCY_BUCKETS.length + 1];
+                for (int i = 0; i < m_buckets.length; i++) {
+                    m_buckets[i] = new LongAdder();
+                }
+                m_sum = new LongAdder();
+            }
+
+            private void observe(final long micros) {
+                int i = 0;
+                while (i < LATENCY_BUCKETS.length && micros > LATENCY_BUCKETS[i]) {
+                    i++;
+                }
+                m_buckets[i].increment();
+                m_sum.add(micros);
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,153 @@
+package nuclearbot.util;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Utility class sampling the bot's counters at a fixed rate
+ * into fixed-size rings, one per series.<br>
+ * Readers copy a series into their own buffer, so that
+ * they never touch the live counters or the client.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class Sampler {
+
+    private static final long PERIOD = 500L;
+
+    /**
+     * The number of samples kept in each series, one minute at two samples per second.
+     */
+    public static final int SAMPLES = 120;
+
+    public static final Series MESSAGES_IN = new Series("Messages in", "/s");
+    public static final Series MESSAGES_OUT = new Series("Messages out", "/s");
+    public static final Series OUT_QUEUE = new Series("Output queue", "");
+    public static final Series COMMAND_P50 = new Series("Command p50", " ms");
+    public static final Series COMMAND_P99 = new Series("Command p99", " ms");
+    public static final Series HEAP = new Series("Heap", " MB");
+
+    // command latencies since the last sample, guarded by itself
+    private static final Histogram commandLatency = new Histogram();
+
+    private static Thread thread = null;
+
+    private Sampler() {
+    }
+
+    /**
+     * Starts sampling, if not already started.
+     */
+    public static synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(Sampler::run, "sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Records the execution time of a command.
+     *
+     * @param micros the latency in microseconds
+     */
+    public static void recordCommandLatency(final long micros) {
+        synchronized (commandLatency) {
+            commandLatency.record(micros);
+        }
+    }
+
+    private static void run() {
+        final Runtime runtime = Runtime.getRuntime();
+        long lastTime = System.nanoTime();
+        long lastIn = Metrics.MESSAGES_IN.get();
+        long lastOut = Metrics.MESSAGES_OUT.get();
+        while (true) {
+            try {
+                Thread.sleep(PERIOD);
+            } catch (InterruptedException ignored) {
+            }
+            final long time = System.nanoTime();
+            final double seconds = Math.max(1L, time - lastTime) / 1e9;
+            final long in = Metrics.MESSAGES_IN.get();
+            final long out = Metrics.MESSAGES_OUT.get();
+
+            MESSAGES_IN.add((in - lastIn) / seconds);
+            MESSAGES_OUT.add((out - lastOut) / seconds);
+            OUT_QUEUE.add(Metrics.CHAT_OUT_QUEUE.get());
+            synchronized (commandLatency) {
+                COMMAND_P50.add(commandLatency.quantile(0.5) / 1000.0);
+                COMMAND_P99.add(commandLatency.quantile(0.99) / 1000.0);
+                commandLatency.reset();
+            }
+            HEAP.add((runtime.totalMemory() - runtime.freeMemory()) / (1024.0 * 1024.0));
+
+            lastTime = time;
+            lastIn = in;
+            lastOut = out;
+        }
+    }
+
+    /**
+     * Ring of the last samples of one value.
+     */
+    public static class Series {
+
+        private final String m_name;
+        private final String m_unit;
+        private final double[] m_ring;
+        private long m_count;
+
+        private Series(final String name, final String unit) {
+            m_name = name;
+            m_unit = unit;
+            m_ring = new double[SAMPLES];
+            m_count = 0L;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public String getUnit() {
+            return m_unit;
+        }
+
+        private synchronized void add(final double value) {
+            m_ring[(int) (m_count++ % SAMPLES)] = value;
+        }
+
+        /**
+         * Copies the samples into the specified array, oldest first.
+         *
+         * @param out an array of at least {@link #SAMPLES} elements
+         * @return the number of samples copied
+         */
+        public synchronized int copyTo(final double[] out) {
+            final int size = (int) Math.min(m_count, SAMPLES);
+            final int start = (int) ((m_count - size) % SAMPLES);
+            final int firstPart = Math.min(size, SAMPLES - start);
+            System.arraycopy(m_ring, start, out, 0, firstPart);
+            System.arraycopy(m_ring, 0, out, firstPart, size - firstPart);
+            return size;
+        }
+
+    }
+
+}
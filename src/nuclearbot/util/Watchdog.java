@@ -0,0 +1,176 @@
+package nuclearbot.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Utility class for detecting stalled threads.<br>
+ * Monitored threads beat their heartbeat regularly. When a heartbeat
+ * has not been beaten for longer than the threshold, the stack of its
+ * thread and what it was doing are logged once for that stall.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class Watchdog {
+
+    private static final long CHECK_PERIOD = TimeUnit.SECONDS.toMillis(1);
+
+    private static final List<Heartbeat> heartbeats = new CopyOnWriteArrayList<>();
+
+    private static volatile long threshold = readThreshold(); // follows the config
+
+    private static Thread thread = null;
+
+    static {
+        Config.addListener((previous, current, changed) -> {
+            if (changed.contains("watchdog_threshold")) {
+                threshold = readThreshold();
+            }
+        });
+    }
+
+    private Watchdog() {
+    }
+
+    private static long readThreshold() {
+        return TimeUnit.SECONDS.toNanos(Math.max(1L, Config.getLong("watchdog_threshold", 20L)));
+    }
+
+    /**
+     * Registers a new heartbeat and starts the watchdog if needed.
+     * The monitored thread is the last one that beat it.
+     *
+     * @param name the name shown in stall reports
+     * @return the heartbeat
+     */
+    public static Heartbeat register(final String name) {
+        final Heartbeat heartbeat = new Heartbeat(name);
+        heartbeats.add(heartbeat);
+        startThread();
+        return heartbeat;
+    }
+
+    private static synchronized void startThread() {
+        if (thread == null) {
+            thread = new Thread(Watchdog::run, "watchdog");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_PERIOD);
+            } catch (InterruptedException ignored) {
+            }
+            final long now = System.nanoTime();
+            for (final Heartbeat heartbeat : heartbeats) {
+                heartbeat.check(now);
+            }
+        }
+    }
+
+    /**
+     * Heartbeat of a monitored thread.
+     */
+    public static class Heartbeat {
+
+        private final String m_name;
+
+        private volatile Thread m_thread;
+        private volatile long m_lastBeat;
+        private volatile String m_context;
+        private volatile boolean m_reported;
+
+        private Heartbeat(final String name) {
+            m_name = name;
+            m_thread = null;
+            m_lastBeat = System.nanoTime();
+            m_context = null;
+            m_reported = false;
+        }
+
+        /**
+         * Tells the watchdog the current thread is alive.
+         */
+        public void beat() {
+            m_thread = Thread.currentThread();
+            m_lastBeat = System.nanoTime();
+            if (m_reported) {
+                m_reported = false;
+                Logger.info("(Watchdog) Thread \"" + m_name + "\" recovered.");
+            }
+        }
+
+        /**
+         * Beats and records what the thread is about to do, for stall reports.
+         *
+         * @param context a short description, like the plugin or command being called
+         */
+        public void enter(final String context) {
+            m_context = context;
+            beat();
+        }
+
+        /**
+         * Beats and clears the context.
+         */
+        public void exit() {
+            m_context = null;
+            beat();
+        }
+
+        /**
+         * Stops monitoring this heartbeat.
+         */
+        public void unregister() {
+            heartbeats.remove(this);
+        }
+
+        private void check(final long now) {
+            final Thread thread = m_thread;
+            final long stalled = now - m_lastBeat;
+            if (m_reported || thread == null || stalled <= threshold) {
+                return;
+            }
+            m_reported = true;
+
+            final String context = m_context;
+            final StringBuilder sb = new StringBuilder();
+            sb.append("(Watchdog) Thread \"").append(m_name).append("\" has been stalled for ")
+              .append(TimeUnit.NANOSECONDS.toSeconds(stalled)).append(" seconds");
+            if (context != null) {
+                sb.append(" in ").append(context);
+            }
+            sb.append(", state ").append(thread.getState()).append(':');
+            for (final StackTraceElement element : thread.getStackTrace()) {
+                sb.append(System.lineSeparator()).append("\tat ").append(element);
+            }
+            Logger.warning(sb.toString());
+            Metrics.STALLS.increment();
+        }
+
+    }
+
+}
@@ -40,6 +40,13 @@ public class Watcher {
     private static final long DELAY = TimeUnit.SECONDS.toMillis(0);
     private static final long PERIOD = TimeUnit.SECONDS.toMillis(3);
 
+    private static final Watchdog.Heartbeat heartbeat = Watchdog.register("watcher");
+
+    static {
+        // keep the heartbeat going even when no other task is scheduled
+        schedule("watchdog-heartbeat", () -> true, heartbeat::beat);
+    }
+
     private Watcher() {
     }
 
@@ -56,8 +63,13 @@ public class Watcher {
             final TimerTask timerTask = new TimerTask() {
                 @Override
                 public void run() {
-                    if (predicate.getAsBoolean())
-                        task.run();
+                    heartbeat.enter("watcher task \"" + name + "\"");
+                    try {
+                        if (predicate.getAsBoolean())
+                            task.run();
+                    } finally {
+                        heartbeat.exit();
+                    }
                 }
             };
             tasks.put(name, timerTask);
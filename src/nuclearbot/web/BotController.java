@@ -0,0 +1,462 @@
+package nuclearbot.web;
+
+import nuclearbot.archive.ChatArchive;
+import nuclearbot.archive.ChatIndex;
+import nuclearbot.archive.CommandQuote;
+import nuclearbot.client.ChatClient;
+import nuclearbot.client.ClientListener;
+import nuclearbot.client.Command;
+import nuclearbot.client.ImplChatClient;
+import nuclearbot.client.Moderators;
+import nuclearbot.gui.commands.UserCommandManager;
+import nuclearbot.gui.commands.UserCommandModeration;
+import nuclearbot.plugin.ImplPluginLoader;
+import nuclearbot.plugin.JavaPlugin;
+import nuclearbot.plugin.PluginLoader;
+import nuclearbot.points.PointsEngine;
+import nuclearbot.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Controls the bot without the Swing GUI: the plugin, the client,
+ * the user commands and the chat, for the web control panel.<br>
+ * Every change runs on a single control thread, so the client thread
+ * only stores chat messages and posts its events.
+ * The public methods can be called from any thread.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class BotController implements ClientListener {
+
+    private static final int CHAT_LINES = 1000;
+
+    private final ExecutorService m_executor;
+    private final PluginLoader m_pluginLoader;
+    private final ChatArchive m_archive;
+    private final ChatIndex m_index;
+    private final PointsEngine m_points;
+    private final UserCommandManager m_userCommands;
+    private final UserCommandModeration m_modCommands;
+    private final EventRing<ChatLine> m_chat;
+    private final Map<String, Command> m_commands; // registered to the client
+    private final Map<String, String> m_aliases; // alias to label, registered to the client
+
+    // only changed on the control thread
+    private volatile ChatClient m_client;
+    private volatile boolean m_isClientRunning;
+    private boolean m_doRestartClient;
+
+    /**
+     * Loads the moderators, the plugins, the chat archive, the points and the user commands.
+     */
+    public BotController() {
+        m_executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "bot control");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_chat = new EventRing<>(CHAT_LINES);
+        m_commands = new ConcurrentSkipListMap<>();
+        m_aliases = new ConcurrentSkipListMap<>();
+        m_client = null;
+        m_isClientRunning = false;
+        m_doRestartClient = false;
+
+        Moderators.getModerators(); // reads the moderator list in the static initializer
+        m_pluginLoader = new ImplPluginLoader();
+        m_archive = ChatArchive.openConfigured();
+        m_index = ChatIndex.openFor(m_archive);
+        m_points = PointsEngine.openConfigured();
+
+        m_userCommands = new UserCommandManager(new ManagerHost());
+        m_modCommands = new UserCommandModeration(m_userCommands, m_executor);
+        call(() -> {
+            m_userCommands.loadCommands();
+            return null;
+        });
+    }
+
+    // runs the task on the control thread and waits for it
+    private <T> T call(final Callable<T> task) {
+        try {
+            return m_executor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the control thread.", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public boolean isClientRunning() {
+        return m_isClientRunning;
+    }
+
+    /**
+     * Returns the current plugin, or null if none could be loaded.
+     *
+     * @return the plugin or null
+     */
+    public JavaPlugin getPlugin() {
+        return m_pluginLoader.getPlugin();
+    }
+
+    public String[] getBuiltinPlugins() {
+        return m_pluginLoader.getBuiltinPlugins();
+    }
+
+    /**
+     * Loads a plugin from its class name or from a jar file.
+     * The plugin is used the next time the client starts.
+     *
+     * @param className the class name, or null
+     * @param jarPath   the jar path, used if the class name is null
+     * @return true if the plugin was loaded
+     */
+    public boolean loadPlugin(final String className, final String jarPath) {
+        return call(() -> {
+            final boolean loaded = className != null ? m_pluginLoader.loadPlugin(className) : m_pluginLoader.loadPlugin(new File(jarPath));
+            if (loaded && m_isClientRunning) {
+                Logger.info("(Web) The plugin will be used after a restart.");
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * Starts the client if it is stopped.
+     *
+     * @return true if the client is starting
+     */
+    public boolean startClient() {
+        return call(this::doStartClient);
+    }
+
+    /**
+     * Stops the client if it is running.
+     *
+     * @return true if the client is stopping
+     */
+    public boolean stopClient() {
+        return call(() -> {
+            m_doRestartClient = false;
+            return doStopClient();
+        });
+    }
+
+    /**
+     * Stops the client and starts it again once it stopped.
+     *
+     * @return true if the client is restarting
+     */
+    public boolean restartClient() {
+        return call(() -> {
+            if (!m_isClientRunning) {
+                return false;
+            }
+            m_doRestartClient = true;
+            return doStopClient();
+        });
+    }
+
+    private boolean doStartClient() {
+        final JavaPlugin plugin = m_pluginLoader.getPlugin();
+        if (m_client != null || plugin == null) {
+            return false;
+        }
+        Logger.info("(Web) Starting client...");
+
+        final ChatClient client = new ImplChatClient(plugin);
+        client.registerClientListener(this);
+        if (m_archive != null) {
+            client.registerClientListener(m_archive);
+        }
+        if (m_points != null) {
+            client.registerClientListener(m_points);
+        }
+        m_client = client;
+
+        final Thread thread = new Thread(() -> {
+            try {
+                client.connect();
+            } catch (IOException e) {
+                Logger.error("(Web) Exception caught in client thread:");
+                Logger.printStackTrace(e);
+                m_executor.execute(() -> m_doRestartClient = false);
+            } finally {
+                m_executor.execute(() -> clientStopped(client));
+            }
+        }, "client");
+        thread.start();
+        return true;
+    }
+
+    // the client only stops when connect() returns, it disconnects on every reconnect too
+    private void clientStopped(final ChatClient client) {
+        if (client != m_client) {
+            return;
+        }
+        m_isClientRunning = false;
+        m_client = null;
+        m_commands.clear();
+        m_aliases.clear();
+        Logger.info("(Web) Client is stopped.");
+
+        if (m_doRestartClient) {
+            m_doRestartClient = false;
+            doStartClient();
+        }
+    }
+
+    private boolean doStopClient() {
+        if (m_client == null) {
+            return false;
+        }
+        Logger.info("(Web) Stopping client...");
+        m_client.stop();
+        return true;
+    }
+
+    /**
+     * Sends a message to the chat.
+     *
+     * @param message the message
+     * @return true if the client is running
+     */
+    public boolean sendMessage(final String message) {
+        final ChatClient client = m_client;
+        if (!m_isClientRunning || client == null) {
+            return false;
+        }
+        client.sendMessage(message);
+        return true;
+    }
+
+    /**
+     * Returns the sequence number the next chat message will have.
+     *
+     * @return the next chat sequence number
+     */
+    public long nextChatSequence() {
+        return m_chat.nextSequence();
+    }
+
+    /**
+     * Returns the chat messages received since the specified sequence number.
+     * The oldest messages are not kept.
+     *
+     * @param fromSequence the sequence number of the first message wanted
+     * @param into         the list the messages are added to, oldest first
+     * @return the sequence number to continue from
+     */
+    public long chatFrom(final long fromSequence, final List<? super ChatLine> into) {
+        return m_chat.copyFrom(fromSequence, into);
+    }
+
+    /**
+     * Returns the commands registered to the client, sorted by label.
+     *
+     * @return a copy of the registered commands
+     */
+    public List<Command> getCommands() {
+        return new ArrayList<>(m_commands.values());
+    }
+
+    /**
+     * Returns the aliases registered to the client, sorted, by command label.
+     *
+     * @return a copy of the aliases of each command that has some
+     */
+    public Map<String, List<String>> getAliases() {
+        final Map<String, List<String>> aliases = new HashMap<>();
+        for (final Map.Entry<String, String> entry : m_aliases.entrySet()) {
+            aliases.computeIfAbsent(entry.getValue(), label -> new ArrayList<>()).add(entry.getKey());
+        }
+        return aliases;
+    }
+
+    public List<UserCommandManager.CommandInfo> getUserCommands() {
+        return call(() -> {
+            final List<UserCommandManager.CommandInfo> commands = new ArrayList<>();
+            for (final String name : m_userCommands.getNames()) {
+                commands.add(m_userCommands.getCommand(name));
+            }
+            return Collections.unmodifiableList(commands);
+        });
+    }
+
+    public void createUserCommand(final String name, final String usage, final String description, final String response) {
+        call(() -> {
+            m_userCommands.createUserCommand(name, usage, description, response, false);
+            return null;
+        });
+    }
+
+    /**
+     * Removes a user command.
+     *
+     * @param name the command name
+     * @return true if it was a user command
+     */
+    public boolean removeUserCommand(final String name) {
+        return call(() -> {
+            final boolean exists = m_userCommands.contains(name);
+            m_userCommands.removeCommand(name, false);
+            return exists;
+        });
+    }
+
+    /* **** client listener methods, called on the client thread **** */
+
+    @Override
+    public void onConnected(final ChatClient client) {
+        m_executor.execute(() -> {
+            if (client != m_client) {
+                return;
+            }
+            m_isClientRunning = true;
+            m_doRestartClient = false;
+            Logger.info("(Web) Client is running.");
+
+            m_modCommands.registerCommands(client);
+            m_userCommands.registerCommands();
+            if (m_index != null) {
+                client.registerCommand("quote", "!quote <words>", new CommandQuote(m_index))
+                        .setDescription("Quotes the last message containing the given words.");
+            }
+            if (m_points != null) {
+                m_points.registerCommands(client);
+            }
+        });
+    }
+
+    @Override
+    public void onDisconnected(final ChatClient client) {
+        m_executor.execute(() -> {
+            if (client != m_client) {
+                return;
+            }
+            m_isClientRunning = false;
+            Logger.info("(Web) Client is disconnected.");
+
+            // the client may be reconnecting, and registers nothing twice
+            m_modCommands.unregisterCommands(client);
+            m_userCommands.unregisterCommands();
+            if (m_index != null && client.isCommandRegistered("quote")) {
+                client.unregisterCommand("quote");
+            }
+            if (m_points != null) {
+                m_points.unregisterCommands(client);
+            }
+        });
+    }
+
+    @Override
+    public void onMessage(final ChatClient client, final String username, final String message) {
+        m_chat.add(new ChatLine(System.currentTimeMillis(), username, message));
+    }
+
+    @Override
+    public void onCommandRegistered(final ChatClient client, final String label, final Command command) {
+        m_commands.put(label, command);
+    }
+
+    @Override
+    public void onCommandUnregistered(final ChatClient client, final String label) {
+        m_commands.remove(label);
+    }
+
+    @Override
+    public void onAliasRegistered(final ChatClient client, final String alias, final String label) {
+        m_aliases.put(alias, label);
+    }
+
+    @Override
+    public void onAliasUnregistered(final ChatClient client, final String alias) {
+        m_aliases.remove(alias);
+    }
+
+    /**
+     * A message received in the chat.
+     */
+    public static final class ChatLine {
+
+        public final long timestamp;
+        public final String username;
+        public final String message;
+
+        private ChatLine(final long timestamp, final String username, final String message) {
+            this.timestamp = timestamp;
+            this.username = username;
+            this.message = message;
+        }
+
+    }
+
+    // the results are already logged, there is no one to show dialogs to
+    private class ManagerHost implements UserCommandManager.Host {
+
+        @Override
+        public ChatClient getClient() {
+            return m_client;
+        }
+
+        @Override
+        public boolean isClientRunning() {
+            return m_isClientRunning;
+        }
+
+        @Override
+        public void commandsChanged(final String[] names) {
+        }
+
+        @Override
+        public void info(final String message, final String title) {
+        }
+
+        @Override
+        public void warning(final String message, final String title) {
+        }
+
+        @Override
+        public void error(final String message, final String title) {
+        }
+
+    }
+
+}
@@ -0,0 +1,76 @@
+package nuclearbot.web;
+
+import java.util.List;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Bounded ring of events numbered by sequence.<br>
+ * The producer only stores a reference, each reader keeps its own
+ * position and copies what it hasn't seen yet, so a slow reader
+ * never holds the producer back: it skips what was overwritten.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ *
+ * @param <T> the type of the events
+ */
+final class EventRing<T> {
+
+    private final Object[] m_items;
+    private long m_next; // sequence number of the next event
+
+    EventRing(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        m_items = new Object[capacity];
+        m_next = 0L;
+    }
+
+    synchronized void add(final T item) {
+        m_items[(int) (m_next % m_items.length)] = item;
+        m_next++;
+    }
+
+    synchronized long nextSequence() {
+        return m_next;
+    }
+
+    synchronized long firstSequence() {
+        return Math.max(0L, m_next - m_items.length);
+    }
+
+    /**
+     * Copies the events starting at the specified sequence number, oldest first.
+     * Events that were already overwritten are skipped.
+     *
+     * @param fromSequence the sequence number of the first event wanted
+     * @param into         the list the events are added to
+     * @return the sequence number to continue from
+     */
+    @SuppressWarnings("unchecked")
+    synchronized long copyFrom(final long fromSequence, final List<? super T> into) {
+        for (long sequence = Math.max(fromSequence, firstSequence()); sequence < m_next; sequence++) {
+            into.add((T) m_items[(int) (sequence % m_items.length)]);
+        }
+        return m_next;
+    }
+
+}
@@ -0,0 +1,604 @@
+package nuclearbot.web;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import nuclearbot.client.Command;
+import nuclearbot.client.Moderators;
+import nuclearbot.gui.commands.UserCommandManager;
+import nuclearbot.plugin.JavaPlugin;
+import nuclearbot.util.Config;
+import nuclearbot.util.LogRecord;
+import nuclearbot.util.LogRing;
+import nuclearbot.util.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/*
+ * Copyright (C) 2017 NuclearCoder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Embedded HTTP server for the web control panel, an alternative to the GUI.<br>
+ * The page on <code>/</code> uses the JSON API on <code>/api/</code>.
+ * The chat and the console are pushed on <code>/api/events</code> as
+ * server-sent events: each connection has its own thread which reads
+ * the chat and log rings from its own position and writes what is new
+ * in one event per stream every batch interval. The client thread
+ * never waits for the admins, a slow admin only skips old lines.<br>
+ * Changes must be posted as JSON, which browsers don't allow
+ * from other sites without asking, and a token is always required:
+ * one is generated and saved as "web_token" the first time.
+ * Requests must name the server by its bind address, an IP address,
+ * a loopback name or a name listed in "web_hosts", so that a page
+ * can't reach the panel through a domain rebound to this machine.<br>
+ * <br>
+ * NuclearBot (https://github.com/NuclearCoder/nuclear-bot/)<br>
+ *
+ * @author NuclearCoder (contact on the GitHub repo)
+ */
+public class WebPanel {
+
+    private static final String JSON_TYPE = "application/json; charset=utf-8";
+    private static final int MAX_BODY = 64 * 1024;
+    private static final int CHAT_BACKLOG = 200;
+    private static final int CONSOLE_BACKLOG = 500;
+    private static final long KEEPALIVE_MILLIS = 15000L;
+    private static final String MASK = "********";
+    private static final Pattern IP_LITERAL = Pattern.compile("[0-9.]+|\\[[0-9a-fA-F:.]+]");
+
+    private final BotController m_controller;
+    private final Gson m_gson;
+    private final String m_token;
+    private final Set<String> m_hosts; // accepted in the Host header, besides IP addresses
+    private final int m_batchMillis;
+    private final int m_maxStreams;
+    private final AtomicInteger m_streams;
+    private final byte[] m_page;
+
+    private HttpServer m_server;
+    private volatile boolean m_running;
+
+    /**
+     * Constructs the web panel of the specified controller,
+     * with the settings from the configuration.
+     *
+     * @param controller the bot controller
+     */
+    public WebPanel(final BotController controller) {
+        m_controller = controller;
+        m_gson = new Gson();
+        m_token = readToken();
+        m_hosts = new HashSet<>();
+        m_hosts.add("localhost");
+        for (final String host : Config.get("web_hosts", "").split(",")) {
+            if (!host.trim().isEmpty()) {
+                m_hosts.add(host.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        m_batchMillis = readInt("web_batch_ms", 250, 20, 5000);
+        m_maxStreams = readInt("web_max_streams", 8, 1, 64);
+        m_streams = new AtomicInteger();
+        m_page = readPage();
+        m_server = null;
+        m_running = false;
+    }
+
+    private static int readInt(final String key, final int defaultValue, final int min, final int max) {
+        return Math.max(min, Math.min(Config.getInt(key, defaultValue), max));
+    }
+
+    // an empty token would let anyone in, so there is always one
+    private static String readToken() {
+        final String token = Config.get("web_token", "").trim();
+        if (!token.isEmpty()) {
+            return token;
+        }
+        final byte[] bytes = new byte[18];
+        new SecureRandom().nextBytes(bytes);
+        final String generated = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Config.set("web_token", generated);
+        Logger.info("(Web) Generated a token for the control panel, saved as \"web_token\".");
+        return generated;
+    }
+
+    private static byte[] readPage() {
+        try (InputStream in = WebPanel.class.getResourceAsStream("panel.html")) {
+            if (in == null) {
+                Logger.warning("(Web) The control panel page is missing, only the API will be served.");
+                return null;
+            }
+            final ByteArrayOutputStream page = new ByteArrayOutputStream(16384);
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                page.write(buffer, 0, read);
+            }
+            return page.toByteArray();
+        } catch (IOException e) {
+            Logger.warning("(Web) Couldn't read the control panel page:");
+            Logger.printStackTrace(e);
+            return null;
+        }
+    }
+
+    /**
+     * Starts the server if it isn't running.
+     * The server thread is not a daemon, it keeps the program alive.
+     *
+     * @param host the address to bind to
+     * @param port the port to listen on
+     * @throws IOException if the server could not be bound
+     */
+    public synchronized void start(final String host, final int port) throws IOException {
+        if (m_server != null) {
+            return;
+        }
+        final InetSocketAddress address = new InetSocketAddress(host, port);
+        m_hosts.add(host.toLowerCase(Locale.ROOT));
+        m_server = HttpServer.create(address, 0);
+        m_server.createContext("/", this::handlePage);
+        m_server.createContext("/api/", this::handleApi);
+        m_server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "web panel");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        m_running = true;
+        m_server.start();
+
+        // the log may be shared, so the token is left out
+        Logger.info("(Web) Serving the control panel on http://" + host + ":" + port + "/?token=<web_token>");
+        Logger.info("(Web) The token is the \"web_token\" value in the config file.");
+    }
+
+    /**
+     * Stops the server if it is running, and closes the event streams.
+     */
+    public synchronized void stop() {
+        if (m_server != null) {
+            m_running = false;
+            m_server.stop(0);
+            m_server = null;
+        }
+    }
+
+    private void handlePage(final HttpExchange exchange) throws IOException {
+        try {
+            if (!isKnownHost(exchange)) {
+                exchange.sendResponseHeaders(421, -1);
+            } else if (!"/".equals(exchange.getRequestURI().getPath()) || m_page == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+                exchange.sendResponseHeaders(200, m_page.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(m_page);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleApi(final HttpExchange exchange) throws IOException {
+        try {
+            if (!isKnownHost(exchange)) {
+                sendError(exchange, 421, "Unknown host name.");
+                return;
+            }
+            if (!isAuthorized(exchange)) {
+                sendError(exchange, 401, "Missing or wrong token.");
+                return;
+            }
+            final String path = exchange.getRequestURI().getPath().substring("/api/".length());
+            final String method = exchange.getRequestMethod();
+            if ("GET".equals(method)) {
+                if ("events".equals(path)) {
+                    stream(exchange);
+                } else {
+                    get(exchange, path);
+                }
+            } else if ("POST".equals(method)) {
+                final String type = exchange.getRequestHeaders().getFirst("Content-Type");
+                if (type == null || !type.toLowerCase(Locale.ROOT).startsWith("application/json")) {
+                    sendError(exchange, 415, "Changes must be posted as JSON.");
+                } else {
+                    post(exchange, path, readBody(exchange));
+                }
+            } else {
+                sendError(exchange, 405, "Method not allowed.");
+            }
+        } catch (JsonParseException | IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage() != null ? e.getMessage() : "Bad request.");
+        } catch (IllegalStateException e) {
+            Logger.warning("(Web) Exception caught while handling a request:");
+            Logger.printStackTrace(e);
+            sendError(exchange, 500, "Internal error. Check console for details.");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // a rebound domain name is the attacker's, an IP address can't be rebound
+    private boolean isKnownHost(final HttpExchange exchange) {
+        final String header = exchange.getRequestHeaders().getFirst("Host");
+        if (header == null) {
+            return false;
+        }
+        String host = header.trim().toLowerCase(Locale.ROOT);
+        final int colon = host.lastIndexOf(':');
+        if (colon != -1 && colon > host.lastIndexOf(']')) {
+            host = host.substring(0, colon);
+        }
+        return IP_LITERAL.matcher(host).matches() || m_hosts.contains(host);
+    }
+
+    private boolean isAuthorized(final HttpExchange exchange) {
+        final String token;
+        final String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header != null && header.startsWith("Bearer ")) {
+            token = header.substring("Bearer ".length()).trim();
+        } else {
+            token = queryParameter(exchange, "token"); // event sources can't set headers
+        }
+        return token != null && MessageDigest.isEqual(m_token.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String queryParameter(final HttpExchange exchange, final String name) {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (final String pair : query.split("&")) {
+                final int equals = pair.indexOf('=');
+                if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                    try {
+                        return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static JsonObject readBody(final HttpExchange exchange) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        try (InputStream in = exchange.getRequestBody()) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (body.size() + read > MAX_BODY) {
+                    throw new IllegalArgumentException("Request too large.");
+                }
+                body.write(buffer, 0, read);
+            }
+        }
+        if (body.size() == 0) {
+            return new JsonObject();
+        }
+        final JsonElement element = new JsonParser()
+                .parse(new InputStreamReader(new ByteArrayInputStream(body.toByteArray()), StandardCharsets.UTF_8));
+        if (!element.isJsonObject()) {
+            throw new IllegalArgumentException("Expected a JSON object.");
+        }
+        return element.getAsJsonObject();
+    }
+
+    private static String string(final JsonObject body, final String name) {
+        final JsonElement element = body.get(name);
+        if (element == null || !element.isJsonPrimitive() || element.getAsString().trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing \"" + name + "\".");
+        }
+        return element.getAsString().trim();
+    }
+
+    private static String optionalString(final JsonObject body, final String name) {
+        final JsonElement element = body.get(name);
+        return element != null && element.isJsonPrimitive() ? element.getAsString().trim() : "";
+    }
+
+    /* **** requests **** */
+
+    private void get(final HttpExchange exchange, final String path) throws IOException {
+        switch (path) {
+            case "status":
+                sendJson(exchange, status());
+                break;
+            case "plugins": {
+                final JsonObject plugins = new JsonObject();
+                plugins.add("current", plugin(m_controller.getPlugin()));
+                plugins.add("builtin", m_gson.toJsonTree(m_controller.getBuiltinPlugins()));
+                sendJson(exchange, plugins);
+                break;
+            }
+            case "commands": {
+                final JsonArray registered = new JsonArray();
+                final Map<String, List<String>> aliases = m_controller.getAliases();
+                for (final Command command : m_controller.getCommands()) {
+                    final JsonObject row = new JsonObject();
+                    row.addProperty("label", command.getLabel());
+                    row.add("aliases", m_gson.toJsonTree(aliases.getOrDefault(command.getLabel(), Collections.emptyList())));
+                    row.addProperty("usage", command.getUsage());
+                    row.addProperty("description", command.getDescription());
+                    registered.add(row);
+                }
+                final JsonArray user = new JsonArray();
+                for (final UserCommandManager.CommandInfo command : m_controller.getUserCommands()) {
+                    user.add(m_gson.toJsonTree(command));
+                }
+                final JsonObject commands = new JsonObject();
+                commands.add("registered", registered);
+                commands.add("user", user);
+                sendJson(exchange, commands);
+                break;
+            }
+            case "moderators":
+                sendJson(exchange, m_gson.toJsonTree(new ArrayList<>(Moderators.getModerators())));
+                break;
+            case "config": {
+                final JsonObject config = new JsonObject();
+                for (final String key : Config.keys()) {
+                    config.addProperty(key, isSecret(key) ? MASK : Config.get(key));
+                }
+                sendJson(exchange, config);
+                break;
+            }
+            default:
+                sendError(exchange, 404, "Unknown resource.");
+        }
+    }
+
+    private void post(final HttpExchange exchange, final String path, final JsonObject body) throws IOException {
+        final boolean ok;
+        switch (path) {
+            case "client/start":
+                ok = m_controller.startClient();
+                break;
+            case "client/stop":
+                ok = m_controller.stopClient();
+                break;
+            case "client/restart":
+                ok = m_controller.restartClient();
+                break;
+            case "plugins":
+                ok = body.has("className")
+                        ? m_controller.loadPlugin(string(body, "className"), null)
+                        : m_controller.loadPlugin(null, string(body, "path"));
+                break;
+            case "commands":
+                m_controller.createUserCommand(string(body, "name").toLowerCase(Locale.ROOT), optionalString(body, "usage"),
+                        optionalString(body, "description"), string(body, "response"));
+                ok = true;
+                break;
+            case "commands/remove":
+                ok = m_controller.removeUserCommand(string(body, "name").toLowerCase(Locale.ROOT));
+                break;
+            case "moderators/add":
+                Moderators.addModerator(string(body, "name").toLowerCase(Locale.ROOT));
+                ok = true;
+                break;
+            case "moderators/remove": {
+                final String name = string(body, "name").toLowerCase(Locale.ROOT);
+                ok = Moderators.isModerator(name);
+                Moderators.removeModerator(name);
+                break;
+            }
+            case "chat":
+                ok = m_controller.sendMessage(string(body, "message"));
+                break;
+            case "config": {
+                final String key = string(body, "key");
+                final String value = optionalString(body, "value");
+                if (!(isSecret(key) && MASK.equals(value))) { // the masked value was sent back unchanged
+                    Config.set(key, value);
+                }
+                ok = true;
+                break;
+            }
+            case "config/save":
+            case "config/reload":
+                try {
+                    if (path.endsWith("save")) {
+                        Config.saveConfig();
+                    } else {
+                        Config.reloadConfig();
+                    }
+                    ok = true;
+                } catch (IOException e) {
+                    Logger.error("(Web) Couldn't " + path.substring("config/".length()) + " the config:");
+                    Logger.printStackTrace(e);
+                    sendError(exchange, 500, "Couldn't access the config. Check console for details.");
+                    return;
+                }
+                break;
+            default:
+                sendError(exchange, 404, "Unknown action.");
+                return;
+        }
+        final JsonObject result = new JsonObject();
+        result.addProperty("ok", ok);
+        sendJson(exchange, result);
+    }
+
+    private JsonObject status() {
+        final JsonObject status = new JsonObject();
+        status.addProperty("running", m_controller.isClientRunning());
+        status.add("plugin", plugin(m_controller.getPlugin()));
+        status.addProperty("admins", m_streams.get());
+        return status;
+    }
+
+    private static JsonElement plugin(final JavaPlugin plugin) {
+        if (plugin == null) {
+            return null;
+        }
+        final JsonObject json = new JsonObject();
+        json.addProperty("name", plugin.getName());
+        json.addProperty("className", plugin.getClassName());
+        json.addProperty("builtin", plugin.isBuiltin());
+        return json;
+    }
+
+    // keys holding passwords or tokens are never sent
+    private static boolean isSecret(final String key) {
+        final String lower = key.toLowerCase(Locale.ROOT);
+        return lower.endsWith("_key") || lower.contains("token") || lower.contains("password");
+    }
+
+    private void sendJson(final HttpExchange exchange, final JsonElement json) throws IOException {
+        final byte[] bytes = m_gson.toJson(json).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void sendError(final HttpExchange exchange, final int code, final String message) throws IOException {
+        final JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        final byte[] bytes = m_gson.toJson(error).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /* **** event stream **** */
+
+    // writes the new chat messages and log records every batch interval until the admin leaves
+    private void stream(final HttpExchange exchange) throws IOException {
+        if (m_streams.incrementAndGet() > m_maxStreams) {
+            m_streams.decrementAndGet();
+            sendError(exchange, 503, "Too many admins connected.");
+            return;
+        }
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, 0);
+
+            final LogRing records = Logger.records();
+            final List<BotController.ChatLine> chat = new ArrayList<>();
+            final StringBuilder text = new StringBuilder(8192);
+            long chatSequence = Math.max(0L, m_controller.nextChatSequence() - CHAT_BACKLOG);
+            long logSequence = Math.max(0L, records.nextSequence() - CONSOLE_BACKLOG);
+            // a reconnecting event source sends the id of the last event it received
+            final String lastId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            if (lastId != null && lastId.matches("\\d{1,18}-\\d{1,18}")) {
+                chatSequence = Long.parseLong(lastId.substring(0, lastId.indexOf('-')));
+                logSequence = Long.parseLong(lastId.substring(lastId.indexOf('-') + 1));
+            }
+            Boolean wasRunning = null;
+            long lastWrite = System.currentTimeMillis();
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                while (m_running) {
+                    text.setLength(0);
+
+                    final boolean running = m_controller.isClientRunning();
+                    if (wasRunning == null || running != wasRunning) {
+                        appendEvent(text, "status", null, status());
+                        wasRunning = running;
+                    }
+
+                    chat.clear();
+                    chatSequence = m_controller.chatFrom(chatSequence, chat);
+                    final LogRecord[] logs = records.copyFrom(logSequence);
+                    if (logs.length != 0) {
+                        logSequence = logs[logs.length - 1].getSequence() + 1;
+                    }
+                    final String id = chatSequence + "-" + logSequence;
+
+                    if (!chat.isEmpty()) {
+                        appendEvent(text, "chat", id, m_gson.toJsonTree(chat));
+                    }
+                    if (logs.length != 0) {
+                        final JsonArray lines = new JsonArray();
+                        for (final LogRecord record : logs) {
+                            final JsonObject line = new JsonObject();
+                            line.addProperty("timestamp", record.getTimestamp());
+                            line.addProperty("level", record.getLevel());
+                            line.addProperty("tag", record.getTag());
+                            line.addProperty("message", record.getMessage());
+                            lines.add(line);
+                        }
+                        appendEvent(text, "console", id, lines);
+                    }
+
+                    final long now = System.currentTimeMillis();
+                    if (text.length() == 0 && now - lastWrite >= KEEPALIVE_MILLIS) {
+                        text.append(": keepalive\n\n"); // finds out when the admin left
+                    }
+                    if (text.length() != 0) {
+                        out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                        lastWrite = now;
+                    }
+
+                    Thread.sleep(m_batchMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ignored) {
+                // the admin left
+            }
+        } finally {
+            m_streams.decrementAndGet();
+        }
+    }
+
+    private void appendEvent(final StringBuilder text, final String event, final String id, final JsonElement data) {
+        text.append("event: ").append(event).append('\n');
+        if (id != null) {
+            text.append("id: ").append(id).append('\n');
+        }
+        // JSON has no raw line breaks, so the data fits on one line
+        text.append("data: ").append(m_gson.toJson(data)).append("\n\n");
+    }
+
+}